@@ -0,0 +1,30 @@
+package com.rob.ceuploadxml.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * XML documents for benchmarks.
+ */
+final class BenchmarkXml {
+
+	/**
+	 * Not to be created.
+	 */
+	private BenchmarkXml() {
+	}
+
+	/**
+	 * @param size roughly how big the document should be, in bytes
+	 * @return a well formed document of books, at least <code>size</code> bytes
+	 *         long
+	 */
+	static byte[] books(final int size) {
+		StringBuilder xml = new StringBuilder(size + 128).append("<?xml version=\"1.0\"?>\n<books>\n");
+		for (int i = 0; xml.length() < size; i++) {
+			xml.append("\t<book id=\"").append(i).append("\"><title>Title ").append(i)
+					.append("</title><author>Author &amp; co</author><price>").append(i % 100)
+					.append(".95</price></book>\n");
+		}
+		return xml.append("</books>\n").toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,105 @@
+package com.rob.ceuploadxml.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+
+/**
+ * Throughput of writing large lists of metadata as JSON, as
+ * <code>/xmldoc/list</code> (one array) and <code>/xmldoc/list/stream</code>
+ * (one object per line) do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListJsonBenchmark {
+
+	/**
+	 * Number of files listed.
+	 */
+	@Param({"100", "1000", "10000"})
+	private int files;
+
+	/**
+	 * Writes JSON, set up as Spring Boot sets up its own.
+	 */
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Writes one file at a time, without flushing after each.
+	 */
+	private ObjectWriter rowWriter;
+
+	/**
+	 * Files listed.
+	 */
+	private List<XmlDocMetadata> list;
+
+	/**
+	 * Build the list.
+	 */
+	@Setup
+	public void setUp() {
+		objectMapper = new ObjectMapper().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+		rowWriter = objectMapper.writerFor(XmlDocMetadata.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		list = new ArrayList<>(files);
+		for (int i = 0; i < files; i++) {
+			list.add(XmlDocMetadata.builder()//
+					.id(i + 1)//
+					.filename("file" + i + ".xml")//
+					.note("Note about file " + i + ".")//
+					.size(1024L * i)//
+					.contentHash(String.format("%064x", i))//
+					.build());
+		}
+	}
+
+	/**
+	 * @return the list as one JSON array
+	 * @throws IOException if the list cannot be written
+	 */
+	@Benchmark
+	public byte[] jsonArray() throws IOException {
+		return objectMapper.writeValueAsBytes(list);
+	}
+
+	/**
+	 * @return the list as one JSON object per line
+	 * @throws IOException if the list cannot be written
+	 */
+	@Benchmark
+	public byte[] ndjson() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(files * 160);
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+			generator.setRootValueSeparator(null);
+			for (XmlDocMetadata doc : list) {
+				rowWriter.writeValue(generator, doc);
+				generator.writeRaw('\n');
+			}
+		}
+		return out.toByteArray();
+	}
+}
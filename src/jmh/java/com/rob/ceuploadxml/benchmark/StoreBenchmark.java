@@ -0,0 +1,143 @@
+package com.rob.ceuploadxml.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.rob.ceuploadxml.CeUploadXmlApplication;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+/**
+ * Throughput of storing new files with {@link XmlStorageService#store}, end to
+ * end: checks, validation, writing to a temporary folder and saving metadata
+ * to an in-memory H2 database. Both engines are run with the same durability,
+ * syncing every store or none.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+	/**
+	 * Size of each file stored, in bytes.
+	 */
+	@Param({"1024", "65536"})
+	private int size;
+
+	/**
+	 * How files are compressed as they are stored.
+	 */
+	@Param({"NONE", "GZIP_FAST"})
+	private String compression;
+
+	/**
+	 * Where the bytes of stored files are kept.
+	 */
+	@Param({"FILES", "PACK"})
+	private String engine;
+
+	/**
+	 * True to sync each store to disk before it is acknowledged, with either
+	 * engine.
+	 */
+	@Param({"false", "true"})
+	private boolean sync;
+
+	/**
+	 * Application, without a web server.
+	 */
+	private ConfigurableApplicationContext context;
+
+	/**
+	 * Service under test.
+	 */
+	private XmlStorageService storageService;
+
+	/**
+	 * Folder files are stored in.
+	 */
+	private Path location;
+
+	/**
+	 * Document stored, under a new name each time.
+	 */
+	private byte[] xml;
+
+	/**
+	 * Makes each file name unique.
+	 */
+	private final AtomicLong counter = new AtomicLong();
+
+	/**
+	 * Start the application against a temporary folder and a fresh database.
+	 * 
+	 * @throws IOException if the folder cannot be created
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		location = Files.createTempDirectory("store-benchmark-");
+		xml = BenchmarkXml.books(size);
+		context = new SpringApplicationBuilder(CeUploadXmlApplication.class)//
+				.web(WebApplicationType.NONE)//
+				.run("--storage.location=" + location, //
+						"--storage.compression=" + compression, //
+						"--storage.engine=" + engine, //
+						"--storage.file-sync=" + sync, //
+						"--storage.pack-sync=" + sync, //
+						"--spring.datasource.url=jdbc:h2:mem:store-benchmark-" + System.nanoTime(), //
+						"--spring.datasource.driverClassName=org.h2.Driver", //
+						"--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect", //
+						"--spring.jpa.hibernate.ddl-auto=create", //
+						"--logging.level.root=WARN", //
+						"--logging.level.com.rob.ceuploadxml=WARN", //
+						"--logging.level.org.springframework.web=WARN");
+		storageService = context.getBean(XmlStorageService.class);
+	}
+
+	/**
+	 * Stop the application and remove what it stored.
+	 * 
+	 * @throws IOException if the folder cannot be removed
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		try (Stream<Path> paths = Files.walk(location)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	/**
+	 * @return metadata of the file stored
+	 */
+	@Benchmark
+	public XmlDocMetadata store() {
+		String filename = "bench" + counter.incrementAndGet() + ".xml";
+		return storageService.store(new MockMultipartFile("file", filename, "text/xml", xml), "Benchmark.");
+	}
+}
@@ -0,0 +1,63 @@
+package com.rob.ceuploadxml.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+/**
+ * Throughput of checking that documents of different sizes are well formed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlValidatorBenchmark {
+
+	/**
+	 * Size of the document checked, in bytes.
+	 */
+	@Param({"1024", "65536", "1048576"})
+	private int size;
+
+	/**
+	 * Validator under test, with the shared parser pool.
+	 */
+	private XmlValidator validator;
+
+	/**
+	 * Document checked.
+	 */
+	private byte[] xml;
+
+	/**
+	 * Build the validator and the document.
+	 */
+	@Setup
+	public void setUp() {
+		validator = new XmlValidator();
+		xml = BenchmarkXml.books(size);
+	}
+
+	/**
+	 * @return true if the document is well formed, which it always is
+	 */
+	@Benchmark
+	public boolean xmlIsWellFormed() {
+		return validator.xmlIsWellFormed(new ByteArrayInputStream(xml));
+	}
+}
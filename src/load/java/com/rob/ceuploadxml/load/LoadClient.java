@@ -0,0 +1,115 @@
+package com.rob.ceuploadxml.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Makes the requests of the load test against <code>/xmldoc</code>.
+ * 
+ * <b>Implementation note</b>: one client, and so one connection pool, is shared
+ * by every load thread, the way a fleet of browsers behind one proxy would be.
+ * Response bodies are read to the end and thrown away, so downloads cost the
+ * server what they would for a real client.
+ */
+final class LoadClient {
+
+	/**
+	 * Note sent with every upload.
+	 */
+	private static final String NOTE = "Load test.";
+
+	/**
+	 * Base of the <code>/xmldoc</code> endpoints, ending in a slash.
+	 */
+	private final URI base;
+
+	/**
+	 * Longest to wait for a response.
+	 */
+	private final Duration timeout;
+
+	/**
+	 * Client for every request.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * @param base    base of the <code>/xmldoc</code> endpoints, ending in a slash
+	 * @param timeout longest to wait for a response
+	 */
+	LoadClient(final URI base, final Duration timeout) {
+		this.base = base;
+		this.timeout = timeout;
+		this.client = HttpClient.newBuilder()//
+				.version(HttpClient.Version.HTTP_1_1)//
+				.connectTimeout(timeout)//
+				.build();
+	}
+
+	/**
+	 * Upload a file with <code>POST /xmldoc/add</code>.
+	 * 
+	 * @param filename name to upload the file as
+	 * @param xml      content of the file
+	 * @return HTTP status of the response
+	 * @throws IOException          if the request fails
+	 * @throws InterruptedException if interrupted waiting for the response
+	 */
+	int add(final String filename, final byte[] xml) throws IOException, InterruptedException {
+		String boundary = UUID.randomUUID().toString();
+		String head = "--" + boundary + "\r\n" //
+				+ "Content-Disposition: form-data; name=\"note\"\r\n\r\n" + NOTE + "\r\n" //
+				+ "--" + boundary + "\r\n" //
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n" //
+				+ "Content-Type: text/xml\r\n\r\n";
+		String tail = "\r\n--" + boundary + "--\r\n";
+		HttpRequest request = request("add")//
+				.header("Content-Type", "multipart/form-data; boundary=" + boundary)//
+				.POST(HttpRequest.BodyPublishers.ofByteArrays(List.of(head.getBytes(StandardCharsets.UTF_8), xml,
+						tail.getBytes(StandardCharsets.UTF_8))))//
+				.build();
+		return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	/**
+	 * Download a file with <code>GET /xmldoc/get/{filename}</code>.
+	 * 
+	 * @param filename name of the file
+	 * @return HTTP status of the response
+	 * @throws IOException          if the request fails
+	 * @throws InterruptedException if interrupted waiting for the response
+	 */
+	int get(final String filename) throws IOException, InterruptedException {
+		HttpRequest request = request("get/" + URLEncoder.encode(filename, StandardCharsets.UTF_8)).GET().build();
+		return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	/**
+	 * List the first page of files with <code>GET /xmldoc/list</code>.
+	 * 
+	 * @param size page size
+	 * @return HTTP status of the response
+	 * @throws IOException          if the request fails
+	 * @throws InterruptedException if interrupted waiting for the response
+	 */
+	int list(final int size) throws IOException, InterruptedException {
+		HttpRequest request = request("list?size=" + size).GET().build();
+		return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	/**
+	 * @param path path under <code>/xmldoc/</code>
+	 * @return request for the path, with the timeout set
+	 */
+	private HttpRequest.Builder request(final String path) {
+		return HttpRequest.newBuilder(base.resolve(path)).timeout(timeout);
+	}
+}
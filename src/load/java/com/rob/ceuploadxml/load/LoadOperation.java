@@ -0,0 +1,22 @@
+package com.rob.ceuploadxml.load;
+
+/**
+ * Requests the load test makes.
+ */
+public enum LoadOperation {
+
+	/**
+	 * Upload a new file with <code>POST /xmldoc/add</code>.
+	 */
+	ADD,
+
+	/**
+	 * Download a stored file with <code>GET /xmldoc/get/{filename}</code>.
+	 */
+	GET,
+
+	/**
+	 * List the first page of files with <code>GET /xmldoc/list</code>.
+	 */
+	LIST
+}
@@ -0,0 +1,436 @@
+package com.rob.ceuploadxml.load;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.rob.ceuploadxml.CeUploadXmlApplication;
+
+/**
+ * Load test of the <code>/xmldoc</code> endpoints. Starts the application on a
+ * free port with an in-memory H2 database and a temporary storage folder, then
+ * runs a mix of uploads, downloads and lists with more and more clients at
+ * once, and reports throughput and latency percentiles at each level.
+ * 
+ * <p>
+ * Arguments are <code>--name=value</code> pairs. Names starting
+ * <code>load.</code> set {@link LoadTestProperties}; any other name is passed to
+ * the application, so for example <code>--admission.enabled=false</code> turns
+ * off admission control for the run.
+ * </p>
+ * 
+ * <b>Implementation note</b>: each client sends its next request as soon as the
+ * last one is answered. Latency is only recorded for requests that succeed;
+ * requests turned away with 503 or 429 are counted as rejected, and any other
+ * failure as an error, so the point where the server starts to shed load shows
+ * up next to where its latency climbs.
+ */
+public final class LoadTest {
+
+	/**
+	 * Prefix of load test arguments.
+	 */
+	private static final String PREFIX = "load";
+
+	/**
+	 * Significant digits kept in latency histograms.
+	 */
+	private static final int LATENCY_DIGITS = 3;
+
+	/**
+	 * How the test runs.
+	 */
+	private final LoadTestProperties properties;
+
+	/**
+	 * Makes requests.
+	 */
+	private final LoadClient client;
+
+	/**
+	 * Documents to upload.
+	 */
+	private final XmlCorpus corpus;
+
+	/**
+	 * Operations to choose from, each with the total weight up to and including
+	 * it.
+	 */
+	private final Map<LoadOperation, Integer> cumulativeMix = new EnumMap<>(LoadOperation.class);
+
+	/**
+	 * Sum of the weights in the mix.
+	 */
+	private final int totalWeight;
+
+	/**
+	 * Names of files uploaded, to download from.
+	 */
+	private final List<String> stored = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Makes upload names unique.
+	 */
+	private final AtomicLong uploads = new AtomicLong();
+
+	/**
+	 * @param properties how the test runs
+	 * @param client     makes requests
+	 * @param corpus     documents to upload
+	 */
+	LoadTest(final LoadTestProperties properties, final LoadClient client, final XmlCorpus corpus) {
+		this.properties = properties;
+		this.client = client;
+		this.corpus = corpus;
+		int total = 0;
+		// Sum in enum order, the order the EnumMap is walked in, whatever order the mix was bound in.
+		for (LoadOperation operation : LoadOperation.values()) {
+			Integer weight = properties.getMix().get(operation);
+			if (weight != null && weight > 0) {
+				total += weight;
+				cumulativeMix.put(operation, total);
+			}
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("The load mix must give at least one operation a weight.");
+		}
+		this.totalWeight = total;
+	}
+
+	/**
+	 * Start the application, run the load test against it, then stop it.
+	 * 
+	 * @param args <code>--name=value</code> pairs
+	 * @throws Exception if the test cannot be run
+	 */
+	public static void main(final String[] args) throws Exception {
+		Path root = Files.createTempDirectory("load-test-");
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(CeUploadXmlApplication.class)//
+				.run(applicationArgs(args, root));
+		try {
+			LoadTestProperties properties = Binder.get(context.getEnvironment())//
+					.bind(PREFIX, LoadTestProperties.class)//
+					.orElseGet(LoadTestProperties::new);
+			int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+			LoadClient client = new LoadClient(URI.create("http://localhost:" + port + "/xmldoc/"),
+					properties.getRequestTimeout());
+			new LoadTest(properties, client, new XmlCorpus(properties, new Random(0))).run();
+		} finally {
+			context.close();
+			try (Stream<Path> paths = Files.walk(root)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	/**
+	 * @param args arguments given to the load test
+	 * @param root temporary folder for the application to store files in
+	 * @return arguments to start the application with: ones that keep it self
+	 *         contained and quiet, overridden by any given
+	 */
+	private static String[] applicationArgs(final String[] args, final Path root) {
+		Map<String, String> properties = new LinkedHashMap<>();
+		properties.put("server.port", "0");
+		properties.put("spring.main.banner-mode", "off");
+		properties.put("spring.datasource.url", "jdbc:h2:mem:load-test");
+		properties.put("spring.datasource.driverClassName", "org.h2.Driver");
+		properties.put("spring.datasource.username", "sa");
+		properties.put("spring.jpa.database-platform", "org.hibernate.dialect.H2Dialect");
+		properties.put("spring.jpa.hibernate.ddl-auto", "create-drop");
+		properties.put("spring.servlet.multipart.max-file-size", "128KB");
+		properties.put("storage.location", root.resolve("xml-files").toString());
+		properties.put("validation.schema-location", root.resolve("xml-schemas").toString());
+		properties.put("logging.level.root", "WARN");
+		properties.put("logging.level.com.rob.ceuploadxml", "WARN");
+		properties.put("logging.level.org.springframework.web", "WARN");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Arguments must be --name=value, not: " + arg);
+			}
+			properties.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		return properties.entrySet().stream()//
+				.map(entry -> "--" + entry.getKey() + "=" + entry.getValue())//
+				.toArray(String[]::new);
+	}
+
+	/**
+	 * Upload the seed files, then run each level of concurrency in turn,
+	 * reporting as each finishes.
+	 * 
+	 * @throws Exception if the test cannot be run or the report written
+	 */
+	void run() throws Exception {
+		long[] sizes = corpus.sizes();
+		System.out.printf("Uploads: %d documents, p50 %d bytes, p99 %d bytes, max %d bytes.%n", sizes.length,
+				sizes[sizes.length / 2], sizes[sizes.length * 99 / 100], sizes[sizes.length - 1]);
+
+		Random random = new Random(1);
+		for (int i = 0; i < properties.getSeedFiles(); i++) {
+			add(random);
+		}
+		System.out.printf("Seeded %d files.%n%n", stored.size());
+
+		Path report = Path.of(properties.getReport());
+		if (report.getParent() != null) {
+			Files.createDirectories(report.getParent());
+		}
+		try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(report, StandardCharsets.UTF_8))) {
+			csv.println("concurrency,operation,count,throughput,p50_ms,p99_ms,p999_ms,max_ms,rejected,errors");
+			System.out.printf("%11s %-5s %9s %10s %9s %9s %9s %9s %9s %9s%n", "concurrency", "op", "count", "ops/s",
+					"p50 ms", "p99 ms", "p99.9 ms", "max ms", "rejected", "errors");
+			for (int clients : properties.getConcurrency()) {
+				runLevel(clients, properties.getWarmup().toNanos());
+				Map<LoadOperation, OperationStats> level = runLevel(clients, properties.getDuration().toNanos());
+				double seconds = properties.getDuration().toNanos() / 1e9;
+				OperationStats all = new OperationStats();
+				for (Map.Entry<LoadOperation, OperationStats> entry : level.entrySet()) {
+					report(csv, clients, entry.getKey().name(), entry.getValue(), seconds);
+					all.add(entry.getValue());
+				}
+				report(csv, clients, "ALL", all, seconds);
+				csv.flush();
+			}
+		}
+		System.out.printf("%nReport written to %s.%n", report.toAbsolutePath());
+	}
+
+	/**
+	 * Run the mix with a number of clients at once.
+	 * 
+	 * @param clients number of clients
+	 * @param nanos   how long to run for
+	 * @return what happened, for each operation in the mix
+	 * @throws Exception if a client fails other than with an error response
+	 */
+	private Map<LoadOperation, OperationStats> runLevel(final int clients, final long nanos) throws Exception {
+		Map<LoadOperation, OperationStats> stats = new EnumMap<>(LoadOperation.class);
+		for (LoadOperation operation : cumulativeMix.keySet()) {
+			stats.put(operation, new OperationStats());
+		}
+		long end = System.nanoTime() + nanos;
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		try {
+			List<Future<?>> running = new ArrayList<>(clients);
+			for (int i = 0; i < clients; i++) {
+				running.add(pool.submit(() -> {
+					Random random = ThreadLocalRandom.current();
+					while (System.nanoTime() < end) {
+						LoadOperation operation = choose(random);
+						long start = System.nanoTime();
+						int status = execute(operation, random);
+						stats.get(operation).record(status, System.nanoTime() - start);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> client : running) {
+				client.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return stats;
+	}
+
+	/**
+	 * @param random chooses the operation
+	 * @return an operation, chosen by its weight in the mix
+	 */
+	private LoadOperation choose(final Random random) {
+		int pick = random.nextInt(totalWeight);
+		for (Map.Entry<LoadOperation, Integer> entry : cumulativeMix.entrySet()) {
+			if (pick < entry.getValue()) {
+				return entry.getKey();
+			}
+		}
+		throw new IllegalStateException("Weight " + pick + " is outside the mix.");
+	}
+
+	/**
+	 * @param operation operation to make
+	 * @param random    chooses what to upload or download
+	 * @return HTTP status of the response, or 0 if there was none
+	 * @throws InterruptedException if interrupted waiting for the response
+	 */
+	private int execute(final LoadOperation operation, final Random random) throws InterruptedException {
+		try {
+			switch (operation) {
+			case ADD:
+				return add(random);
+			case GET:
+				String filename;
+				synchronized (stored) {
+					if (stored.isEmpty()) {
+						return add(random);
+					}
+					filename = stored.get(random.nextInt(stored.size()));
+				}
+				return client.get(filename);
+			case LIST:
+				return client.list(properties.getListPageSize());
+			default:
+				throw new IllegalStateException("Unknown operation: " + operation);
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Upload a new file, and remember it if it is stored.
+	 * 
+	 * @param random chooses the document
+	 * @return HTTP status of the response
+	 * @throws IOException          if the request fails
+	 * @throws InterruptedException if interrupted waiting for the response
+	 */
+	private int add(final Random random) throws IOException, InterruptedException {
+		String filename = "load-" + uploads.incrementAndGet() + ".xml";
+		int status = client.add(filename, corpus.next(random));
+		if (isSuccess(status)) {
+			stored.add(filename);
+		}
+		return status;
+	}
+
+	/**
+	 * Print a line of results and write it to the report.
+	 * 
+	 * @param csv       report
+	 * @param clients   number of clients
+	 * @param operation name of the operation
+	 * @param stats     what happened
+	 * @param seconds   how long the level was measured for
+	 */
+	private static void report(final PrintWriter csv, final int clients, final String operation,
+			final OperationStats stats, final double seconds) {
+		Histogram latency = stats.getLatency();
+		long count = latency.getTotalCount();
+		double throughput = count / seconds;
+		double p50 = millis(latency.getValueAtPercentile(50));
+		double p99 = millis(latency.getValueAtPercentile(99));
+		double p999 = millis(latency.getValueAtPercentile(99.9));
+		double max = millis(latency.getMaxValue());
+		System.out.printf("%11d %-5s %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9d %9d%n", clients, operation, count,
+				throughput, p50, p99, p999, max, stats.getRejected(), stats.getErrors());
+		csv.printf("%d,%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%d%n", clients, operation, count, throughput, p50, p99,
+				p999, max, stats.getRejected(), stats.getErrors());
+	}
+
+	/**
+	 * @param micros time in microseconds
+	 * @return the time in milliseconds
+	 */
+	private static double millis(final long micros) {
+		return micros / 1000.0;
+	}
+
+	/**
+	 * @param status HTTP status
+	 * @return true if the status is 2xx
+	 */
+	private static boolean isSuccess(final int status) {
+		return status >= 200 && status < 300;
+	}
+
+	/**
+	 * What happened to one operation at one level.
+	 */
+	private static final class OperationStats {
+
+		/**
+		 * Latency of successful requests, in microseconds.
+		 */
+		private final Recorder recorder = new Recorder(LATENCY_DIGITS);
+
+		/**
+		 * Latencies taken from the recorder so far, and added from other stats, in
+		 * microseconds.
+		 */
+		private final Histogram latency = new Histogram(LATENCY_DIGITS);
+
+		/**
+		 * Requests turned away because the server was busy.
+		 */
+		private final LongAdder rejected = new LongAdder();
+
+		/**
+		 * Requests that failed any other way.
+		 */
+		private final LongAdder errors = new LongAdder();
+
+		/**
+		 * @param status HTTP status of the response, or 0 if there was none
+		 * @param nanos  how long the request took
+		 */
+		void record(final int status, final long nanos) {
+			if (isSuccess(status)) {
+				recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+			} else if (status == 503 || status == 429) {
+				rejected.increment();
+			} else {
+				errors.increment();
+			}
+		}
+
+		/**
+		 * @param other stats to add to these
+		 */
+		void add(final OperationStats other) {
+			latency.add(other.getLatency());
+			rejected.add(other.getRejected());
+			errors.add(other.getErrors());
+		}
+
+		/**
+		 * @return latency of successful requests, in microseconds
+		 */
+		Histogram getLatency() {
+			latency.add(recorder.getIntervalHistogram());
+			return latency;
+		}
+
+		/**
+		 * @return requests turned away because the server was busy
+		 */
+		long getRejected() {
+			return rejected.sum();
+		}
+
+		/**
+		 * @return requests that failed any other way
+		 */
+		long getErrors() {
+			return errors.sum();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.rob.ceuploadxml.load;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.unit.DataSize;
+
+import lombok.Data;
+
+/**
+ * How the load test runs, bound from <code>--load.*</code> arguments.
+ */
+@Data
+public class LoadTestProperties {
+
+	/**
+	 * Numbers of clients to run with, one level after another.
+	 */
+	private List<Integer> concurrency = new ArrayList<>(Arrays.asList(1, 2, 4, 8, 16, 32, 64));
+
+	/**
+	 * How long each level runs before it is measured.
+	 */
+	private Duration warmup = Duration.ofSeconds(5);
+
+	/**
+	 * How long each level is measured for.
+	 */
+	private Duration duration = Duration.ofSeconds(20);
+
+	/**
+	 * Relative weight of each operation; 0 to leave an operation out.
+	 */
+	private Map<LoadOperation, Integer> mix = defaultMix();
+
+	/**
+	 * Folder of sample documents to build uploads from. Files that are not well
+	 * formed XML are skipped.
+	 */
+	private String samples = "sample-files";
+
+	/**
+	 * Median size of an upload. Sizes are log-normally distributed around it.
+	 */
+	private DataSize medianSize = DataSize.ofKilobytes(8);
+
+	/**
+	 * Spread of upload sizes: the standard deviation of their natural log.
+	 */
+	private double sizeSpread = 1.0;
+
+	/**
+	 * Largest upload; keep it within <code>spring.servlet.multipart.max-file-size</code>.
+	 */
+	private DataSize maxSize = DataSize.ofKilobytes(128);
+
+	/**
+	 * Number of different documents built before the test, and uploaded in turn.
+	 */
+	private int documents = 256;
+
+	/**
+	 * Files uploaded before the first level, so there is something to download.
+	 */
+	private int seedFiles = 200;
+
+	/**
+	 * Page size asked for when listing.
+	 */
+	private int listPageSize = 100;
+
+	/**
+	 * Longest to wait for a response before counting the request as an error.
+	 */
+	private Duration requestTimeout = Duration.ofSeconds(30);
+
+	/**
+	 * CSV file the results are written to, as well as being printed.
+	 */
+	private String report = "target/load-test.csv";
+
+	/**
+	 * @return weights of 20% uploads, 70% downloads and 10% lists
+	 */
+	private static Map<LoadOperation, Integer> defaultMix() {
+		Map<LoadOperation, Integer> mix = new EnumMap<>(LoadOperation.class);
+		mix.put(LoadOperation.ADD, 20);
+		mix.put(LoadOperation.GET, 70);
+		mix.put(LoadOperation.LIST, 10);
+		return mix;
+	}
+}
@@ -0,0 +1,123 @@
+package com.rob.ceuploadxml.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.xml.sax.SAXException;
+
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+/**
+ * Documents to upload, built from sample files with sizes drawn from a
+ * log-normal distribution, which is how file sizes tend to fall in practice:
+ * most are small and a few are much bigger.
+ * 
+ * <b>Implementation note</b>: each document is a root element wrapped around as
+ * many copies of a sample as fit its size, so it stays well formed whatever the
+ * size. Documents are built up front so building them costs nothing while load
+ * is measured.
+ */
+final class XmlCorpus {
+
+	/**
+	 * Opens the element wrapped around copies of a sample.
+	 */
+	private static final byte[] OPEN = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<loadTest>\n"
+			.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Closes the element wrapped around copies of a sample.
+	 */
+	private static final byte[] CLOSE = "</loadTest>\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Documents to upload.
+	 */
+	private final List<byte[]> documents;
+
+	/**
+	 * @param properties where the samples are and how big the documents should be
+	 * @param random     source of sizes and samples
+	 * @throws IOException if the samples cannot be read
+	 */
+	XmlCorpus(final LoadTestProperties properties, final Random random) throws IOException {
+		List<byte[]> samples = readSamples(Path.of(properties.getSamples()));
+		long median = properties.getMedianSize().toBytes();
+		long max = properties.getMaxSize().toBytes();
+		documents = new ArrayList<>(properties.getDocuments());
+		for (int i = 0; i < properties.getDocuments(); i++) {
+			long size = Math.round(median * Math.exp(properties.getSizeSpread() * random.nextGaussian()));
+			documents.add(build(samples.get(random.nextInt(samples.size())), Math.min(size, max)));
+		}
+	}
+
+	/**
+	 * @param folder folder of sample files
+	 * @return body of every well formed sample, without its XML declaration
+	 * @throws IOException if the folder cannot be read
+	 */
+	private static List<byte[]> readSamples(final Path folder) throws IOException {
+		XmlValidator validator = new XmlValidator();
+		List<Path> paths;
+		try (Stream<Path> files = Files.list(folder)) {
+			paths = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<byte[]> samples = new ArrayList<>();
+		for (Path path : paths) {
+			try (InputStream xml = Files.newInputStream(path)) {
+				validator.checkWellFormed(xml);
+			} catch (SAXException e) {
+				continue;
+			}
+			String text = Files.readString(path, StandardCharsets.UTF_8).strip();
+			if (text.startsWith("<?xml")) {
+				text = text.substring(text.indexOf("?>") + 2).strip();
+			}
+			samples.add((text + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		if (samples.isEmpty()) {
+			throw new IllegalStateException("No well formed XML samples in: " + folder.toAbsolutePath());
+		}
+		return samples;
+	}
+
+	/**
+	 * @param sample body of a sample
+	 * @param size   size to aim for
+	 * @return document holding as many copies of the sample as fit in
+	 *         <code>size</code>, and always at least one
+	 */
+	private static byte[] build(final byte[] sample, final long size) {
+		ByteArrayOutputStream document = new ByteArrayOutputStream((int) Math.max(size, 64));
+		document.writeBytes(OPEN);
+		do {
+			document.writeBytes(sample);
+		} while (document.size() + sample.length + CLOSE.length <= size);
+		document.writeBytes(CLOSE);
+		return document.toByteArray();
+	}
+
+	/**
+	 * @param random chooses the document
+	 * @return one of the documents
+	 */
+	byte[] next(final Random random) {
+		return documents.get(random.nextInt(documents.size()));
+	}
+
+	/**
+	 * @return sizes of the documents, smallest first
+	 */
+	long[] sizes() {
+		return documents.stream().mapToLong(document -> document.length).sorted().toArray();
+	}
+}
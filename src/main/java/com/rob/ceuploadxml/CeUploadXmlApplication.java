@@ -1,16 +1,24 @@
 package com.rob.ceuploadxml;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.controller.AdmissionProperties;
+import com.rob.ceuploadxml.controller.NonBlockingXmlDocServlet;
+import com.rob.ceuploadxml.service.StorageMetrics;
 import com.rob.ceuploadxml.service.StorageProperties;
+import com.rob.ceuploadxml.service.UploadJobService;
 import com.rob.ceuploadxml.service.XmlStorageService;
+import com.rob.ceuploadxml.validator.ValidationProperties;
 
 @SpringBootApplication(scanBasePackages = {"com.rob.ceuploadxml"})
-@EnableConfigurationProperties(StorageProperties.class)
+@EnableConfigurationProperties({StorageProperties.class, ValidationProperties.class, AdmissionProperties.class})
 public class CeUploadXmlApplication {
 
 	/**
@@ -32,4 +40,27 @@ public class CeUploadXmlApplication {
 	CommandLineRunner init(final XmlStorageService storageService) {
 		return args -> storageService.init();
 	}
+
+	/**
+	 * Serve the non-blocking variant of the XML doc API.
+	 * 
+	 * @param storageService service that stores/retrieves files
+	 * @param jobService     stores uploads once they are spooled
+	 * @param metrics        counts uploads turned away and bytes downloaded
+	 * @param mapper         writes metadata as JSON; a default mapper is used if
+	 *                       there is none in the context
+	 * @param properties     largest file that can be stored
+	 * @return registration of the servlet
+	 */
+	@Bean
+	ServletRegistrationBean<NonBlockingXmlDocServlet> nonBlockingXmlDocServlet(final XmlStorageService storageService,
+			final UploadJobService jobService, final StorageMetrics metrics, final ObjectProvider<ObjectMapper> mapper,
+			final StorageProperties properties) {
+		ServletRegistrationBean<NonBlockingXmlDocServlet> registration = new ServletRegistrationBean<>(
+				new NonBlockingXmlDocServlet(storageService, jobService, metrics, mapper.getIfAvailable(ObjectMapper::new),
+						properties.getMaxFileSize().toBytes()),
+				NonBlockingXmlDocServlet.PATH + "/*");
+		registration.setAsyncSupported(true);
+		return registration;
+	}
 }
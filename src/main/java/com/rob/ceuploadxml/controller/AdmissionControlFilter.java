@@ -0,0 +1,253 @@
+package com.rob.ceuploadxml.controller;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Limits how many uploads, downloads and lists run at once, so a burst of one
+ * cannot slow down the others. A request that finds no slot free waits in a
+ * short, bounded queue; if it still gets none it is turned away with 503 and
+ * <code>Retry-After</code>, before any of its body is read.
+ * 
+ * <b>Implementation note</b>: the upload limit adapts to upload latency (see
+ * {@link ConcurrencyLimiter}), counting only the time the server spends on an
+ * upload, not the time spent waiting for the client to send its body (see
+ * {@link BodyTimingRequest}); otherwise big uploads from slow clients would
+ * hold the limit at its minimum. Requests to {@link NonBlockingXmlDocServlet}
+ * are limited the same as the requests they mirror. A request that goes asynchronous, such as a
+ * streamed list, keeps its slot until it completes. A request waiting for a
+ * slot holds its container thread while it waits, so the queues and the queue
+ * timeout are kept short, and the queue sizes together must stay well below
+ * the container's thread count.
+ */
+@Component
+@Log4j2
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+	/**
+	 * Kinds of request that are limited.
+	 */
+	enum Operation {
+
+		/**
+		 * Adding XML docs.
+		 */
+		UPLOAD,
+
+		/**
+		 * Getting an XML doc.
+		 */
+		DOWNLOAD,
+
+		/**
+		 * Listing XML docs.
+		 */
+		LIST
+	}
+
+	/**
+	 * False to let every request in.
+	 */
+	private final boolean enabled;
+
+	/**
+	 * Longest a request waits for a slot, in nanoseconds.
+	 */
+	private final long queueTimeoutNanos;
+
+	/**
+	 * Value of <code>Retry-After</code> for requests turned away.
+	 */
+	private final String retryAfter;
+
+	/**
+	 * Limiter for each kind of request.
+	 */
+	private final Map<Operation, ConcurrencyLimiter> limiters = new EnumMap<>(Operation.class);
+
+	/**
+	 * @param properties how many requests of each kind can run and wait
+	 */
+	@Autowired
+	public AdmissionControlFilter(final AdmissionProperties properties) {
+		this.enabled = properties.isEnabled();
+		this.queueTimeoutNanos = properties.getQueueTimeout().toNanos();
+		this.retryAfter = Integer.toString(properties.getRetryAfterSeconds());
+		limiters.put(Operation.UPLOAD,
+				new ConcurrencyLimiter(properties.getUploadLimit(), properties.getUploadMinLimit(),
+						properties.getUploadMaxLimit(), properties.getUploadQueueSize(),
+						properties.getUploadTargetLatency().toNanos()));
+		limiters.put(Operation.DOWNLOAD,
+				new ConcurrencyLimiter(properties.getDownloadLimit(), properties.getDownloadQueueSize()));
+		limiters.put(Operation.LIST, new ConcurrencyLimiter(properties.getListLimit(), properties.getListQueueSize()));
+	}
+
+	/**
+	 * @return how busy each kind of request is, by name
+	 */
+	public Map<String, AdmissionStats> getStats() {
+		Map<String, AdmissionStats> stats = new LinkedHashMap<>();
+		limiters.forEach((operation, limiter) -> stats.put(operation.name().toLowerCase(), limiter.getStats()));
+		return stats;
+	}
+
+	@Override
+	protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+			final FilterChain chain) throws ServletException, IOException {
+		Operation operation = enabled ? classify(request) : null;
+		if (operation == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+		ConcurrencyLimiter limiter = limiters.get(operation);
+		try {
+			if (!limiter.tryAcquire(queueTimeoutNanos)) {
+				reject(operation, response);
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reject(operation, response);
+			return;
+		}
+
+		long start = System.nanoTime();
+		// Only uploads adapt to latency, and their body arrives as fast as the client sends it.
+		BodyTimingRequest timed = operation == Operation.UPLOAD ? new BodyTimingRequest(request) : null;
+		boolean releaseNow = true;
+		try {
+			chain.doFilter(timed != null ? timed : request, response);
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new ReleasingListener(limiter, start, timed));
+				releaseNow = false;
+			}
+		} finally {
+			if (releaseNow) {
+				limiter.release(serverNanos(start, timed));
+			}
+		}
+	}
+
+	/**
+	 * @param start when the request started, in nanoseconds
+	 * @param timed request timing its body, or null if it is not timed
+	 * @return how long the server has spent on the request, leaving out time
+	 *         spent waiting for its body, in nanoseconds
+	 */
+	private static long serverNanos(final long start, final BodyTimingRequest timed) {
+		long elapsed = System.nanoTime() - start;
+		return timed == null ? elapsed : Math.max(0, elapsed - timed.getBodyNanos());
+	}
+
+	/**
+	 * @param request request to classify
+	 * @return kind of request, or null if it is not limited
+	 */
+	static Operation classify(final HttpServletRequest request) {
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		String method = request.getMethod();
+		if (path.startsWith(NonBlockingXmlDocServlet.PATH + "/")) {
+			// The non-blocking API means the same as the paths it mirrors, and is limited alike.
+			path = "/xmldoc" + path.substring(NonBlockingXmlDocServlet.PATH.length());
+		}
+		if (!path.startsWith("/xmldoc/")) {
+			return null;
+		}
+		if ((HttpMethod.POST.matches(method) || HttpMethod.PUT.matches(method)) && path.startsWith("/xmldoc/add")) {
+			return Operation.UPLOAD;
+		}
+		if (HttpMethod.GET.matches(method) || HttpMethod.HEAD.matches(method)) {
+			if (path.startsWith("/xmldoc/get/") || path.equals("/xmldoc/export")) {
+				return Operation.DOWNLOAD;
+			}
+			if (path.startsWith("/xmldoc/list") || path.equals("/xmldoc/query") || path.equals("/xmldoc/search")) {
+				return Operation.LIST;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Turn a request away.
+	 * 
+	 * @param operation kind of request
+	 * @param response  response to the request
+	 * @throws IOException if the response cannot be written
+	 */
+	private void reject(final Operation operation, final HttpServletResponse response) throws IOException {
+		log.warn("Turned away {} request: too many running.", operation);
+		response.setHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+		response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Too many requests running; try again later.");
+	}
+
+	/**
+	 * Releases a slot held by an asynchronous request once it is over.
+	 */
+	private static final class ReleasingListener implements AsyncListener {
+
+		/**
+		 * Limiter the slot came from.
+		 */
+		private final ConcurrencyLimiter limiter;
+
+		/**
+		 * When the request started, in nanoseconds.
+		 */
+		private final long start;
+
+		/**
+		 * Request timing its body, or null if it is not timed.
+		 */
+		private final BodyTimingRequest timed;
+
+		/**
+		 * @param limiter limiter the slot came from
+		 * @param start   when the request started, in nanoseconds
+		 * @param timed   request timing its body, or null if it is not timed
+		 */
+		ReleasingListener(final ConcurrencyLimiter limiter, final long start, final BodyTimingRequest timed) {
+			this.limiter = limiter;
+			this.start = start;
+			this.timed = timed;
+		}
+
+		@Override
+		public void onComplete(final AsyncEvent event) {
+			limiter.release(serverNanos(start, timed));
+		}
+
+		@Override
+		public void onTimeout(final AsyncEvent event) {
+			// onComplete follows.
+		}
+
+		@Override
+		public void onError(final AsyncEvent event) {
+			// onComplete follows.
+		}
+
+		@Override
+		public void onStartAsync(final AsyncEvent event) {
+			// Keep listening for the same request.
+			event.getAsyncContext().addListener(this);
+		}
+	}
+}
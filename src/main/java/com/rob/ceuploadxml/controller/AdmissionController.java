@@ -0,0 +1,39 @@
+package com.rob.ceuploadxml.controller;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping(path = "/admin/admission")
+public class AdmissionController {
+
+	/**
+	 * Limits how many requests of each kind run at once.
+	 */
+	private AdmissionControlFilter admissionControl;
+
+	/**
+	 * @param filter limits how many requests of each kind run at once
+	 */
+	@Autowired
+	public AdmissionController(final AdmissionControlFilter filter) {
+		this.admissionControl = filter;
+	}
+
+	/**
+	 * @return limit, running, waiting and turned away counts for uploads,
+	 *         downloads and lists
+	 */
+	@GetMapping
+	@ResponseBody
+	public final Map<String, AdmissionStats> getAdmissionStats() {
+
+		return admissionControl.getStats();
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.rob.ceuploadxml.controller;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+@ConfigurationProperties("admission")
+@Data
+@Builder(toBuilder = true)
+@EqualsAndHashCode
+@NoArgsConstructor(force = true)
+@AllArgsConstructor
+public class AdmissionProperties {
+
+	/**
+	 * False to let every request in, however many are running.
+	 */
+	@Builder.Default
+	private boolean enabled = true;
+
+	/**
+	 * Uploads that can run at once to start with. The limit then moves between
+	 * {@link #uploadMinLimit} and {@link #uploadMaxLimit} as upload latency
+	 * allows.
+	 */
+	@Builder.Default
+	private int uploadLimit = 8;
+
+	/**
+	 * Fewest uploads the limit can drop to.
+	 */
+	@Builder.Default
+	private int uploadMinLimit = 2;
+
+	/**
+	 * Most uploads the limit can grow to.
+	 */
+	@Builder.Default
+	private int uploadMaxLimit = 64;
+
+	/**
+	 * Uploads slower than this lower the upload limit; while uploads are faster,
+	 * it grows. Time spent waiting for the client to send the body is not
+	 * counted. Zero to keep the limit fixed.
+	 */
+	@Builder.Default
+	private Duration uploadTargetLatency = Duration.ofSeconds(2);
+
+	/**
+	 * Uploads that can wait for a slot; more are turned away.
+	 */
+	@Builder.Default
+	private int uploadQueueSize = 16;
+
+	/**
+	 * Downloads that can run at once.
+	 */
+	@Builder.Default
+	private int downloadLimit = 64;
+
+	/**
+	 * Downloads that can wait for a slot; more are turned away. Each holds a
+	 * container thread while it waits.
+	 */
+	@Builder.Default
+	private int downloadQueueSize = 32;
+
+	/**
+	 * Lists that can run at once.
+	 */
+	@Builder.Default
+	private int listLimit = 8;
+
+	/**
+	 * Lists that can wait for a slot; more are turned away.
+	 */
+	@Builder.Default
+	private int listQueueSize = 16;
+
+	/**
+	 * Longest a request waits for a slot before it is turned away. A waiting
+	 * request holds its container thread, so this is kept short.
+	 */
+	@Builder.Default
+	private Duration queueTimeout = Duration.ofMillis(100);
+
+	/**
+	 * Seconds a client that was turned away is told to wait before trying again.
+	 */
+	@Builder.Default
+	private int retryAfterSeconds = 1;
+
+}
@@ -0,0 +1,38 @@
+package com.rob.ceuploadxml.controller;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * How busy one kind of request is.
+ */
+@Value
+@Builder
+public class AdmissionStats {
+
+	/**
+	 * Requests that can run at once right now.
+	 */
+	private final int limit;
+
+	/**
+	 * Requests running.
+	 */
+	private final int inFlight;
+
+	/**
+	 * Requests waiting for a slot.
+	 */
+	private final int queued;
+
+	/**
+	 * Most requests that can wait for a slot.
+	 */
+	private final int maxQueued;
+
+	/**
+	 * Requests turned away so far.
+	 */
+	private final long rejected;
+
+}
@@ -0,0 +1,187 @@
+package com.rob.ceuploadxml.controller;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.Part;
+
+/**
+ * Request that adds up the time spent waiting for its body, so the time a
+ * client takes to send a big upload can be told apart from the time the
+ * server takes to handle it.
+ * 
+ * <b>Implementation note</b>: a multipart body is read whole by the container
+ * the first time parts are asked for, so that call is timed; any other body is
+ * timed read by read. A read that does not block, once the body is in, costs
+ * next to nothing, so this is close to the time the client took. A body read
+ * without blocking is read only when the container says data has arrived, so
+ * the time between one such call and the next is counted too.
+ */
+final class BodyTimingRequest extends HttpServletRequestWrapper {
+
+	/**
+	 * Nanoseconds spent reading the body so far.
+	 */
+	private final AtomicLong bodyNanos = new AtomicLong();
+
+	/**
+	 * Stream over the body, timing each read; null until first asked for.
+	 */
+	private ServletInputStream timedStream;
+
+	/**
+	 * @param request request to time the body of
+	 */
+	BodyTimingRequest(final HttpServletRequest request) {
+		super(request);
+	}
+
+	/**
+	 * @return nanoseconds spent reading the body so far
+	 */
+	long getBodyNanos() {
+		return bodyNanos.get();
+	}
+
+	@Override
+	public Collection<Part> getParts() throws IOException, ServletException {
+		long start = System.nanoTime();
+		try {
+			return super.getParts();
+		} finally {
+			bodyNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public Part getPart(final String name) throws IOException, ServletException {
+		long start = System.nanoTime();
+		try {
+			return super.getPart(name);
+		} finally {
+			bodyNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public synchronized ServletInputStream getInputStream() throws IOException {
+		if (timedStream == null) {
+			timedStream = new TimedInputStream(super.getInputStream());
+		}
+		return timedStream;
+	}
+
+	/**
+	 * Body of the request, timing each read.
+	 */
+	private final class TimedInputStream extends ServletInputStream {
+
+		/**
+		 * Body of the request.
+		 */
+		private final ServletInputStream in;
+
+		/**
+		 * @param in body of the request
+		 */
+		TimedInputStream(final ServletInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			try {
+				return in.read();
+			} finally {
+				bodyNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return in.read(buffer, offset, length);
+			} finally {
+				bodyNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return in.isReady();
+		}
+
+		@Override
+		public void setReadListener(final ReadListener listener) {
+			in.setReadListener(new TimedReadListener(listener));
+		}
+	}
+
+	/**
+	 * Listener for a body read without blocking, counting the time spent
+	 * waiting for the container to say more of it has arrived.
+	 */
+	private final class TimedReadListener implements ReadListener {
+
+		/**
+		 * Listener that reads the body.
+		 */
+		private final ReadListener listener;
+
+		/**
+		 * When the wait for more of the body started, in nanoseconds.
+		 */
+		private volatile long waitingSince = System.nanoTime();
+
+		/**
+		 * @param listener listener that reads the body
+		 */
+		TimedReadListener(final ReadListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			bodyNanos.addAndGet(System.nanoTime() - waitingSince);
+			try {
+				listener.onDataAvailable();
+			} finally {
+				waitingSince = System.nanoTime();
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			bodyNanos.addAndGet(System.nanoTime() - waitingSince);
+			listener.onAllDataRead();
+		}
+
+		@Override
+		public void onError(final Throwable t) {
+			listener.onError(t);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.rob.ceuploadxml.controller;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many requests of one kind run at once, with a bounded number
+ * waiting for a slot.
+ * 
+ * <b>Implementation note</b>: the limit can adapt to latency, increasing
+ * additively and decreasing multiplicatively as TCP does. While requests finish
+ * within the target latency and the limit is being used in full, it grows by
+ * one for each limit's worth of such requests. When one is slower than the
+ * target it shrinks by a tenth, at most once per target latency, so a burst of
+ * slow requests does not collapse it all at once.
+ */
+final class ConcurrencyLimiter {
+
+	/**
+	 * Share of the limit kept when a request is too slow.
+	 */
+	private static final double BACKOFF = 0.9;
+
+	/**
+	 * Fewest requests the limit can drop to.
+	 */
+	private final int minLimit;
+
+	/**
+	 * Most requests the limit can grow to.
+	 */
+	private final int maxLimit;
+
+	/**
+	 * Most requests that can wait for a slot.
+	 */
+	private final int maxQueued;
+
+	/**
+	 * Requests slower than this lower the limit, in nanoseconds; 0 to keep the
+	 * limit fixed.
+	 */
+	private final long targetLatencyNanos;
+
+	/**
+	 * Requests that can run at once right now. Guarded by this.
+	 */
+	private int limit;
+
+	/**
+	 * Requests running. Guarded by this.
+	 */
+	private int inFlight;
+
+	/**
+	 * Requests waiting for a slot. Guarded by this.
+	 */
+	private int queued;
+
+	/**
+	 * Requests turned away so far. Guarded by this.
+	 */
+	private long rejected;
+
+	/**
+	 * Requests that finished in time with every slot in use, since the limit
+	 * last changed. Guarded by this.
+	 */
+	private int fastAtLimit;
+
+	/**
+	 * When the limit was last lowered, in nanoseconds. Guarded by this.
+	 */
+	private long lastBackoff;
+
+	/**
+	 * Limiter whose limit never changes.
+	 * 
+	 * @param limit     requests that can run at once
+	 * @param maxQueued most requests that can wait for a slot
+	 */
+	ConcurrencyLimiter(final int limit, final int maxQueued) {
+		this(limit, limit, limit, maxQueued, 0);
+	}
+
+	/**
+	 * @param limit              requests that can run at once to start with
+	 * @param minLimit           fewest requests the limit can drop to
+	 * @param maxLimit           most requests the limit can grow to
+	 * @param maxQueued          most requests that can wait for a slot
+	 * @param targetLatencyNanos requests slower than this lower the limit, in
+	 *                           nanoseconds; 0 to keep the limit fixed
+	 */
+	ConcurrencyLimiter(final int limit, final int minLimit, final int maxLimit, final int maxQueued,
+			final long targetLatencyNanos) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, limit));
+		this.maxQueued = Math.max(0, maxQueued);
+		this.targetLatencyNanos = targetLatencyNanos;
+		this.lastBackoff = System.nanoTime() - targetLatencyNanos;
+	}
+
+	/**
+	 * Take a slot, waiting for one if need be and there is room to wait.
+	 * 
+	 * @param timeoutNanos longest to wait for a slot, in nanoseconds
+	 * @return true if a slot was taken and must be released; false if the
+	 *         request is turned away
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized boolean tryAcquire(final long timeoutNanos) throws InterruptedException {
+		// Requests already waiting go first.
+		if (inFlight < limit && queued == 0) {
+			inFlight++;
+			return true;
+		}
+		if (queued >= maxQueued) {
+			rejected++;
+			return false;
+		}
+		queued++;
+		try {
+			long deadline = System.nanoTime() + timeoutNanos;
+			while (inFlight >= limit) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					rejected++;
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			inFlight++;
+			return true;
+		} finally {
+			queued--;
+		}
+	}
+
+	/**
+	 * Give back a slot.
+	 * 
+	 * @param latencyNanos how long the request that held it took, in nanoseconds
+	 */
+	synchronized void release(final long latencyNanos) {
+		boolean wasFull = inFlight >= limit;
+		inFlight--;
+		if (targetLatencyNanos > 0) {
+			adapt(latencyNanos, wasFull);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Move the limit after a request finishes. Must hold the lock.
+	 * 
+	 * @param latencyNanos how long the request took, in nanoseconds
+	 * @param wasFull      true if every slot was in use when it finished
+	 */
+	private void adapt(final long latencyNanos, final boolean wasFull) {
+		long now = System.nanoTime();
+		if (latencyNanos > targetLatencyNanos) {
+			if (now - lastBackoff >= targetLatencyNanos) {
+				limit = Math.max(minLimit, (int) (limit * BACKOFF));
+				lastBackoff = now;
+				fastAtLimit = 0;
+			}
+		} else if (wasFull && ++fastAtLimit >= limit) {
+			limit = Math.min(maxLimit, limit + 1);
+			fastAtLimit = 0;
+		}
+	}
+
+	/**
+	 * @return how busy this kind of request is
+	 */
+	synchronized AdmissionStats getStats() {
+		return AdmissionStats.builder()//
+				.limit(limit)//
+				.inFlight(inFlight)//
+				.queued(queued)//
+				.maxQueued(maxQueued)//
+				.rejected(rejected)//
+				.build();
+	}
+}
@@ -0,0 +1,305 @@
+package com.rob.ceuploadxml.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.service.StorageCompression;
+import com.rob.ceuploadxml.service.StorageMetrics;
+
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Write a stored file as an HTTP response, with validators for conditional
+ * requests and support for a single byte range. A file stored compressed is
+ * sent as stored to clients that accept its encoding, and decompressed on the
+ * way out for those that do not.
+ * 
+ * <b>Implementation note</b>: big bodies of files on disk are sent with
+ * Tomcat's sendfile when it is available.
+ */
+@Log4j2
+final class FileResponseWriter {
+
+	/**
+	 * Request attribute Tomcat sets when it can send files itself.
+	 */
+	static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+
+	/**
+	 * Request attribute naming the file for Tomcat to send.
+	 */
+	static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	/**
+	 * Request attribute giving the first byte for Tomcat to send.
+	 */
+	static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+	/**
+	 * Request attribute giving the byte after the last for Tomcat to send.
+	 */
+	static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * Smallest body worth handing to sendfile; below this, the set up costs more
+	 * than it saves. Same as Tomcat's own default.
+	 */
+	static final long SENDFILE_THRESHOLD = 48 * 1024;
+
+	/**
+	 * Counts bytes sent.
+	 */
+	private final StorageMetrics metrics;
+
+	/**
+	 * @param metrics counts bytes sent
+	 */
+	FileResponseWriter(final StorageMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Write a file, or the part of it asked for, or a 304 if the client's copy is
+	 * current.
+	 * 
+	 * @param resource file to write
+	 * @param filename name to give the download
+	 * @param metadata data about the file: its content hash gives a strong ETag,
+	 *                 and its encoding says if it is stored compressed. May be
+	 *                 null, for a file stored as is with an ETag from its size and
+	 *                 modification time.
+	 * @param request  request for the file
+	 * @param response response to write to
+	 * @throws IOException if the file cannot be read or the response written
+	 */
+	void write(final Resource resource, final String filename, final XmlDocMetadata metadata,
+			final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		Body body = prepare(resource, filename, metadata, request, response);
+		if (body == null) {
+			return;
+		}
+		long end = body.getStart() + body.getCount() - 1;
+		if (body.isDecode()) {
+			try (InputStream in = StorageCompression.decompress(resource.getInputStream(), body.getEncoding())) {
+				StreamUtils.copyRange(in, response.getOutputStream(), body.getStart(), end);
+			}
+		} else {
+			writeBody(resource, body.getStart(), body.getCount(), request, response);
+		}
+		served(body);
+	}
+
+	/**
+	 * Set the status and headers for a file, leaving the body to the caller.
+	 * 
+	 * @param resource file to write
+	 * @param filename name to give the download
+	 * @param metadata data about the file, as for
+	 *                 {@link #write(Resource, String, XmlDocMetadata, HttpServletRequest, HttpServletResponse)}
+	 * @param request  request for the file
+	 * @param response response to write to
+	 * @return the bytes to write, or null if the response is already complete:
+	 *         a 304, a 416, a <code>HEAD</code> request or an empty file
+	 * @throws IOException if the file cannot be read or the response written
+	 */
+	Body prepare(final Resource resource, final String filename, final XmlDocMetadata metadata,
+			final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		String storedEncoding = metadata == null ? null : metadata.getEncoding();
+		boolean decode = storedEncoding != null && !accepts(request, storedEncoding);
+		long length = decode ? metadata.getSize() : resource.contentLength();
+		long lastModified = resource.lastModified();
+		// Each encoding of the file is a different representation, so needs its own ETag.
+		String etag = "\"" + (metadata != null && metadata.getContentHash() != null ? metadata.getContentHash()
+				: Long.toHexString(length) + "-" + Long.toHexString(lastModified))
+				+ (storedEncoding == null || decode ? "" : "-" + storedEncoding) + "\"";
+		if (storedEncoding != null) {
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+
+		// Sets 304 (or 412), and the validator headers, when the client's copy is current.
+		if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+			return null;
+		}
+		response.setHeader(HttpHeaders.ETAG, etag);
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+		response.setContentType(
+				MediaTypeFactory.getMediaType(filename).orElse(MediaType.APPLICATION_OCTET_STREAM).toString());
+		if (storedEncoding != null && !decode) {
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, storedEncoding);
+		}
+
+		long start = 0;
+		long end = length - 1;
+		HttpRange range = requestedRange(request, etag, lastModified);
+		if (range != null) {
+			try {
+				start = range.getRangeStart(length);
+				end = range.getRangeEnd(length);
+			} catch (IllegalArgumentException e) {
+				start = length;
+			}
+			if (start >= length || end < start) {
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return null;
+			}
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+		}
+		long count = end - start + 1;
+		response.setContentLengthLong(count);
+		if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+			return null;
+		}
+		return new Body(start, count, decode ? storedEncoding : null);
+	}
+
+	/**
+	 * Count a body as sent.
+	 * 
+	 * @param body body that has been written
+	 */
+	void served(final Body body) {
+		metrics.served(body.getCount());
+	}
+
+	/**
+	 * @param request  request for a file
+	 * @param encoding content encoding
+	 * @return true if the request's <code>Accept-Encoding</code> allows the
+	 *         encoding
+	 */
+	static boolean accepts(final HttpServletRequest request, final String encoding) {
+		String header = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if (header == null) {
+			return false;
+		}
+		for (String coding : header.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if (!name.equalsIgnoreCase(encoding) && !"*".equals(name)) {
+				continue;
+			}
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			return quality > 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @param request      request for the file
+	 * @param etag         current ETag of the file
+	 * @param lastModified when the file was last modified
+	 * @return the one range asked for, or null to send the whole file: when no
+	 *         range is asked for, when <code>If-Range</code> says the client's
+	 *         copy is out of date, or when the range header is not one range we
+	 *         understand
+	 */
+	private static HttpRange requestedRange(final HttpServletRequest request, final String etag,
+			final long lastModified) {
+		String header = request.getHeader(HttpHeaders.RANGE);
+		if (!StringUtils.hasText(header)) {
+			return null;
+		}
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null && !ifRange.equals(etag)) {
+			long since = -1;
+			try {
+				since = request.getDateHeader(HttpHeaders.IF_RANGE);
+			} catch (IllegalArgumentException e) {
+				// An ETag that does not match.
+			}
+			if (since == -1 || lastModified / 1000 > since / 1000) {
+				return null;
+			}
+		}
+		try {
+			List<HttpRange> ranges = HttpRange.parseRanges(header);
+			return ranges.size() == 1 ? ranges.get(0) : null;
+		} catch (IllegalArgumentException e) {
+			log.debug("Ignoring range we do not understand: {}", header);
+			return null;
+		}
+	}
+
+	/**
+	 * @param resource file to write
+	 * @param start    first byte to write
+	 * @param count    number of bytes to write
+	 * @param request  request for the file
+	 * @param response response to write to
+	 * @throws IOException if the file cannot be read or the response written
+	 */
+	private static void writeBody(final Resource resource, final long start, final long count,
+			final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		if (resource.isFile() && count >= SENDFILE_THRESHOLD
+				&& Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+			request.setAttribute(SENDFILE_FILENAME, resource.getFile().getAbsolutePath());
+			request.setAttribute(SENDFILE_START, start);
+			request.setAttribute(SENDFILE_END, start + count);
+			return;
+		}
+		// The servlet API only offers a stream, so bytes are copied through the heap.
+		try (InputStream in = resource.getInputStream()) {
+			StreamUtils.copyRange(in, response.getOutputStream(), start, start + count - 1);
+		}
+	}
+
+	/**
+	 * The bytes of a file to write as a response body.
+	 */
+	@Value
+	static class Body {
+
+		/**
+		 * First byte to write, counted in the bytes the client gets.
+		 */
+		private final long start;
+
+		/**
+		 * Number of bytes to write.
+		 */
+		private final long count;
+
+		/**
+		 * Encoding to take off the stored bytes on the way out, or null to write
+		 * them as stored.
+		 */
+		private final String encoding;
+
+		/**
+		 * @return true if the stored bytes must be decompressed on the way out
+		 */
+		boolean isDecode() {
+			return encoding != null;
+		}
+	}
+}
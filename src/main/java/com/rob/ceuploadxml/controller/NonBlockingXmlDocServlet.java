@@ -0,0 +1,1009 @@
+package com.rob.ceuploadxml.controller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.service.StorageFileTooLargeException;
+import com.rob.ceuploadxml.service.StorageMetrics;
+import com.rob.ceuploadxml.service.StoredFileRegion;
+import com.rob.ceuploadxml.service.UploadJobService;
+import com.rob.ceuploadxml.service.XmlStorageService;
+import com.rob.ceuploadxml.validator.SchemaKey;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Upload, get and list of XML docs with the same meaning as
+ * <code>/xmldoc/addStream</code>, <code>/xmldoc/get</code> and
+ * <code>/xmldoc/list/stream</code>, served under {@value #PATH} without tying up
+ * a thread for as long as a slow client takes:
+ * <ul>
+ * <li><code>PUT {@value #PATH}/add/{filename}?note=</code> stores the request
+ * body, answering with its metadata.</li>
+ * <li><code>GET {@value #PATH}/get/{filename}</code> downloads a doc, with the
+ * same conditional, range and encoding handling.</li>
+ * <li><code>GET {@value #PATH}/list?after=</code> streams every doc after a
+ * cursor as newline delimited JSON.</li>
+ * </ul>
+ * 
+ * <b>Implementation note</b>: a slow client holds a buffer, not a thread.
+ * Uploads are spooled as they arrive, then stored by
+ * {@link UploadJobService}. Docs in a file, or in a region of one, are read
+ * with an {@link AsynchronousFileChannel}; lookups, list pages and other reads
+ * run on a small pool of their own.
+ */
+@Log4j2
+public final class NonBlockingXmlDocServlet extends HttpServlet {
+
+	/**
+	 * Path the servlet is mapped under.
+	 */
+	public static final String PATH = "/nio/xmldoc";
+
+	/**
+	 * Serial version, as every servlet is serializable.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Start of the path of an upload, before the file name.
+	 */
+	private static final String ADD_PREFIX = "/add/";
+
+	/**
+	 * Start of the path of a download, before the file name.
+	 */
+	private static final String GET_PREFIX = "/get/";
+
+	/**
+	 * Path of the list.
+	 */
+	private static final String LIST_PATH = "/list";
+
+	/**
+	 * Threads that run what blocks: reads of metadata, and of stored docs that
+	 * cannot be read with a channel of their own.
+	 */
+	private static final int BLOCKING_THREADS = 4;
+
+	/**
+	 * Bytes read or written at once, per request.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Length of the gzip header {@link java.util.zip.GZIPOutputStream} writes:
+	 * magic, method, flags, time, extra flags and OS, with no optional fields.
+	 */
+	private static final int GZIP_HEADER_LENGTH = 10;
+
+	/**
+	 * Seconds a client turned away because too many uploads are waiting should
+	 * wait before trying again.
+	 */
+	private static final String RETRY_AFTER_SECONDS = "5";
+
+	/**
+	 * XML file service.
+	 */
+	private final transient XmlStorageService xmlStorageService;
+
+	/**
+	 * Stores uploads once they are spooled.
+	 */
+	private final transient UploadJobService uploadJobService;
+
+	/**
+	 * Counts uploads turned away.
+	 */
+	private final transient StorageMetrics metrics;
+
+	/**
+	 * Writes metadata as JSON.
+	 */
+	private final transient ObjectMapper objectMapper;
+
+	/**
+	 * Sets the headers of downloads.
+	 */
+	private final transient FileResponseWriter fileResponseWriter;
+
+	/**
+	 * Largest upload that can be stored.
+	 */
+	private final long maxFileSize;
+
+	/**
+	 * Runs what blocks off the container's threads: reads of metadata for lists
+	 * and downloads, and of stored docs that cannot be read with a channel of
+	 * their own.
+	 */
+	private final transient ExecutorService blockingReader;
+
+	/**
+	 * @param service     XML file service
+	 * @param jobService  stores uploads once they are spooled
+	 * @param metrics     counts uploads turned away and bytes downloaded
+	 * @param mapper      writes metadata as JSON
+	 * @param maxFileSize largest upload that can be stored
+	 */
+	public NonBlockingXmlDocServlet(final XmlStorageService service, final UploadJobService jobService,
+			final StorageMetrics metrics, final ObjectMapper mapper, final long maxFileSize) {
+		this.xmlStorageService = service;
+		this.uploadJobService = jobService;
+		this.metrics = metrics;
+		this.objectMapper = mapper;
+		this.fileResponseWriter = new FileResponseWriter(metrics);
+		this.maxFileSize = maxFileSize;
+		this.blockingReader = new ThreadPoolExecutor(BLOCKING_THREADS, BLOCKING_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), new CustomizableThreadFactory("nio-blocking-"));
+	}
+
+	/**
+	 * Stop the threads that run what blocks.
+	 */
+	@Override
+	public void destroy() {
+		blockingReader.shutdownNow();
+	}
+
+	@Override
+	protected void doPut(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		String path = request.getPathInfo();
+		if (path != null && path.startsWith(ADD_PREFIX) && path.length() > ADD_PREFIX.length()) {
+			upload(path.substring(ADD_PREFIX.length()), request, response);
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		String path = request.getPathInfo();
+		if (path != null && path.startsWith(GET_PREFIX) && path.length() > GET_PREFIX.length()) {
+			download(path.substring(GET_PREFIX.length()), request, response);
+		} else if (LIST_PATH.equals(path)) {
+			list(request, response);
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * Spool the request body as it arrives, then store it.
+	 * 
+	 * @param filename name to store the doc under
+	 * @param request  request whose body is the doc
+	 * @param response response to write the metadata saved to
+	 * @throws IOException if the body cannot be spooled or the response written
+	 */
+	private void upload(final String filename, final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException {
+		String note = request.getParameter("note");
+		log.debug("Attempting to stream XML doc [{}] of [{}] bytes with note [{}] without blocking.", filename,
+				request.getContentLengthLong(), note);
+		SchemaKey schema;
+		try {
+			XmlFileController.checkNote(note);
+			schema = XmlFileController.toSchemaKey(request.getParameter("schema"),
+					request.getParameter("schemaVersion"));
+			if (request.getContentLengthLong() > maxFileSize) {
+				metrics.rejected(StorageMetrics.Rejection.TOO_LARGE);
+				throw new StorageFileTooLargeException(
+						"File is larger than " + maxFileSize + " bytes: " + filename);
+			}
+		} catch (RuntimeException e) {
+			sendError(response, e);
+			return;
+		}
+
+		Path spooled = uploadJobService.createSpoolFile();
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(spooled, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			deleteQuietly(spooled);
+			throw e;
+		}
+		AsyncContext async = request.startAsync();
+		// The connector's own timeouts still drop a client that stops sending.
+		async.setTimeout(0);
+		ServletInputStream in = request.getInputStream();
+		in.setReadListener(new UploadReader(async, in, channel, spooled, filename, note, schema));
+	}
+
+	/**
+	 * Send a stored doc, looking it up on {@link #blockingReader}, as that
+	 * reads the database, then reading it only as fast as the client takes it.
+	 * 
+	 * @param filename name of doc to download
+	 * @param request  request for the doc
+	 * @param response response to write the doc to
+	 * @throws IOException if the response cannot be written
+	 */
+	private void download(final String filename, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		log.info(() -> String.format("Looking for XML doc [%s] without blocking.", filename));
+		AsyncContext async = request.startAsync();
+		async.setTimeout(0);
+		try {
+			blockingReader.execute(() -> send(filename, async));
+		} catch (RejectedExecutionException e) {
+			try {
+				sendError(response, e);
+			} finally {
+				complete(async);
+			}
+		}
+	}
+
+	/**
+	 * Look up a stored doc and start sending it. Runs on
+	 * {@link #blockingReader}.
+	 * 
+	 * @param filename name of doc to download
+	 * @param async    the download request
+	 */
+	private void send(final String filename, final AsyncContext async) {
+		HttpServletRequest request = (HttpServletRequest) async.getRequest();
+		HttpServletResponse response = (HttpServletResponse) async.getResponse();
+		try {
+			Resource file = xmlStorageService.loadAsResource(filename);
+			XmlDocMetadata metadata = xmlStorageService.findMetadata(filename).orElse(null);
+			FileResponseWriter.Body body = fileResponseWriter.prepare(file, filename, metadata, request, response);
+			if (body == null) {
+				complete(async);
+				return;
+			}
+			startSending(file, body, async, response);
+		} catch (IOException | RuntimeException e) {
+			try {
+				sendError(response, e);
+			} catch (IOException | IllegalStateException ioe) {
+				log.debug("Failed to answer download of {}; the client may have gone.", filename, ioe);
+			} finally {
+				complete(async);
+			}
+		}
+	}
+
+	/**
+	 * Open a stored doc and send it as the client takes it.
+	 * 
+	 * @param file     the doc as stored
+	 * @param body     which bytes to send
+	 * @param async    the download request
+	 * @param response response to write the doc to
+	 * @throws IOException if the doc cannot be opened
+	 */
+	private void startSending(final Resource file, final FileResponseWriter.Body body, final AsyncContext async,
+			final HttpServletResponse response) throws IOException {
+		AsynchronousFileChannel channel = null;
+		long offset = 0;
+		ReadableByteChannel stream = null;
+		if (file.isFile()) {
+			channel = AsynchronousFileChannel.open(file.getFile().toPath(), StandardOpenOption.READ);
+		} else if (file instanceof StoredFileRegion) {
+			StoredFileRegion region = (StoredFileRegion) file;
+			try {
+				channel = AsynchronousFileChannel.open(region.getRegionFile(), StandardOpenOption.READ);
+				offset = region.getRegionOffset();
+			} catch (NoSuchFileException e) {
+				log.debug("Region of {} was compacted away; reading it where it was copied to.", file, e);
+			}
+		}
+		if (channel == null) {
+			// Not in a file, nor in a region of one, as when cached in memory; read off the container's threads.
+			InputStream in = file.getInputStream();
+			if (!body.isDecode() && in.skip(body.getStart()) < body.getStart()) {
+				throw new EOFException("Stored file ended early.");
+			}
+			stream = Channels.newChannel(in);
+		}
+		ServletOutputStream out = response.getOutputStream();
+		out.setWriteListener(new FileSender(async, out, channel, offset, stream, body));
+	}
+
+	/**
+	 * Stream every doc after a cursor, reading a page at a time as the client
+	 * keeps up.
+	 * 
+	 * @param request  request for the list
+	 * @param response response to write the list to
+	 * @throws IOException if the response cannot be written
+	 */
+	private void list(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		Integer after;
+		try {
+			String param = request.getParameter("after");
+			after = param == null ? null : Integer.valueOf(param);
+		} catch (NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cursor must be a number.");
+			return;
+		}
+		log.info("Streaming list of files after [{}] without blocking.", after);
+		response.setContentType(XmlFileController.APPLICATION_NDJSON_VALUE);
+		AsyncContext async = request.startAsync();
+		async.setTimeout(0);
+		ServletOutputStream out = response.getOutputStream();
+		out.setWriteListener(new ListWriter(async, out, after));
+	}
+
+	/**
+	 * Answer with the status an exception maps to, as the MVC controllers would.
+	 * 
+	 * @param response response to write to
+	 * @param e        why the request failed
+	 * @throws IOException if the response cannot be written
+	 */
+	private static void sendError(final HttpServletResponse response, final Throwable e) throws IOException {
+		HttpStatus status = HttpStatus.INTERNAL_SERVER_ERROR;
+		String message = "Request failed.";
+		if (e instanceof ResponseStatusException) {
+			status = ((ResponseStatusException) e).getStatus();
+			message = ((ResponseStatusException) e).getReason();
+		} else if (e instanceof RejectedExecutionException) {
+			status = HttpStatus.SERVICE_UNAVAILABLE;
+			message = "Too many uploads waiting to be stored; try again later.";
+			response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		} else {
+			ResponseStatus annotated = AnnotatedElementUtils.findMergedAnnotation(e.getClass(), ResponseStatus.class);
+			if (annotated != null) {
+				status = annotated.code();
+				message = e.getMessage();
+			}
+		}
+		if (status.is5xxServerError()) {
+			log.error("Request failed.", e);
+		} else {
+			log.info("Request failed with {}: {}", status, message);
+		}
+		response.sendError(status.value(), message);
+	}
+
+	/**
+	 * Delete a file, logging rather than failing if we cannot.
+	 * 
+	 * @param path file to delete
+	 */
+	private static void deleteQuietly(final Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ioe) {
+			log.error("WARNING: unable to delete file {}", path.toAbsolutePath(), ioe);
+		}
+	}
+
+	/**
+	 * End a request, ignoring a request the container has already ended, such
+	 * as after an error.
+	 * 
+	 * @param async request to end
+	 */
+	private static void complete(final AsyncContext async) {
+		try {
+			async.complete();
+		} catch (IllegalStateException e) {
+			log.debug("Request already complete.", e);
+		}
+	}
+
+	/**
+	 * Appends an upload to its spool file as it arrives, then hands it to be
+	 * stored.
+	 */
+	private final class UploadReader implements ReadListener {
+
+		/**
+		 * The upload request.
+		 */
+		private final AsyncContext async;
+
+		/**
+		 * Body of the upload.
+		 */
+		private final ServletInputStream in;
+
+		/**
+		 * Spool file, open for writing.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * Where the upload is spooled.
+		 */
+		private final Path spooled;
+
+		/**
+		 * Name to store the upload under.
+		 */
+		private final String filename;
+
+		/**
+		 * Note to save against the upload.
+		 */
+		private final String note;
+
+		/**
+		 * Schema to validate against, or null.
+		 */
+		private final SchemaKey schema;
+
+		/**
+		 * Holds each chunk as it is read.
+		 */
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		/**
+		 * Bytes read so far.
+		 */
+		private long received;
+
+		/**
+		 * True once the upload has failed, so no more is read.
+		 */
+		private boolean failed;
+
+		/**
+		 * @param async    the upload request
+		 * @param in       body of the upload
+		 * @param channel  spool file, open for writing
+		 * @param spooled  where the upload is spooled
+		 * @param filename name to store the upload under
+		 * @param note     note to save against the upload
+		 * @param schema   schema to validate against, or null
+		 */
+		UploadReader(final AsyncContext async, final ServletInputStream in, final FileChannel channel,
+				final Path spooled, final String filename, final String note, final SchemaKey schema) {
+			this.async = async;
+			this.in = in;
+			this.channel = channel;
+			this.spooled = spooled;
+			this.filename = filename;
+			this.note = note;
+			this.schema = schema;
+		}
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			int read;
+			while (!failed && in.isReady() && (read = in.read(buffer)) != -1) {
+				received += read;
+				if (received > maxFileSize) {
+					metrics.rejected(StorageMetrics.Rejection.TOO_LARGE);
+					fail(new StorageFileTooLargeException("File is larger than " + maxFileSize + " bytes: " + filename));
+					return;
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+				while (chunk.hasRemaining()) {
+					channel.write(chunk);
+				}
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			if (failed) {
+				return;
+			}
+			channel.close();
+			try {
+				uploadJobService.store(spooled, filename, note, schema).whenComplete((metadata, e) -> {
+					try {
+						if (e != null) {
+							sendError((HttpServletResponse) async.getResponse(),
+									e instanceof CompletionException ? e.getCause() : e);
+						} else {
+							HttpServletResponse response = (HttpServletResponse) async.getResponse();
+							response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+							objectMapper.writeValue(response.getOutputStream(), metadata);
+						}
+					} catch (IOException ioe) {
+						log.debug("Failed to answer upload of {}; the client may have gone.", filename, ioe);
+					} finally {
+						complete(async);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				fail(e);
+			}
+		}
+
+		@Override
+		public void onError(final Throwable t) {
+			log.debug("Upload of {} broke off after {} bytes.", filename, received, t);
+			failed = true;
+			closeAndDelete();
+			complete(async);
+		}
+
+		/**
+		 * Stop reading, drop what has been spooled and answer with an error.
+		 * 
+		 * @param e why the upload failed
+		 * @throws IOException if the response cannot be written
+		 */
+		private void fail(final RuntimeException e) throws IOException {
+			failed = true;
+			closeAndDelete();
+			try {
+				sendError((HttpServletResponse) async.getResponse(), e);
+			} finally {
+				complete(async);
+			}
+		}
+
+		/**
+		 * Close and delete the spool file.
+		 */
+		private void closeAndDelete() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close spool file {}.", spooled, e);
+			}
+			deleteQuietly(spooled);
+		}
+	}
+
+	/**
+	 * Sends a stored file a buffer at a time, reading the next buffer only once
+	 * the last has been written, and decompressing on the way if the client
+	 * does not accept how the file is stored.
+	 */
+	private final class FileSender implements WriteListener, CompletionHandler<Integer, Void> {
+
+		/**
+		 * The download request.
+		 */
+		private final AsyncContext async;
+
+		/**
+		 * Where the file is written.
+		 */
+		private final ServletOutputStream out;
+
+		/**
+		 * The file holding the stored bytes, or null to read {@link #stream}.
+		 */
+		private final AsynchronousFileChannel channel;
+
+		/**
+		 * Where the stored bytes start in {@link #channel}.
+		 */
+		private final long offset;
+
+		/**
+		 * The stored bytes, when they are not read from {@link #channel}; read on
+		 * {@link #blockingReader}, as a read may block. Null to read
+		 * {@link #channel}.
+		 */
+		private final ReadableByteChannel stream;
+
+		/**
+		 * Which bytes to send.
+		 */
+		private final FileResponseWriter.Body body;
+
+		/**
+		 * Bytes read and ready to write.
+		 */
+		private final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+
+		/**
+		 * Stored bytes read and waiting to be decompressed, or null if the file is
+		 * sent as stored.
+		 */
+		private final ByteBuffer compressed;
+
+		/**
+		 * Decompresses the stored bytes, or null if the file is sent as stored.
+		 */
+		private final Inflater inflater;
+
+		/**
+		 * Where in the file to read next.
+		 */
+		private long position;
+
+		/**
+		 * Decompressed bytes still to drop before the range asked for.
+		 */
+		private long skip;
+
+		/**
+		 * Bytes still to make ready to write.
+		 */
+		private long remaining;
+
+		/**
+		 * True while a read of the file is under way.
+		 */
+		private boolean reading;
+
+		/**
+		 * True once the response has been ended.
+		 */
+		private boolean done;
+
+		/**
+		 * @param async   the download request
+		 * @param out     where the file is written
+		 * @param channel the file holding the stored bytes, or null
+		 * @param offset  where the stored bytes start in <code>channel</code>
+		 * @param stream  the stored bytes, from the first byte to send unless
+		 *                they are decompressed, if <code>channel</code> is null
+		 * @param body    which bytes to send
+		 */
+		FileSender(final AsyncContext async, final ServletOutputStream out, final AsynchronousFileChannel channel,
+				final long offset, final ReadableByteChannel stream, final FileResponseWriter.Body body) {
+			this.async = async;
+			this.out = out;
+			this.channel = channel;
+			this.offset = offset;
+			this.stream = stream;
+			this.body = body;
+			this.remaining = body.getCount();
+			this.pending.limit(0);
+			if (body.isDecode()) {
+				this.compressed = ByteBuffer.allocate(BUFFER_SIZE);
+				this.inflater = new Inflater(true);
+				this.skip = body.getStart();
+			} else {
+				this.compressed = null;
+				this.inflater = null;
+				this.position = body.getStart();
+			}
+		}
+
+		@Override
+		public synchronized void onWritePossible() throws IOException {
+			pump();
+		}
+
+		@Override
+		public synchronized void completed(final Integer read, final Void attachment) {
+			if (done) {
+				return;
+			}
+			try {
+				received(read);
+				pump();
+			} catch (IOException e) {
+				failed(e, attachment);
+			}
+		}
+
+		@Override
+		public synchronized void failed(final Throwable t, final Void attachment) {
+			log.error("Failed to send stored file; the response is cut short.", t);
+			finish(false);
+		}
+
+		@Override
+		public synchronized void onError(final Throwable t) {
+			log.debug("Download broke off; the client may have gone.", t);
+			finish(false);
+		}
+
+		/**
+		 * Write what is ready while the client takes it, and read more once it
+		 * has all been written.
+		 * 
+		 * @throws IOException if the file cannot be read or the response written
+		 */
+		private void pump() throws IOException {
+			while (!done) {
+				if (pending.hasRemaining()) {
+					if (!out.isReady()) {
+						// Called again once the client has taken what is buffered.
+						return;
+					}
+					out.write(pending.array(), pending.position(), pending.remaining());
+					pending.position(pending.limit());
+				} else if (remaining == 0) {
+					finish(true);
+				} else if (reading) {
+					return;
+				} else if (inflater == null || !inflate()) {
+					ByteBuffer target = inflater == null ? pending : compressed;
+					target.clear();
+					if (inflater == null) {
+						target.limit((int) Math.min(target.capacity(), remaining));
+					}
+					reading = true;
+					if (channel != null) {
+						channel.read(target, offset + position, null, this);
+					} else {
+						try {
+							blockingReader.execute(() -> readStream(target));
+						} catch (RejectedExecutionException e) {
+							throw new IOException("Cannot read stored file; shutting down.", e);
+						}
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Read the next bytes of {@link #stream}. Runs on {@link #blockingReader}.
+		 * 
+		 * @param target buffer to read into
+		 */
+		private void readStream(final ByteBuffer target) {
+			int read;
+			try {
+				read = stream.read(target);
+			} catch (IOException e) {
+				failed(e, null);
+				return;
+			}
+			completed(read, null);
+		}
+
+		/**
+		 * Take in bytes just read from the file.
+		 * 
+		 * @param read number of bytes read, or -1 at the end of the file
+		 * @throws IOException if the file ended early, or does not start with a
+		 *                     gzip header we can read
+		 */
+		private void received(final int read) throws IOException {
+			reading = false;
+			if (read < 0) {
+				throw new EOFException("Stored file ended early.");
+			}
+			if (inflater == null) {
+				position += read;
+				pending.flip();
+				remaining -= pending.remaining();
+			} else {
+				compressed.flip();
+				if (position == 0) {
+					skipGzipHeader();
+				}
+				position += read;
+				inflater.setInput(compressed.array(), compressed.position(), compressed.remaining());
+			}
+		}
+
+		/**
+		 * Decompress what has been read into the bytes ready to write.
+		 * 
+		 * @return true if there are more bytes ready to write; false if more of the
+		 *         file must be read first
+		 * @throws IOException if the stored bytes are not valid, or end early
+		 */
+		private boolean inflate() throws IOException {
+			int inflated;
+			try {
+				inflated = inflater.inflate(pending.array());
+			} catch (DataFormatException e) {
+				throw new IOException("Stored file is not valid gzip.", e);
+			}
+			if (inflated == 0) {
+				if (inflater.needsInput() && !inflater.finished()) {
+					return false;
+				}
+				throw new EOFException("Stored file ended early.");
+			}
+			int from = (int) Math.min(skip, inflated);
+			int to = (int) Math.min(inflated, from + remaining);
+			skip -= from;
+			remaining -= to - from;
+			pending.limit(to).position(from);
+			return true;
+		}
+
+		/**
+		 * Step over the gzip header at the start of the stored bytes read.
+		 * 
+		 * @throws IOException if the header is not one that
+		 *                     {@link java.util.zip.GZIPOutputStream} writes
+		 */
+		private void skipGzipHeader() throws IOException {
+			if (compressed.remaining() < GZIP_HEADER_LENGTH || (compressed.get(0) & 0xff) != 0x1f
+					|| (compressed.get(1) & 0xff) != 0x8b || compressed.get(2) != 8 || compressed.get(3) != 0) {
+				throw new IOException("Stored file does not start with a plain gzip header.");
+			}
+			compressed.position(GZIP_HEADER_LENGTH);
+		}
+
+		/**
+		 * End the response and let go of the file.
+		 * 
+		 * @param sent true if the whole body was written
+		 */
+		private void finish(final boolean sent) {
+			if (done) {
+				return;
+			}
+			done = true;
+			if (inflater != null) {
+				inflater.end();
+			}
+			try {
+				if (channel != null) {
+					channel.close();
+				} else {
+					stream.close();
+				}
+			} catch (IOException e) {
+				log.debug("Failed to close stored file.", e);
+			}
+			if (sent) {
+				fileResponseWriter.served(body);
+			}
+			complete(async);
+		}
+	}
+
+	/**
+	 * Writes every doc after a cursor, one JSON object per line, reading the
+	 * next page of metadata only once the last page has been written. Pages are
+	 * read on {@link #blockingReader}, as a read blocks on the database.
+	 */
+	private final class ListWriter implements WriteListener {
+
+		/**
+		 * The list request.
+		 */
+		private final AsyncContext async;
+
+		/**
+		 * Where the list is written.
+		 */
+		private final ServletOutputStream out;
+
+		/**
+		 * List docs with IDs after this, or null to start at the beginning.
+		 */
+		private Integer after;
+
+		/**
+		 * Lines read but not yet written, or null if there are none.
+		 */
+		private byte[] pending;
+
+		/**
+		 * True while the next page is being read.
+		 */
+		private boolean reading;
+
+		/**
+		 * True once the last page has been read.
+		 */
+		private boolean done;
+
+		/**
+		 * @param async the list request
+		 * @param out   where the list is written
+		 * @param after list docs with IDs after this, or null to start at the
+		 *              beginning
+		 */
+		ListWriter(final AsyncContext async, final ServletOutputStream out, final Integer after) {
+			this.async = async;
+			this.out = out;
+			this.after = after;
+		}
+
+		@Override
+		public synchronized void onWritePossible() throws IOException {
+			write();
+		}
+
+		/**
+		 * Write what has been read while the client can take it, then read the
+		 * next page, or finish once the last has been written. The caller holds
+		 * the lock.
+		 * 
+		 * @throws IOException if the list cannot be written
+		 */
+		private void write() throws IOException {
+			while (out.isReady()) {
+				if (pending != null) {
+					// Whatever the client cannot take yet is buffered, and isReady() turns false.
+					out.write(pending);
+					pending = null;
+				} else if (done) {
+					complete(async);
+					return;
+				} else {
+					if (!reading) {
+						reading = true;
+						blockingReader.execute(this::read);
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Read the next page of metadata, then write it if the client can take
+		 * it; if not, {@link #onWritePossible()} writes it later.
+		 */
+		private void read() {
+			byte[] lines;
+			Integer next;
+			try {
+				XmlDocPage page = xmlStorageService.listFiles(after, null);
+				StringBuilder text = new StringBuilder();
+				for (XmlDocMetadata doc : page.getItems()) {
+					text.append(objectMapper.writeValueAsString(doc)).append('\n');
+				}
+				lines = text.toString().getBytes(StandardCharsets.UTF_8);
+				next = page.getNextCursor();
+			} catch (JsonProcessingException | RuntimeException e) {
+				log.error("Failed to list docs after [{}].", after, e);
+				onError(e);
+				return;
+			}
+			synchronized (this) {
+				reading = false;
+				if (done) {
+					// Broke off while the page was read.
+					return;
+				}
+				pending = lines;
+				after = next;
+				done = next == null;
+				try {
+					write();
+				} catch (IOException e) {
+					onError(e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void onError(final Throwable t) {
+			log.debug("List broke off; the client may have gone.", t);
+			done = true;
+			pending = null;
+			complete(async);
+		}
+	}
+}
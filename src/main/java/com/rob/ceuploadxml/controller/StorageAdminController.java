@@ -0,0 +1,134 @@
+package com.rob.ceuploadxml.controller;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.rob.ceuploadxml.service.CacheStats;
+import com.rob.ceuploadxml.service.RevalidationStatus;
+import com.rob.ceuploadxml.service.ShardMigrationStatus;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping(path = "/admin/storage")
+@Log4j2
+public class StorageAdminController {
+
+	/**
+	 * XML file service.
+	 */
+	private XmlStorageService xmlStorageService;
+
+	/**
+	 * @param storageService XML file service
+	 */
+	@Autowired
+	public StorageAdminController(final XmlStorageService storageService) {
+		this.xmlStorageService = storageService;
+	}
+
+	/**
+	 * Start moving files stored before the layout was sharded into the sharded
+	 * layout. Files can still be downloaded while they are moved.
+	 * 
+	 * @return progress of the migration
+	 */
+	@PostMapping("/migrate-shards")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	@ResponseBody
+	public final ShardMigrationStatus startShardMigration() {
+
+		log.info("Starting migration into the sharded layout.");
+		return xmlStorageService.startShardMigration();
+	}
+
+	/**
+	 * @return progress of the latest migration into the sharded layout
+	 */
+	@GetMapping("/migrate-shards")
+	@ResponseBody
+	public final ShardMigrationStatus getShardMigrationStatus() {
+
+		return xmlStorageService.getShardMigrationStatus();
+	}
+
+	/**
+	 * Start checking every stored file again, such as after a schema has
+	 * changed. Files are read through memory mapped regions, so even huge files
+	 * are checked without loading them into the heap.
+	 * 
+	 * @param schema        namespace of schema to check every file against, or
+	 *                      null to check each against the latest schema for its
+	 *                      root namespace
+	 * @param schemaVersion version of that schema, or null for the latest
+	 * @return progress of the check
+	 */
+	@PostMapping("/revalidate")
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	@ResponseBody
+	public final RevalidationStatus startRevalidation(//
+			@RequestParam(name = "schema", required = false) final String schema, //
+			@RequestParam(name = "schemaVersion", required = false) final String schemaVersion) {
+
+		log.info("Starting check of stored files against schema [{}] version [{}].", schema, schemaVersion);
+		return xmlStorageService.startRevalidation(XmlFileController.toSchemaKey(schema, schemaVersion));
+	}
+
+	/**
+	 * @return progress of the latest check of stored files, with the first files
+	 *         that failed it
+	 */
+	@GetMapping("/revalidate")
+	@ResponseBody
+	public final RevalidationStatus getRevalidationStatus() {
+
+		return xmlStorageService.getRevalidationStatus();
+	}
+
+	/**
+	 * Stop a running check of stored files.
+	 * 
+	 * @return progress of the check
+	 */
+	@DeleteMapping("/revalidate")
+	@ResponseBody
+	public final RevalidationStatus cancelRevalidation() {
+
+		log.info("Cancelling check of stored files.");
+		return xmlStorageService.cancelRevalidation();
+	}
+
+	/**
+	 * @return hits, misses and evictions of each cache in front of the database
+	 */
+	@GetMapping("/caches")
+	@ResponseBody
+	public final Map<String, CacheStats> getCacheStats() {
+
+		return xmlStorageService.getCacheStats();
+	}
+
+	/**
+	 * Drop everything cached, such as after metadata was changed directly in the
+	 * database.
+	 */
+	@DeleteMapping("/caches")
+	@ResponseStatus(HttpStatus.NO_CONTENT)
+	public final void clearCaches() {
+
+		log.info("Clearing caches.");
+		xmlStorageService.clearCaches();
+	}
+
+}
@@ -1,86 +1,519 @@
-package com.rob.ceuploadxml.controller;
-
-import java.util.List;
-
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.util.StringUtils;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
-import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.multipart.MultipartFile;
-import org.springframework.web.server.ResponseStatusException;
-
-import com.rob.ceuploadxml.model.XmlDocMetadata;
-import com.rob.ceuploadxml.service.XmlStorageService;
-
-import lombok.extern.log4j.Log4j2;
-
-@RestController
-@RequestMapping(path = "/xmldoc")
-@Log4j2
-public class XmlFileController {
-
-	/**
-	 * XML file service.
-	 */
-	private XmlStorageService xmlStorageService;
-
-	/**
-	 * @param service XML file service
-	 */
-	@Autowired
-	public XmlFileController(final XmlStorageService service) {
-		this.xmlStorageService = service;
-	}
-
-	@PostMapping(path = "/add")
-	@ResponseBody
-	public final XmlDocMetadata saveXmlDoc(//
-			@RequestParam("file") final MultipartFile file, //
-			@RequestParam("note") final String note) {
-
-		log.debug(() -> String.format("Attempting to add XML doc [%s] with note [%s].", file.getOriginalFilename(),
-				note));
-
-		if (StringUtils.isEmpty(note)) {
-			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Note cannot be empty.");
-		}
-		if (note.length() > 200) {
-			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Note cannot be greater than 200 characters.");
-		}
-		if (file == null) {
-			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File must be supplied.");
-		}
-
-		return xmlStorageService.store(file, note);
-	}
-
-	@GetMapping("/get/{filename:.+}")
-	@ResponseBody
-	public final ResponseEntity<Resource> getXmlDoc(@PathVariable final String filename) {
-
-		log.info(() -> String.format("Looking for XML doc [%s].", filename));
-		Resource file = xmlStorageService.loadAsResource(filename);
-		return ResponseEntity.ok()
-				.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFilename() + "\"")
-				.body(file);
-	}
-
-
-	@GetMapping("/list")
-	@ResponseBody
-	public final List<XmlDocMetadata> listFiles() {
-
-		log.info("Listing files.");
-		return xmlStorageService.listFiles();
-	}
-
-}
+package com.rob.ceuploadxml.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import com.rob.ceuploadxml.model.UploadJobStatus;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.service.StorageMetrics;
+import com.rob.ceuploadxml.service.UploadJobService;
+import com.rob.ceuploadxml.service.XmlQuery;
+import com.rob.ceuploadxml.service.XmlStorageService;
+import com.rob.ceuploadxml.service.XmlUpload;
+import com.rob.ceuploadxml.validator.SchemaKey;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping(path = "/xmldoc")
+@Log4j2
+public class XmlFileController {
+
+	/**
+	 * Media type for newline delimited JSON: one JSON document per line.
+	 */
+	public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+	/**
+	 * Content type of an export of many files.
+	 */
+	public static final String EXPORT_CONTENT_TYPE = "application/zip";
+
+	/**
+	 * File name an export of many files is saved as.
+	 */
+	public static final String EXPORT_FILENAME = "xmldocs.zip";
+
+	/**
+	 * Header giving the cursor to ask for the next page of a list with.
+	 */
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	/**
+	 * How many streamed lines to write between flushes.
+	 */
+	private static final int STREAM_FLUSH_INTERVAL = 256;
+
+	/**
+	 * Seconds a client turned away because too many uploads are waiting should
+	 * wait before trying again.
+	 */
+	private static final String ASYNC_RETRY_AFTER_SECONDS = "5";
+
+	/**
+	 * XML file service.
+	 */
+	private XmlStorageService xmlStorageService;
+
+	/**
+	 * Stores uploads in the background.
+	 */
+	private UploadJobService uploadJobService;
+
+	/**
+	 * Writes streamed lists as JSON.
+	 */
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Writes downloads.
+	 */
+	private final FileResponseWriter fileResponseWriter;
+
+	/**
+	 * @param service    XML file service
+	 * @param jobService stores uploads in the background
+	 * @param metrics    counts bytes downloaded
+	 * @param mapper     writes streamed lists as JSON; a default mapper is used if
+	 *                   there is none in the context
+	 */
+	@Autowired
+	public XmlFileController(final XmlStorageService service, final UploadJobService jobService,
+			final StorageMetrics metrics, final ObjectProvider<ObjectMapper> mapper) {
+		this.xmlStorageService = service;
+		this.uploadJobService = jobService;
+		this.fileResponseWriter = new FileResponseWriter(metrics);
+		this.objectMapper = mapper.getIfAvailable(ObjectMapper::new);
+	}
+
+	@PostMapping(path = "/add")
+	@ResponseBody
+	public final XmlDocMetadata saveXmlDoc(//
+			@RequestParam("file") final MultipartFile file, //
+			@RequestParam("note") final String note, //
+			@RequestParam(name = "schema", required = false) final String schema, //
+			@RequestParam(name = "schemaVersion", required = false) final String schemaVersion) {
+
+		log.debug(() -> String.format("Attempting to add XML doc [%s] with note [%s].", file.getOriginalFilename(),
+				note));
+
+		checkNote(note);
+		if (file == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File must be supplied.");
+		}
+
+		SchemaKey schemaKey = toSchemaKey(schema, schemaVersion);
+		if (schemaKey == null) {
+			return xmlStorageService.store(file, note);
+		}
+		return xmlStorageService.store(file, note, schemaKey);
+	}
+
+	/**
+	 * Add an XML doc sent as the raw request body, for docs too big for a
+	 * multipart upload. The body is streamed straight into storage as it
+	 * arrives, so it is never held in memory or spooled to a temporary copy
+	 * first. A doc larger than <code>storage.max-file-size</code> is turned away
+	 * with 413, up front if the request gives its length, or as soon as it goes
+	 * over if not.
+	 * 
+	 * @param filename      name to store the doc under
+	 * @param note          note to save against the doc
+	 * @param schema        namespace of schema to validate against, or null
+	 * @param schemaVersion version of that schema, or null for the latest
+	 * @param request       request whose body is the doc
+	 * @return metadata saved for the doc
+	 */
+	@PutMapping(path = "/addStream/{filename:.+}")
+	@ResponseBody
+	public final XmlDocMetadata streamXmlDoc(//
+			@PathVariable final String filename, //
+			@RequestParam("note") final String note, //
+			@RequestParam(name = "schema", required = false) final String schema, //
+			@RequestParam(name = "schemaVersion", required = false) final String schemaVersion, //
+			final HttpServletRequest request) {
+
+		log.debug(() -> String.format("Attempting to stream XML doc [%s] of [%d] bytes with note [%s].", filename,
+				request.getContentLengthLong(), note));
+
+		checkNote(note);
+		long size = request.getContentLengthLong();
+		XmlUpload upload = new XmlUpload(filename, size < 0 ? XmlUpload.UNKNOWN_SIZE : size,
+				request::getInputStream);
+		return xmlStorageService.store(upload, note, toSchemaKey(schema, schemaVersion));
+	}
+
+	/**
+	 * Accept an XML doc to be checked and stored in the background. Answers 202
+	 * with a job to follow at <code>/xmldoc/status/{id}</code> as soon as the doc
+	 * is spooled, or 503 if too many docs are waiting to be stored already.
+	 * 
+	 * @param file          file to add
+	 * @param note          note to save against the file
+	 * @param schema        namespace of schema to validate against, or null
+	 * @param schemaVersion version of that schema, or null for the latest
+	 * @return the job storing the file
+	 */
+	@PostMapping(path = "/addAsync")
+	@ResponseBody
+	public final ResponseEntity<UploadJobStatus> saveXmlDocAsync(//
+			@RequestParam("file") final MultipartFile file, //
+			@RequestParam("note") final String note, //
+			@RequestParam(name = "schema", required = false) final String schema, //
+			@RequestParam(name = "schemaVersion", required = false) final String schemaVersion) {
+
+		log.debug(() -> String.format("Accepting XML doc [%s] with note [%s].", file.getOriginalFilename(), note));
+
+		checkNote(note);
+		SchemaKey schemaKey = toSchemaKey(schema, schemaVersion);
+		try {
+			UploadJobStatus job = uploadJobService.submit(file, note, schemaKey);
+			return ResponseEntity.accepted().location(URI.create("/xmldoc/status/" + job.getId())).body(job);
+		} catch (RejectedExecutionException e) {
+			log.warn("Turned away XML doc [{}]: {}", file.getOriginalFilename(), e.getMessage());
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, ASYNC_RETRY_AFTER_SECONDS).build();
+		}
+	}
+
+	/**
+	 * @param id ID of a job from <code>/xmldoc/addAsync</code>
+	 * @return where the job has got to, with the metadata saved or the error
+	 *         once it is done
+	 */
+	@GetMapping("/status/{id}")
+	@ResponseBody
+	public final UploadJobStatus getUploadStatus(@PathVariable final String id) {
+
+		return uploadJobService.getStatus(id)
+				.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No upload job: " + id));
+	}
+
+	/**
+	 * @param schema        namespace of schema to validate against, or null
+	 * @param schemaVersion version of that schema, or null for the latest
+	 * @return schema asked for, or null if none was
+	 */
+	static SchemaKey toSchemaKey(final String schema, final String schemaVersion) {
+		if (schema == null) {
+			if (schemaVersion != null) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Schema version needs a schema.");
+			}
+			return null;
+		}
+		return new SchemaKey(schema, schemaVersion);
+	}
+
+	/**
+	 * Add many XML docs in one request. Each file is stored or rejected on its
+	 * own, so one bad file does not stop the rest.
+	 * 
+	 * @param files files to add
+	 * @param note  note to save against every file
+	 * @return result for each file, in the order the files were sent
+	 */
+	@PostMapping(path = "/addBatch")
+	@ResponseBody
+	public final List<XmlDocUploadResult> saveXmlDocs(//
+			@RequestParam("file") final List<MultipartFile> files, //
+			@RequestParam("note") final String note) {
+
+		log.debug("Attempting to add batch of [{}] XML docs with note [{}].", files.size(), note);
+		checkNote(note);
+		if (files.isEmpty()) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Files must be supplied.");
+		}
+		return xmlStorageService.storeAll(files.stream().map(XmlUpload::of).collect(Collectors.toList()), note);
+	}
+
+	/**
+	 * Add every XML doc in a ZIP or TAR archive, which may be gzipped, sent as
+	 * the raw request body. The archive is read as it arrives, never held whole
+	 * in memory, and entries of up to 1MB are checked in parallel while the next
+	 * are read. A doc that cannot be stored does not stop the others.
+	 * 
+	 * @param note    note to save against every doc
+	 * @param request request whose body is the archive
+	 * @return result for each entry, in archive order
+	 * @throws IOException if the request body cannot be read
+	 */
+	@PutMapping(path = "/addArchive")
+	@ResponseBody
+	public final List<XmlDocUploadResult> saveXmlDocArchive(//
+			@RequestParam("note") final String note, //
+			final HttpServletRequest request) throws IOException {
+
+		log.debug("Attempting to add archive of [{}] bytes with note [{}].", request.getContentLengthLong(), note);
+		checkNote(note);
+		try (InputStream archive = request.getInputStream()) {
+			return xmlStorageService.storeArchive(archive, note);
+		}
+	}
+
+	/**
+	 * @param note note to save against a file
+	 */
+	static void checkNote(final String note) {
+		if (StringUtils.isEmpty(note)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Note cannot be empty.");
+		}
+		if (note.length() > 200) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Note cannot be greater than 200 characters.");
+		}
+	}
+
+	/**
+	 * Download an XML doc. Answers conditional requests (<code>If-None-Match</code>,
+	 * <code>If-Modified-Since</code>) with 304 when the client's copy is current,
+	 * and a single <code>Range</code> with 206 and just those bytes. A doc stored
+	 * compressed is sent compressed if the client accepts that.
+	 * 
+	 * @param filename name of doc to download
+	 * @param request  request for the doc
+	 * @param response response to write the doc to
+	 * @throws IOException if the doc cannot be read or the response written
+	 */
+	@GetMapping("/get/{filename:.+}")
+	public final void getXmlDoc(@PathVariable final String filename, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+
+		log.info(() -> String.format("Looking for XML doc [%s].", filename));
+		Resource file = xmlStorageService.loadAsResource(filename);
+		// Name the download after the request: stored content may be named by its hash.
+		fileResponseWriter.write(file, filename, xmlStorageService.findMetadata(filename).orElse(null), request,
+				response);
+	}
+
+	/**
+	 * Delete an XML doc and its metadata.
+	 * 
+	 * @param filename name of doc to delete
+	 * @return no content
+	 */
+	@DeleteMapping("/delete/{filename:.+}")
+	public final ResponseEntity<Void> deleteXmlDoc(@PathVariable final String filename) {
+		log.info(() -> String.format("Deleting XML doc [%s].", filename));
+		xmlStorageService.delete(filename);
+		return ResponseEntity.noContent().build();
+	}
+
+
+	/**
+	 * List one page of files, in ID order. If there are more files, the
+	 * {@value #NEXT_CURSOR_HEADER} header holds the value to pass as
+	 * <code>after</code> to get the next page.
+	 * 
+	 * @param after list files with IDs after this; leave out to start at the
+	 *              beginning
+	 * @param size  most files to list; leave out for the default page size
+	 * @return page of files
+	 */
+	@GetMapping("/list")
+	@ResponseBody
+	public final ResponseEntity<List<XmlDocMetadata>> listFiles(//
+			@RequestParam(name = "after", required = false) final Integer after, //
+			@RequestParam(name = "size", required = false) final Integer size) {
+
+		log.info("Listing files after [{}], page size [{}].", after, size);
+		XmlDocPage page = xmlStorageService.listFiles(after, size);
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		if (page.getNextCursor() != null) {
+			response.header(NEXT_CURSOR_HEADER, page.getNextCursor().toString());
+		}
+		return response.body(page.getItems());
+	}
+
+	/**
+	 * Find files by what is in them, from the index built as they were stored,
+	 * without reading any file. Pages the same way as {@link #listFiles}.
+	 * 
+	 * @param path  path of an element or attribute, such as
+	 *              <code>/books/book/@id</code>; with a value, the value must be
+	 *              found at this path
+	 * @param name  local name of an element, or of an attribute with a leading
+	 *              <code>@</code>
+	 * @param value whole text of an element, or value of an attribute
+	 * @param after find files with IDs after this; leave out to start at the
+	 *              beginning
+	 * @param size  most files to find; leave out for the default page size
+	 * @return page of files found
+	 */
+	@GetMapping("/search")
+	@ResponseBody
+	public final ResponseEntity<List<XmlDocMetadata>> searchFiles(//
+			@RequestParam(name = "path", required = false) final String path, //
+			@RequestParam(name = "name", required = false) final String name, //
+			@RequestParam(name = "value", required = false) final String value, //
+			@RequestParam(name = "after", required = false) final Integer after, //
+			@RequestParam(name = "size", required = false) final Integer size) {
+
+		log.info("Searching files for path [{}], name [{}], value [{}], after [{}].", path, name, value, after);
+		XmlDocPage page = xmlStorageService.searchFiles(path, name, value, after, size);
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		if (page.getNextCursor() != null) {
+			response.header(NEXT_CURSOR_HEADER, page.getNextCursor().toString());
+		}
+		return response.body(page.getItems());
+	}
+
+	/**
+	 * Download many files as one ZIP archive, written as the files are read. Name
+	 * the files, or give search criteria as for {@link #searchFiles}, or neither
+	 * to export every file.
+	 * 
+	 * @param filenames names of the files to export; every one must be stored
+	 * @param path      path of an element or attribute the files must have
+	 * @param name      name of an element or attribute the files must have
+	 * @param value     text or attribute value the files must have
+	 * @return the archive
+	 */
+	@GetMapping(path = "/export", produces = EXPORT_CONTENT_TYPE)
+	public final ResponseEntity<StreamingResponseBody> exportFiles(//
+			@RequestParam(name = "filename", required = false) final List<String> filenames, //
+			@RequestParam(name = "path", required = false) final String path, //
+			@RequestParam(name = "name", required = false) final String name, //
+			@RequestParam(name = "value", required = false) final String value) {
+
+		StreamingResponseBody body;
+		if (filenames != null && !filenames.isEmpty()) {
+			log.info("Exporting {} named files.", filenames.size());
+			// Look up first, so a missing file is a 404 rather than a broken archive.
+			List<XmlDocMetadata> files = xmlStorageService.findFiles(filenames);
+			body = out -> xmlStorageService.exportFiles(files, out);
+		} else {
+			log.info("Exporting files matching path [{}], name [{}], value [{}].", path, name, value);
+			body = out -> xmlStorageService.exportMatchingFiles(path, name, value, out);
+		}
+		return ResponseEntity.ok()//
+				.contentType(MediaType.parseMediaType(EXPORT_CONTENT_TYPE))//
+				.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + EXPORT_FILENAME + "\"")//
+				.body(body);
+	}
+
+	/**
+	 * Stream every file as newline delimited JSON, written as rows are read from
+	 * the database so the whole list is never held in memory.
+	 * 
+	 * @return stream of files, one JSON object per line
+	 */
+	@GetMapping(path = "/list/stream", produces = APPLICATION_NDJSON_VALUE)
+	public final ResponseEntity<StreamingResponseBody> streamFiles() {
+
+		log.info("Streaming list of files.");
+		StreamingResponseBody body = out -> writeNdjson(out);
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+	}
+
+	/**
+	 * @param out where to write every file, one JSON object per line
+	 * @throws IOException if the response cannot be written
+	 */
+	private void writeNdjson(final OutputStream out) throws IOException {
+		// Flush in batches rather than after every row.
+		ObjectWriter writer = objectMapper.writerFor(XmlDocMetadata.class)
+				.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+			generator.setRootValueSeparator(null);
+			int[] written = {0};
+			xmlStorageService.streamFiles(doc -> {
+				try {
+					writer.writeValue(generator, doc);
+					generator.writeRaw('\n');
+					if (++written[0] % STREAM_FLUSH_INTERVAL == 0) {
+						generator.flush();
+					}
+				} catch (IOException e) {
+					// Most likely the client went away; stop reading rows.
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Query every stored file with an XPath expression, streaming each matched
+	 * node back as newline delimited JSON as soon as it is found. Files that
+	 * cannot be queried are listed with an error rather than failing the query.
+	 * 
+	 * @param xpath XPath 1.0 expression that selects nodes
+	 * @return stream of matches, one JSON object per line, each with the file
+	 *         name and the start of the matched node
+	 */
+	@GetMapping(path = "/query", produces = APPLICATION_NDJSON_VALUE)
+	public final ResponseEntity<StreamingResponseBody> queryFiles(//
+			@RequestParam("xpath") final String xpath) {
+
+		log.info("Querying files with [{}].", xpath);
+		// Compile first, so a bad expression is a 400 rather than a broken stream.
+		XmlQuery query = xmlStorageService.compileQuery(xpath);
+		StreamingResponseBody body = out -> writeMatches(query, out);
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+	}
+
+	/**
+	 * @param query the query
+	 * @param out   where to write every match, one JSON object per line
+	 * @throws IOException if the response cannot be written
+	 */
+	private void writeMatches(final XmlQuery query, final OutputStream out) throws IOException {
+		ObjectWriter writer = objectMapper.writerFor(XmlQueryMatch.class)
+				.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+			generator.setRootValueSeparator(null);
+			xmlStorageService.queryFiles(query, match -> {
+				try {
+					writer.writeValue(generator, match);
+					generator.writeRaw('\n');
+					// Matches may be far apart, so send each as soon as it is found.
+					generator.flush();
+				} catch (IOException e) {
+					// Most likely the client went away; stop the query.
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+}
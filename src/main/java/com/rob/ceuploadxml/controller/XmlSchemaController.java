@@ -0,0 +1,80 @@
+package com.rob.ceuploadxml.controller;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.xml.sax.SAXException;
+
+import com.rob.ceuploadxml.validator.SchemaKey;
+import com.rob.ceuploadxml.validator.SchemaRegistry;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping(path = "/xmlschema")
+@Log4j2
+public class XmlSchemaController {
+
+	/**
+	 * Schemas that XML documents are validated against.
+	 */
+	private SchemaRegistry schemaRegistry;
+
+	/**
+	 * @param registry schemas that XML documents are validated against
+	 */
+	@Autowired
+	public XmlSchemaController(final SchemaRegistry registry) {
+		this.schemaRegistry = registry;
+	}
+
+	/**
+	 * Register an XSD. Documents whose root element is in the schema's target
+	 * namespace are validated against the latest version registered for it.
+	 * Registering the same namespace and version again replaces the schema.
+	 * 
+	 * @param file    the XSD
+	 * @param version version to register the XSD as
+	 * @return key the XSD was registered under
+	 */
+	@PostMapping(path = "/add")
+	@ResponseBody
+	public final SchemaKey addSchema(//
+			@RequestParam("file") final MultipartFile file, //
+			@RequestParam("version") final String version) {
+
+		log.debug(() -> String.format("Attempting to register schema [%s] as version [%s].",
+				file.getOriginalFilename(), version));
+
+		if (StringUtils.isEmpty(version)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Version cannot be empty.");
+		}
+		try {
+			return schemaRegistry.register(version, file.getBytes());
+		} catch (SAXException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid schema: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not store schema.", e);
+		}
+	}
+
+	@GetMapping("/list")
+	@ResponseBody
+	public final List<SchemaKey> listSchemas() {
+
+		log.info("Listing schemas.");
+		return schemaRegistry.listSchemas();
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.rob.ceuploadxml.model;
+
+import java.time.Instant;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Where an upload accepted for storing in the background has got to.
+ */
+@Value
+@Builder(toBuilder = true)
+public class UploadJobStatus {
+
+	/**
+	 * Stages an upload goes through.
+	 */
+	public enum State {
+
+		/**
+		 * Waiting for a worker.
+		 */
+		QUEUED,
+
+		/**
+		 * Being checked and stored.
+		 */
+		RUNNING,
+
+		/**
+		 * Stored; {@link UploadJobStatus#getMetadata()} has what was saved.
+		 */
+		STORED,
+
+		/**
+		 * Not stored; {@link UploadJobStatus#getError()} says why.
+		 */
+		FAILED
+	}
+
+	/**
+	 * ID to ask about the upload with.
+	 */
+	private final String id;
+
+	/**
+	 * Name of the file uploaded.
+	 */
+	private final String filename;
+
+	/**
+	 * Stage the upload is at.
+	 */
+	private final State state;
+
+	/**
+	 * Size of the file uploaded, in bytes.
+	 */
+	private final long size;
+
+	/**
+	 * Bytes checked and stored so far.
+	 */
+	private final long bytesRead;
+
+	/**
+	 * Metadata saved for the file, or null if it has not been stored.
+	 */
+	private final XmlDocMetadata metadata;
+
+	/**
+	 * Why the file was not stored, or null if it has not failed.
+	 */
+	private final String error;
+
+	/**
+	 * When the upload was accepted.
+	 */
+	private final Instant submittedAt;
+
+	/**
+	 * When a worker started on the upload, or null if none has.
+	 */
+	private final Instant startedAt;
+
+	/**
+	 * When the upload was stored or failed, or null if it has not finished.
+	 */
+	private final Instant finishedAt;
+
+	/**
+	 * @return true once the upload has been stored or has failed
+	 */
+	public boolean isDone() {
+		return state == State.STORED || state == State.FAILED;
+	}
+
+}
@@ -1,50 +1,81 @@
-package com.rob.ceuploadxml.model;
-
-import javax.persistence.Entity;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
-import javax.persistence.Id;
-
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.Data;
-import lombok.EqualsAndHashCode;
-import lombok.NoArgsConstructor;
-import lombok.NonNull;
-
-/**
- * Metadata about an XML document.
- */
-@Entity
-@Data
-@Builder(toBuilder = true)
-@EqualsAndHashCode
-@NoArgsConstructor(force = true)
-@AllArgsConstructor
-public final class XmlDocMetadata {
-
-	/**
-	 * ID for record.
-	 */
-	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
-	private final Integer id;
-
-	/**
-	 * File name.
-	 */
-	@NonNull
-	private final String filename;
-
-	/**
-	 * Note or description.
-	 */
-	@NonNull
-	private final String note;
-
-	/**
-	 * Size of file.
-	 */
-	private final long size;
-
-}
+package com.rob.ceuploadxml.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+/**
+ * Metadata about an XML document.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_xml_doc_metadata_filename", columnNames = "filename"), //
+		indexes = @Index(name = "ix_xml_doc_metadata_content_hash", columnList = "contentHash"))
+@Data
+@Builder(toBuilder = true)
+@EqualsAndHashCode
+@NoArgsConstructor(force = true)
+@AllArgsConstructor
+public final class XmlDocMetadata {
+
+	/**
+	 * ID for record. IDs are handed out in blocks of 50, so inserts need not
+	 * wait on the database for each new ID and can be batched. Uses the sequence
+	 * the previous <code>AUTO</code> strategy used, so existing IDs are not
+	 * reused.
+	 */
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "xml_doc_metadata_id")
+	@SequenceGenerator(name = "xml_doc_metadata_id", sequenceName = "hibernate_sequence", allocationSize = 50)
+	private final Integer id;
+
+	/**
+	 * File name. Unique, so the database has the final say on duplicates.
+	 */
+	@NonNull
+	private final String filename;
+
+	/**
+	 * Note or description.
+	 */
+	@NonNull
+	private final String note;
+
+	/**
+	 * Size of file.
+	 */
+	private final long size;
+
+	/**
+	 * Hex SHA-256 hash of the file content. Null for files stored before hashes
+	 * were recorded.
+	 */
+	@Column(length = 64)
+	private final String contentHash;
+
+	/**
+	 * Size of the file as stored, after compression. Null if the file is stored
+	 * as uploaded.
+	 */
+	private final Long storedSize;
+
+	/**
+	 * Content encoding the file is stored with, such as <code>gzip</code>. Null
+	 * if the file is stored as uploaded.
+	 */
+	@Column(length = 16)
+	private final String encoding;
+
+}
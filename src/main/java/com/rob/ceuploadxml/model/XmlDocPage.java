@@ -0,0 +1,23 @@
+package com.rob.ceuploadxml.model;
+
+import java.util.List;
+
+import lombok.Value;
+
+/**
+ * One page of XML document metadata, in ID order.
+ */
+@Value
+public class XmlDocPage {
+
+	/**
+	 * Metadata on this page.
+	 */
+	private final List<XmlDocMetadata> items;
+
+	/**
+	 * ID to ask for the next page after, or null if this is the last page.
+	 */
+	private final Integer nextCursor;
+
+}
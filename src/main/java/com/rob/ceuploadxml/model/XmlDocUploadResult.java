@@ -0,0 +1,51 @@
+package com.rob.ceuploadxml.model;
+
+import lombok.Value;
+
+/**
+ * Outcome of storing one file from a batch: either the metadata saved for it,
+ * or why it was not stored.
+ */
+@Value
+public class XmlDocUploadResult {
+
+	/**
+	 * Name of the file uploaded.
+	 */
+	private final String filename;
+
+	/**
+	 * Metadata saved for the file, or null if it was not stored.
+	 */
+	private final XmlDocMetadata metadata;
+
+	/**
+	 * Why the file was not stored, or null if it was.
+	 */
+	private final String error;
+
+	/**
+	 * @param metadata metadata saved for the file
+	 * @return result for a file that was stored
+	 */
+	public static XmlDocUploadResult stored(final XmlDocMetadata metadata) {
+		return new XmlDocUploadResult(metadata.getFilename(), metadata, null);
+	}
+
+	/**
+	 * @param filename name of the file uploaded
+	 * @param error    why the file was not stored
+	 * @return result for a file that was not stored
+	 */
+	public static XmlDocUploadResult failed(final String filename, final String error) {
+		return new XmlDocUploadResult(filename, null, error);
+	}
+
+	/**
+	 * @return true if the file was stored
+	 */
+	public boolean isStored() {
+		return error == null;
+	}
+
+}
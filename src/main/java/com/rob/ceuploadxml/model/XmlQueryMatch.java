@@ -0,0 +1,54 @@
+package com.rob.ceuploadxml.model;
+
+import lombok.Value;
+
+/**
+ * One node matched by a query of stored files, or why a file could not be
+ * queried.
+ */
+@Value
+public class XmlQueryMatch {
+
+	/**
+	 * Name of the file.
+	 */
+	private final String filename;
+
+	/**
+	 * The matched node, as XML and cut short if it is long; null if the file
+	 * could not be queried.
+	 */
+	private final String snippet;
+
+	/**
+	 * Why the file could not be queried, or null if it was.
+	 */
+	private final String error;
+
+	/**
+	 * @param filename name of the file
+	 * @param snippet  the matched node, as XML
+	 * @return match of a node in the file
+	 */
+	public static XmlQueryMatch match(final String filename, final String snippet) {
+		return new XmlQueryMatch(filename, snippet, null);
+	}
+
+	/**
+	 * @param filename name of the file
+	 * @param error    why the file could not be queried
+	 * @return result for a file that could not be queried
+	 */
+	public static XmlQueryMatch failed(final String filename, final String error) {
+		return new XmlQueryMatch(filename, null, error);
+	}
+
+	/**
+	 * @return true if this is a match, rather than a file that could not be
+	 *         queried
+	 */
+	public boolean isMatch() {
+		return error == null;
+	}
+
+}
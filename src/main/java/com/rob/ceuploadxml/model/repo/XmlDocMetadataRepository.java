@@ -1,17 +1,94 @@
-package com.rob.ceuploadxml.model.repo;
-
-import java.util.List;
-
-import org.springframework.data.repository.CrudRepository;
-import org.springframework.stereotype.Repository;
-
-import com.rob.ceuploadxml.model.XmlDocMetadata;
-
-@Repository
-public interface XmlDocMetadataRepository extends CrudRepository<XmlDocMetadata, Integer> {
-
-	List<XmlDocMetadata> findByFilename(String filename);
-	
-	List<XmlDocMetadata> findAll();
-	
-}
+package com.rob.ceuploadxml.model.repo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+
+@Repository
+public interface XmlDocMetadataRepository extends CrudRepository<XmlDocMetadata, Integer> {
+
+	List<XmlDocMetadata> findByFilename(String filename);
+	
+	List<XmlDocMetadata> findAll();
+	
+	/**
+	 * Look up many file names with one query.
+	 * 
+	 * @param filenames file names to look for
+	 * @return rows for those of the file names that are stored
+	 */
+	List<XmlDocMetadata> findByFilenameIn(Collection<String> filenames);
+
+	/**
+	 * @param contentHash hash of file content
+	 * @param encoding    content encoding the files are stored with; null for
+	 *                    files stored as uploaded
+	 * @return number of files with that content stored that way
+	 */
+	long countByContentHashAndEncoding(String contentHash, String encoding);
+
+	/**
+	 * Save rows, in JDBC batches when batching is configured.
+	 * 
+	 * @param <S>      type of row
+	 * @param entities rows to save
+	 * @return rows saved, in the same order
+	 */
+	@Override
+	<S extends XmlDocMetadata> List<S> saveAll(Iterable<S> entities);
+
+	/**
+	 * @param ids IDs of the rows to find
+	 * @return rows found, in no set order; IDs with no row are left out
+	 */
+	@Override
+	List<XmlDocMetadata> findAllById(Iterable<Integer> ids);
+
+	/**
+	 * Keyset pagination: rows after a given ID, in ID order.
+	 * 
+	 * @param id       ID to start after
+	 * @param pageable how many rows to return; sorting is ignored
+	 * @return rows after <code>id</code>
+	 */
+	List<XmlDocMetadata> findByIdGreaterThanOrderByIdAsc(Integer id, Pageable pageable);
+
+	/**
+	 * @return total bytes stored: the compressed size of compressed files and the
+	 *         size of the rest
+	 */
+	@Query("select coalesce(sum(coalesce(d.storedSize, d.size)), 0) from XmlDocMetadata d")
+	long sumStoredSize();
+
+	/**
+	 * Every row, in ID order, read through a database cursor rather than loaded
+	 * all at once. Must be called inside a transaction and the stream closed.
+	 * 
+	 * @return stream of every row
+	 */
+	@QueryHints({@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "500"),
+			@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_READONLY, value = "true")})
+	@Query("select d from XmlDocMetadata d order by d.id")
+	Stream<XmlDocMetadata> streamAll();
+
+	/**
+	 * Every stored file name, read through a database cursor. Must be called
+	 * inside a transaction and the stream closed.
+	 * 
+	 * @return stream of every file name
+	 */
+	@QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "1000"))
+	@Query("select d.filename from XmlDocMetadata d")
+	Stream<String> streamAllFilenames();
+
+}
@@ -0,0 +1,213 @@
+package com.rob.ceuploadxml.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache holding at most a given number of values, each for at most a given
+ * time, least recently used first out.
+ * 
+ * <b>Implementation note</b>: a value loaded while the cache is being
+ * invalidated may already be out of date, so it is only kept if nothing was
+ * invalidated between starting and finishing the load. Callers invalidate
+ * after their change is committed, so a value read after that is never lost.
+ * 
+ * @param <K> type of key
+ * @param <V> type of value
+ */
+final class BoundedCache<K, V> {
+
+	/**
+	 * Most values to keep; 0 or less to keep none.
+	 */
+	private final int maxSize;
+
+	/**
+	 * How long to keep a value for, in nanoseconds.
+	 */
+	private final long ttlNanos;
+
+	/**
+	 * Source of the current time, in nanoseconds.
+	 */
+	private final LongSupplier ticker;
+
+	/**
+	 * Cached values, least recently used first. Guarded by itself.
+	 */
+	private final Map<K, Entry<V>> entries;
+
+	/**
+	 * Incremented on every invalidation, so loads that overlap one can be
+	 * spotted.
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Lookups answered from the cache.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Lookups that had to load the value.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Values dropped to make room, or because they were too old.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize most values to keep; 0 or less to keep none
+	 * @param ttl     how long to keep a value for
+	 */
+	BoundedCache(final int maxSize, final Duration ttl) {
+		this(maxSize, ttl, System::nanoTime);
+	}
+
+	/**
+	 * @param maxSize most values to keep; 0 or less to keep none
+	 * @param ttl     how long to keep a value for
+	 * @param ticker  source of the current time, in nanoseconds
+	 */
+	BoundedCache(final int maxSize, final Duration ttl, final LongSupplier ticker) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+		this.ticker = ticker;
+		this.entries = new LinkedHashMap<>(Math.max(16, Math.min(maxSize, 1024)), 0.75f, true) {
+
+			/**
+			 * Serial version UID.
+			 */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get a value, loading and keeping it if it is not cached. The loader is
+	 * called outside any lock, so two threads may both load the same key.
+	 * 
+	 * @param key    key of the value
+	 * @param loader loads the value if it is not cached; must not return null
+	 * @return the value
+	 */
+	V get(final K key, final Function<K, V> loader) {
+		long now = ticker.getAsLong();
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null) {
+				if (now - entry.getLoadedAt() < ttlNanos) {
+					hits.incrementAndGet();
+					return entry.getValue();
+				}
+				entries.remove(key);
+				evictions.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		long invalidation = invalidations.get();
+		V value = loader.apply(key);
+		if (maxSize > 0) {
+			synchronized (entries) {
+				if (invalidations.get() == invalidation) {
+					entries.put(key, new Entry<>(value, now));
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Drop a value, and stop any load already under way from being kept.
+	 * 
+	 * @param key key of the value
+	 */
+	void invalidate(final K key) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Drop every value.
+	 */
+	void invalidateAll() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return how well the cache is doing
+	 */
+	CacheStats getStats() {
+		int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		return CacheStats.builder()//
+				.size(size)//
+				.maxSize(Math.max(0, maxSize))//
+				.hits(hits.get())//
+				.misses(misses.get())//
+				.evictions(evictions.get())//
+				.build();
+	}
+
+	/**
+	 * A cached value.
+	 * 
+	 * @param <V> type of value
+	 */
+	private static final class Entry<V> {
+
+		/**
+		 * The value.
+		 */
+		private final V value;
+
+		/**
+		 * When the value was loaded, in nanoseconds.
+		 */
+		private final long loadedAt;
+
+		/**
+		 * @param value    the value
+		 * @param loadedAt when the value was loaded, in nanoseconds
+		 */
+		Entry(final V value, final long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+
+		/**
+		 * @return the value
+		 */
+		V getValue() {
+			return value;
+		}
+
+		/**
+		 * @return when the value was loaded, in nanoseconds
+		 */
+		long getLoadedAt() {
+			return loadedAt;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.rob.ceuploadxml.service;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * How well a cache is doing.
+ */
+@Value
+@Builder
+public class CacheStats {
+
+	/**
+	 * Values cached right now.
+	 */
+	private final int size;
+
+	/**
+	 * Most values the cache keeps.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Bytes cached right now, for a cache with a budget in bytes; otherwise 0.
+	 */
+	private final long bytes;
+
+	/**
+	 * Most bytes the cache keeps, for a cache with a budget in bytes; otherwise
+	 * 0.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Lookups answered from the cache.
+	 */
+	private final long hits;
+
+	/**
+	 * Lookups that had to go to the database, or to disk.
+	 */
+	private final long misses;
+
+	/**
+	 * Values dropped to make room, or because they were too old.
+	 */
+	private final long evictions;
+
+	/**
+	 * @return share of lookups answered from the cache, from 0 to 1
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+}
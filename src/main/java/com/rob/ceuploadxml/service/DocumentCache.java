@@ -0,0 +1,362 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Cache of the stored bytes of files, for the few files that are downloaded
+ * far more than the rest. Holds at most a given number of bytes, each file for
+ * at most a given time, least recently used first out.
+ * 
+ * <b>Implementation note</b>: bytes are held off the heap in direct buffers,
+ * so a large cache adds nothing to garbage collection work, and a hit needs no
+ * system call: its length and modification time are cached with it. A buffer
+ * dropped from the cache is freed by the garbage collector once no download is
+ * still reading it, never by hand, so a download under way cannot read freed
+ * memory; direct memory in use can briefly go over the budget because of
+ * this. As with {@link BoundedCache}, a file read while it is being
+ * invalidated is served but not kept.
+ */
+final class DocumentCache {
+
+	/**
+	 * Most bytes to keep; 0 or less to keep none.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Largest file to keep.
+	 */
+	private final long maxFileBytes;
+
+	/**
+	 * How long to keep a file for, in nanoseconds.
+	 */
+	private final long ttlNanos;
+
+	/**
+	 * Source of the current time, in nanoseconds.
+	 */
+	private final LongSupplier ticker;
+
+	/**
+	 * Cached files by name, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, CachedDocument> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Bytes held by {@link #entries}. Guarded by {@link #entries}.
+	 */
+	private long bytes;
+
+	/**
+	 * Incremented on every invalidation, so loads that overlap one can be
+	 * spotted.
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Lookups answered from the cache.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Lookups that had to read the file.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Files dropped to make room, or because they were too old.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes     most bytes to keep; 0 or less to keep none
+	 * @param maxFileBytes largest file to keep
+	 * @param ttl          how long to keep a file for
+	 */
+	DocumentCache(final long maxBytes, final long maxFileBytes, final Duration ttl) {
+		this(maxBytes, maxFileBytes, ttl, System::nanoTime);
+	}
+
+	/**
+	 * @param maxBytes     most bytes to keep; 0 or less to keep none
+	 * @param maxFileBytes largest file to keep
+	 * @param ttl          how long to keep a file for
+	 * @param ticker       source of the current time, in nanoseconds
+	 */
+	DocumentCache(final long maxBytes, final long maxFileBytes, final Duration ttl, final LongSupplier ticker) {
+		this.maxBytes = maxBytes;
+		this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxBytes), Integer.MAX_VALUE);
+		this.ttlNanos = ttl.toNanos();
+		this.ticker = ticker;
+	}
+
+	/**
+	 * @return true if files are kept at all
+	 */
+	boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * @param storedSize stored size of a file, in bytes, or 0 or less if it is
+	 *                   not known
+	 * @return true if the file could be kept, as far as its size is known; a
+	 *         file that could not need not be looked up at all
+	 */
+	boolean canHold(final long storedSize) {
+		return isEnabled() && storedSize <= maxFileBytes;
+	}
+
+	/**
+	 * @param filename name of the file
+	 * @return the cached file, or null if it is not cached; a miss is counted,
+	 *         on the expectation that the caller then calls
+	 *         {@link #load(String, Resource)}
+	 */
+	CachedDocument get(final String filename) {
+		long now = ticker.getAsLong();
+		synchronized (entries) {
+			CachedDocument entry = entries.get(filename);
+			if (entry != null) {
+				if (now - entry.loadedAt < ttlNanos) {
+					hits.incrementAndGet();
+					return entry;
+				}
+				remove(filename);
+				evictions.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Read a file into memory and keep it, if it is small enough.
+	 * 
+	 * @param filename name of the file
+	 * @param stored   the bytes as stored
+	 * @return the file in memory, or null if it is too big to keep
+	 * @throws IOException if the file cannot be read
+	 */
+	CachedDocument load(final String filename, final Resource stored) throws IOException {
+		long invalidation = invalidations.get();
+		long now = ticker.getAsLong();
+		long size = stored.contentLength();
+		if (size > maxFileBytes) {
+			return null;
+		}
+		long lastModified = stored.lastModified();
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+		// A file on disk is read straight into the buffer, with no copy on the heap.
+		try (ReadableByteChannel channel = stored.readableChannel()) {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					// Shrank since its size was read, so is being changed; serve it as stored.
+					return null;
+				}
+			}
+		}
+		buffer.flip();
+		CachedDocument loaded = new CachedDocument(filename, buffer.asReadOnlyBuffer(), lastModified, now);
+		synchronized (entries) {
+			if (invalidations.get() == invalidation) {
+				remove(filename);
+				entries.put(filename, loaded);
+				bytes += loaded.contentLength();
+				Iterator<CachedDocument> eldest = entries.values().iterator();
+				while (bytes > maxBytes && eldest.hasNext()) {
+					bytes -= eldest.next().contentLength();
+					eldest.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Drop a file, and stop any load already under way from being kept.
+	 * 
+	 * @param filename name of the file
+	 */
+	void invalidate(final String filename) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			remove(filename);
+		}
+	}
+
+	/**
+	 * Drop every file.
+	 */
+	void invalidateAll() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @return how well the cache is doing
+	 */
+	CacheStats getStats() {
+		int size;
+		long held;
+		synchronized (entries) {
+			size = entries.size();
+			held = bytes;
+		}
+		return CacheStats.builder()//
+				.size(size)//
+				.bytes(held)//
+				.maxBytes(Math.max(0, maxBytes))//
+				.hits(hits.get())//
+				.misses(misses.get())//
+				.evictions(evictions.get())//
+				.build();
+	}
+
+	/**
+	 * Drop a file, if it is cached. Must hold the lock on {@link #entries}.
+	 * 
+	 * @param filename name of the file
+	 */
+	private void remove(final String filename) {
+		CachedDocument removed = entries.remove(filename);
+		if (removed != null) {
+			bytes -= removed.contentLength();
+		}
+	}
+
+	/**
+	 * The stored bytes of a file, in memory.
+	 */
+	static final class CachedDocument extends AbstractResource {
+
+		/**
+		 * Name of the file.
+		 */
+		private final String filename;
+
+		/**
+		 * The stored bytes; never read or moved, only duplicated.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * When the stored file was last modified, in milliseconds since the epoch.
+		 */
+		private final long lastModified;
+
+		/**
+		 * When the file was read, in nanoseconds.
+		 */
+		private final long loadedAt;
+
+		/**
+		 * @param filename     name of the file
+		 * @param buffer       the stored bytes
+		 * @param lastModified when the stored file was last modified
+		 * @param loadedAt     when the file was read, in nanoseconds
+		 */
+		CachedDocument(final String filename, final ByteBuffer buffer, final long lastModified,
+				final long loadedAt) {
+			this.filename = filename;
+			this.buffer = buffer;
+			this.lastModified = lastModified;
+			this.loadedAt = loadedAt;
+		}
+
+		@Override
+		public String getDescription() {
+			return "Cached file [" + filename + "]";
+		}
+
+		@Override
+		public String getFilename() {
+			return filename;
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public long contentLength() {
+			return buffer.capacity();
+		}
+
+		@Override
+		public long lastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new BufferInputStream(buffer.duplicate());
+		}
+	}
+
+	/**
+	 * Reads a buffer of its own, so many downloads can read one cached file at
+	 * once.
+	 */
+	private static final class BufferInputStream extends InputStream {
+
+		/**
+		 * Bytes still to read.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * @param buffer bytes to read
+		 */
+		BufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] target, final int offset, final int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int read = Math.min(length, buffer.remaining());
+			buffer.get(target, offset, read);
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -1,186 +1,595 @@
-package com.rob.ceuploadxml.service;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.List;
-
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
-import org.springframework.web.multipart.MultipartFile;
-
-import com.rob.ceuploadxml.model.XmlDocMetadata;
-import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
-import com.rob.ceuploadxml.validator.XmlValidator;
-
-import lombok.extern.log4j.Log4j2;
-
-/**
- * Store and retrieve XML files.
- */
-@Service
-@Log4j2
-public final class FileSystemXmlStorageService implements XmlStorageService {
-
-	/**
-	 * Where to store XML files.
-	 */
-	private final Path rootLocation;
-
-	/**
-	 * XML Doc repository.
-	 */
-	private final XmlDocMetadataRepository xmlDocRepo;
-
-	/**
-	 * XML Validator.
-	 */
-	private final XmlValidator xmlValidator = new XmlValidator();
-
-	@Autowired
-	public FileSystemXmlStorageService(final StorageProperties properties,
-			final XmlDocMetadataRepository xmlDocRepository) {
-		this.rootLocation = Paths.get(properties.getLocation());
-		this.xmlDocRepo = xmlDocRepository;
-	}
-
-	@Override
-	public XmlDocMetadata store(final MultipartFile file, final String note) {
-		String filename = StringUtils.cleanPath(file.getOriginalFilename());
-		log.debug("Trying to save file {}.", filename);
-		
-		Path xmlPath = null;
-		checkForPathErrors(file, filename);
-		failIfFileExists(filename);
-		xmlPath = saveFile(file, filename);
-		validateXml(xmlPath, filename);
-		
-		// Save metadata and return it.
-		return xmlDocRepo.save(//
-				XmlDocMetadata.builder()//
-						.filename(file.getOriginalFilename())//
-						.size(file.getSize())//
-						.note(note)//
-						.build());
-
-	}
-	
-	/**
-	 * Check if file itself looks legit.
-	 * 
-	 * @param file     multipart file from request
-	 * @param filename file name
-	 */
-	private void checkForPathErrors(final MultipartFile file, final String filename) {
-		if (!filename.endsWith(".xml")) {
-			throw new StorageException("Can only accept files with .xml extension: " + filename);
-		}
-		if (file.isEmpty()) {
-			throw new StorageException("Cannot save empty file: " + filename);
-		}
-		// Prevent directory traversal attacks.
-		if (filename.contains("..") || filename.contains("/")) {
-			throw new StorageException("Potential directory traversal attack with file name: " + filename);
-		}
-
-	}
-
-	/**
-	 * If file exists, fail. In this version, we do not update files - need to provide separate action for that.
-	 * 
-	 * @param filename file name
-	 */
-	private void failIfFileExists(final String filename) {
-		List<XmlDocMetadata> found = xmlDocRepo.findByFilename(filename);
-		if (!found.isEmpty()) {
-			throw new StorageException("File already exists: " + filename);
-		}
-	}
-
-	/**
-	 * Save file to directory for new files.
-	 * 
-	 * @param file     multipart file from request
-	 * @param filename file name
-	 * @return xml path
-	 */
-	private Path saveFile(final MultipartFile file, final String filename) {
-		Path xmlPath = null;
-		try (InputStream inputStream = file.getInputStream()) {
-			xmlPath = this.rootLocation.resolve(filename);
-			Files.copy(inputStream, xmlPath, StandardCopyOption.REPLACE_EXISTING);
-			File file2 = xmlPath.toFile();
-			log.info("Saved file to [{}] which exists: {}", file2.getAbsolutePath(), file2.exists());
-		} catch (IOException e) {
-			log.error("Failed to store file [{}]", filename, e);
-			throw new StorageException("Failed to store file: " + filename, e);
-		}
-		return xmlPath;
-	}
-
-	/**
-	 * Validate XML file.
-	 * 
-	 * @param xmlPath  path to file
-	 * @param filename file name
-	 */
-	private void validateXml(final Path xmlPath, final String filename) {
-		log.debug("Validating file {}.", xmlPath);
-		if (!xmlValidator.xmlIsWellFormed(xmlPath)) {
-			try {
-				Files.delete(xmlPath);
-			} catch (IOException ioe) {
-				log.error("WARNING: unable to delete file {}", xmlPath.toAbsolutePath(), ioe);
-			}
-			throw new StorageException("File contains invalid XML: " + filename);
-		}
-
-	}
-
-	@Override
-	public Path load(final String filename) {
-		log.debug("Load file {}.", filename);
-		return rootLocation.resolve(filename);
-	}
-
-	@Override
-	public List<XmlDocMetadata> listFiles() {
-		return xmlDocRepo.findAll();
-	}
-
-	@Override
-	public Resource loadAsResource(final String filename) {
-		log.debug("Load file as resource {}.", filename);
-		try {
-			Path file = load(filename);
-			Resource resource = new UrlResource(file.toUri());
-			if (resource.exists() || resource.isReadable()) {
-				return resource;
-			} else {
-				throw new StorageFileNotFoundException("Could not read file: " + filename);
-
-			}
-		} catch (MalformedURLException e) {
-			throw new StorageFileNotFoundException("Could not read file: " + filename, e);
-		}
-	}
-
-	@Override
-	public void init() {
-		log.debug("Initialise storage service at rootLocation {}.", rootLocation);
-		try {
-			Path directory = Files.createDirectories(rootLocation);
-			log.info("Location for XML files: " + directory.toAbsolutePath());
-		} catch (IOException e) {
-			throw new StorageException("Could not initialize storage at: " + rootLocation, e);
-		}
-	}
-}
+package com.rob.ceuploadxml.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.StringUtils;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.validator.SchemaKey;
+import com.rob.ceuploadxml.validator.SchemaRegistry;
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Store and retrieve XML files, each in a file of its own. Used unless
+ * <code>storage.engine</code> is <code>PACK</code>.
+ * 
+ * <b>Implementation note</b>: metadata, the index, the caches, searches and
+ * exports are kept by {@link StoredFileCatalog}; this class only puts, opens
+ * and deletes files. Storing a file costs a create and a rename, and with
+ * <code>storage.file-sync</code> a sync of the file and of its folder.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage", name = "engine", havingValue = "files", matchIfMissing = true)
+@Log4j2
+public final class FileSystemXmlStorageService implements XmlStorageService {
+
+	/**
+	 * Where to store XML files.
+	 */
+	private final StorageLayout layout;
+
+	/**
+	 * True to store each distinct content once, under its hash, rather than
+	 * each file under its name.
+	 */
+	private final boolean contentAddressed;
+
+	/**
+	 * True to sync each file, and the folder it is moved into, before a store is
+	 * acknowledged.
+	 */
+	private final boolean fileSync;
+
+	/**
+	 * Content hashes whose stored content is being added or removed.
+	 */
+	private final NameReservations blobReservations = new NameReservations();
+
+	/**
+	 * Moves files from the flat layout into the sharded layout; null when the
+	 * layout is not sharded.
+	 */
+	private final ShardMigrator shardMigrator;
+
+	/**
+	 * Counts the files that refer to content stored by hash.
+	 */
+	private final XmlDocMetadataRepository xmlDocRepo;
+
+	/**
+	 * Metadata, index and caches of stored files.
+	 */
+	private final StoredFileCatalog catalog;
+
+	/**
+	 * Times each stage of storing a file, and counts bytes and rejections.
+	 */
+	private final StorageMetrics metrics;
+
+	@Autowired
+	public FileSystemXmlStorageService(final StorageProperties properties,
+			final XmlDocMetadataRepository xmlDocRepository, final XmlValidator xmlValidator,
+			final SchemaRegistry schemaRegistry, final EntityManager entityManager,
+			final PlatformTransactionManager transactionManager, final StorageMetrics metrics) {
+		this.metrics = metrics;
+		this.xmlDocRepo = xmlDocRepository;
+		this.layout = new StorageLayout(Paths.get(properties.getLocation()), properties.getShardDepth(),
+				properties.getShardWidth());
+		this.contentAddressed = properties.isContentAddressed();
+		this.fileSync = properties.isFileSync();
+		long regionSize = properties.getRevalidationRegionSize().toBytes();
+		this.catalog = new StoredFileCatalog(properties, properties.getMaxFileSize().toBytes(),
+				layout.getIndexLocation(), this::resolve,
+				doc -> MappedFileInputStream.open(locate(doc.getFilename(), doc), regionSize), xmlDocRepository,
+				xmlValidator, schemaRegistry, entityManager, transactionManager, metrics);
+		this.shardMigrator = layout.isSharded()
+				? new ShardMigrator(layout, catalog.getReservations(), properties.getShardMigrationThreads())
+				: null;
+	}
+
+	/**
+	 * Stop the threads that check batches, any move into the sharded layout, any
+	 * check of stored files and any query, and close the index.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (shardMigrator != null) {
+			shardMigrator.stop();
+		}
+		catalog.close();
+	}
+
+	@Override
+	public XmlDocMetadata store(final XmlUpload upload, final String note, final SchemaKey schema) {
+		String filename = StringUtils.cleanPath(upload.getFilename());
+		log.debug("Trying to save file {}.", filename);
+
+		catalog.checkForPathErrors(filename, upload.getSize());
+		SchemaKey resolvedSchema = catalog.resolveSchema(schema);
+		try (NameReservations.Reservation reservation = catalog.reserve(filename)) {
+			catalog.failIfFileExists(filename);
+			IngestedFile ingested = ingest(upload.getContent(), filename, resolvedSchema);
+
+			// Save metadata and return it.
+			try (NameReservations.Reservation blob = reserveBlob(ingested.getContentHash())) {
+				Path xmlPath = publish(ingested, filename);
+				return catalog.saveMetadata(filename, ingested.getTerms(),
+						StoredFileCatalog.toMetadata(upload.getFilename(), ingested, note),
+						() -> discard(xmlPath, ingested.getContentHash(), ingested.getEncoding()));
+			}
+		}
+
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <b>Implementation note</b>: files are checked and written in parallel, and
+	 * metadata for every stored file is saved with one batched insert, by
+	 * {@link StoredFileCatalog#storeAll}.
+	 */
+	@Override
+	public List<XmlDocUploadResult> storeAll(final List<XmlUpload> uploads, final String note) {
+		return catalog.storeAll(uploads, note, this::ingest, this::saveIngested);
+	}
+
+	@Override
+	public List<XmlDocUploadResult> storeArchive(final InputStream archive, final String note) {
+		return catalog.storeArchive(archive, note, this::ingest, this::saveIngested);
+	}
+
+	/**
+	 * Publish and save metadata for the checked files of a batch. Their names
+	 * must be reserved.
+	 * 
+	 * @param names     name of each file as uploaded
+	 * @param filenames cleaned name of each file
+	 * @param ingested  each checked file, or null for files that already have a
+	 *                  result
+	 * @param results   result for each file; filled in by this method
+	 * @param note      or description to save against every file
+	 */
+	private void saveIngested(final List<String> names, final String[] filenames, final IngestedFile[] ingested,
+			final XmlDocUploadResult[] results, final String note) {
+		// Reserve in sorted order, so two batches sharing content cannot deadlock.
+		Set<String> hashes = new TreeSet<>();
+		for (int i = 0; i < names.size(); i++) {
+			if (results[i] == null) {
+				hashes.add(ingested[i].getContentHash());
+			}
+		}
+		List<NameReservations.Reservation> blobs = new ArrayList<>();
+		try {
+			if (contentAddressed) {
+				for (String hash : hashes) {
+					blobs.add(blobReservations.reserve(hash));
+				}
+			}
+			saveBatch(names, filenames, ingested, results, note);
+		} finally {
+			blobs.forEach(NameReservations.Reservation::close);
+		}
+	}
+
+	/**
+	 * Publish and save metadata for the checked files of a batch. Their content
+	 * hashes must be reserved.
+	 * 
+	 * @param names     name of each file as uploaded
+	 * @param filenames cleaned name of each file
+	 * @param ingested  each checked file, or null for files that already have a
+	 *                  result
+	 * @param results   result for each file; filled in by this method
+	 * @param note      or description to save against every file
+	 */
+	private void saveBatch(final List<String> names, final String[] filenames, final IngestedFile[] ingested,
+			final XmlDocUploadResult[] results, final String note) {
+		List<Integer> toSave = new ArrayList<>();
+		Path[] stored = new Path[names.size()];
+		for (int i = 0; i < names.size(); i++) {
+			if (results[i] != null) {
+				continue;
+			}
+			try {
+				stored[i] = publish(ingested[i], filenames[i]);
+				toSave.add(i);
+			} catch (StorageException e) {
+				results[i] = XmlDocUploadResult.failed(names.get(i), e.getMessage());
+			}
+		}
+		catalog.saveAll(names, filenames, ingested, toSave, results, note,
+				i -> discard(stored[i], ingested[i].getContentHash(), ingested[i].getEncoding()));
+	}
+
+	/**
+	 * Write the upload to a temporary file while {@link StoredFileCatalog}
+	 * checks it, so nothing is read back from disk. An invalid file is deleted
+	 * before it is ever visible in storage.
+	 * 
+	 * @param content  contents of the upload
+	 * @param filename file name
+	 * @param schema   schema to validate against, or null to choose by root
+	 *                 namespace
+	 * @return the checked, but not yet visible, file
+	 */
+	private IngestedFile ingest(final InputStreamSource content, final String filename, final SchemaKey schema) {
+		Path incomingPath = createIncomingFile(filename);
+		try {
+			IngestedFile checked = catalog.ingest(content, filename, schema, Files.newOutputStream(incomingPath));
+			long storedSize = checked.getEncoding() == null ? checked.getSize() : Files.size(incomingPath);
+			if (fileSync) {
+				try (FileChannel channel = FileChannel.open(incomingPath, StandardOpenOption.WRITE)) {
+					channel.force(true);
+				}
+			}
+			log.debug("Wrote {} bytes of file {} to [{}].", storedSize, filename, incomingPath);
+			return checked.toBuilder().path(incomingPath).storedSize(storedSize).build();
+		} catch (StorageException e) {
+			StoredFileCatalog.deleteQuietly(incomingPath);
+			throw e;
+		} catch (IOException e) {
+			StoredFileCatalog.deleteQuietly(incomingPath);
+			log.error("Failed to store file [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+	}
+
+	/**
+	 * Create an empty temporary file for an upload.
+	 * 
+	 * @param filename file name
+	 * @return path to the new file
+	 */
+	private Path createIncomingFile(final String filename) {
+		try {
+			Files.createDirectories(layout.getIncomingLocation());
+			return Files.createTempFile(layout.getIncomingLocation(), "upload-", ".part");
+		} catch (IOException e) {
+			log.error("Failed to create temporary file for [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+	}
+
+	/**
+	 * Reserve the content hash of a file about to be published, in content
+	 * addressed mode.
+	 * 
+	 * @param contentHash hash of the file's content
+	 * @return the reservation, or null if none is needed
+	 */
+	private NameReservations.Reservation reserveBlob(final String contentHash) {
+		return contentAddressed ? blobReservations.reserve(contentHash) : null;
+	}
+
+	/**
+	 * Make a checked file visible. In content addressed mode its content hash must
+	 * be reserved.
+	 * 
+	 * @param ingested the checked file
+	 * @param filename file name
+	 * @return where the file is stored
+	 */
+	private Path publish(final IngestedFile ingested, final String filename) {
+		long publishStart = metrics.start();
+		Path xmlPath = contentAddressed ? layout.blobPath(ingested.getContentHash(), ingested.getEncoding())
+				: layout.filePath(filename, ingested.getEncoding());
+		if (contentAddressed && Files.exists(xmlPath)) {
+			log.info("Content of file {} is already stored at [{}].", filename, xmlPath.toAbsolutePath());
+			StoredFileCatalog.deleteQuietly(ingested.getPath());
+			metrics.record(StorageMetrics.Stage.PUBLISH, publishStart);
+			return xmlPath;
+		}
+		try {
+			Files.createDirectories(xmlPath.getParent());
+		} catch (IOException e) {
+			StoredFileCatalog.deleteQuietly(ingested.getPath());
+			log.error("Failed to store file [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+		moveIntoPlace(ingested.getPath(), xmlPath, filename);
+		syncFolder(xmlPath.getParent());
+		metrics.written(ingested.getStoredSize());
+		metrics.record(StorageMetrics.Stage.PUBLISH, publishStart);
+		return xmlPath;
+	}
+
+	/**
+	 * Move a checked file into place, failing rather than replacing a file
+	 * already stored there.
+	 * 
+	 * @param incomingPath path to the checked file
+	 * @param xmlPath      where to put it
+	 * @param filename     file name
+	 * @return xml path
+	 */
+	private Path moveIntoPlace(final Path incomingPath, final Path xmlPath, final String filename) {
+		try {
+			moveNoReplace(incomingPath, xmlPath);
+			File file2 = xmlPath.toFile();
+			log.info("Saved file to [{}] which exists: {}", file2.getAbsolutePath(), file2.exists());
+		} catch (FileAlreadyExistsException e) {
+			metrics.rejected(StorageMetrics.Rejection.DUPLICATE);
+			StoredFileCatalog.deleteQuietly(incomingPath);
+			log.error("File already stored [{}]", filename, e);
+			throw new StorageException("File already exists: " + filename, e);
+		} catch (IOException e) {
+			StoredFileCatalog.deleteQuietly(incomingPath);
+			log.error("Failed to store file [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+		return xmlPath;
+	}
+
+	/**
+	 * Sync a folder a file has just been moved into, if {@link #fileSync} is set,
+	 * so the move survives a crash. Not every file system can sync a folder;
+	 * where one cannot, the file itself has still been synced.
+	 * 
+	 * @param folder folder to sync
+	 */
+	private void syncFolder(final Path folder) {
+		if (!fileSync) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("Cannot sync folder [{}]: {}", folder, e.toString());
+		}
+	}
+
+	/**
+	 * Move a file to where no file is yet, never replacing one there. A hard
+	 * link is used where the file system has them, as it is created atomically;
+	 * where it does not (FAT, and many SMB and NFS mounts), the file is moved,
+	 * which without <code>REPLACE_EXISTING</code> still fails if a file is there.
+	 * 
+	 * @param source file to move
+	 * @param target where to move it
+	 * @throws FileAlreadyExistsException if a file is already at the target
+	 * @throws IOException                if the file cannot be moved
+	 */
+	static void moveNoReplace(final Path source, final Path target) throws IOException {
+		try {
+			Files.createLink(target, source);
+		} catch (FileAlreadyExistsException | NoSuchFileException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			log.debug("Cannot hard link {}, moving it instead: {}", target, e.toString());
+			Files.move(source, target);
+			return;
+		}
+		Files.delete(source);
+	}
+
+	/**
+	 * Remove a stored file that no metadata refers to any more. Content stored by
+	 * hash is only removed once no metadata refers to the hash; its hash must be
+	 * reserved.
+	 * 
+	 * @param xmlPath     where the file is stored
+	 * @param contentHash hash of the file's content
+	 * @param encoding    how the file is compressed; null if it is not
+	 */
+	private void discard(final Path xmlPath, final String contentHash, final String encoding) {
+		if (!layout.isBlob(xmlPath)) {
+			StoredFileCatalog.deleteQuietly(xmlPath);
+		} else if (xmlDocRepo.countByContentHashAndEncoding(contentHash, encoding) == 0) {
+			log.info("No files refer to content [{}] any more; removing it.", xmlPath.toAbsolutePath());
+			StoredFileCatalog.deleteQuietly(xmlPath);
+		}
+	}
+
+	@Override
+	public Path load(final String filename) {
+		log.debug("Load file {}.", filename);
+		return locate(filename, findMetadata(filename).orElse(null));
+	}
+
+	/**
+	 * @param filename file name
+	 * @param doc      metadata of the file; null if there is none
+	 * @return the file, which may turn out to be missing
+	 */
+	private Resource resolve(final String filename, final XmlDocMetadata doc) {
+		return new FileSystemResource(locate(filename, doc));
+	}
+
+	/**
+	 * Find where a file is stored. Files stored under the other mode, before the
+	 * mode was changed, are found too.
+	 * 
+	 * @param filename file name
+	 * @param metadata data about the file; null if there is none
+	 * @return where the file is stored, or where it would be if it is missing
+	 */
+	private Path locate(final String filename, final XmlDocMetadata metadata) {
+		if (metadata == null) {
+			return findFile(filename, null);
+		}
+		Path filePath = findFile(filename, metadata.getEncoding());
+		if (metadata.getContentHash() == null) {
+			return filePath;
+		}
+		Path blobPath = layout.blobPath(metadata.getContentHash(), metadata.getEncoding());
+		Path preferred = contentAddressed ? blobPath : filePath;
+		Path other = contentAddressed ? filePath : blobPath;
+		return Files.exists(preferred) || !Files.exists(other) ? preferred : other;
+	}
+
+	/**
+	 * Find where a file stored under its name is. In a sharded layout, files not
+	 * yet moved out of the flat layout are found too.
+	 * 
+	 * @param filename file name
+	 * @param encoding how the file is compressed; null if it is not
+	 * @return where the file is stored, or where it would be if it is missing
+	 */
+	private Path findFile(final String filename, final String encoding) {
+		Path filePath = layout.filePath(filename, encoding);
+		if (!layout.isSharded() || Files.exists(filePath)) {
+			return filePath;
+		}
+		Path flatPath = layout.flatFilePath(filename, encoding);
+		// Look in the sharded layout again if the file is in neither, as it may have just been moved.
+		return Files.exists(flatPath) ? flatPath : filePath;
+	}
+
+	@Override
+	public Optional<XmlDocMetadata> findMetadata(final String filename) {
+		return catalog.findMetadata(filename);
+	}
+
+	@Override
+	public void delete(final String filename) {
+		catalog.delete(filename, doc -> {
+			Path xmlPath = locate(filename, doc);
+			try (NameReservations.Reservation blob = layout.isBlob(xmlPath)
+					? blobReservations.reserve(doc.getContentHash())
+					: null) {
+				discard(xmlPath, doc.getContentHash(), doc.getEncoding());
+			}
+		});
+	}
+
+	@Override
+	public ShardMigrationStatus startShardMigration() {
+		if (shardMigrator == null) {
+			throw new StorageException("Storage is not sharded, so there is nothing to migrate.");
+		}
+		return shardMigrator.start();
+	}
+
+	@Override
+	public ShardMigrationStatus getShardMigrationStatus() {
+		if (shardMigrator == null) {
+			throw new StorageException("Storage is not sharded, so there is nothing to migrate.");
+		}
+		return shardMigrator.getStatus();
+	}
+
+	@Override
+	public RevalidationStatus startRevalidation(final SchemaKey schema) {
+		return catalog.startRevalidation(schema);
+	}
+
+	@Override
+	public RevalidationStatus getRevalidationStatus() {
+		return catalog.getRevalidationStatus();
+	}
+
+	@Override
+	public RevalidationStatus cancelRevalidation() {
+		return catalog.cancelRevalidation();
+	}
+
+	@Override
+	public XmlQuery compileQuery(final String xpath) {
+		return catalog.compileQuery(xpath);
+	}
+
+	@Override
+	public void queryFiles(final XmlQuery query, final Consumer<XmlQueryMatch> consumer) {
+		catalog.queryFiles(query, consumer);
+	}
+
+	@Override
+	public Map<String, CacheStats> getCacheStats() {
+		return catalog.getCacheStats();
+	}
+
+	@Override
+	public void clearCaches() {
+		catalog.clearCaches();
+	}
+
+	@Override
+	public List<XmlDocMetadata> listFiles() {
+		return catalog.listFiles();
+	}
+
+	@Override
+	public XmlDocPage listFiles(final Integer afterId, final Integer pageSize) {
+		return catalog.listFiles(afterId, pageSize);
+	}
+
+	@Override
+	public XmlDocPage searchFiles(final String path, final String name, final String value, final Integer afterId,
+			final Integer pageSize) {
+		return catalog.searchFiles(path, name, value, afterId, pageSize);
+	}
+
+	@Override
+	public List<XmlDocMetadata> findFiles(final List<String> filenames) {
+		return catalog.findFiles(filenames);
+	}
+
+	@Override
+	public void exportFiles(final List<XmlDocMetadata> files, final OutputStream out) throws IOException {
+		catalog.exportFiles(files, out);
+	}
+
+	@Override
+	public void exportMatchingFiles(final String path, final String name, final String value,
+			final OutputStream out) throws IOException {
+		catalog.exportMatchingFiles(path, name, value, out);
+	}
+
+	@Override
+	public void streamFiles(final Consumer<XmlDocMetadata> consumer) {
+		catalog.streamFiles(consumer);
+	}
+
+	@Override
+	public Resource loadAsResource(final String filename) {
+		return catalog.loadAsResource(filename);
+	}
+
+	@Override
+	public void init() {
+		log.debug("Initialise storage service at rootLocation {}.", layout.getRootLocation());
+		try {
+			Path directory = Files.createDirectories(layout.getRootLocation());
+			Files.createDirectories(layout.getIncomingLocation());
+			log.info("Location for XML files: {}, content addressed: {}", directory.toAbsolutePath(),
+					contentAddressed);
+		} catch (IOException e) {
+			throw new StorageException("Could not initialize storage at: " + layout.getRootLocation(), e);
+		}
+		catalog.open();
+	}
+}
@@ -0,0 +1,118 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of file names: says for sure when a name has never been added,
+ * and otherwise that it might have been. Used to skip the database lookup for
+ * names that are obviously new.
+ * 
+ * <b>Implementation note</b>: bits are held in an <code>AtomicLongArray</code>
+ * so names can be added and checked from many threads without locking. Names
+ * are never removed, so a deleted name stays a "might contain"; that only
+ * costs a database lookup.
+ */
+public final class FilenameBloomFilter {
+
+	/**
+	 * Bits in the filter.
+	 */
+	private final long bitCount;
+
+	/**
+	 * Bits set for each name.
+	 */
+	private final int hashCount;
+
+	/**
+	 * The bits, 64 to a word.
+	 */
+	private final AtomicLongArray words;
+
+	/**
+	 * @param expectedNames     number of names the filter is sized for
+	 * @param falsePositiveRate chance of "might contain" for a new name once
+	 *                          <code>expectedNames</code> have been added
+	 */
+	public FilenameBloomFilter(final long expectedNames, final double falsePositiveRate) {
+		if (expectedNames <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException(
+					"Bad Bloom filter size: " + expectedNames + " names at rate " + falsePositiveRate);
+		}
+		long bits = (long) Math.ceil(-expectedNames * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64));
+		this.bitCount = words.length() * 64L;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedNames * Math.log(2)));
+	}
+
+	/**
+	 * @param filename name to add
+	 */
+	public void add(final String filename) {
+		long hash = hash(filename);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(hash1 + i * hash2);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current = words.get(word);
+			while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+				current = words.get(word);
+			}
+		}
+	}
+
+	/**
+	 * @param filename name to check
+	 * @return false if the name has never been added; true if it might have been
+	 */
+	public boolean mightContain(final String filename) {
+		long hash = hash(filename);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = index(hash1 + i * hash2);
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of bits in the filter
+	 */
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	/**
+	 * @param combinedHash one of the hashes of a name
+	 * @return bit the hash selects
+	 */
+	private long index(final int combinedHash) {
+		return (combinedHash & 0xFFFFFFFFL) % bitCount;
+	}
+
+	/**
+	 * FNV-1a over the characters of a name, finished with the MurmurHash3 mixer
+	 * so both halves of the result are well spread.
+	 * 
+	 * @param filename name to hash
+	 * @return 64 bit hash
+	 */
+	private static long hash(final String filename) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < filename.length(); i++) {
+			hash ^= filename.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,153 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.springframework.data.domain.PageRequest;
+import org.xml.sax.SAXException;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Indexes the files stored before the index of stored files was created, such
+ * as after an upgrade or after the index folder was removed, while the service
+ * stays up. Until it has finished, a search may miss those files.
+ * 
+ * <b>Implementation note</b>: metadata is read a page at a time by ID, on one
+ * background thread, so no database cursor is held open for the length of the
+ * run. Files stored while it runs are indexed by their store too; indexing a
+ * file twice just replaces its entry. A file deleted while it runs may be left
+ * in the index, which searches already allow for.
+ */
+@Log4j2
+final class IndexBackfill {
+
+	/**
+	 * Rows of metadata read at once.
+	 */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * Metadata of the files to index.
+	 */
+	private final XmlDocMetadataRepository xmlDocRepo;
+
+	/**
+	 * Opens a stored file.
+	 */
+	private final StoredFileOpener opener;
+
+	/**
+	 * Reads files.
+	 */
+	private final XmlValidator xmlValidator;
+
+	/**
+	 * Index to add files to.
+	 */
+	private final XmlIndex index;
+
+	/**
+	 * Longest value put in the index, in characters.
+	 */
+	private final int maxValueLength;
+
+	/**
+	 * Most terms put in the index for one file.
+	 */
+	private final int maxTerms;
+
+	/**
+	 * Set to stop early.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * @param xmlDocRepo     metadata of the files to index
+	 * @param opener         opens a stored file
+	 * @param xmlValidator   reads files
+	 * @param index          index to add files to
+	 * @param maxValueLength longest value put in the index, in characters
+	 * @param maxTerms       most terms put in the index for one file
+	 */
+	IndexBackfill(final XmlDocMetadataRepository xmlDocRepo, final StoredFileOpener opener,
+			final XmlValidator xmlValidator, final XmlIndex index, final int maxValueLength, final int maxTerms) {
+		this.xmlDocRepo = xmlDocRepo;
+		this.opener = opener;
+		this.xmlValidator = xmlValidator;
+		this.index = index;
+		this.maxValueLength = maxValueLength;
+		this.maxTerms = maxTerms;
+	}
+
+	/**
+	 * Start indexing stored files in the background.
+	 */
+	void start() {
+		Thread thread = new Thread(this::run, "index-backfill");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop early, if still running.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Page through the metadata, indexing each file.
+	 */
+	private void run() {
+		log.info("Indexing files stored before the index was created.");
+		long indexed = 0;
+		try {
+			int after = 0;
+			while (!stopped) {
+				List<XmlDocMetadata> page = xmlDocRepo.findByIdGreaterThanOrderByIdAsc(after,
+						PageRequest.of(0, PAGE_SIZE));
+				for (XmlDocMetadata doc : page) {
+					if (stopped) {
+						break;
+					}
+					if (backfill(doc)) {
+						indexed++;
+					}
+				}
+				if (page.size() < PAGE_SIZE) {
+					break;
+				}
+				after = page.get(page.size() - 1).getId();
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to read metadata of stored files.", e);
+		}
+		log.info("Indexed {} files stored before the index was created{}.", indexed, stopped ? ", then stopped" : "");
+	}
+
+	/**
+	 * Index one stored file.
+	 * 
+	 * @param doc metadata of the file
+	 * @return true if the file was indexed
+	 */
+	private boolean backfill(final XmlDocMetadata doc) {
+		XmlTermCollector terms = new XmlTermCollector(maxValueLength, maxTerms);
+		try (InputStream stored = opener.open(doc);
+				InputStream xml = StorageCompression.decompress(stored, doc.getEncoding())) {
+			xmlValidator.checkWellFormed(xml, terms);
+			index.add(doc.getId(), terms.getTerms());
+			return true;
+		} catch (IOException | SAXException | RuntimeException e) {
+			// One bad or missing file must not stop the rest being indexed.
+			log.warn("Failed to index stored file {}: {}", doc.getFilename(), e.toString());
+			return false;
+		}
+	}
+}
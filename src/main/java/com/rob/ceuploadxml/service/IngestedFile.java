@@ -0,0 +1,52 @@
+package com.rob.ceuploadxml.service;
+
+import java.nio.file.Path;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * An upload that has been checked, with its bytes written to a temporary file
+ * or held in memory, but is not yet visible under its real name.
+ */
+@Value
+@Builder(toBuilder = true)
+class IngestedFile {
+
+	/**
+	 * Path to the temporary file; null if the bytes are held in memory.
+	 */
+	private final Path path;
+
+	/**
+	 * Bytes written, after any compression; null if they are in a temporary
+	 * file.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Number of bytes uploaded.
+	 */
+	private final long size;
+
+	/**
+	 * Number of bytes written, after any compression.
+	 */
+	private final long storedSize;
+
+	/**
+	 * Content encoding of the bytes written, or null if they are as uploaded.
+	 */
+	private final String encoding;
+
+	/**
+	 * Hex SHA-256 hash of the bytes uploaded.
+	 */
+	private final String contentHash;
+
+	/**
+	 * What to index the file by.
+	 */
+	private final XmlTerms terms;
+
+}
@@ -0,0 +1,163 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream over a file, read through memory mapped regions of the file one
+ * after another.
+ * 
+ * <b>Implementation note</b>: the file is read straight from the page cache,
+ * with no copy into a heap buffer on the way. Each stream maps one region at a
+ * time, but the JVM only unmaps a region once it has been garbage collected, so
+ * regions read one after another, here or by other streams, stay mapped until
+ * then; keep the region size modest. Mapping costs more than reading a small
+ * file, so {@link #open(Path, long)} only maps files of at least
+ * {@link #MIN_MAPPED_SIZE} bytes.
+ */
+public final class MappedFileInputStream extends InputStream {
+
+	/**
+	 * Smallest file worth mapping; smaller files are read with plain reads.
+	 */
+	public static final long MIN_MAPPED_SIZE = 256 * 1024;
+
+	/**
+	 * Channel the file is mapped from.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Size of the file when it was opened.
+	 */
+	private final long size;
+
+	/**
+	 * Most bytes mapped at once.
+	 */
+	private final long regionSize;
+
+	/**
+	 * Offset in the file of the start of {@link #region}.
+	 */
+	private long regionStart;
+
+	/**
+	 * Region being read, or null before the first read.
+	 */
+	private MappedByteBuffer region;
+
+	/**
+	 * @param path       file to read
+	 * @param regionSize most bytes to map at once
+	 * @throws IOException if the file cannot be opened
+	 */
+	public MappedFileInputStream(final Path path, final long regionSize) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ), regionSize);
+	}
+
+	/**
+	 * @param channel    channel to map the file from; closed with this stream
+	 * @param regionSize most bytes to map at once
+	 * @throws IOException if the size of the file cannot be read
+	 */
+	private MappedFileInputStream(final FileChannel channel, final long regionSize) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+		this.regionSize = Math.max(1, Math.min(regionSize, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Open a file to read, mapping it only if it is big enough to be worth it.
+	 * 
+	 * @param path       file to read
+	 * @param regionSize most bytes to map at once
+	 * @return stream over the file
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static InputStream open(final Path path, final long regionSize) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if (channel.size() < MIN_MAPPED_SIZE) {
+				return Channels.newInputStream(channel);
+			}
+			return new MappedFileInputStream(channel, regionSize);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextRegionIfNeeded()) {
+			return -1;
+		}
+		return region.get() & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!nextRegionIfNeeded()) {
+			return -1;
+		}
+		int read = Math.min(length, region.remaining());
+		region.get(buffer, offset, read);
+		return read;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		if (n <= 0 || !nextRegionIfNeeded()) {
+			return 0;
+		}
+		int skipped = (int) Math.min(n, region.remaining());
+		region.position(region.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return region == null ? 0 : region.remaining();
+	}
+
+	/**
+	 * @return offset in the file of the next byte to be read
+	 */
+	public long getPosition() {
+		return region == null ? 0 : regionStart + region.position();
+	}
+
+	/**
+	 * Map the next region of the file if the current one has all been read.
+	 * 
+	 * @return false if the end of the file has been reached
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private boolean nextRegionIfNeeded() throws IOException {
+		if (region != null && region.hasRemaining()) {
+			return true;
+		}
+		long next = region == null ? 0 : regionStart + region.capacity();
+		if (next >= size) {
+			return false;
+		}
+		region = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(regionSize, size - next));
+		regionStart = next;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		region = null;
+		channel.close();
+	}
+}
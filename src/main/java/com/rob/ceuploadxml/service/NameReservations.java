@@ -0,0 +1,82 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Names, such as file names or content hashes, that something is in the middle
+ * of changing. Reserving a name makes anything else reserving the same name
+ * wait until the reservation is released, so changes to one name happen one at
+ * a time while changes to different names do not wait on each other.
+ */
+final class NameReservations {
+
+	/**
+	 * Reserved names, each with a latch that is released along with the name.
+	 */
+	private final ConcurrentMap<String, CountDownLatch> reserved = new ConcurrentHashMap<>();
+
+	/**
+	 * Reserve a name, waiting for any other reservation of it to be released.
+	 * 
+	 * @param name name to reserve
+	 * @return the reservation; close it to release the name
+	 */
+	Reservation reserve(final String name) {
+		CountDownLatch mine = new CountDownLatch(1);
+		while (true) {
+			CountDownLatch theirs = reserved.putIfAbsent(name, mine);
+			if (theirs == null) {
+				return new Reservation(name, mine);
+			}
+			try {
+				theirs.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while waiting for: " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of names reserved right now
+	 */
+	int size() {
+		return reserved.size();
+	}
+
+	/**
+	 * A reserved name.
+	 */
+	final class Reservation implements AutoCloseable {
+
+		/**
+		 * Name reserved.
+		 */
+		private final String name;
+
+		/**
+		 * Released when the name is.
+		 */
+		private final CountDownLatch latch;
+
+		/**
+		 * @param name  name reserved
+		 * @param latch released when the name is
+		 */
+		private Reservation(final String name, final CountDownLatch latch) {
+			this.name = name;
+			this.latch = latch;
+		}
+
+		/**
+		 * Release the name, letting whatever is waiting for it go ahead.
+		 */
+		@Override
+		public void close() {
+			reserved.remove(name, latch);
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.StringUtils;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.validator.SchemaKey;
+import com.rob.ceuploadxml.validator.SchemaRegistry;
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Store and retrieve XML files, packed into a few large segment files rather
+ * than each in a file of its own. Used when <code>storage.engine</code> is
+ * <code>PACK</code>.
+ * 
+ * <b>Implementation note</b>: metadata, the index, the caches, searches and
+ * exports are kept by {@link StoredFileCatalog}; files are appended by
+ * {@link PackStore} and kept by name, so content addressed mode and sharding do
+ * not apply.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage", name = "engine", havingValue = "pack")
+@Log4j2
+public final class PackFileXmlStorageService implements XmlStorageService {
+
+	/**
+	 * Where the pack and the index are kept.
+	 */
+	private final StorageLayout layout;
+
+	/**
+	 * Segments that files are packed into.
+	 */
+	private final PackStore packStore;
+
+	/**
+	 * How often to look for segments to compact.
+	 */
+	private final Duration compactionInterval;
+
+	/**
+	 * Metadata, index and caches of stored files.
+	 */
+	private final StoredFileCatalog catalog;
+
+	/**
+	 * Times each stage of storing a file, and counts bytes and rejections.
+	 */
+	private final StorageMetrics metrics;
+
+	@Autowired
+	public PackFileXmlStorageService(final StorageProperties properties,
+			final XmlDocMetadataRepository xmlDocRepository, final XmlValidator xmlValidator,
+			final SchemaRegistry schemaRegistry, final EntityManager entityManager,
+			final PlatformTransactionManager transactionManager, final StorageMetrics metrics) {
+		this.metrics = metrics;
+		this.layout = new StorageLayout(Paths.get(properties.getLocation()));
+		this.packStore = new PackStore(layout.getPackLocation(), properties.getPackSegmentSize().toBytes(),
+				properties.isPackSync(), properties.getPackCompactionThreshold());
+		this.compactionInterval = properties.getPackCompactionInterval();
+		this.catalog = new StoredFileCatalog(properties,
+				Math.min(properties.getMaxFileSize().toBytes(), properties.getPackMaxFileSize().toBytes()),
+				layout.getIndexLocation(), this::resolve, doc -> resolve(doc.getFilename(), doc).getInputStream(),
+				xmlDocRepository, xmlValidator, schemaRegistry, entityManager, transactionManager, metrics);
+	}
+
+	/**
+	 * Stop the threads that check batches, any check of stored files and any
+	 * query, then close the index and the pack.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		catalog.close();
+		try {
+			packStore.close();
+		} catch (IOException e) {
+			log.error("Failed to close pack of stored files.", e);
+		}
+	}
+
+	@Override
+	public XmlDocMetadata store(final XmlUpload upload, final String note, final SchemaKey schema) {
+		String filename = StringUtils.cleanPath(upload.getFilename());
+		log.debug("Trying to save file {}.", filename);
+
+		catalog.checkForPathErrors(filename, upload.getSize());
+		SchemaKey resolvedSchema = catalog.resolveSchema(schema);
+		try (NameReservations.Reservation reservation = catalog.reserve(filename)) {
+			catalog.failIfFileExists(filename);
+			IngestedFile packed = ingest(upload.getContent(), filename, resolvedSchema);
+			publish(Collections.singletonList(filename), Collections.singletonList(packed));
+			return catalog.saveMetadata(filename, packed.getTerms(),
+					StoredFileCatalog.toMetadata(upload.getFilename(), packed, note),
+					() -> discard(Collections.singletonList(filename)));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <b>Implementation note</b>: files are checked in parallel by
+	 * {@link StoredFileCatalog#storeAll}, every good file is appended to the
+	 * pack with one write, and metadata for every stored file is saved with one
+	 * batched insert.
+	 */
+	@Override
+	public List<XmlDocUploadResult> storeAll(final List<XmlUpload> uploads, final String note) {
+		return catalog.storeAll(uploads, note, this::ingest, this::saveBatch);
+	}
+
+	@Override
+	public List<XmlDocUploadResult> storeArchive(final InputStream archive, final String note) {
+		return catalog.storeArchive(archive, note, this::ingest, this::saveBatch);
+	}
+
+	/**
+	 * Append the checked files of a batch to the pack with one write, and save
+	 * their metadata. Their names must be reserved.
+	 * 
+	 * @param names     name of each file as uploaded
+	 * @param filenames cleaned name of each file
+	 * @param ingested  each checked file, or null for files that already have a
+	 *                  result
+	 * @param results   result for each file; filled in by this method
+	 * @param note      or description to save against every file
+	 */
+	private void saveBatch(final List<String> names, final String[] filenames, final IngestedFile[] ingested,
+			final XmlDocUploadResult[] results, final String note) {
+		List<Integer> toSave = new ArrayList<>();
+		for (int i = 0; i < names.size(); i++) {
+			if (results[i] == null) {
+				toSave.add(i);
+			}
+		}
+		if (toSave.isEmpty()) {
+			return;
+		}
+		try {
+			publish(toSave.stream().map(i -> filenames[i]).collect(Collectors.toList()),
+					toSave.stream().map(i -> ingested[i]).collect(Collectors.toList()));
+		} catch (StorageException e) {
+			for (int i : toSave) {
+				results[i] = XmlDocUploadResult.failed(names.get(i), e.getMessage());
+			}
+			return;
+		}
+		catalog.saveAll(names, filenames, ingested, toSave, results, note,
+				i -> discard(Collections.singletonList(filenames[i])));
+	}
+
+	/**
+	 * Hold the upload in memory while {@link StoredFileCatalog} checks it, so
+	 * nothing is written until it is known to be good.
+	 * 
+	 * @param content  contents of the upload
+	 * @param filename file name
+	 * @param schema   schema to validate against, or null to choose by root
+	 *                 namespace
+	 * @return the checked, but not yet stored, file
+	 */
+	private IngestedFile ingest(final InputStreamSource content, final String filename, final SchemaKey schema) {
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		IngestedFile checked = catalog.ingest(content, filename, schema, stored);
+		byte[] data = stored.toByteArray();
+		return checked.toBuilder().data(data).storedSize(data.length).build();
+	}
+
+	/**
+	 * Append checked files to the pack, all with one write, and wait for them to
+	 * be written. Their names must be reserved.
+	 * 
+	 * @param filenames name of each file
+	 * @param packed    each checked file
+	 */
+	private void publish(final List<String> filenames, final List<IngestedFile> packed) {
+		long publishStart = metrics.start();
+		List<PackStore.Record> records = new ArrayList<>(packed.size());
+		long bytes = 0;
+		for (int i = 0; i < packed.size(); i++) {
+			records.add(PackStore.Record.put(filenames.get(i), packed.get(i).getData()));
+			bytes += packed.get(i).getData().length;
+		}
+		try {
+			packStore.append(records);
+		} catch (IOException e) {
+			log.error("Failed to append {} files to the pack.", records.size(), e);
+			throw new StorageException(filenames.size() == 1 ? "Failed to store file: " + filenames.get(0)
+					: "Failed to store " + filenames.size() + " files.", e);
+		}
+		metrics.written(bytes);
+		metrics.record(StorageMetrics.Stage.PUBLISH, publishStart);
+	}
+
+	/**
+	 * Remove files from the pack that no metadata refers to any more, logging
+	 * rather than failing if we cannot; compaction frees the space later.
+	 * 
+	 * @param filenames file names
+	 */
+	private void discard(final List<String> filenames) {
+		try {
+			packStore.append(filenames.stream().map(PackStore.Record::delete).collect(Collectors.toList()));
+		} catch (IOException e) {
+			log.error("WARNING: unable to remove files {} from the pack.", filenames, e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <b>Implementation note</b>: files in the pack have no path of their own,
+	 * so this always fails; use {@link #loadAsResource(String)}.
+	 */
+	@Override
+	public Path load(final String filename) {
+		throw new StorageException("Files in the pack have no path of their own: " + filename);
+	}
+
+	/**
+	 * Where each file is in the pack is held in memory, so finding a file needs
+	 * neither the database nor a system call.
+	 * 
+	 * @param filename file name
+	 * @param doc      metadata of the file; not needed
+	 * @return the bytes of the file as stored
+	 * @throws NoSuchFileException if the file is not in the pack
+	 */
+	private Resource resolve(final String filename, final XmlDocMetadata doc) throws NoSuchFileException {
+		PackStore.Location location = packStore.locate(filename);
+		if (location == null) {
+			throw new NoSuchFileException(filename);
+		}
+		return packStore.asResource(filename, location);
+	}
+
+	@Override
+	public Optional<XmlDocMetadata> findMetadata(final String filename) {
+		return catalog.findMetadata(filename);
+	}
+
+	@Override
+	public void delete(final String filename) {
+		catalog.delete(filename, doc -> discard(Collections.singletonList(filename)));
+	}
+
+	@Override
+	public ShardMigrationStatus startShardMigration() {
+		throw new StorageException("Files are packed, not sharded, so there is nothing to migrate.");
+	}
+
+	@Override
+	public ShardMigrationStatus getShardMigrationStatus() {
+		throw new StorageException("Files are packed, not sharded, so there is nothing to migrate.");
+	}
+
+	@Override
+	public RevalidationStatus startRevalidation(final SchemaKey schema) {
+		return catalog.startRevalidation(schema);
+	}
+
+	@Override
+	public RevalidationStatus getRevalidationStatus() {
+		return catalog.getRevalidationStatus();
+	}
+
+	@Override
+	public RevalidationStatus cancelRevalidation() {
+		return catalog.cancelRevalidation();
+	}
+
+	@Override
+	public XmlQuery compileQuery(final String xpath) {
+		return catalog.compileQuery(xpath);
+	}
+
+	@Override
+	public void queryFiles(final XmlQuery query, final Consumer<XmlQueryMatch> consumer) {
+		catalog.queryFiles(query, consumer);
+	}
+
+	@Override
+	public Map<String, CacheStats> getCacheStats() {
+		return catalog.getCacheStats();
+	}
+
+	@Override
+	public void clearCaches() {
+		catalog.clearCaches();
+	}
+
+	@Override
+	public List<XmlDocMetadata> listFiles() {
+		return catalog.listFiles();
+	}
+
+	@Override
+	public XmlDocPage listFiles(final Integer afterId, final Integer pageSize) {
+		return catalog.listFiles(afterId, pageSize);
+	}
+
+	@Override
+	public XmlDocPage searchFiles(final String path, final String name, final String value, final Integer afterId,
+			final Integer pageSize) {
+		return catalog.searchFiles(path, name, value, afterId, pageSize);
+	}
+
+	@Override
+	public List<XmlDocMetadata> findFiles(final List<String> filenames) {
+		return catalog.findFiles(filenames);
+	}
+
+	@Override
+	public void exportFiles(final List<XmlDocMetadata> files, final OutputStream out) throws IOException {
+		catalog.exportFiles(files, out);
+	}
+
+	@Override
+	public void exportMatchingFiles(final String path, final String name, final String value,
+			final OutputStream out) throws IOException {
+		catalog.exportMatchingFiles(path, name, value, out);
+	}
+
+	@Override
+	public void streamFiles(final Consumer<XmlDocMetadata> consumer) {
+		catalog.streamFiles(consumer);
+	}
+
+	@Override
+	public Resource loadAsResource(final String filename) {
+		return catalog.loadAsResource(filename);
+	}
+
+	@Override
+	public void init() {
+		log.debug("Initialise pack storage service at rootLocation {}.", layout.getRootLocation());
+		try {
+			Path directory = Files.createDirectories(layout.getRootLocation());
+			packStore.open();
+			log.info("Location for packed XML files: {}", directory.toAbsolutePath());
+		} catch (IOException e) {
+			throw new StorageException("Could not initialize storage at: " + layout.getRootLocation(), e);
+		}
+		packStore.startCompaction(compactionInterval);
+		catalog.open();
+	}
+}
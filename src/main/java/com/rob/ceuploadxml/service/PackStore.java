@@ -0,0 +1,1144 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Append only store of small files, packed one after the other into a few
+ * large segment files, with where each file is kept in memory.
+ * 
+ * <ul>
+ * <li><code>&lt;location&gt;/&lt;n&gt;.seg</code> - segment number n. The
+ * highest numbered segment is appended to; the rest are sealed.</li>
+ * </ul>
+ * 
+ * Each record is a CRC32, a type (a file or the removal of one), a sequence
+ * number, when it was written, the lengths of the name and data, the name in
+ * UTF-8, then the data. Of the records for one name, the highest sequence
+ * number wins.
+ * 
+ * <b>Implementation note</b>: appends are written by one thread, with one
+ * write and one sync for every append waiting. Sealed segments full of dead
+ * records are compacted in the background.
+ */
+@Log4j2
+final class PackStore implements Closeable {
+
+	/**
+	 * Bytes before the name in each record.
+	 */
+	static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 2 + 4;
+
+	/**
+	 * Type of a record holding a file.
+	 */
+	private static final byte TYPE_PUT = 1;
+
+	/**
+	 * Type of a record removing a file.
+	 */
+	private static final byte TYPE_DELETE = 2;
+
+	/**
+	 * End of the name of a segment file.
+	 */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * Most appends written together.
+	 */
+	private static final int MAX_GROUP = 1024;
+
+	/**
+	 * Most bytes of live records copied together by compaction.
+	 */
+	private static final int COMPACTION_BATCH_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * Put on the queue to stop the writer.
+	 */
+	private static final Append STOP = new Append(Collections.emptyList());
+
+	/**
+	 * Folder holding the segments.
+	 */
+	private final Path location;
+
+	/**
+	 * Size at which a new segment is started.
+	 */
+	private final long segmentSize;
+
+	/**
+	 * True to sync every group of appends before acknowledging it.
+	 */
+	private final boolean sync;
+
+	/**
+	 * Share of a sealed segment that must be dead for it to be compacted.
+	 */
+	private final double compactionThreshold;
+
+	/**
+	 * Where each stored file is, by name.
+	 */
+	private final Map<String, Location> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Segments by number.
+	 */
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Appends waiting for the writer. Guarded by itself when closing.
+	 */
+	private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+
+	/**
+	 * Groups of appends written.
+	 */
+	private final AtomicLong groups = new AtomicLong();
+
+	/**
+	 * Segments compacted away.
+	 */
+	private final AtomicLong compactions = new AtomicLong();
+
+	/**
+	 * Segment appended to. Only changed by the writer.
+	 */
+	private volatile Segment active;
+
+	/**
+	 * Channel appending to {@link #active}. Only used by the writer.
+	 */
+	private FileChannel activeWriter;
+
+	/**
+	 * Next sequence number to give a record. Only used by the writer.
+	 */
+	private long nextSequence = 1;
+
+	/**
+	 * The writer; null until {@link #open()}.
+	 */
+	private volatile Thread writer;
+
+	/**
+	 * Runs compaction; null unless {@link #startCompaction(Duration)} was
+	 * called.
+	 */
+	private ScheduledExecutorService compactor;
+
+	/**
+	 * True once no more appends are taken. Guarded by {@link #queue}.
+	 */
+	private boolean closed;
+
+	/**
+	 * @param location            folder holding the segments
+	 * @param segmentSize         size at which a new segment is started
+	 * @param sync                true to sync every group of appends before
+	 *                            acknowledging it
+	 * @param compactionThreshold share of a sealed segment that must be dead for
+	 *                            it to be compacted
+	 */
+	PackStore(final Path location, final long segmentSize, final boolean sync, final double compactionThreshold) {
+		this.location = location;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Read where every file is from the segments, and start taking appends.
+	 * 
+	 * @throws IOException if the segments cannot be read
+	 */
+	void open() throws IOException {
+		Files.createDirectories(location);
+		List<Path> paths;
+		try (Stream<Path> files = Files.list(location)) {
+			paths = files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))//
+					.sorted((a, b) -> Long.compare(segmentId(a), segmentId(b)))//
+					.collect(Collectors.toList());
+		}
+		Map<String, Long> removedAt = new HashMap<>();
+		for (int i = 0; i < paths.size(); i++) {
+			Segment segment = new Segment(segmentId(paths.get(i)), paths.get(i));
+			segments.put(segment.id, segment);
+			recover(segment, i == paths.size() - 1, removedAt);
+		}
+		for (Segment segment : segments.values()) {
+			segment.deadBytes.set(segment.size);
+		}
+		entries.values().forEach(live -> live.segment.deadBytes.addAndGet(-live.getRecordLength()));
+		if (segments.isEmpty()) {
+			active = createSegment(1);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+		activeWriter = FileChannel.open(active.path, StandardOpenOption.WRITE);
+		writer = new CustomizableThreadFactory("xml-pack-writer-").newThread(this::writeGroups);
+		writer.start();
+		log.info("Opened pack of {} files in {} segments at [{}].", entries.size(), segments.size(),
+				location.toAbsolutePath());
+	}
+
+	/**
+	 * Compact sealed segments with enough dead records every so often.
+	 * 
+	 * @param interval how long to wait between looks
+	 */
+	void startCompaction(final Duration interval) {
+		compactor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("xml-pack-compactor-"));
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact();
+			} catch (IOException | RuntimeException e) {
+				log.error("Failed to compact pack segments.", e);
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param name file name
+	 * @return where the file is, or null if it is not stored
+	 */
+	Location locate(final String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Append records, waiting until they are written and, if so configured,
+	 * synced.
+	 * 
+	 * @param records records to append, in order
+	 * @return where each record was written; null for a removal of a file that
+	 *         was not stored, as there is nothing to write
+	 * @throws IOException if the records cannot be written
+	 */
+	List<Location> append(final List<Record> records) throws IOException {
+		Append append = new Append(records);
+		synchronized (queue) {
+			if (closed) {
+				throw new IOException("Pack store is closed.");
+			}
+			if (writer == null) {
+				throw new IOException("Pack store is not open.");
+			}
+			queue.add(append);
+		}
+		try {
+			return append.done.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to append to pack.", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// The records may still be written; whoever asked must not assume they were not.
+			throw new InterruptedIOException("Interrupted while appending to pack.");
+		}
+	}
+
+	/**
+	 * @param name     file name
+	 * @param location where the file is
+	 * @return the file's data, read as it is asked for
+	 */
+	InputStream open(final String name, final Location location) {
+		return new SegmentInputStream(name, location);
+	}
+
+	/**
+	 * @param name     file name
+	 * @param location where the file is
+	 * @return the file's data as a resource
+	 */
+	PackedFile asResource(final String name, final Location location) {
+		return new PackedFile(name, location);
+	}
+
+	/**
+	 * Compact every sealed segment with enough dead records now, oldest first.
+	 * 
+	 * @return number of segments compacted
+	 * @throws IOException if a segment cannot be read or live records copied
+	 */
+	synchronized int compact() throws IOException {
+		int compacted = 0;
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			if (segment != active && segment.size > 0
+					&& segment.deadBytes.get() >= segment.size * compactionThreshold) {
+				compact(segment);
+				compacted++;
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Copy the live records of a sealed segment to the end of the store, then
+	 * delete it.
+	 * 
+	 * @param segment segment to compact
+	 * @throws IOException if the segment cannot be read or records copied
+	 */
+	private void compact(final Segment segment) throws IOException {
+		boolean oldest = segments.firstKey() == segment.id;
+		long dead = segment.deadBytes.get();
+		List<Record> copies = new ArrayList<>();
+		long batchBytes = 0;
+		long position = 0;
+		while (position < segment.size) {
+			ByteBuffer header = readHeader(segment, position);
+			byte type = header.get(4);
+			long sequence = header.getLong(5);
+			long lastModified = header.getLong(13);
+			int nameLength = Short.toUnsignedInt(header.getShort(21));
+			int dataLength = header.getInt(23);
+			String name = readName(segment, position, nameLength);
+			Location here = new Location(segment, position, sequence, lastModified, nameLength, dataLength);
+			if (type == TYPE_PUT && here.equals(entries.get(name))) {
+				byte[] data = new byte[dataLength];
+				readFully(segment, ByteBuffer.wrap(data), here.getDataOffset());
+				copies.add(new Record(TYPE_PUT, name, data, sequence, lastModified, here));
+				batchBytes += here.getRecordLength();
+			} else if (type == TYPE_DELETE && !oldest) {
+				copies.add(new Record(TYPE_DELETE, name, new byte[0], sequence, lastModified, here));
+			}
+			if (batchBytes >= COMPACTION_BATCH_BYTES) {
+				append(copies);
+				copies.clear();
+				batchBytes = 0;
+			}
+			position += here.getRecordLength();
+		}
+		// Also makes sure everything copied so far is synced before the segment goes.
+		append(copies);
+		segments.remove(segment.id);
+		segment.retire();
+		Files.deleteIfExists(segment.path);
+		compactions.incrementAndGet();
+		log.info("Compacted pack segment [{}], freeing {} of {} bytes.", segment.path.getFileName(), dead,
+				segment.size);
+	}
+
+	/**
+	 * @return number of segments
+	 */
+	int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return bytes taken by replaced and removed files, not yet compacted
+	 */
+	long getDeadBytes() {
+		return segments.values().stream().mapToLong(segment -> segment.deadBytes.get()).sum();
+	}
+
+	/**
+	 * @return groups of appends written
+	 */
+	long getGroupCount() {
+		return groups.get();
+	}
+
+	/**
+	 * @return segments compacted away
+	 */
+	long getCompactionCount() {
+		return compactions.get();
+	}
+
+	/**
+	 * Stop compacting, write what is waiting, and close every segment.
+	 * 
+	 * @throws IOException if a segment cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		synchronized (queue) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			queue.add(STOP);
+		}
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			activeWriter.close();
+		}
+		for (Segment segment : segments.values()) {
+			segment.retire();
+		}
+	}
+
+	/**
+	 * Write groups of appends until stopped.
+	 */
+	private void writeGroups() {
+		List<Append> group = new ArrayList<>();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				group.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(group, MAX_GROUP - 1);
+			stopping = group.remove(STOP);
+			if (!group.isEmpty()) {
+				write(group);
+			}
+			group.clear();
+		}
+	}
+
+	/**
+	 * Write a group of appends at the end of the active segment, with one write
+	 * and at most one sync, then record where each file now is.
+	 * 
+	 * @param group appends to write
+	 */
+	private void write(final List<Append> group) {
+		long start = active.size;
+		try {
+			List<ByteBuffer> buffers = new ArrayList<>();
+			List<List<Location>> placed = new ArrayList<>(group.size());
+			Map<String, Location> pending = new HashMap<>();
+			boolean copies = false;
+			long position = start;
+			for (Append append : group) {
+				List<Location> locations = new ArrayList<>(append.records.size());
+				for (Record record : append.records) {
+					Location location = null;
+					String name = record.getName();
+					if (isWanted(record, pending.containsKey(name) ? pending.get(name) : entries.get(name))) {
+						// Roll only for a group that writes something, so no empty segments are left.
+						if (buffers.isEmpty() && start >= segmentSize) {
+							roll();
+							start = 0;
+							position = 0;
+						}
+						long sequence = record.copyOf == null ? nextSequence++ : record.copyOf.sequence;
+						ByteBuffer buffer = record.encode(sequence);
+						location = new Location(active, position, sequence, record.lastModified,
+								record.name.length, record.data.length);
+						buffers.add(buffer);
+						position += buffer.remaining();
+						copies |= record.copyOf != null;
+						pending.put(name, record.type == TYPE_PUT ? location : null);
+					}
+					locations.add(location);
+				}
+				placed.add(locations);
+			}
+			if (!buffers.isEmpty()) {
+				writeFully(buffers.toArray(new ByteBuffer[0]), start);
+				if (sync || copies) {
+					activeWriter.force(false);
+				}
+			}
+			active.size = position;
+			groups.incrementAndGet();
+			for (int i = 0; i < group.size(); i++) {
+				List<Record> records = group.get(i).records;
+				for (int j = 0; j < records.size(); j++) {
+					apply(records.get(j), placed.get(i).get(j));
+				}
+				group.get(i).done.complete(placed.get(i));
+			}
+		} catch (IOException | RuntimeException e) {
+			log.error("Failed to append {} groups of records to pack segment [{}].", group.size(), active.path, e);
+			try {
+				activeWriter.truncate(start);
+			} catch (IOException te) {
+				log.error("Failed to cut pack segment [{}] back to {} bytes.", active.path, start, te);
+			}
+			group.forEach(append -> append.done.completeExceptionally(e));
+		}
+	}
+
+	/**
+	 * @param record  record about to be written
+	 * @param current where the file will be once the records ahead of this one
+	 *                are written; null if it will not be stored
+	 * @return false if the record would change nothing: removal of a file not
+	 *         stored, or a copy of a file replaced or removed since it was read
+	 *         for compaction
+	 */
+	private static boolean isWanted(final Record record, final Location current) {
+		if (record.copyOf == null) {
+			return record.type == TYPE_PUT || current != null;
+		}
+		return record.type == TYPE_DELETE || record.copyOf.equals(current);
+	}
+
+	/**
+	 * Record where a file now is, once its record has been written.
+	 * 
+	 * @param record   record written
+	 * @param location where it was written, or null if it was not
+	 */
+	private void apply(final Record record, final Location location) {
+		if (location == null) {
+			return;
+		}
+		String name = record.getName();
+		if (record.type == TYPE_DELETE) {
+			// A removal takes space until compaction of the oldest segment can drop it.
+			location.segment.deadBytes.addAndGet(location.getRecordLength());
+			if (record.copyOf == null) {
+				markDead(entries.remove(name));
+			}
+		} else if (record.copyOf == null) {
+			markDead(entries.put(name, location));
+		} else {
+			entries.put(name, location);
+		}
+	}
+
+	/**
+	 * @param replaced where a file replaced or removed was; may be null
+	 */
+	private static void markDead(final Location replaced) {
+		if (replaced != null) {
+			replaced.segment.deadBytes.addAndGet(replaced.getRecordLength());
+		}
+	}
+
+	/**
+	 * Seal the active segment and start the next. Sealed segments are synced, so
+	 * they can be trusted on open.
+	 * 
+	 * @throws IOException if the segments cannot be synced or created
+	 */
+	private void roll() throws IOException {
+		activeWriter.force(true);
+		activeWriter.close();
+		Segment next = createSegment(active.id + 1);
+		activeWriter = FileChannel.open(next.path, StandardOpenOption.WRITE);
+		active = next;
+		log.info("Started pack segment [{}].", next.path.getFileName());
+	}
+
+	/**
+	 * @param id number of the segment
+	 * @return the new, empty segment
+	 * @throws IOException if the segment cannot be created
+	 */
+	private Segment createSegment(final long id) throws IOException {
+		Path path = location.resolve(String.format("%012d%s", id, SEGMENT_SUFFIX));
+		Files.createFile(path);
+		Segment segment = new Segment(id, path);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Write buffers at a position of the active segment, all of them.
+	 * 
+	 * @param buffers  buffers to write
+	 * @param position where to write them
+	 * @throws IOException if they cannot be written
+	 */
+	private void writeFully(final ByteBuffer[] buffers, final long position) throws IOException {
+		activeWriter.position(position);
+		int first = 0;
+		while (first < buffers.length) {
+			activeWriter.write(buffers, first, buffers.length - first);
+			while (first < buffers.length && !buffers[first].hasRemaining()) {
+				first++;
+			}
+		}
+	}
+
+	/**
+	 * Read where the files in a segment are.
+	 * 
+	 * @param segment   segment to read
+	 * @param verify    true to check every record whole, and cut the segment
+	 *                  short at the first that is not
+	 * @param removedAt sequence number of the latest removal of each name seen
+	 *                  so far; updated
+	 * @throws IOException if the segment cannot be read
+	 */
+	private void recover(final Segment segment, final boolean verify, final Map<String, Long> removedAt)
+			throws IOException {
+		long length = Files.size(segment.path);
+		long position = 0;
+		while (position < length) {
+			Location here = null;
+			String name = null;
+			byte type = 0;
+			if (position + HEADER_SIZE <= length) {
+				ByteBuffer header = readHeader(segment, position);
+				type = header.get(4);
+				int nameLength = Short.toUnsignedInt(header.getShort(21));
+				int dataLength = header.getInt(23);
+				if ((type == TYPE_PUT || type == TYPE_DELETE) && dataLength >= 0
+						&& position + HEADER_SIZE + nameLength + dataLength <= length) {
+					here = new Location(segment, position, header.getLong(5), header.getLong(13), nameLength,
+							dataLength);
+					name = readName(segment, position, nameLength);
+					if (verify && !isWhole(segment, here, header.getInt(0))) {
+						here = null;
+					}
+				}
+			}
+			if (here == null) {
+				log.warn("Pack segment [{}] is cut short at {} of {} bytes, after a record not written whole.",
+						segment.path, position, length);
+				if (verify) {
+					try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+						channel.truncate(position);
+					}
+				}
+				break;
+			}
+			nextSequence = Math.max(nextSequence, here.sequence + 1);
+			Location current = entries.get(name);
+			long latest = Math.max(current == null ? 0 : current.sequence, removedAt.getOrDefault(name, 0L));
+			if (here.sequence > latest) {
+				if (type == TYPE_PUT) {
+					entries.put(name, here);
+				} else {
+					entries.remove(name);
+					removedAt.put(name, here.sequence);
+				}
+			}
+			position += here.getRecordLength();
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * @param segment  segment holding the record
+	 * @param location where the record is
+	 * @param crc      CRC32 the record was written with
+	 * @return true if the rest of the record matches the CRC32
+	 * @throws IOException if the record cannot be read
+	 */
+	private static boolean isWhole(final Segment segment, final Location location, final int crc)
+			throws IOException {
+		ByteBuffer rest = ByteBuffer.allocate((int) location.getRecordLength() - 4);
+		readFully(segment, rest, location.offset + 4);
+		CRC32 checksum = new CRC32();
+		checksum.update(rest.flip());
+		return (int) checksum.getValue() == crc;
+	}
+
+	/**
+	 * @param segment  segment to read
+	 * @param position where the record starts
+	 * @return header of the record
+	 * @throws IOException if the header cannot be read
+	 */
+	private static ByteBuffer readHeader(final Segment segment, final long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(segment, header, position);
+		return header;
+	}
+
+	/**
+	 * @param segment    segment to read
+	 * @param position   where the record starts
+	 * @param nameLength length of the name in bytes
+	 * @return name in the record
+	 * @throws IOException if the name cannot be read
+	 */
+	private static String readName(final Segment segment, final long position, final int nameLength)
+			throws IOException {
+		ByteBuffer name = ByteBuffer.allocate(nameLength);
+		readFully(segment, name, position + HEADER_SIZE);
+		return new String(name.array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Fill a buffer from a segment.
+	 * 
+	 * @param segment  segment to read
+	 * @param buffer   buffer to fill
+	 * @param position where to read from
+	 * @throws IOException if the segment ends first, or cannot be read
+	 */
+	private static void readFully(final Segment segment, final ByteBuffer buffer, final long position)
+			throws IOException {
+		long at = position;
+		while (buffer.hasRemaining()) {
+			int read = segment.read(buffer, at);
+			if (read < 0) {
+				throw new EOFException("Pack segment " + segment.path + " ends before " + (at + buffer.remaining()));
+			}
+			at += read;
+		}
+	}
+
+	/**
+	 * @param path path to a segment
+	 * @return number of the segment
+	 */
+	private static long segmentId(final Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * One segment file.
+	 */
+	private static final class Segment {
+
+		/**
+		 * Number of the segment.
+		 */
+		private final long id;
+
+		/**
+		 * Path to the segment.
+		 */
+		private final Path path;
+
+		/**
+		 * Bytes of whole records. Only changed by the writer, and on open.
+		 */
+		private volatile long size;
+
+		/**
+		 * Bytes of records replaced or removed since.
+		 */
+		private final AtomicLong deadBytes = new AtomicLong();
+
+		/**
+		 * Channel for reads; opened again if a read is interrupted, as that closes
+		 * it for every reader. Null until first read.
+		 */
+		private volatile FileChannel reader;
+
+		/**
+		 * True once the segment has been compacted away or the store closed.
+		 */
+		private volatile boolean retired;
+
+		/**
+		 * @param id   number of the segment
+		 * @param path path to the segment
+		 */
+		Segment(final long id, final Path path) {
+			this.id = id;
+			this.path = path;
+		}
+
+		/**
+		 * @param buffer   buffer to read into
+		 * @param position where to read from
+		 * @return bytes read, or -1 at the end of the segment
+		 * @throws ClosedChannelException if the segment has been retired
+		 * @throws IOException            if the segment cannot be read
+		 */
+		int read(final ByteBuffer buffer, final long position) throws IOException {
+			while (true) {
+				FileChannel channel = reader;
+				try {
+					if (channel == null) {
+						channel = reopen(null);
+					}
+					return channel.read(buffer, position);
+				} catch (ClosedByInterruptException e) {
+					reopen(channel);
+					throw e;
+				} catch (ClosedChannelException e) {
+					reopen(channel);
+				}
+			}
+		}
+
+		/**
+		 * @param closed channel found closed, or null if none was open
+		 * @return an open channel
+		 * @throws ClosedChannelException if the segment has been retired
+		 * @throws IOException            if the segment cannot be opened
+		 */
+		private synchronized FileChannel reopen(final FileChannel closed) throws IOException {
+			if (retired) {
+				throw new ClosedChannelException();
+			}
+			if (reader == closed) {
+				reader = FileChannel.open(path, StandardOpenOption.READ);
+			}
+			return reader;
+		}
+
+		/**
+		 * Stop all reads; those under way find the file again by name.
+		 */
+		synchronized void retire() {
+			retired = true;
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					log.warn("Failed to close pack segment [{}].", path, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where a record is.
+	 */
+	@Value
+	static class Location {
+
+		/**
+		 * Segment holding the record.
+		 */
+		private final Segment segment;
+
+		/**
+		 * Where the record starts in the segment.
+		 */
+		private final long offset;
+
+		/**
+		 * Sequence number of the record.
+		 */
+		private final long sequence;
+
+		/**
+		 * When the record was first written, in milliseconds since the epoch.
+		 */
+		private final long lastModified;
+
+		/**
+		 * Length of the name in bytes.
+		 */
+		private final int nameLength;
+
+		/**
+		 * Length of the data in bytes.
+		 */
+		private final int dataLength;
+
+		/**
+		 * @return where the data starts in the segment
+		 */
+		long getDataOffset() {
+			return offset + HEADER_SIZE + nameLength;
+		}
+
+		/**
+		 * @return length of the whole record in bytes
+		 */
+		long getRecordLength() {
+			return HEADER_SIZE + nameLength + (long) dataLength;
+		}
+	}
+
+	/**
+	 * A record to append.
+	 */
+	static final class Record {
+
+		/**
+		 * {@link #TYPE_PUT} or {@link #TYPE_DELETE}.
+		 */
+		private final byte type;
+
+		/**
+		 * File name in UTF-8.
+		 */
+		private final byte[] name;
+
+		/**
+		 * Data of the file; empty for a removal.
+		 */
+		private final byte[] data;
+
+		/**
+		 * When the record was first written, in milliseconds since the epoch.
+		 */
+		private final long lastModified;
+
+		/**
+		 * Record this is a copy of, made by compaction; null for a new record.
+		 */
+		private final Location copyOf;
+
+		/**
+		 * @param type         {@link #TYPE_PUT} or {@link #TYPE_DELETE}
+		 * @param name         file name
+		 * @param data         data of the file
+		 * @param sequence     sequence number of the record copied; ignored for a
+		 *                     new record
+		 * @param lastModified when the record was first written
+		 * @param copyOf       record this is a copy of; null for a new record
+		 */
+		private Record(final byte type, final String name, final byte[] data, final long sequence,
+				final long lastModified, final Location copyOf) {
+			this.type = type;
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.data = data;
+			this.lastModified = lastModified;
+			this.copyOf = copyOf;
+			if (this.name.length > 0xffff) {
+				throw new IllegalArgumentException("File name too long to pack: " + name);
+			}
+		}
+
+		/**
+		 * @param name file name
+		 * @param data data of the file
+		 * @return record storing the file
+		 */
+		static Record put(final String name, final byte[] data) {
+			return new Record(TYPE_PUT, name, data, 0, System.currentTimeMillis(), null);
+		}
+
+		/**
+		 * @param name file name
+		 * @return record removing the file
+		 */
+		static Record delete(final String name) {
+			return new Record(TYPE_DELETE, name, new byte[0], 0, System.currentTimeMillis(), null);
+		}
+
+		/**
+		 * @return file name
+		 */
+		String getName() {
+			return new String(name, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @param sequence sequence number to write
+		 * @return the whole record, ready to write
+		 */
+		private ByteBuffer encode(final long sequence) {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + name.length + data.length);
+			buffer.position(4);
+			buffer.put(type).putLong(sequence).putLong(lastModified).putShort((short) name.length)
+					.putInt(data.length).put(name).put(data);
+			CRC32 checksum = new CRC32();
+			checksum.update(buffer.array(), 4, buffer.capacity() - 4);
+			buffer.putInt(0, (int) checksum.getValue());
+			return buffer.flip();
+		}
+	}
+
+	/**
+	 * Records appended together, and what became of them.
+	 */
+	private static final class Append {
+
+		/**
+		 * Records to append.
+		 */
+		private final List<Record> records;
+
+		/**
+		 * Where each record was written, once it has been.
+		 */
+		private final CompletableFuture<List<Location>> done = new CompletableFuture<>();
+
+		/**
+		 * @param records records to append
+		 */
+		Append(final List<Record> records) {
+			this.records = records;
+		}
+	}
+
+	/**
+	 * The data of a stored file, read by positional reads of its segment. If the
+	 * segment is compacted away part way through, the same record is found again
+	 * where it was copied to.
+	 */
+	private final class SegmentInputStream extends InputStream {
+
+		/**
+		 * File name.
+		 */
+		private final String name;
+
+		/**
+		 * Where the file is.
+		 */
+		private Location location;
+
+		/**
+		 * Bytes of the data read or skipped so far.
+		 */
+		private long read;
+
+		/**
+		 * @param name     file name
+		 * @param location where the file is
+		 */
+		SegmentInputStream(final String name, final Location location) {
+			this.name = name;
+			this.location = location;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] target, final int offset, final int length) throws IOException {
+			long remaining = location.dataLength - read;
+			if (length == 0) {
+				return 0;
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(target, offset, (int) Math.min(length, remaining));
+			while (true) {
+				try {
+					int got = location.segment.read(buffer, location.getDataOffset() + read);
+					if (got < 0) {
+						throw new EOFException("Pack segment " + location.segment.path + " ends inside " + name);
+					}
+					read += got;
+					return got;
+				} catch (ClosedByInterruptException e) {
+					throw e;
+				} catch (ClosedChannelException e) {
+					Location moved = entries.get(name);
+					if (moved == null || moved.sequence != location.sequence) {
+						throw new IOException("File was removed while it was read: " + name, e);
+					}
+					location = moved;
+				}
+			}
+		}
+
+		@Override
+		public long skip(final long n) {
+			long skipped = Math.max(0, Math.min(n, location.dataLength - read));
+			read += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, location.dataLength - read);
+		}
+	}
+
+	/**
+	 * A stored file, as a resource. Knows its length and modification time
+	 * without a system call. Its segment may be compacted away once it has been
+	 * found; read it through {@link #getInputStream()} to find it again.
+	 */
+	final class PackedFile extends AbstractResource implements StoredFileRegion {
+
+		/**
+		 * File name.
+		 */
+		private final String name;
+
+		/**
+		 * Where the file is.
+		 */
+		private final Location location;
+
+		/**
+		 * @param name     file name
+		 * @param location where the file is
+		 */
+		PackedFile(final String name, final Location location) {
+			this.name = name;
+			this.location = location;
+		}
+
+		@Override
+		public String getDescription() {
+			return "Packed file [" + name + "]";
+		}
+
+		@Override
+		public String getFilename() {
+			return name;
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public long contentLength() {
+			return location.dataLength;
+		}
+
+		@Override
+		public long lastModified() {
+			return location.lastModified;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new SegmentInputStream(name, location);
+		}
+
+		@Override
+		public Path getRegionFile() {
+			return location.segment.path;
+		}
+
+		@Override
+		public long getRegionOffset() {
+			return location.getDataOffset();
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.springframework.data.domain.PageRequest;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Queries every stored file with an XPath expression, handing back matches as
+ * they are found.
+ * 
+ * <b>Implementation note</b>: metadata is read a page at a time by ID, and each
+ * page is split between the threads of a fork/join pool down to single files,
+ * so one large file does not hold up the rest of its page. XPath needs the
+ * whole document in memory, so files larger than a set size are reported
+ * rather than parsed. Matches pass through a bounded queue to the caller, so a
+ * slow client holds back the scan rather than filling the heap, and a client
+ * that goes away, or a query that reaches its most matches, stops the scan.
+ * Workers wait for a slow client through {@link ForkJoinPool#managedBlock}, so
+ * the pool starts spare threads, up to {@link #MAX_SPARE_THREADS}, for other
+ * queries rather than stalling them all.
+ */
+@Log4j2
+final class QueryScanner {
+
+	/**
+	 * Rows of metadata read at once.
+	 */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * Matches waiting for the caller at once.
+	 */
+	private static final int QUEUE_SIZE = 256;
+
+	/**
+	 * Most threads started to stand in for workers blocked on a slow caller.
+	 */
+	private static final int MAX_SPARE_THREADS = 64;
+
+	/**
+	 * Put on the queue once every file has been queried.
+	 */
+	private static final XmlQueryMatch END = XmlQueryMatch.failed("", "");
+
+	/**
+	 * Metadata of the files to query.
+	 */
+	private final XmlDocMetadataRepository xmlDocRepo;
+
+	/**
+	 * Opens a stored file.
+	 */
+	private final StoredFileOpener opener;
+
+	/**
+	 * Threads that query files.
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Most matches handed back for one query.
+	 */
+	private final int maxMatches;
+
+	/**
+	 * Largest file, before compression, that is queried.
+	 */
+	private final long maxDocumentSize;
+
+	/**
+	 * Longest snippet of a match, in characters.
+	 */
+	private final int snippetLength;
+
+	/**
+	 * Parser of each thread, as parsers are not thread safe.
+	 */
+	private final ThreadLocal<DocumentBuilder> parsers;
+
+	/**
+	 * Writer of snippets for each thread, as transformers are not thread safe.
+	 */
+	private final ThreadLocal<Transformer> serializers;
+
+	/**
+	 * @param xmlDocRepo      metadata of the files to query
+	 * @param opener          opens a stored file
+	 * @param threads         files queried at once; 0 or less for one per
+	 *                        processor
+	 * @param maxMatches      most matches handed back for one query
+	 * @param maxDocumentSize largest file, before compression, that is queried
+	 * @param snippetLength   longest snippet of a match, in characters
+	 */
+	QueryScanner(final XmlDocMetadataRepository xmlDocRepo, final StoredFileOpener opener,
+			final int threads, final int maxMatches, final long maxDocumentSize, final int snippetLength) {
+		this.xmlDocRepo = xmlDocRepo;
+		this.opener = opener;
+		this.maxMatches = maxMatches;
+		this.maxDocumentSize = maxDocumentSize;
+		this.snippetLength = snippetLength;
+		int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		// Saturated: a worker blocked beyond the spares just waits, rather than failing the query.
+		this.pool = new ForkJoinPool(parallelism, QueryScanner::newThread, null, false, 0,
+				parallelism + MAX_SPARE_THREADS, 1, saturated -> true, 60, TimeUnit.SECONDS);
+		DocumentBuilderFactory parserFactory = newParserFactory();
+		this.parsers = ThreadLocal.withInitial(() -> newParser(parserFactory));
+		TransformerFactory serializerFactory = TransformerFactory.newInstance();
+		serializerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+		serializerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+		this.serializers = ThreadLocal.withInitial(() -> newSerializer(serializerFactory));
+	}
+
+	/**
+	 * @param pool pool the thread is for
+	 * @return a named thread
+	 */
+	private static ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		thread.setName("xml-query-" + thread.getPoolIndex());
+		return thread;
+	}
+
+	/**
+	 * @return a factory of parsers that will not read anything outside the file
+	 */
+	private static DocumentBuilderFactory newParserFactory() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Unable to configure XML parser.", e);
+		}
+		factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+		factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+		return factory;
+	}
+
+	/**
+	 * @param factory makes the parser
+	 * @return a parser that throws on any error, rather than printing it
+	 */
+	private static DocumentBuilder newParser(final DocumentBuilderFactory factory) {
+		try {
+			DocumentBuilder parser = factory.newDocumentBuilder();
+			parser.setErrorHandler(new DefaultHandler());
+			return parser;
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Unable to create XML parser.", e);
+		}
+	}
+
+	/**
+	 * @param factory makes the transformer
+	 * @return a transformer that writes a node as XML, without a declaration
+	 */
+	private static Transformer newSerializer(final TransformerFactory factory) {
+		try {
+			Transformer serializer = factory.newTransformer();
+			serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			return serializer;
+		} catch (TransformerConfigurationException e) {
+			throw new IllegalStateException("Unable to create XML serializer.", e);
+		}
+	}
+
+	/**
+	 * Stop the threads that query files.
+	 */
+	void stop() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Query every stored file, handing back matches, and files that could not be
+	 * queried, as they are found. Returns once every file has been queried, the
+	 * most matches have been handed back, or the consumer throws.
+	 * 
+	 * @param query    the query
+	 * @param consumer takes each match, on the calling thread
+	 * @return matches handed back
+	 */
+	int scan(final XmlQuery query, final Consumer<XmlQueryMatch> consumer) {
+		BlockingQueue<XmlQueryMatch> found = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		AtomicBoolean stopped = new AtomicBoolean();
+		ForkJoinTask<Void> task = pool.submit(new ScanPages(query, found, stopped));
+		int matches = 0;
+		try {
+			while (matches < maxMatches) {
+				XmlQueryMatch match = found.take();
+				if (match == END) {
+					task.join();
+					break;
+				}
+				consumer.accept(match);
+				if (match.isMatch()) {
+					matches++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			stopped.set(true);
+			found.clear();
+		}
+		log.debug("Query {} matched {} nodes.", query.getXpath(), matches);
+		return matches;
+	}
+
+	/**
+	 * Query one stored file.
+	 * 
+	 * @param query   the query
+	 * @param doc     metadata of the file
+	 * @param emit    takes each match
+	 * @param stopped true once the caller wants no more matches
+	 */
+	private void query(final XmlQuery query, final XmlDocMetadata doc, final Consumer<XmlQueryMatch> emit,
+			final AtomicBoolean stopped) {
+		String filename = doc.getFilename();
+		if (doc.getSize() > maxDocumentSize) {
+			emit.accept(XmlQueryMatch.failed(filename,
+					"File is too large to query: " + doc.getSize() + " bytes, more than " + maxDocumentSize + "."));
+			return;
+		}
+		try (InputStream xml = StorageCompression.decompress(opener.open(doc), doc.getEncoding())) {
+			DocumentBuilder parser = parsers.get();
+			Document document;
+			try {
+				document = parser.parse(xml);
+			} finally {
+				parser.reset();
+			}
+			NodeList nodes = query.evaluate(document);
+			for (int i = 0; i < nodes.getLength() && !stopped.get(); i++) {
+				emit.accept(XmlQueryMatch.match(filename, snippet(nodes.item(i))));
+			}
+		} catch (NoSuchFileException e) {
+			emit.accept(XmlQueryMatch.failed(filename, "Stored file is missing."));
+		} catch (SAXException | IOException | XPathExpressionException e) {
+			emit.accept(XmlQueryMatch.failed(filename, e.getMessage()));
+		}
+	}
+
+	/**
+	 * @param node a matched node
+	 * @return the node as XML, or its value, cut short if it is long
+	 */
+	private String snippet(final Node node) {
+		String text;
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			SnippetWriter writer = new SnippetWriter(snippetLength + 1);
+			try {
+				serializers.get().transform(new DOMSource(node), new StreamResult(writer));
+			} catch (TransformerException e) {
+				// Stopped once the snippet was long enough.
+			}
+			text = writer.toString();
+			break;
+		case Node.ATTRIBUTE_NODE:
+			text = node.getNodeName() + "=\"" + node.getNodeValue() + "\"";
+			break;
+		default:
+			text = node.getTextContent() == null ? node.getNodeName() : node.getTextContent();
+			break;
+		}
+		return text.length() > snippetLength ? text.substring(0, snippetLength) + "..." : text;
+	}
+
+	/**
+	 * Reads metadata a page at a time, querying the files of each page in
+	 * parallel, then marks the end of the matches.
+	 */
+	private final class ScanPages extends RecursiveAction {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The query.
+		 */
+		private final transient XmlQuery query;
+
+		/**
+		 * Matches waiting for the caller.
+		 */
+		private final transient BlockingQueue<XmlQueryMatch> found;
+
+		/**
+		 * True once the caller wants no more matches.
+		 */
+		private final AtomicBoolean stopped;
+
+		/**
+		 * @param query   the query
+		 * @param found   matches waiting for the caller
+		 * @param stopped true once the caller wants no more matches
+		 */
+		ScanPages(final XmlQuery query, final BlockingQueue<XmlQueryMatch> found, final AtomicBoolean stopped) {
+			this.query = query;
+			this.found = found;
+			this.stopped = stopped;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				int after = 0;
+				while (!stopped.get()) {
+					List<XmlDocMetadata> page = xmlDocRepo.findByIdGreaterThanOrderByIdAsc(after,
+							PageRequest.of(0, PAGE_SIZE));
+					new ScanFiles(query, page, 0, page.size(), this::emit, stopped).invoke();
+					if (page.size() < PAGE_SIZE) {
+						break;
+					}
+					after = page.get(page.size() - 1).getId();
+				}
+			} finally {
+				emit(END);
+			}
+		}
+
+		/**
+		 * Wait for room for a match, unless the caller wants no more. The wait is
+		 * managed, so the pool can start a spare thread for other queries while
+		 * this worker waits on a slow caller.
+		 * 
+		 * @param match a match, or why a file could not be queried
+		 */
+		private void emit(final XmlQueryMatch match) {
+			try {
+				ForkJoinPool.managedBlock(new QueueSpace(match));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped.set(true);
+			}
+		}
+
+		/**
+		 * Waits for room on the queue for one match.
+		 */
+		private final class QueueSpace implements ForkJoinPool.ManagedBlocker {
+
+			/**
+			 * Match to queue.
+			 */
+			private final XmlQueryMatch match;
+
+			/**
+			 * True once the match is queued, or the caller wants no more.
+			 */
+			private boolean done;
+
+			/**
+			 * @param match match to queue
+			 */
+			QueueSpace(final XmlQueryMatch match) {
+				this.match = match;
+			}
+
+			@Override
+			public boolean block() throws InterruptedException {
+				while (!stopped.get() && !found.offer(match, 100, TimeUnit.MILLISECONDS)) {
+					// Caller is still taking matches, just slowly.
+				}
+				done = true;
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				if (!done && (stopped.get() || found.offer(match))) {
+					done = true;
+				}
+				return done;
+			}
+		}
+	}
+
+	/**
+	 * Queries a run of files from a page of metadata, splitting the run in half
+	 * until it is a single file.
+	 */
+	private final class ScanFiles extends RecursiveAction {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The query.
+		 */
+		private final transient XmlQuery query;
+
+		/**
+		 * Metadata of the files.
+		 */
+		private final transient List<XmlDocMetadata> page;
+
+		/**
+		 * Index of the first file of the run.
+		 */
+		private final int from;
+
+		/**
+		 * Index after the last file of the run.
+		 */
+		private final int to;
+
+		/**
+		 * Takes each match.
+		 */
+		private final transient Consumer<XmlQueryMatch> emit;
+
+		/**
+		 * True once the caller wants no more matches.
+		 */
+		private final AtomicBoolean stopped;
+
+		/**
+		 * @param query   the query
+		 * @param page    metadata of the files
+		 * @param from    index of the first file of the run
+		 * @param to      index after the last file of the run
+		 * @param emit    takes each match
+		 * @param stopped true once the caller wants no more matches
+		 */
+		ScanFiles(final XmlQuery query, final List<XmlDocMetadata> page, final int from, final int to,
+				final Consumer<XmlQueryMatch> emit, final AtomicBoolean stopped) {
+			this.query = query;
+			this.page = page;
+			this.from = from;
+			this.to = to;
+			this.emit = emit;
+			this.stopped = stopped;
+		}
+
+		@Override
+		protected void compute() {
+			if (stopped.get()) {
+				return;
+			}
+			if (to - from <= 1) {
+				if (from < to) {
+					query(query, page.get(from), emit, stopped);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ScanFiles(query, page, from, middle, emit, stopped),
+					new ScanFiles(query, page, middle, to, emit, stopped));
+		}
+	}
+
+	/**
+	 * Keeps the start of what is written to it, and fails once it has enough,
+	 * so a large element is not written in full only to be cut short.
+	 */
+	private static final class SnippetWriter extends Writer {
+
+		/**
+		 * What has been written.
+		 */
+		private final StringBuilder text;
+
+		/**
+		 * Most characters kept.
+		 */
+		private final int limit;
+
+		/**
+		 * @param limit most characters kept
+		 */
+		SnippetWriter(final int limit) {
+			this.text = new StringBuilder(Math.min(limit, 1024));
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(final char[] buffer, final int offset, final int length) throws IOException {
+			int kept = Math.min(length, limit - text.length());
+			text.append(buffer, offset, kept);
+			if (text.length() >= limit) {
+				throw new IOException("Snippet is long enough.");
+			}
+		}
+
+		@Override
+		public void flush() {
+			// Nothing is buffered.
+		}
+
+		@Override
+		public void close() {
+			// Nothing to release.
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.rob.ceuploadxml.service;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.rob.ceuploadxml.validator.SchemaKey;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Progress of checking stored files again.
+ */
+@Value
+@Builder
+public class RevalidationStatus {
+
+	/**
+	 * True while files are being checked.
+	 */
+	private final boolean running;
+
+	/**
+	 * True if the latest check was cancelled before it finished.
+	 */
+	private final boolean cancelled;
+
+	/**
+	 * Schema files are checked against, or null if each is checked against the
+	 * latest schema for its root namespace.
+	 */
+	private final SchemaKey schema;
+
+	/**
+	 * Files stored when the check started.
+	 */
+	private final long filesTotal;
+
+	/**
+	 * Files checked so far, whatever the outcome.
+	 */
+	private final long filesChecked;
+
+	/**
+	 * Files that are not well formed, or not valid against their schema.
+	 */
+	private final long filesInvalid;
+
+	/**
+	 * Files that could not be read.
+	 */
+	private final long filesFailed;
+
+	/**
+	 * Stored bytes of every file, when the check started.
+	 */
+	private final long bytesTotal;
+
+	/**
+	 * Stored bytes read so far.
+	 */
+	private final long bytesRead;
+
+	/**
+	 * The first few invalid or failed files, each with why.
+	 */
+	private final List<String> failures;
+
+	/**
+	 * When the latest check started, or null if none has.
+	 */
+	private final Instant startedAt;
+
+	/**
+	 * When the latest check finished, or null if it has not.
+	 */
+	private final Instant finishedAt;
+
+	/**
+	 * @return fraction of the stored bytes read so far, from 0 to 1
+	 */
+	public double getProgress() {
+		return bytesTotal == 0 ? (running ? 0 : 1) : Math.min(1, (double) bytesRead / bytesTotal);
+	}
+
+}
@@ -0,0 +1,347 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.xml.sax.SAXException;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.validator.SchemaKey;
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Checks every stored file again, such as after a schema has changed, while
+ * the service stays up.
+ * 
+ * <b>Implementation note</b>: files are streamed into the parser as they are
+ * opened by the storage engine, such as through memory mapped regions, so heap
+ * use does not grow with file size and a
+ * check of a huge archive is bound by how fast the disk can be read. Metadata
+ * is read a page at a time by ID, so no database cursor is held open for the
+ * length of the check. Cancelling stops each file being read at its next read,
+ * rather than after it has been read to the end.
+ */
+@Log4j2
+final class Revalidator {
+
+	/**
+	 * Rows of metadata read at once.
+	 */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * Most invalid or failed files listed in the status.
+	 */
+	private static final int MAX_FAILURES_LISTED = 100;
+
+	/**
+	 * Metadata of the files to check.
+	 */
+	private final XmlDocMetadataRepository xmlDocRepo;
+
+	/**
+	 * Opens a stored file.
+	 */
+	private final StoredFileOpener opener;
+
+	/**
+	 * Checks files.
+	 */
+	private final XmlValidator xmlValidator;
+
+	/**
+	 * Files checked at once.
+	 */
+	private final int threads;
+
+	/**
+	 * Files stored when the check started.
+	 */
+	private final AtomicLong total = new AtomicLong();
+
+	/**
+	 * Files checked so far.
+	 */
+	private final AtomicLong checked = new AtomicLong();
+
+	/**
+	 * Files found invalid.
+	 */
+	private final AtomicLong invalid = new AtomicLong();
+
+	/**
+	 * Files that could not be read.
+	 */
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Stored bytes of every file, when the check started.
+	 */
+	private final AtomicLong bytesTotal = new AtomicLong();
+
+	/**
+	 * Stored bytes read so far.
+	 */
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/**
+	 * The first invalid or failed files, each with why. Guarded by itself.
+	 */
+	private final List<String> failures = new ArrayList<>();
+
+	/**
+	 * True while files are being checked.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Set to stop a check early.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Schema files are checked against, or null to choose by root namespace.
+	 */
+	private volatile SchemaKey schema;
+
+	/**
+	 * When the latest check started.
+	 */
+	private volatile Instant startedAt;
+
+	/**
+	 * When the latest check finished.
+	 */
+	private volatile Instant finishedAt;
+
+	/**
+	 * @param xmlDocRepo   metadata of the files to check
+	 * @param opener       opens a stored file
+	 * @param xmlValidator checks files
+	 * @param threads      files checked at once
+	 */
+	Revalidator(final XmlDocMetadataRepository xmlDocRepo, final StoredFileOpener opener,
+			final XmlValidator xmlValidator, final int threads) {
+		this.xmlDocRepo = xmlDocRepo;
+		this.opener = opener;
+		this.xmlValidator = xmlValidator;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Start checking files in the background, unless that is already happening.
+	 * 
+	 * @param checkAgainst schema to check every file against, or null to check
+	 *                     each against the latest schema for its root namespace
+	 * @return progress
+	 */
+	synchronized RevalidationStatus start(final SchemaKey checkAgainst) {
+		if (!running) {
+			total.set(0);
+			checked.set(0);
+			invalid.set(0);
+			failed.set(0);
+			bytesTotal.set(0);
+			bytesRead.set(0);
+			synchronized (failures) {
+				failures.clear();
+			}
+			schema = checkAgainst;
+			startedAt = Instant.now();
+			finishedAt = null;
+			stopped = false;
+			running = true;
+			Thread thread = new Thread(this::run, "revalidator");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return getStatus();
+	}
+
+	/**
+	 * Stop a check early, if one is running.
+	 */
+	void stop() {
+		if (running) {
+			stopped = true;
+		}
+	}
+
+	/**
+	 * @return progress
+	 */
+	RevalidationStatus getStatus() {
+		List<String> listed;
+		synchronized (failures) {
+			listed = Collections.unmodifiableList(new ArrayList<>(failures));
+		}
+		return RevalidationStatus.builder()//
+				.running(running)//
+				.cancelled(stopped)//
+				.schema(schema)//
+				.filesTotal(total.get())//
+				.filesChecked(checked.get())//
+				.filesInvalid(invalid.get())//
+				.filesFailed(failed.get())//
+				.bytesTotal(bytesTotal.get())//
+				.bytesRead(bytesRead.get())//
+				.failures(listed)//
+				.startedAt(startedAt)//
+				.finishedAt(finishedAt)//
+				.build();
+	}
+
+	/**
+	 * Page through the metadata, handing each file to a pool of threads to check.
+	 */
+	private void run() {
+		log.info("Checking stored files again, against schema {}.", schema);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * 4), new CustomizableThreadFactory("revalidator-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			total.set(xmlDocRepo.count());
+			bytesTotal.set(xmlDocRepo.sumStoredSize());
+			int after = 0;
+			while (!stopped) {
+				List<XmlDocMetadata> page = xmlDocRepo.findByIdGreaterThanOrderByIdAsc(after,
+						PageRequest.of(0, PAGE_SIZE));
+				for (XmlDocMetadata doc : page) {
+					if (stopped) {
+						break;
+					}
+					pool.execute(() -> revalidate(doc));
+				}
+				if (page.size() < PAGE_SIZE) {
+					break;
+				}
+				after = page.get(page.size() - 1).getId();
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to read metadata of stored files.", e);
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finishedAt = Instant.now();
+			running = false;
+			log.info("Finished checking stored files again: {}", getStatus());
+		}
+	}
+
+	/**
+	 * Check one stored file.
+	 * 
+	 * @param doc metadata of the file
+	 */
+	private void revalidate(final XmlDocMetadata doc) {
+		if (stopped) {
+			return;
+		}
+		try (InputStream stored = new ProgressInputStream(opener.open(doc));
+				InputStream xml = StorageCompression.decompress(stored, doc.getEncoding())) {
+			xmlValidator.checkValid(xml, schema);
+		} catch (SAXException e) {
+			invalid.incrementAndGet();
+			addFailure(doc, e.getMessage());
+		} catch (InterruptedIOException e) {
+			// Cancelled part way through; the file is neither good nor bad.
+			return;
+		} catch (NoSuchFileException e) {
+			failed.incrementAndGet();
+			addFailure(doc, "Stored file is missing: " + e.getFile());
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			addFailure(doc, e.toString());
+		} catch (RuntimeException e) {
+			// One bad file must not stop the check, whichever thread it runs on.
+			log.error("Failed to check stored file {}.", doc.getFilename(), e);
+			failed.incrementAndGet();
+			addFailure(doc, e.toString());
+		}
+		checked.incrementAndGet();
+	}
+
+	/**
+	 * @param doc    metadata of a file that is invalid or could not be read
+	 * @param reason why
+	 */
+	private void addFailure(final XmlDocMetadata doc, final String reason) {
+		log.warn("Stored file {} failed its check: {}", doc.getFilename(), reason);
+		synchronized (failures) {
+			if (failures.size() < MAX_FAILURES_LISTED) {
+				failures.add(doc.getFilename() + ": " + reason);
+			}
+		}
+	}
+
+	/**
+	 * Counts stored bytes read towards the progress of the check, and stops
+	 * reading once the check is cancelled.
+	 */
+	private final class ProgressInputStream extends FilterInputStream {
+
+		/**
+		 * @param source stream to read from
+		 */
+		ProgressInputStream(final InputStream source) {
+			super(source);
+		}
+
+		@Override
+		public int read() throws IOException {
+			failIfStopped();
+			int b = super.read();
+			if (b != -1) {
+				bytesRead.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			failIfStopped();
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				bytesRead.addAndGet(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			failIfStopped();
+			long skipped = super.skip(n);
+			bytesRead.addAndGet(skipped);
+			return skipped;
+		}
+
+		/**
+		 * @throws InterruptedIOException if the check has been cancelled
+		 */
+		private void failIfStopped() throws InterruptedIOException {
+			if (stopped) {
+				throw new InterruptedIOException("Check of stored files was cancelled.");
+			}
+		}
+	}
+}
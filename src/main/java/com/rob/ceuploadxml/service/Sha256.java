@@ -0,0 +1,47 @@
+package com.rob.ceuploadxml.service;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashing, as used for content hashes and shard folder names.
+ */
+final class Sha256 {
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private Sha256() {
+	}
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every JVM must support SHA-256.", e);
+		}
+	}
+
+	/**
+	 * @param digest digest that has been fed everything to hash
+	 * @return the hash as 64 lower case hex digits
+	 */
+	static String hex(final MessageDigest digest) {
+		return String.format("%064x", new BigInteger(1, digest.digest()));
+	}
+
+	/**
+	 * @param text text to hash
+	 * @return hash of the UTF-8 bytes of the text, as 64 lower case hex digits
+	 */
+	static String hex(final String text) {
+		MessageDigest digest = newDigest();
+		digest.update(text.getBytes(StandardCharsets.UTF_8));
+		return hex(digest);
+	}
+}
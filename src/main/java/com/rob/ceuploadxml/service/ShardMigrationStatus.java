@@ -0,0 +1,51 @@
+package com.rob.ceuploadxml.service;
+
+import java.time.Instant;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Progress of moving files from the flat layout into the sharded layout.
+ */
+@Value
+@Builder
+public class ShardMigrationStatus {
+
+	/**
+	 * True while files are being moved.
+	 */
+	private final boolean running;
+
+	/**
+	 * Files found in the flat layout so far.
+	 */
+	private final long filesFound;
+
+	/**
+	 * Files moved into the sharded layout.
+	 */
+	private final long filesMoved;
+
+	/**
+	 * Files left where they were: gone before they could be moved, already in
+	 * the sharded layout, or not stored files at all.
+	 */
+	private final long filesSkipped;
+
+	/**
+	 * Files that could not be moved.
+	 */
+	private final long filesFailed;
+
+	/**
+	 * When the latest migration started, or null if none has.
+	 */
+	private final Instant startedAt;
+
+	/**
+	 * When the latest migration finished, or null if it has not.
+	 */
+	private final Instant finishedAt;
+
+}
@@ -0,0 +1,203 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Moves files stored by name from the flat layout into the sharded layout,
+ * while the service stays up.
+ * 
+ * <b>Implementation note</b>: each file is moved under a reservation of its
+ * name, so it cannot be stored or deleted at the same time. It is first hard
+ * linked into place and only then removed from the flat layout, so it can be
+ * read from one place or the other at every moment. Reads look in the sharded
+ * layout first, then the flat layout, then the sharded layout again, so they
+ * never miss a file moved between two looks.
+ */
+@Log4j2
+final class ShardMigrator {
+
+	/**
+	 * Where files are stored.
+	 */
+	private final StorageLayout layout;
+
+	/**
+	 * File names in the middle of being changed.
+	 */
+	private final NameReservations reservations;
+
+	/**
+	 * Files moved at once.
+	 */
+	private final int threads;
+
+	/**
+	 * Files found in the flat layout so far.
+	 */
+	private final AtomicLong found = new AtomicLong();
+
+	/**
+	 * Files moved into the sharded layout.
+	 */
+	private final AtomicLong moved = new AtomicLong();
+
+	/**
+	 * Files left where they were.
+	 */
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Files that could not be moved.
+	 */
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * True while files are being moved.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Set to stop a migration early.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * When the latest migration started.
+	 */
+	private volatile Instant startedAt;
+
+	/**
+	 * When the latest migration finished.
+	 */
+	private volatile Instant finishedAt;
+
+	/**
+	 * @param layout       where files are stored; must be sharded
+	 * @param reservations file names in the middle of being changed
+	 * @param threads      files moved at once
+	 */
+	ShardMigrator(final StorageLayout layout, final NameReservations reservations, final int threads) {
+		this.layout = layout;
+		this.reservations = reservations;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Start moving files in the background, unless that is already happening.
+	 * 
+	 * @return progress
+	 */
+	synchronized ShardMigrationStatus start() {
+		if (!running) {
+			found.set(0);
+			moved.set(0);
+			skipped.set(0);
+			failed.set(0);
+			startedAt = Instant.now();
+			finishedAt = null;
+			stopped = false;
+			running = true;
+			Thread thread = new Thread(this::run, "shard-migrator");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return getStatus();
+	}
+
+	/**
+	 * Stop a migration early; files already moved stay moved.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return progress
+	 */
+	ShardMigrationStatus getStatus() {
+		return ShardMigrationStatus.builder()//
+				.running(running)//
+				.filesFound(found.get())//
+				.filesMoved(moved.get())//
+				.filesSkipped(skipped.get())//
+				.filesFailed(failed.get())//
+				.startedAt(startedAt)//
+				.finishedAt(finishedAt)//
+				.build();
+	}
+
+	/**
+	 * Walk the flat layout, handing each file to a pool of threads to move.
+	 */
+	private void run() {
+		log.info("Moving files under {} into the sharded layout.", layout.getRootLocation().toAbsolutePath());
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * 16), new CustomizableThreadFactory("shard-migrator-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		// A directory stream reads entries as it goes, so a huge folder is never listed all at once.
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(layout.getRootLocation(), Files::isRegularFile)) {
+			for (Path file : files) {
+				if (stopped) {
+					break;
+				}
+				found.incrementAndGet();
+				pool.execute(() -> migrate(file));
+			}
+		} catch (IOException | RuntimeException e) {
+			log.error("Failed to list files under {}.", layout.getRootLocation().toAbsolutePath(), e);
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finishedAt = Instant.now();
+			running = false;
+			log.info("Finished moving files into the sharded layout: {}", getStatus());
+		}
+	}
+
+	/**
+	 * Move one file from the flat layout into the sharded layout.
+	 * 
+	 * @param flatPath file in the flat layout
+	 */
+	private void migrate(final Path flatPath) {
+		String storedName = flatPath.getFileName().toString();
+		String filename = StorageLayout.filenameOf(storedName);
+		if (storedName.startsWith(".") || !filename.endsWith(".xml")) {
+			skipped.incrementAndGet();
+			return;
+		}
+		try (NameReservations.Reservation reservation = reservations.reserve(filename)) {
+			Path shardedPath = layout.filePath(filename, StorageLayout.encodingOf(storedName));
+			Files.createDirectories(shardedPath.getParent());
+			FileSystemXmlStorageService.moveNoReplace(flatPath, shardedPath);
+			moved.incrementAndGet();
+		} catch (NoSuchFileException e) {
+			log.debug("File {} went before it could be moved.", flatPath);
+			skipped.incrementAndGet();
+		} catch (FileAlreadyExistsException e) {
+			log.error("WARNING: not moving {}, as a different file is already at {}.", flatPath, e.getFile());
+			failed.incrementAndGet();
+		} catch (IOException | StorageException e) {
+			log.error("Failed to move {} into the sharded layout.", flatPath, e);
+			failed.incrementAndGet();
+		}
+	}
+}
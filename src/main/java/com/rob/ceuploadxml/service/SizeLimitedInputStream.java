@@ -0,0 +1,74 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that fails as soon as more than a set number of bytes have been
+ * read from it, so an upload of unknown size can be streamed without reading
+ * more than will be kept.
+ */
+public final class SizeLimitedInputStream extends FilterInputStream {
+
+	/**
+	 * Most bytes that can be read.
+	 */
+	private final long limit;
+
+	/**
+	 * Number of bytes read so far.
+	 */
+	private long count;
+
+	/**
+	 * @param source stream to read from
+	 * @param limit  most bytes that can be read
+	 */
+	public SizeLimitedInputStream(final InputStream source, final long limit) {
+		super(source);
+		this.limit = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+		// Ask for one byte past the limit at most, so going over is seen at once.
+		int read = super.read(buffer, offset, (int) Math.min(length, limit - count + 1));
+		if (read > 0) {
+			count(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		long skipped = super.skip(Math.min(n, limit - count + 1));
+		count(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * @param read number of bytes just read
+	 * @throws UploadTooLargeException if more than the limit has now been read
+	 */
+	private void count(final long read) throws UploadTooLargeException {
+		count += read;
+		if (count > limit) {
+			throw new UploadTooLargeException(limit);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How files are compressed when they are stored. Every codec writes gzip, so a
+ * stored file can be sent as is to any client that accepts
+ * <code>Content-Encoding: gzip</code>.
+ */
+public enum StorageCompression {
+
+	/**
+	 * Store files as they were uploaded.
+	 */
+	NONE(null, Deflater.NO_COMPRESSION),
+
+	/**
+	 * Gzip at the default level: a good balance of size and speed.
+	 */
+	GZIP(StorageCompression.GZIP_ENCODING, Deflater.DEFAULT_COMPRESSION),
+
+	/**
+	 * Gzip at the fastest level: several times faster to write than
+	 * {@link #GZIP}, for a somewhat bigger file.
+	 */
+	GZIP_FAST(StorageCompression.GZIP_ENCODING, Deflater.BEST_SPEED);
+
+	/**
+	 * Content encoding of gzip data.
+	 */
+	public static final String GZIP_ENCODING = "gzip";
+
+	/**
+	 * Buffer size for compressing and decompressing.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Content encoding of stored files, or null if they are stored as is.
+	 */
+	private final String encoding;
+
+	/**
+	 * Deflate level.
+	 */
+	private final int level;
+
+	/**
+	 * @param encoding content encoding of stored files, or null if they are stored
+	 *                 as is
+	 * @param level    deflate level
+	 */
+	StorageCompression(final String encoding, final int level) {
+		this.encoding = encoding;
+		this.level = level;
+	}
+
+	/**
+	 * @return content encoding of stored files, or null if they are stored as is
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @param out where stored bytes go
+	 * @return stream to write the original bytes to; closing it closes
+	 *         <code>out</code>
+	 * @throws IOException if the compressed header cannot be written
+	 */
+	public OutputStream compress(final OutputStream out) throws IOException {
+		if (encoding == null) {
+			return out;
+		}
+		return new GZIPOutputStream(out, BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	/**
+	 * @param stored   stored bytes
+	 * @param encoding content encoding the bytes were stored with, or null if they
+	 *                 were stored as is
+	 * @return stream of the original bytes
+	 * @throws IOException if the compressed header cannot be read
+	 */
+	public static InputStream decompress(final InputStream stored, final String encoding) throws IOException {
+		if (encoding == null) {
+			return stored;
+		}
+		if (!GZIP_ENCODING.equals(encoding)) {
+			throw new IOException("Unknown content encoding: " + encoding);
+		}
+		return new GZIPInputStream(stored, BUFFER_SIZE);
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.rob.ceuploadxml.service;
+
+/**
+ * Where the bytes of stored files are kept. Metadata is kept in the database
+ * either way.
+ */
+public enum StorageEngine {
+
+	/**
+	 * Each file in a file of its own, by {@link FileSystemXmlStorageService}: a
+	 * create and a rename per file, and with <code>storage.file-sync</code> two
+	 * syncs.
+	 */
+	FILES,
+
+	/**
+	 * Files appended to a few large segment files, by
+	 * {@link PackFileXmlStorageService}: far fewer files and opens when most
+	 * files are small, and with <code>storage.pack-sync</code> one sync per write
+	 * shared by every file in it.
+	 */
+	PACK;
+}
@@ -0,0 +1,24 @@
+package com.rob.ceuploadxml.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Details of an exception when a file is larger than can be stored.
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public final class StorageFileTooLargeException extends StorageException {
+
+	/**
+	 * Serial version UID.
+	 */
+	private static final long serialVersionUID = -6351790825108842187L;
+
+	public StorageFileTooLargeException(final String message) {
+		super(message);
+	}
+
+	public StorageFileTooLargeException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+}
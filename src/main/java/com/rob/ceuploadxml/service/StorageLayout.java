@@ -0,0 +1,201 @@
+package com.rob.ceuploadxml.service;
+
+import java.nio.file.Path;
+
+/**
+ * Where things live under the storage root.
+ * 
+ * <ul>
+ * <li><code>&lt;root&gt;/&lt;filename&gt;</code> - a file stored by name, in
+ * the flat layout.</li>
+ * <li><code>&lt;root&gt;/&lt;ab&gt;/&lt;cd&gt;/&lt;filename&gt;</code> - a file
+ * stored by name, in the sharded layout. The folder names are the first hex
+ * digits of the SHA-256 hash of the file name, so files spread evenly and no
+ * one folder gets too big. How many levels, and how many digits each level
+ * takes, are configurable.</li>
+ * <li><code>&lt;root&gt;/.blobs/&lt;ab&gt;/&lt;hash&gt;</code> - content stored
+ * by its SHA-256 hash, in content addressed mode. The first two hex digits of
+ * the hash name a sub folder, so no one folder gets too big.</li>
+ * <li>Either of the above with <code>.gz</code> on the end - the same, stored
+ * gzipped.</li>
+ * <li><code>&lt;root&gt;/.incoming</code> - uploads being checked.</li>
+ * <li><code>&lt;root&gt;/.index</code> - index of what is in each file.</li>
+ * </ul>
+ * 
+ * Everything sits on one file system, so moving a checked upload into place is
+ * a rename.
+ */
+final class StorageLayout {
+
+	/**
+	 * Storage root.
+	 */
+	private final Path rootLocation;
+
+	/**
+	 * Where uploads are written while they are being checked.
+	 */
+	private final Path incomingLocation;
+
+	/**
+	 * Where content is stored by hash.
+	 */
+	private final Path blobLocation;
+
+	/**
+	 * Where the index of what is in each file is kept.
+	 */
+	private final Path indexLocation;
+
+	/**
+	 * Where segments are kept when files are packed.
+	 */
+	private final Path packLocation;
+
+	/**
+	 * Levels of folders files stored by name are spread over; 0 for the flat
+	 * layout.
+	 */
+	private final int shardDepth;
+
+	/**
+	 * Hex digits in the name of each level of folder.
+	 */
+	private final int shardWidth;
+
+	/**
+	 * Flat layout.
+	 * 
+	 * @param rootLocation storage root
+	 */
+	StorageLayout(final Path rootLocation) {
+		this(rootLocation, 0, 0);
+	}
+
+	/**
+	 * @param rootLocation storage root
+	 * @param shardDepth   levels of folders files stored by name are spread over;
+	 *                     0 for the flat layout
+	 * @param shardWidth   hex digits in the name of each level of folder
+	 */
+	StorageLayout(final Path rootLocation, final int shardDepth, final int shardWidth) {
+		if (shardDepth < 0 || shardDepth > 0 && (shardWidth < 1 || shardDepth * shardWidth > 64)) {
+			throw new IllegalArgumentException("Bad shard layout: depth " + shardDepth + ", width " + shardWidth);
+		}
+		this.rootLocation = rootLocation;
+		this.incomingLocation = rootLocation.resolve(".incoming");
+		this.blobLocation = rootLocation.resolve(".blobs");
+		this.indexLocation = rootLocation.resolve(".index");
+		this.packLocation = rootLocation.resolve(".pack");
+		this.shardDepth = shardDepth;
+		this.shardWidth = shardWidth;
+	}
+
+	/**
+	 * @return true if files stored by name are spread over folders
+	 */
+	boolean isSharded() {
+		return shardDepth > 0;
+	}
+
+	/**
+	 * @return storage root
+	 */
+	Path getRootLocation() {
+		return rootLocation;
+	}
+
+	/**
+	 * @return where uploads are written while they are being checked
+	 */
+	Path getIncomingLocation() {
+		return incomingLocation;
+	}
+
+	/**
+	 * @return where the index of what is in each file is kept
+	 */
+	Path getIndexLocation() {
+		return indexLocation;
+	}
+
+	/**
+	 * @return where segments are kept when files are packed
+	 */
+	Path getPackLocation() {
+		return packLocation;
+	}
+
+	/**
+	 * @param filename file name
+	 * @param encoding content encoding the file is stored with, or null
+	 * @return where a file stored by name lives
+	 */
+	Path filePath(final String filename, final String encoding) {
+		if (!isSharded()) {
+			return flatFilePath(filename, encoding);
+		}
+		String hash = Sha256.hex(filename);
+		Path shard = rootLocation;
+		for (int level = 0; level < shardDepth; level++) {
+			shard = shard.resolve(hash.substring(level * shardWidth, (level + 1) * shardWidth));
+		}
+		return shard.resolve(filename + extension(encoding));
+	}
+
+	/**
+	 * @param filename file name
+	 * @param encoding content encoding the file is stored with, or null
+	 * @return where a file stored by name lives in the flat layout
+	 */
+	Path flatFilePath(final String filename, final String encoding) {
+		return rootLocation.resolve(filename + extension(encoding));
+	}
+
+	/**
+	 * @param storedName name of a file in storage
+	 * @return content encoding implied by the name's extension, or null
+	 */
+	static String encodingOf(final String storedName) {
+		return storedName.endsWith(".gz") ? StorageCompression.GZIP_ENCODING : null;
+	}
+
+	/**
+	 * @param storedName name of a file in storage
+	 * @return the name without any extension added for its encoding
+	 */
+	static String filenameOf(final String storedName) {
+		return storedName.substring(0, storedName.length() - extension(encodingOf(storedName)).length());
+	}
+
+	/**
+	 * @param contentHash hex SHA-256 hash of the content
+	 * @param encoding    content encoding the content is stored with, or null
+	 * @return where content stored by hash lives
+	 */
+	Path blobPath(final String contentHash, final String encoding) {
+		return blobLocation.resolve(contentHash.substring(0, 2)).resolve(contentHash + extension(encoding));
+	}
+
+	/**
+	 * @param encoding content encoding, or null
+	 * @return extension added to files stored with that encoding
+	 */
+	private static String extension(final String encoding) {
+		if (encoding == null) {
+			return "";
+		}
+		if (StorageCompression.GZIP_ENCODING.equals(encoding)) {
+			return ".gz";
+		}
+		throw new IllegalArgumentException("Unknown content encoding: " + encoding);
+	}
+
+	/**
+	 * @param path path to a stored file
+	 * @return true if the path is content stored by hash
+	 */
+	boolean isBlob(final Path path) {
+		return path.startsWith(blobLocation);
+	}
+}
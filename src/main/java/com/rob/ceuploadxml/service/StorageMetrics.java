@@ -0,0 +1,227 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Timings of each stage of storing a file, bytes stored and served, and files
+ * turned away by reason, published to Micrometer.
+ * 
+ * <b>Implementation note</b>: every meter is registered up front, so recording
+ * is a lookup by ordinal and never allocates tags. When metrics are off, no
+ * clock is read and nothing is recorded.
+ */
+@Component
+public final class StorageMetrics {
+
+	/**
+	 * Stages of storing a file.
+	 */
+	public enum Stage {
+
+		/**
+		 * Waiting for other stores of the same name to finish.
+		 */
+		RESERVE,
+
+		/**
+		 * Looking for a file already stored under the name.
+		 */
+		LOOKUP,
+
+		/**
+		 * Writing, validating and hashing the file in one pass.
+		 */
+		INGEST,
+
+		/**
+		 * Moving the checked file into place.
+		 */
+		PUBLISH,
+
+		/**
+		 * Saving metadata.
+		 */
+		SAVE,
+
+		/**
+		 * Adding the file to the index.
+		 */
+		INDEX
+	}
+
+	/**
+	 * Reasons a file is not stored.
+	 */
+	public enum Rejection {
+
+		/**
+		 * Name does not end in <code>.xml</code>.
+		 */
+		EXTENSION,
+
+		/**
+		 * File is empty.
+		 */
+		EMPTY,
+
+		/**
+		 * File is larger than can be stored.
+		 */
+		TOO_LARGE,
+
+		/**
+		 * Name would escape the storage folder.
+		 */
+		PATH,
+
+		/**
+		 * Name is already stored.
+		 */
+		DUPLICATE,
+
+		/**
+		 * Schema asked for is not registered.
+		 */
+		UNKNOWN_SCHEMA,
+
+		/**
+		 * File is not well formed XML.
+		 */
+		NOT_WELL_FORMED,
+
+		/**
+		 * File is not valid against its schema.
+		 */
+		SCHEMA_VIOLATION
+	}
+
+	/**
+	 * Metrics that record nothing.
+	 */
+	public static final StorageMetrics NONE = new StorageMetrics(null);
+
+	/**
+	 * Timer for each stage, or null when metrics are off.
+	 */
+	private final Timer[] stageTimers;
+
+	/**
+	 * Counter for each reason a file is not stored, or null when metrics are off.
+	 */
+	private final Counter[] rejections;
+
+	/**
+	 * Bytes written to storage, after any compression; null when metrics are off.
+	 */
+	private final Counter bytesWritten;
+
+	/**
+	 * Bytes of stored files sent to clients; null when metrics are off.
+	 */
+	private final Counter bytesServed;
+
+	/**
+	 * @param registry   where to publish metrics, if anywhere
+	 * @param properties whether metrics are on
+	 */
+	@Autowired
+	public StorageMetrics(final ObjectProvider<MeterRegistry> registry, final StorageProperties properties) {
+		this(properties.isMetricsEnabled() ? registry.getIfAvailable() : null);
+	}
+
+	/**
+	 * @param registry where to publish metrics; null to record nothing
+	 */
+	public StorageMetrics(final MeterRegistry registry) {
+		if (registry == null) {
+			stageTimers = null;
+			rejections = null;
+			bytesWritten = null;
+			bytesServed = null;
+			return;
+		}
+		stageTimers = new Timer[Stage.values().length];
+		for (Stage stage : Stage.values()) {
+			stageTimers[stage.ordinal()] = Timer.builder("xmldoc.store.stage")//
+					.description("Time taken by each stage of storing a file")//
+					.tag("stage", stage.name().toLowerCase())//
+					.publishPercentileHistogram()//
+					.register(registry);
+		}
+		rejections = new Counter[Rejection.values().length];
+		for (Rejection rejection : Rejection.values()) {
+			rejections[rejection.ordinal()] = Counter.builder("xmldoc.store.rejected")//
+					.description("Files not stored, by reason")//
+					.tag("reason", rejection.name().toLowerCase())//
+					.register(registry);
+		}
+		bytesWritten = Counter.builder("xmldoc.bytes.written").baseUnit("bytes")//
+				.description("Bytes written to storage, after any compression")//
+				.register(registry);
+		bytesServed = Counter.builder("xmldoc.bytes.served").baseUnit("bytes")//
+				.description("Bytes of stored files sent to clients")//
+				.register(registry);
+	}
+
+	/**
+	 * @return true if metrics are recorded
+	 */
+	public boolean isEnabled() {
+		return stageTimers != null;
+	}
+
+	/**
+	 * @return time to pass to {@link #record(Stage, long)} when the stage is
+	 *         done, or 0 when metrics are off
+	 */
+	public long start() {
+		return stageTimers == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Record how long a stage took.
+	 * 
+	 * @param stage stage that is done
+	 * @param start what {@link #start()} returned when the stage began
+	 */
+	public void record(final Stage stage, final long start) {
+		if (stageTimers != null) {
+			stageTimers[stage.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @param rejection why a file was not stored
+	 */
+	public void rejected(final Rejection rejection) {
+		if (rejections != null) {
+			rejections[rejection.ordinal()].increment();
+		}
+	}
+
+	/**
+	 * @param bytes bytes written to storage
+	 */
+	public void written(final long bytes) {
+		if (bytesWritten != null) {
+			bytesWritten.increment(bytes);
+		}
+	}
+
+	/**
+	 * @param bytes bytes of a stored file sent to a client
+	 */
+	public void served(final long bytes) {
+		if (bytesServed != null) {
+			bytesServed.increment(bytes);
+		}
+	}
+}
@@ -1,26 +1,284 @@
-package com.rob.ceuploadxml.service;
-
-import org.springframework.boot.context.properties.ConfigurationProperties;
-
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.Data;
-import lombok.EqualsAndHashCode;
-import lombok.NoArgsConstructor;
-import lombok.NonNull;
-
-@ConfigurationProperties("storage")
-@Data
-@Builder(toBuilder = true)
-@EqualsAndHashCode
-@NoArgsConstructor(force = true)
-@AllArgsConstructor
-public class StorageProperties {
-
-	/**
-	 * Folder for storing files.
-	 */
-	@NonNull
-	private String location;
-
-}
+package com.rob.ceuploadxml.service;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+@ConfigurationProperties("storage")
+@Data
+@Builder(toBuilder = true)
+@EqualsAndHashCode
+@NoArgsConstructor(force = true)
+@AllArgsConstructor
+public class StorageProperties {
+
+	/**
+	 * Folder for storing files.
+	 */
+	@NonNull
+	private String location;
+
+	/**
+	 * Where the bytes of stored files are kept. Files stored by one engine cannot
+	 * be read by the other.
+	 */
+	@Builder.Default
+	private StorageEngine engine = StorageEngine.FILES;
+
+	/**
+	 * True to store each distinct content once, under its SHA-256 hash, with
+	 * metadata pointing at the hash; false to store each file under its name.
+	 */
+	@Builder.Default
+	private boolean contentAddressed = false;
+
+	/**
+	 * How to compress files as they are stored. Files already stored keep the
+	 * compression they were stored with.
+	 */
+	@Builder.Default
+	private StorageCompression compression = StorageCompression.NONE;
+
+	/**
+	 * Largest file that can be stored. Checked against the declared size up
+	 * front, and again as the file is streamed in, so an upload of unknown size
+	 * is stopped as soon as it goes over.
+	 */
+	@Builder.Default
+	private DataSize maxFileSize = DataSize.ofGigabytes(1);
+
+	/**
+	 * Number of documents listed per page when no page size is asked for.
+	 */
+	@Builder.Default
+	private int listPageSize = 100;
+
+	/**
+	 * Most documents that can be listed per page.
+	 */
+	@Builder.Default
+	private int listMaxPageSize = 1000;
+
+	/**
+	 * Threads that check the files of a batch upload in parallel; 0 for one per
+	 * processor.
+	 */
+	@Builder.Default
+	private int batchThreads = 0;
+
+	/**
+	 * Number of file names the filter of stored names is sized for. More names
+	 * than this still work, but more of them need a database lookup.
+	 */
+	@Builder.Default
+	private long filenameFilterSize = 1_000_000;
+
+	/**
+	 * Chance that a new file name needs a database lookup, once the filter holds
+	 * {@link #filenameFilterSize} names.
+	 */
+	@Builder.Default
+	private double filenameFilterFalsePositiveRate = 0.01;
+
+	/**
+	 * Levels of folders files are spread over, named after leading characters of
+	 * a hash of the file name; 0 to store every file in {@link #location} itself.
+	 */
+	@Builder.Default
+	private int shardDepth = 0;
+
+	/**
+	 * Hex characters of the hash used to name each level of folders, so each
+	 * level has up to 16 to the power of this many folders.
+	 */
+	@Builder.Default
+	private int shardWidth = 2;
+
+	/**
+	 * Threads that move files into the sharded layout at once.
+	 */
+	@Builder.Default
+	private int shardMigrationThreads = 4;
+
+	/**
+	 * Most file names whose metadata, or lack of it, is cached; 0 to cache none.
+	 */
+	@Builder.Default
+	private int metadataCacheSize = 10_000;
+
+	/**
+	 * Most pages of <code>/xmldoc/list</code> that are cached; 0 to cache none.
+	 */
+	@Builder.Default
+	private int listCacheSize = 100;
+
+	/**
+	 * How long cached metadata is kept. Writes through this service update the
+	 * cache straight away; this bounds how long changes made any other way, such
+	 * as by another instance, go unseen.
+	 */
+	@Builder.Default
+	private Duration metadataCacheTtl = Duration.ofMinutes(5);
+
+	/**
+	 * Bytes of stored files kept in memory, so the files downloaded most are
+	 * served without reading them from disk; 0 to keep none. Kept for as long
+	 * as metadata, {@link #metadataCacheTtl}.
+	 */
+	@Builder.Default
+	private DataSize documentCacheSize = DataSize.ofBytes(0);
+
+	/**
+	 * Largest stored file kept in memory, so one big file cannot push out many
+	 * small ones.
+	 */
+	@Builder.Default
+	private DataSize documentCacheMaxFileSize = DataSize.ofMegabytes(1);
+
+	/**
+	 * Threads that store uploads accepted by <code>/xmldoc/addAsync</code>.
+	 */
+	@Builder.Default
+	private int asyncThreads = 2;
+
+	/**
+	 * Most accepted uploads that can wait for a thread; more are turned away
+	 * until some have been stored.
+	 */
+	@Builder.Default
+	private int asyncQueueSize = 100;
+
+	/**
+	 * How long the outcome of an accepted upload can be asked for once it has
+	 * finished.
+	 */
+	@Builder.Default
+	private Duration asyncJobRetention = Duration.ofHours(1);
+
+	/**
+	 * Files checked at once when stored files are checked again.
+	 */
+	@Builder.Default
+	private int revalidationThreads = 2;
+
+	/**
+	 * Most bytes of a file mapped into memory at once when stored files are
+	 * checked again. Smaller files are not mapped at all, and regions are only
+	 * unmapped once they are garbage collected.
+	 */
+	@Builder.Default
+	private DataSize revalidationRegionSize = DataSize.ofMegabytes(64);
+
+	/**
+	 * Files queried at once by an XPath query; 0 or less for one per processor.
+	 */
+	@Builder.Default
+	private int queryThreads = 0;
+
+	/**
+	 * Most compiled XPath expressions kept for reuse.
+	 */
+	@Builder.Default
+	private int queryCacheSize = 100;
+
+	/**
+	 * Most matches handed back for one XPath query.
+	 */
+	@Builder.Default
+	private int queryMaxMatches = 10_000;
+
+	/**
+	 * Largest file, before compression, that an XPath query will read into
+	 * memory; larger files are reported rather than queried.
+	 */
+	@Builder.Default
+	private DataSize queryMaxDocumentSize = DataSize.ofMegabytes(16);
+
+	/**
+	 * Longest snippet of each match, in characters.
+	 */
+	@Builder.Default
+	private int querySnippetLength = 200;
+
+	/**
+	 * Longest text or attribute value put in the index of stored files, in
+	 * characters; longer values can only be found by an XPath query.
+	 */
+	@Builder.Default
+	private int indexMaxValueLength = 100;
+
+	/**
+	 * Most paths, names and values put in the index for one file.
+	 */
+	@Builder.Default
+	private int indexMaxTerms = 10_000;
+
+	/**
+	 * Longest time between commits of the index of stored files to disk.
+	 */
+	@Builder.Default
+	private Duration indexCommitInterval = Duration.ofSeconds(30);
+
+	/**
+	 * Entries of an uploaded archive checked in parallel and saved together;
+	 * each is held on disk, not in memory, until its batch is stored.
+	 */
+	@Builder.Default
+	private int archiveBatchSize = 100;
+
+	/**
+	 * True to have the files engine sync each file, and the folder it is moved
+	 * into, to disk before it is acknowledged; false to leave it to the operating
+	 * system.
+	 */
+	@Builder.Default
+	private boolean fileSync = false;
+
+	/**
+	 * Size at which the pack engine starts a new segment file.
+	 */
+	@Builder.Default
+	private DataSize packSegmentSize = DataSize.ofMegabytes(256);
+
+	/**
+	 * Largest file the pack engine stores, as each is held in memory while it is
+	 * appended; the smaller of this and {@link #maxFileSize} applies.
+	 */
+	@Builder.Default
+	private DataSize packMaxFileSize = DataSize.ofMegabytes(16);
+
+	/**
+	 * True to have the pack engine sync each group of appends to disk before
+	 * they are acknowledged; false to leave it to the operating system.
+	 */
+	@Builder.Default
+	private boolean packSync = true;
+
+	/**
+	 * How often the pack engine looks for segment files to compact.
+	 */
+	@Builder.Default
+	private Duration packCompactionInterval = Duration.ofMinutes(1);
+
+	/**
+	 * Share of a segment file taken by deleted or replaced files at which the
+	 * pack engine copies out what is left and removes it.
+	 */
+	@Builder.Default
+	private double packCompactionThreshold = 0.5;
+
+	/**
+	 * False to record no timings or counts of stored and served files.
+	 */
+	@Builder.Default
+	private boolean metricsEnabled = true;
+
+}
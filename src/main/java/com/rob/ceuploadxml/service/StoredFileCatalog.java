@@ -0,0 +1,1381 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import javax.persistence.EntityManager;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.xml.sax.SAXException;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.validator.SchemaKey;
+import com.rob.ceuploadxml.validator.SchemaRegistry;
+import com.rob.ceuploadxml.validator.SchemaViolationException;
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Metadata, index, caches, checks, searches and exports of stored files, shared
+ * by {@link FileSystemXmlStorageService} and
+ * {@link PackFileXmlStorageService}, which each pass in how they put, open and
+ * delete the bytes.
+ */
+@Log4j2
+final class StoredFileCatalog {
+
+	/**
+	 * Most file names looked up in one query when checking a batch for files
+	 * that already exist.
+	 */
+	private static final int BATCH_LOOKUP_SIZE = 500;
+
+	/**
+	 * How long a compiled XPath query is kept after it was compiled.
+	 */
+	private static final Duration QUERY_CACHE_TTL = Duration.ofHours(1);
+
+	/**
+	 * Most bytes of an uploaded archive's entries held in memory before
+	 * they are stored.
+	 */
+	private static final long ARCHIVE_BATCH_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Largest archive entry read into memory so it can be checked in parallel.
+	 */
+	private static final int ARCHIVE_ENTRY_BUFFER_BYTES = 1024 * 1024;
+
+	/**
+	 * Where the index of what is in each file is kept.
+	 */
+	private final Path indexLocation;
+
+	/**
+	 * How to compress files as they are stored.
+	 */
+	private final StorageCompression compression;
+
+	/**
+	 * Largest file that can be stored, in bytes.
+	 */
+	private final long maxFileSize;
+
+	/**
+	 * Finds the stored bytes of a file.
+	 */
+	private final StoredFileResolver resolver;
+
+	/**
+	 * Opens the stored bytes of a file, for anything that reads every file.
+	 */
+	private final StoredFileOpener opener;
+
+	/**
+	 * XML Doc repository.
+	 */
+	private final XmlDocMetadataRepository xmlDocRepo;
+
+	/**
+	 * XML Validator.
+	 */
+	private final XmlValidator xmlValidator;
+
+	/**
+	 * Schemas that files can be validated against.
+	 */
+	private final SchemaRegistry schemaRegistry;
+
+	/**
+	 * Entity manager behind {@link #xmlDocRepo}, so streamed rows can be detached
+	 * once they have been used.
+	 */
+	private final EntityManager entityManager;
+
+	/**
+	 * Runs streaming reads in a read only transaction, which a database cursor
+	 * needs to stay open.
+	 */
+	private final TransactionTemplate readOnlyTransaction;
+
+	/**
+	 * Number of files listed per page when no page size is asked for.
+	 */
+	private final int listPageSize;
+
+	/**
+	 * Most files that can be listed per page.
+	 */
+	private final int listMaxPageSize;
+
+	/**
+	 * Checks the files of a batch in parallel. Bounded, and runs work on the
+	 * caller's thread when full, so a huge batch cannot exhaust memory.
+	 */
+	private final ExecutorService batchExecutor;
+
+	/**
+	 * File names in the middle of being stored or deleted.
+	 */
+	private final NameReservations reservations = new NameReservations();
+
+	/**
+	 * Every stored file name, and a few more, so most new names need no database
+	 * lookup. Filled at {@link #open()}, and as files are stored.
+	 */
+	private final FilenameBloomFilter filenameFilter;
+
+	/**
+	 * True once {@link #filenameFilter} holds every stored file name. Until then
+	 * the database is always asked.
+	 */
+	private volatile boolean filenameFilterReady;
+
+	/**
+	 * Checks every stored file again.
+	 */
+	private final Revalidator revalidator;
+
+	/**
+	 * Queries every stored file with XPath.
+	 */
+	private final QueryScanner queryScanner;
+
+	/**
+	 * Longest value put in the index, in characters.
+	 */
+	private final int indexMaxValueLength;
+
+	/**
+	 * Most terms put in the index for one file.
+	 */
+	private final int indexMaxTerms;
+
+	/**
+	 * Most nanoseconds between commits of the index to disk.
+	 */
+	private final long indexCommitInterval;
+
+	/**
+	 * Index of what is in each file; null until {@link #open()} opens it.
+	 */
+	private volatile XmlIndex xmlIndex;
+
+	/**
+	 * Indexes files stored before the index was created; null unless
+	 * {@link #open()} created the index.
+	 */
+	private volatile IndexBackfill indexBackfill;
+
+	/**
+	 * Metadata by file name, including names with no metadata, so repeated
+	 * lookups skip the database.
+	 */
+	private final BoundedCache<String, Optional<XmlDocMetadata>> metadataCache;
+
+	/**
+	 * Pages of the list of files, keyed by cursor and page size. Any write drops
+	 * them all, as a deleted file changes every page after it.
+	 */
+	private final BoundedCache<String, XmlDocPage> listCache;
+
+	/**
+	 * Compiled XPath queries, keyed by expression.
+	 */
+	private final BoundedCache<String, XmlQuery> queryCache;
+
+	/**
+	 * Stored bytes of the files downloaded most, by file name.
+	 */
+	private final DocumentCache documentCache;
+
+	/**
+	 * Entries of an uploaded archive stored together.
+	 */
+	private final int archiveBatchSize;
+
+	/**
+	 * Times each stage of storing a file, and counts bytes and rejections.
+	 */
+	private final StorageMetrics metrics;
+
+	/**
+	 * @param properties         storage settings
+	 * @param maxFileSize        largest file that can be stored, in bytes
+	 * @param indexLocation      where the index of what is in each file is kept
+	 * @param resolver           finds the stored bytes of a file
+	 * @param checkOpener        opens the stored bytes of a file to check it
+	 *                           again
+	 * @param xmlDocRepository   metadata of stored files
+	 * @param xmlValidator       checks files
+	 * @param schemaRegistry     schemas that files can be validated against
+	 * @param entityManager      entity manager behind the repository
+	 * @param transactionManager runs streaming reads
+	 * @param metrics            times each stage of storing a file
+	 */
+	StoredFileCatalog(final StorageProperties properties, final long maxFileSize, final Path indexLocation,
+			final StoredFileResolver resolver, final StoredFileOpener checkOpener,
+			final XmlDocMetadataRepository xmlDocRepository, final XmlValidator xmlValidator,
+			final SchemaRegistry schemaRegistry, final EntityManager entityManager,
+			final PlatformTransactionManager transactionManager, final StorageMetrics metrics) {
+		this.metrics = metrics;
+		this.indexLocation = indexLocation;
+		this.compression = properties.getCompression();
+		this.maxFileSize = maxFileSize;
+		this.resolver = resolver;
+		this.opener = doc -> resolver.resolve(doc.getFilename(), doc).getInputStream();
+		this.xmlDocRepo = xmlDocRepository;
+		this.xmlValidator = xmlValidator;
+		this.schemaRegistry = schemaRegistry;
+		this.entityManager = entityManager;
+		this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+		this.readOnlyTransaction.setReadOnly(true);
+		this.listPageSize = properties.getListPageSize();
+		this.listMaxPageSize = properties.getListMaxPageSize();
+		int batchThreads = properties.getBatchThreads() > 0 ? properties.getBatchThreads()
+				: Runtime.getRuntime().availableProcessors();
+		this.batchExecutor = new ThreadPoolExecutor(batchThreads, batchThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(batchThreads * 4), new CustomizableThreadFactory("xml-batch-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.filenameFilter = new FilenameBloomFilter(properties.getFilenameFilterSize(),
+				properties.getFilenameFilterFalsePositiveRate());
+		this.revalidator = new Revalidator(xmlDocRepository, checkOpener, xmlValidator,
+				properties.getRevalidationThreads());
+		this.queryScanner = new QueryScanner(xmlDocRepository, opener, properties.getQueryThreads(),
+				properties.getQueryMaxMatches(), properties.getQueryMaxDocumentSize().toBytes(),
+				properties.getQuerySnippetLength());
+		this.archiveBatchSize = Math.max(1, properties.getArchiveBatchSize());
+		this.indexMaxValueLength = properties.getIndexMaxValueLength();
+		this.indexMaxTerms = properties.getIndexMaxTerms();
+		this.indexCommitInterval = properties.getIndexCommitInterval().toNanos();
+		this.metadataCache = new BoundedCache<>(properties.getMetadataCacheSize(), properties.getMetadataCacheTtl());
+		this.listCache = new BoundedCache<>(properties.getListCacheSize(), properties.getMetadataCacheTtl());
+		this.queryCache = new BoundedCache<>(properties.getQueryCacheSize(), QUERY_CACHE_TTL);
+		this.documentCache = new DocumentCache(properties.getDocumentCacheSize().toBytes(),
+				properties.getDocumentCacheMaxFileSize().toBytes(), properties.getMetadataCacheTtl());
+	}
+
+	/**
+	 * Open the index of stored files, and fill the filter of stored file names.
+	 * The engine's own storage must be ready first.
+	 */
+	void open() {
+		openIndex();
+		loadFilenameFilter();
+	}
+
+	/**
+	 * Stop the threads that check batches, any check of stored files and any
+	 * query, and close the index.
+	 */
+	void close() {
+		batchExecutor.shutdown();
+		revalidator.stop();
+		queryScanner.stop();
+		if (indexBackfill != null) {
+			indexBackfill.stop();
+		}
+		if (xmlIndex != null) {
+			try {
+				xmlIndex.close();
+			} catch (IOException e) {
+				log.error("Failed to close index of stored files.", e);
+			}
+		}
+	}
+
+	/**
+	 * @return file names in the middle of being stored or deleted
+	 */
+	NameReservations getReservations() {
+		return reservations;
+	}
+
+	/**
+	 * Reserve a file name about to be stored.
+	 * 
+	 * @param filename file name
+	 * @return the reservation; close it to release the name
+	 */
+	NameReservations.Reservation reserve(final String filename) {
+		long reserveStart = metrics.start();
+		NameReservations.Reservation reservation = reservations.reserve(filename);
+		metrics.record(StorageMetrics.Stage.RESERVE, reserveStart);
+		return reservation;
+	}
+
+	/**
+	 * Store a batch of files, with the engine checking and writing each file.
+	 * 
+	 * <b>Implementation note</b>: files are checked in parallel on
+	 * {@link #batchExecutor}, duplicates are found with one query per
+	 * {@link #BATCH_LOOKUP_SIZE} names, and the engine then makes every good
+	 * file visible, saving metadata with {@link #saveAll}.
+	 * 
+	 * @param uploads  files to store
+	 * @param note     or description to save against every file
+	 * @param ingester checks a file and writes its bytes where the engine keeps
+	 *                 them until stored
+	 * @param writer   makes the checked files visible and saves their metadata
+	 * @return result for each file, in the order uploaded
+	 */
+	List<XmlDocUploadResult> storeAll(final List<XmlUpload> uploads, final String note, final Ingester ingester,
+			final BatchWriter writer) {
+		log.debug("Trying to save batch of {} files.", uploads.size());
+		List<String> names = uploads.stream().map(XmlUpload::getFilename).collect(Collectors.toList());
+		XmlDocUploadResult[] results = new XmlDocUploadResult[uploads.size()];
+		String[] filenames = new String[uploads.size()];
+
+		// Check names first, so nothing is read for files that cannot be stored.
+		for (int i = 0; i < uploads.size(); i++) {
+			filenames[i] = StringUtils.cleanPath(names.get(i));
+			try {
+				checkForPathErrors(filenames[i], uploads.get(i).getSize());
+			} catch (StorageException e) {
+				results[i] = XmlDocUploadResult.failed(names.get(i), e.getMessage());
+			}
+		}
+		storeReserved(names, filenames, results, () -> {
+			IngestedFile[] ingested = ingestAll(uploads, filenames, results, ingester);
+			writer.write(names, filenames, ingested, results, note);
+		});
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Store the files of an uploaded archive, with the engine checking and
+	 * writing each entry. Entries are read in order; those up to
+	 * {@link #ARCHIVE_ENTRY_BUFFER_BYTES} are checked in parallel on
+	 * {@link #batchExecutor}, larger ones as they are read. Every
+	 * {@link #archiveBatchSize} entries, or {@link #ARCHIVE_BATCH_BYTES} of
+	 * them, are stored in one batch.
+	 * 
+	 * @param archive  ZIP or TAR archive, which may be gzipped; not closed
+	 * @param note     or description to save against every file
+	 * @param ingester checks a file and writes its bytes where the engine keeps
+	 *                 them until stored
+	 * @param writer   makes the checked files visible and saves their metadata
+	 * @return result for each file in the archive, in archive order
+	 */
+	List<XmlDocUploadResult> storeArchive(final InputStream archive, final String note, final Ingester ingester,
+			final BatchWriter writer) {
+		List<XmlDocUploadResult> results = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		List<Future<IngestedFile>> ingesting = new ArrayList<>();
+		List<Integer> slots = new ArrayList<>();
+		long batchBytes = 0;
+		try (ArchiveInputStream entries = openArchive(StreamUtils.nonClosing(archive))) {
+			for (ArchiveEntry entry = entries.getNextEntry(); entry != null; entry = entries.getNextEntry()) {
+				if (entry.isDirectory()) {
+					continue;
+				}
+				String filename = StringUtils.getFilename(entry.getName().replace('\\', '/'));
+				try {
+					if (!entries.canReadEntryData(entry)) {
+						throw new StorageException("Cannot read archive entry, which may be encrypted: " + filename);
+					}
+					checkForPathErrors(filename, entry.getSize() < 0 ? XmlUpload.UNKNOWN_SIZE : entry.getSize());
+					// Read a small entry whole, so it can be checked while the next is read.
+					int limit = entry.getSize() > ARCHIVE_ENTRY_BUFFER_BYTES ? 0 : ARCHIVE_ENTRY_BUFFER_BYTES + 1;
+					byte[] head = entries.readNBytes(limit);
+					if (limit > 0 && head.length <= ARCHIVE_ENTRY_BUFFER_BYTES) {
+						ingesting.add(batchExecutor
+								.submit(() -> ingester.ingest(new ByteArrayResource(head), filename, null)));
+						batchBytes += head.length;
+					} else {
+						IngestedFile file = ingester.ingest(() -> new SequenceInputStream(
+								new ByteArrayInputStream(head), StreamUtils.nonClosing(entries)), filename, null);
+						ingesting.add(CompletableFuture.completedFuture(file));
+						batchBytes += file.getData() == null ? 0 : file.getData().length;
+					}
+					names.add(filename);
+					slots.add(results.size());
+					results.add(null);
+				} catch (StorageException e) {
+					results.add(XmlDocUploadResult.failed(filename, e.getMessage()));
+				}
+				if (ingesting.size() >= archiveBatchSize || batchBytes >= ARCHIVE_BATCH_BYTES) {
+					storeArchiveBatch(names, ingesting, slots, results, note, writer);
+					batchBytes = 0;
+				}
+			}
+			storeArchiveBatch(names, ingesting, slots, results, note, writer);
+		} catch (ArchiveException e) {
+			throw new StorageException("Upload is not a ZIP or TAR archive.", e);
+		} catch (IOException e) {
+			if (results.isEmpty()) {
+				throw new StorageException("Failed to read archive.", e);
+			}
+			// Report what was stored before the archive broke off.
+			log.error("Failed to read archive after {} entries.", results.size(), e);
+			storeArchiveBatch(names, ingesting, slots, results, note, writer);
+			results.add(XmlDocUploadResult.failed("", "Failed to read the rest of the archive: " + e.getMessage()));
+		} finally {
+			for (int i = 0; i < ingesting.size(); i++) {
+				try {
+					abandon(awaitIngest(ingesting.get(i), names.get(i)));
+				} catch (StorageException e) {
+					log.debug("Archive entry {} was not stored: {}", names.get(i), e.getMessage());
+				}
+			}
+		}
+		log.info("Stored {} of {} entries of archive.", results.stream().filter(XmlDocUploadResult::isStored).count(),
+				results.size());
+		return results;
+	}
+
+	/**
+	 * Wait for the entries of an archive read so far to be checked, filling in
+	 * the results of those that fail, then store the rest and delete any
+	 * temporary copies left over.
+	 * 
+	 * @param names     name of each entry read so far; cleared
+	 * @param ingesting each entry being checked; cleared
+	 * @param slots     where in <code>results</code> each entry's result goes;
+	 *                  cleared
+	 * @param results   result for each entry of the archive
+	 * @param note      or description to save against every file
+	 * @param writer    makes the checked files visible and saves their metadata
+	 */
+	private void storeArchiveBatch(final List<String> names, final List<Future<IngestedFile>> ingesting,
+			final List<Integer> slots, final List<XmlDocUploadResult> results, final String note,
+			final BatchWriter writer) {
+		List<String> checkedNames = new ArrayList<>();
+		List<IngestedFile> batch = new ArrayList<>();
+		List<Integer> checkedSlots = new ArrayList<>();
+		try {
+			for (int i = 0; i < ingesting.size(); i++) {
+				try {
+					batch.add(awaitIngest(ingesting.get(i), names.get(i)));
+					checkedNames.add(names.get(i));
+					checkedSlots.add(slots.get(i));
+				} catch (StorageException e) {
+					results.set(slots.get(i), XmlDocUploadResult.failed(names.get(i), e.getMessage()));
+				}
+			}
+			names.clear();
+			ingesting.clear();
+			slots.clear();
+			if (batch.isEmpty()) {
+				return;
+			}
+			String[] filenames = checkedNames.stream().map(StringUtils::cleanPath).toArray(String[]::new);
+			IngestedFile[] ingested = batch.toArray(new IngestedFile[0]);
+			XmlDocUploadResult[] stored = new XmlDocUploadResult[ingested.length];
+			storeReserved(checkedNames, filenames, stored,
+					() -> writer.write(checkedNames, filenames, ingested, stored, note));
+			for (int i = 0; i < stored.length; i++) {
+				results.set(checkedSlots.get(i), stored[i]);
+			}
+		} finally {
+			// Files made visible have been moved away; only those not stored are left.
+			batch.forEach(StoredFileCatalog::abandon);
+		}
+	}
+
+	/**
+	 * Reserve the names of a batch, turn away those in it more than once or
+	 * already stored, then store the rest while the names are held.
+	 * 
+	 * @param names     name of each file as uploaded
+	 * @param filenames cleaned name of each file
+	 * @param results   result for each file, null for those still to store;
+	 *                  filled in by this method and by <code>store</code>
+	 * @param store     stores the files that do not have a result yet
+	 */
+	private void storeReserved(final List<String> names, final String[] filenames,
+			final XmlDocUploadResult[] results, final Runnable store) {
+		Set<String> seen = new TreeSet<>();
+		for (int i = 0; i < filenames.length; i++) {
+			if (results[i] == null && !seen.add(filenames[i])) {
+				metrics.rejected(StorageMetrics.Rejection.DUPLICATE);
+				results[i] = XmlDocUploadResult.failed(names.get(i),
+						"File appears more than once in batch: " + filenames[i]);
+			}
+		}
+
+		// Reserve in sorted order, so two batches sharing names cannot deadlock.
+		List<NameReservations.Reservation> reserved = new ArrayList<>(seen.size());
+		try {
+			long reserveStart = metrics.start();
+			for (String filename : seen) {
+				reserved.add(reservations.reserve(filename));
+			}
+			metrics.record(StorageMetrics.Stage.RESERVE, reserveStart);
+			Set<String> existing = findExisting(seen);
+			for (int i = 0; i < filenames.length; i++) {
+				if (results[i] == null && existing.contains(filenames[i])) {
+					metrics.rejected(StorageMetrics.Rejection.DUPLICATE);
+					results[i] = XmlDocUploadResult.failed(names.get(i), "File already exists: " + filenames[i]);
+				}
+			}
+			store.run();
+		} finally {
+			reserved.forEach(NameReservations.Reservation::close);
+		}
+	}
+
+	/**
+	 * Check, in parallel, those files of a batch that do not have a result yet.
+	 * 
+	 * @param uploads   files to check
+	 * @param filenames cleaned name of each file
+	 * @param results   result for each file; filled in for files that fail
+	 * @param ingester  checks a file and writes its bytes
+	 * @return each checked file, or null for files that have a result
+	 */
+	private IngestedFile[] ingestAll(final List<XmlUpload> uploads, final String[] filenames,
+			final XmlDocUploadResult[] results, final Ingester ingester) {
+		List<Future<IngestedFile>> ingesting = new ArrayList<>(Collections.nCopies(uploads.size(), null));
+		for (int i = 0; i < uploads.size(); i++) {
+			if (results[i] == null) {
+				XmlUpload upload = uploads.get(i);
+				String filename = filenames[i];
+				ingesting.set(i, batchExecutor.submit(() -> ingester.ingest(upload.getContent(), filename, null)));
+			}
+		}
+
+		// Collect in order; no file is made visible until all are checked.
+		IngestedFile[] ingested = new IngestedFile[uploads.size()];
+		for (int i = 0; i < uploads.size(); i++) {
+			if (results[i] == null) {
+				try {
+					ingested[i] = awaitIngest(ingesting.get(i), filenames[i]);
+				} catch (StorageException e) {
+					results[i] = XmlDocUploadResult.failed(uploads.get(i).getFilename(), e.getMessage());
+				}
+			}
+		}
+		return ingested;
+	}
+
+	/**
+	 * Wait for a file to be checked.
+	 * 
+	 * @param ingesting file being checked
+	 * @param filename  file name
+	 * @return the checked file
+	 */
+	private IngestedFile awaitIngest(final Future<IngestedFile> ingesting, final String filename) {
+		try {
+			return ingesting.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException) {
+				throw (StorageException) e.getCause();
+			}
+			log.error("Failed to store file [{}]", filename, e.getCause());
+			throw new StorageException("Failed to store file: " + filename, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while storing file: " + filename, e);
+		}
+	}
+
+	/**
+	 * Delete a checked file's temporary copy, if it has one and it was not
+	 * stored.
+	 * 
+	 * @param file checked file
+	 */
+	private static void abandon(final IngestedFile file) {
+		if (file.getPath() != null) {
+			deleteQuietly(file.getPath());
+		}
+	}
+
+	/**
+	 * @param in ZIP or TAR archive, which may be gzipped
+	 * @return reader of the archive's entries
+	 * @throws IOException      if the stream cannot be read
+	 * @throws ArchiveException if the stream is not a ZIP or TAR archive
+	 */
+	static ArchiveInputStream openArchive(final InputStream in) throws IOException, ArchiveException {
+		InputStream buffered = new BufferedInputStream(in);
+		byte[] signature = new byte[2];
+		buffered.mark(signature.length);
+		int read = buffered.readNBytes(signature, 0, signature.length);
+		buffered.reset();
+		if (GzipCompressorInputStream.matches(signature, read)) {
+			buffered = new BufferedInputStream(new GzipCompressorInputStream(buffered));
+		}
+		String format = ArchiveStreamFactory.detect(buffered);
+		if (!ArchiveStreamFactory.ZIP.equals(format) && !ArchiveStreamFactory.JAR.equals(format)
+				&& !ArchiveStreamFactory.TAR.equals(format)) {
+			throw new ArchiveException("Unsupported archive format: " + format);
+		}
+		return new ArchiveStreamFactory().createArchiveInputStream(format, buffered);
+	}
+
+	/**
+	 * Check an upload with a streaming parser while writing it, so the upload is
+	 * read once and the engine can drop what was written for an invalid file
+	 * before it is ever visible. The content is hashed and compressed on the way
+	 * through too, and fails as soon as more than {@link #maxFileSize} bytes have
+	 * been read. What to index the file by is picked out by the same parser.
+	 * 
+	 * @param content  contents of the upload
+	 * @param filename file name
+	 * @param schema   schema to validate against, or null to choose by root
+	 *                 namespace
+	 * @param out      where to write the file as it is to be stored; closed by
+	 *                 this method
+	 * @return the checked file, with neither a path nor data, and its stored size
+	 *         taken to be its size
+	 */
+	IngestedFile ingest(final InputStreamSource content, final String filename, final SchemaKey schema,
+			final OutputStream out) {
+		long ingestStart = metrics.start();
+		MessageDigest digest = Sha256.newDigest();
+		XmlTermCollector terms = new XmlTermCollector(indexMaxValueLength, indexMaxTerms);
+		long size;
+		try (OutputStream target = out;
+				TeeInputStream tee = new TeeInputStream(
+						new DigestInputStream(new SizeLimitedInputStream(content.getInputStream(), maxFileSize),
+								digest),
+						compression.compress(target))) {
+			// The parser closes what it reads; keep the tee open so it can be drained.
+			Optional<SchemaKey> validatedAgainst = xmlValidator.checkValid(StreamUtils.nonClosing(tee), schema,
+					terms);
+			size = tee.drain();
+			log.debug("Read and validated {} bytes of file {} against schema {}.", size, filename, validatedAgainst);
+		} catch (SchemaViolationException e) {
+			metrics.rejected(StorageMetrics.Rejection.SCHEMA_VIOLATION);
+			log.error("Invalid XML within file: {}", filename, e);
+			throw new StorageException("File is not valid: " + filename + ". " + e.getMessage(), e);
+		} catch (SAXException e) {
+			metrics.rejected(StorageMetrics.Rejection.NOT_WELL_FORMED);
+			log.error("Invalid XML within file: {}", filename, e);
+			throw new StorageException("File contains invalid XML: " + filename, e);
+		} catch (UploadTooLargeException e) {
+			metrics.rejected(StorageMetrics.Rejection.TOO_LARGE);
+			throw new StorageFileTooLargeException("File is larger than " + maxFileSize + " bytes: " + filename, e);
+		} catch (IOException e) {
+			log.error("Failed to store file [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+		metrics.record(StorageMetrics.Stage.INGEST, ingestStart);
+		return IngestedFile.builder()//
+				.size(size)//
+				.storedSize(size)//
+				.encoding(compression.getEncoding())//
+				.contentHash(Sha256.hex(digest))//
+				.terms(terms.getTerms())//
+				.build();
+	}
+
+	/**
+	 * @param name     name to save the file under, as uploaded
+	 * @param ingested the checked file
+	 * @param note     or description to save against the file
+	 * @return metadata to save
+	 */
+	static XmlDocMetadata toMetadata(final String name, final IngestedFile ingested, final String note) {
+		return XmlDocMetadata.builder()//
+				.filename(name)//
+				.size(ingested.getSize())//
+				.contentHash(ingested.getContentHash())//
+				.storedSize(ingested.getEncoding() == null ? null : ingested.getStoredSize())//
+				.encoding(ingested.getEncoding())//
+				.note(note)//
+				.build();
+	}
+
+	/**
+	 * Save metadata for the files of a batch once the engine has made them
+	 * visible, with one batched insert.
+	 * 
+	 * @param names     name of each file as uploaded
+	 * @param filenames cleaned name of each file
+	 * @param ingested  each checked file
+	 * @param toSave    which of the files were made visible
+	 * @param results   result for each file; filled in by this method
+	 * @param note      or description to save against every file
+	 * @param discard   removes the stored bytes of the file at an index, once
+	 *                  no metadata refers to them
+	 */
+	void saveAll(final List<String> names, final String[] filenames, final IngestedFile[] ingested,
+			final List<Integer> toSave, final XmlDocUploadResult[] results, final String note,
+			final IntConsumer discard) {
+		if (toSave.isEmpty()) {
+			return;
+		}
+		List<XmlDocMetadata> metadata = toSave.stream().map(i -> toMetadata(names.get(i), ingested[i], note))
+				.collect(Collectors.toList());
+
+		long saveStart = metrics.start();
+		try {
+			List<XmlDocMetadata> saved = xmlDocRepo.saveAll(metadata);
+			metrics.record(StorageMetrics.Stage.SAVE, saveStart);
+			for (int j = 0; j < toSave.size(); j++) {
+				int i = toSave.get(j);
+				filenameFilter.add(filenames[i]);
+				invalidateCaches(filenames[i]);
+				index(saved.get(j), ingested[i].getTerms());
+				results[i] = XmlDocUploadResult.stored(saved.get(j));
+			}
+		} catch (DataIntegrityViolationException e) {
+			// Someone else stored one of the names; save one by one to find which.
+			log.info("Batch insert hit an existing file name, saving {} files one at a time.", metadata.size());
+			for (int j = 0; j < toSave.size(); j++) {
+				int i = toSave.get(j);
+				// Drop any ID handed out for the insert that was rolled back.
+				XmlDocMetadata row = metadata.get(j).toBuilder().id(null).build();
+				try {
+					results[i] = XmlDocUploadResult.stored(
+							saveMetadata(filenames[i], ingested[i].getTerms(), row, () -> discard.accept(i)));
+				} catch (StorageException se) {
+					results[i] = XmlDocUploadResult.failed(names.get(i), se.getMessage());
+				}
+			}
+		} catch (DataAccessException e) {
+			log.error("Failed to save metadata for batch of {} files.", metadata.size(), e);
+			for (int i : toSave) {
+				discard.accept(i);
+				results[i] = XmlDocUploadResult.failed(names.get(i), "Failed to store file: " + filenames[i]);
+			}
+			return;
+		}
+		log.info("Saved {} of {} files in batch.", metadata.size(), names.size());
+	}
+
+	/**
+	 * Save metadata for a file the engine has made visible. The unique index on
+	 * file name is the final word on duplicates: if it rejects the row, the file
+	 * is removed again.
+	 * 
+	 * @param filename file name
+	 * @param terms    what to index the file by
+	 * @param metadata metadata to save
+	 * @param discard  removes the stored bytes of the file, once no metadata
+	 *                 refers to them
+	 * @return metadata saved
+	 */
+	XmlDocMetadata saveMetadata(final String filename, final XmlTerms terms, final XmlDocMetadata metadata,
+			final Runnable discard) {
+		long saveStart = metrics.start();
+		try {
+			XmlDocMetadata saved = xmlDocRepo.save(metadata);
+			metrics.record(StorageMetrics.Stage.SAVE, saveStart);
+			filenameFilter.add(filename);
+			invalidateCaches(filename);
+			index(saved, terms);
+			return saved;
+		} catch (DataIntegrityViolationException e) {
+			metrics.rejected(StorageMetrics.Rejection.DUPLICATE);
+			// Stored by someone this service did not hear about, so what is cached is wrong.
+			invalidateCaches(filename);
+			discard.run();
+			log.error("File name already stored: {}", filename, e);
+			throw new StorageException("File already exists: " + filename, e);
+		}
+	}
+
+	/**
+	 * Delete a file's metadata, then have the engine delete its bytes.
+	 * 
+	 * @param filename file name
+	 * @param discard  removes the stored bytes of the file, once no metadata
+	 *                 refers to them
+	 */
+	void delete(final String filename, final Consumer<XmlDocMetadata> discard) {
+		log.debug("Delete file {}.", filename);
+		try (NameReservations.Reservation reservation = reservations.reserve(filename)) {
+			List<XmlDocMetadata> found = xmlDocRepo.findByFilename(filename);
+			if (found.isEmpty()) {
+				throw new StorageFileNotFoundException("Could not find file: " + filename);
+			}
+			XmlDocMetadata doc = found.get(0);
+			xmlDocRepo.delete(doc);
+			invalidateCaches(filename);
+			unindex(doc);
+			discard.accept(doc);
+			log.info("Deleted file {}.", filename);
+		}
+	}
+
+	/**
+	 * Add a stored file to the index. The file stays stored if this fails; it
+	 * just cannot be found by searching.
+	 * 
+	 * @param saved metadata of the file
+	 * @param terms what to index the file by
+	 */
+	private void index(final XmlDocMetadata saved, final XmlTerms terms) {
+		XmlIndex index = xmlIndex;
+		if (index == null) {
+			return;
+		}
+		long indexStart = metrics.start();
+		try {
+			index.add(saved.getId(), terms);
+			metrics.record(StorageMetrics.Stage.INDEX, indexStart);
+		} catch (IOException | AlreadyClosedException e) {
+			log.error("Failed to index file {}.", saved.getFilename(), e);
+		}
+	}
+
+	/**
+	 * Remove a deleted file from the index.
+	 * 
+	 * @param doc metadata of the file
+	 */
+	private void unindex(final XmlDocMetadata doc) {
+		XmlIndex index = xmlIndex;
+		if (index == null) {
+			return;
+		}
+		try {
+			index.delete(doc.getId());
+		} catch (IOException | AlreadyClosedException e) {
+			log.error("Failed to remove file {} from the index.", doc.getFilename(), e);
+		}
+	}
+
+	/**
+	 * @param filenames file names to look for
+	 * @return those of the file names that are already stored
+	 */
+	private Set<String> findExisting(final Collection<String> filenames) {
+		Set<String> existing = new HashSet<>();
+		List<String> names = filenames.stream().filter(this::mightExist).collect(Collectors.toList());
+		log.debug("Looking up {} of {} file names in batch.", names.size(), filenames.size());
+		long lookupStart = metrics.start();
+		for (int from = 0; from < names.size(); from += BATCH_LOOKUP_SIZE) {
+			List<String> chunk = names.subList(from, Math.min(names.size(), from + BATCH_LOOKUP_SIZE));
+			xmlDocRepo.findByFilenameIn(chunk).forEach(doc -> existing.add(doc.getFilename()));
+		}
+		metrics.record(StorageMetrics.Stage.LOOKUP, lookupStart);
+		return existing;
+	}
+
+	/**
+	 * Check if file itself looks legit.
+	 * 
+	 * @param filename file name
+	 * @param size     size of file, or {@link XmlUpload#UNKNOWN_SIZE}
+	 */
+	void checkForPathErrors(final String filename, final long size) {
+		if (!filename.endsWith(".xml")) {
+			metrics.rejected(StorageMetrics.Rejection.EXTENSION);
+			throw new StorageException("Can only accept files with .xml extension: " + filename);
+		}
+		if (size == 0) {
+			metrics.rejected(StorageMetrics.Rejection.EMPTY);
+			throw new StorageException("Cannot save empty file: " + filename);
+		}
+		if (size > maxFileSize) {
+			metrics.rejected(StorageMetrics.Rejection.TOO_LARGE);
+			throw new StorageFileTooLargeException("File is larger than " + maxFileSize + " bytes: " + filename);
+		}
+		// Prevent directory traversal attacks; names must be safe to give back as file names too.
+		if (filename.contains("..") || filename.contains("/")) {
+			metrics.rejected(StorageMetrics.Rejection.PATH);
+			throw new StorageException("Potential directory traversal attack with file name: " + filename);
+		}
+	}
+
+	/**
+	 * Make sure a schema asked for is registered.
+	 * 
+	 * @param schema schema asked for; may be null
+	 * @return registered schema, or null if none was asked for
+	 */
+	SchemaKey resolveSchema(final SchemaKey schema) {
+		if (schema == null) {
+			return null;
+		}
+		return schemaRegistry.resolve(schema.getNamespace(), schema.getVersion())//
+				.orElseThrow(() -> {
+					metrics.rejected(StorageMetrics.Rejection.UNKNOWN_SCHEMA);
+					return new StorageException("Unknown schema: " + schema.getNamespace()
+							+ (schema.getVersion() == null ? "" : " version " + schema.getVersion()));
+				});
+	}
+
+	/**
+	 * If file exists, fail. Files are not updated in place.
+	 * 
+	 * @param filename file name
+	 */
+	void failIfFileExists(final String filename) {
+		if (!mightExist(filename)) {
+			return;
+		}
+		long lookupStart = metrics.start();
+		boolean exists = findMetadata(filename).isPresent();
+		metrics.record(StorageMetrics.Stage.LOOKUP, lookupStart);
+		if (exists) {
+			metrics.rejected(StorageMetrics.Rejection.DUPLICATE);
+			throw new StorageException("File already exists: " + filename);
+		}
+	}
+
+	/**
+	 * Drop what is cached about a file name that has just been written.
+	 * 
+	 * @param filename file name
+	 */
+	private void invalidateCaches(final String filename) {
+		metadataCache.invalidate(filename);
+		listCache.invalidateAll();
+		documentCache.invalidate(filename);
+	}
+
+	/**
+	 * @param filename file name
+	 * @return false if the file name is certainly not stored, true if it might
+	 *         be and the database needs to be asked
+	 */
+	private boolean mightExist(final String filename) {
+		return !filenameFilterReady || filenameFilter.mightContain(filename);
+	}
+
+	/**
+	 * Delete a file, logging rather than failing if we cannot.
+	 * 
+	 * @param path file to delete
+	 */
+	static void deleteQuietly(final Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ioe) {
+			log.error("WARNING: unable to delete file {}", path.toAbsolutePath(), ioe);
+		}
+	}
+
+	/**
+	 * @param filename file name
+	 * @return metadata of the file, if it is stored
+	 */
+	Optional<XmlDocMetadata> findMetadata(final String filename) {
+		return metadataCache.get(filename, name -> xmlDocRepo.findByFilename(name).stream().findFirst());
+	}
+
+	/**
+	 * Find a stored file to download, from the document cache where it can be.
+	 * 
+	 * @param filename file name
+	 * @return the bytes as stored
+	 */
+	Resource loadAsResource(final String filename) {
+		log.debug("Load file as resource {}.", filename);
+		XmlDocMetadata doc = findMetadata(filename).orElse(null);
+		// A file known to be too big to keep is neither looked up, nor counted as a miss, nor opened twice.
+		boolean cacheable = documentCache.canHold(doc == null ? 0 : storedSize(doc));
+		if (cacheable) {
+			Resource cached = documentCache.get(filename);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		try {
+			Resource stored = resolver.resolve(filename, doc);
+			if (!stored.exists()) {
+				throw new StorageFileNotFoundException("Could not read file: " + filename);
+			}
+			if (cacheable) {
+				Resource cached = documentCache.load(filename, stored);
+				if (cached != null) {
+					return cached;
+				}
+			}
+			return stored;
+		} catch (IOException e) {
+			throw new StorageFileNotFoundException("Could not read file: " + filename, e);
+		}
+	}
+
+	/**
+	 * @param doc metadata of a file
+	 * @return bytes the file takes when stored, or 0 if that is not known
+	 */
+	private static long storedSize(final XmlDocMetadata doc) {
+		return doc.getStoredSize() != null ? doc.getStoredSize() : doc.getSize();
+	}
+
+	/**
+	 * @param schema schema to check against, or null to choose by root namespace
+	 * @return progress of the check now started
+	 */
+	RevalidationStatus startRevalidation(final SchemaKey schema) {
+		return revalidator.start(resolveSchema(schema));
+	}
+
+	/**
+	 * @return progress of the latest check of stored files
+	 */
+	RevalidationStatus getRevalidationStatus() {
+		return revalidator.getStatus();
+	}
+
+	/**
+	 * @return progress of the check of stored files, once stopped
+	 */
+	RevalidationStatus cancelRevalidation() {
+		revalidator.stop();
+		return revalidator.getStatus();
+	}
+
+	/**
+	 * @param xpath XPath expression
+	 * @return the compiled query
+	 */
+	XmlQuery compileQuery(final String xpath) {
+		if (!StringUtils.hasText(xpath)) {
+			throw new StorageException("XPath query is empty.");
+		}
+		return queryCache.get(xpath, expression -> {
+			try {
+				return new XmlQuery(expression);
+			} catch (XPathExpressionException e) {
+				String reason = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+				throw new StorageException("Invalid XPath query " + expression + ": " + reason, e);
+			}
+		});
+	}
+
+	/**
+	 * @param query    compiled query
+	 * @param consumer given each match
+	 */
+	void queryFiles(final XmlQuery query, final Consumer<XmlQueryMatch> consumer) {
+		queryScanner.scan(query, consumer);
+	}
+
+	/**
+	 * @return how well each cache is doing, by name
+	 */
+	Map<String, CacheStats> getCacheStats() {
+		Map<String, CacheStats> stats = new LinkedHashMap<>();
+		stats.put("metadata", metadataCache.getStats());
+		stats.put("list", listCache.getStats());
+		stats.put("query", queryCache.getStats());
+		stats.put("document", documentCache.getStats());
+		return stats;
+	}
+
+	/**
+	 * Drop everything cached about stored files.
+	 */
+	void clearCaches() {
+		metadataCache.invalidateAll();
+		listCache.invalidateAll();
+		documentCache.invalidateAll();
+		log.info("Cleared metadata and document caches.");
+	}
+
+	/**
+	 * @return metadata of every stored file
+	 */
+	List<XmlDocMetadata> listFiles() {
+		return xmlDocRepo.findAll();
+	}
+
+	/**
+	 * @param afterId  list files with IDs after this; null to start at the
+	 *                 beginning
+	 * @param pageSize most files to list; null for the default
+	 * @return one page of files, in ID order
+	 */
+	XmlDocPage listFiles(final Integer afterId, final Integer pageSize) {
+		int size = pageSize == null ? listPageSize : Math.max(1, Math.min(pageSize, listMaxPageSize));
+		int after = afterId == null ? 0 : afterId;
+		return listCache.get(after + "/" + size, key -> {
+			// Ask for one more than a page to find out if there is a next page.
+			List<XmlDocMetadata> found = xmlDocRepo.findByIdGreaterThanOrderByIdAsc(after,
+					PageRequest.of(0, size + 1));
+			if (found.size() <= size) {
+				return new XmlDocPage(Collections.unmodifiableList(found), null);
+			}
+			List<XmlDocMetadata> page = Collections.unmodifiableList(new ArrayList<>(found.subList(0, size)));
+			return new XmlDocPage(page, page.get(size - 1).getId());
+		});
+	}
+
+	/**
+	 * @param path     element path to match, or null
+	 * @param name     attribute name to match, or null
+	 * @param value    text or attribute value to match, or null
+	 * @param afterId  list files with IDs after this; null to start at the
+	 *                 beginning
+	 * @param pageSize most files to list; null for the default
+	 * @return one page of matching files, in ID order
+	 */
+	XmlDocPage searchFiles(final String path, final String name, final String value, final Integer afterId,
+			final Integer pageSize) {
+		if (!StringUtils.hasText(path) && !StringUtils.hasText(name) && !StringUtils.hasText(value)) {
+			throw new StorageException("Search needs a path, a name or a value.");
+		}
+		XmlIndex index = xmlIndex;
+		if (index == null) {
+			throw new StorageException("Index of stored files is not open yet.");
+		}
+		int size = pageSize == null ? listPageSize : Math.max(1, Math.min(pageSize, listMaxPageSize));
+		int after = afterId == null ? 0 : afterId;
+		List<Integer> ids;
+		try {
+			// Ask for one more than a page to find out if there is a next page.
+			ids = index.search(StringUtils.hasText(path) ? path : null, StringUtils.hasText(name) ? name : null,
+					StringUtils.hasText(value) ? value : null, after, size + 1);
+		} catch (IOException | AlreadyClosedException e) {
+			throw new StorageException("Failed to search index of stored files.", e);
+		}
+		Integer nextCursor = null;
+		if (ids.size() > size) {
+			ids = ids.subList(0, size);
+			nextCursor = ids.get(size - 1);
+		}
+		// Files deleted other than through this service may still be indexed.
+		List<XmlDocMetadata> found = new ArrayList<>(xmlDocRepo.findAllById(ids));
+		found.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+		return new XmlDocPage(Collections.unmodifiableList(found), nextCursor);
+	}
+
+	/**
+	 * @param filenames names of the files
+	 * @return metadata of each file, in the order asked for, once each
+	 */
+	List<XmlDocMetadata> findFiles(final List<String> filenames) {
+		List<String> names = new ArrayList<>(new LinkedHashSet<>(filenames));
+		Map<String, XmlDocMetadata> found = new LinkedHashMap<>();
+		long lookupStart = metrics.start();
+		for (int from = 0; from < names.size(); from += BATCH_LOOKUP_SIZE) {
+			List<String> chunk = names.subList(from, Math.min(names.size(), from + BATCH_LOOKUP_SIZE));
+			xmlDocRepo.findByFilenameIn(chunk).forEach(doc -> found.put(doc.getFilename(), doc));
+		}
+		metrics.record(StorageMetrics.Stage.LOOKUP, lookupStart);
+		List<String> missing = names.stream().filter(name -> !found.containsKey(name)).collect(Collectors.toList());
+		if (!missing.isEmpty()) {
+			throw new StorageFileNotFoundException("Could not find " + missing.size() + " files: "
+					+ missing.stream().limit(10).collect(Collectors.joining(", ")));
+		}
+		return names.stream().map(found::get).collect(Collectors.toList());
+	}
+
+	/**
+	 * Write files to a ZIP archive, as uploaded.
+	 * 
+	 * <b>Implementation note</b>: gzipped files are copied into the archive as
+	 * they are stored, without being inflated and deflated again.
+	 * 
+	 * @param files files to export
+	 * @param out   where to write the archive; not closed
+	 * @throws IOException if a file cannot be read or the archive written
+	 */
+	void exportFiles(final List<XmlDocMetadata> files, final OutputStream out) throws IOException {
+		ZipStreamWriter zip = new ZipStreamWriter(out, LocalDateTime.now(), Deflater.DEFAULT_COMPRESSION);
+		for (XmlDocMetadata doc : files) {
+			exportFile(zip, doc);
+		}
+		zip.finish();
+		log.info("Exported {} of {} files.", zip.getEntryCount(), files.size());
+	}
+
+	/**
+	 * Write every file, or every file a search finds, to a ZIP archive.
+	 * 
+	 * @param path  element path to match, or null
+	 * @param name  attribute name to match, or null
+	 * @param value text or attribute value to match, or null
+	 * @param out   where to write the archive; not closed
+	 * @throws IOException if a file cannot be read or the archive written
+	 */
+	void exportMatchingFiles(final String path, final String name, final String value, final OutputStream out)
+			throws IOException {
+		boolean filtered = StringUtils.hasText(path) || StringUtils.hasText(name) || StringUtils.hasText(value);
+		ZipStreamWriter zip = new ZipStreamWriter(out, LocalDateTime.now(), Deflater.DEFAULT_COMPRESSION);
+		// Read a page at a time, so no database cursor is held open while a slow client reads.
+		int after = 0;
+		while (true) {
+			List<XmlDocMetadata> page;
+			Integer next;
+			if (filtered) {
+				XmlDocPage found = searchFiles(path, name, value, after, listMaxPageSize);
+				page = found.getItems();
+				next = found.getNextCursor();
+			} else {
+				page = xmlDocRepo.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, listMaxPageSize));
+				next = page.size() < listMaxPageSize ? null : page.get(page.size() - 1).getId();
+			}
+			for (XmlDocMetadata doc : page) {
+				exportFile(zip, doc);
+			}
+			if (next == null) {
+				break;
+			}
+			after = next;
+		}
+		zip.finish();
+		log.info("Exported {} files matching path [{}], name [{}], value [{}].", zip.getEntryCount(), path, name,
+				value);
+	}
+
+	/**
+	 * Add one file to an archive, leaving it out if it has gone missing.
+	 * 
+	 * @param zip archive to add to
+	 * @param doc metadata of the file
+	 * @throws IOException if the file cannot be read or the archive written
+	 */
+	private void exportFile(final ZipStreamWriter zip, final XmlDocMetadata doc) throws IOException {
+		try {
+			Resource stored = resolver.resolve(doc.getFilename(), doc);
+			try (InputStream in = stored.getInputStream()) {
+				if (StorageCompression.GZIP_ENCODING.equals(doc.getEncoding())) {
+					zip.addGzip(doc.getFilename(), doc.getSize(), stored.contentLength(), in);
+				} else {
+					zip.addDeflated(doc.getFilename(), doc.getSize(), in);
+				}
+			}
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			log.warn("Left stored file {} out of export, as it is missing: {}", doc.getFilename(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @param consumer given the metadata of every stored file, one at a time
+	 */
+	void streamFiles(final Consumer<XmlDocMetadata> consumer) {
+		readOnlyTransaction.executeWithoutResult(status -> {
+			try (Stream<XmlDocMetadata> docs = xmlDocRepo.streamAll()) {
+				docs.forEach(doc -> {
+					consumer.accept(doc);
+					// Keep the persistence context from growing with every row read.
+					entityManager.detach(doc);
+				});
+			}
+		});
+	}
+
+	/**
+	 * Open the index of stored files, and if it has just been created, start
+	 * indexing the files stored before it was.
+	 */
+	private void openIndex() {
+		XmlIndex index;
+		try {
+			index = new XmlIndex(indexLocation, indexCommitInterval);
+		} catch (IOException e) {
+			throw new StorageException("Failed to open index of stored files.", e);
+		}
+		xmlIndex = index;
+		if (index.isCreated()) {
+			indexBackfill = new IndexBackfill(xmlDocRepo, opener, xmlValidator, index, indexMaxValueLength,
+					indexMaxTerms);
+			indexBackfill.start();
+		}
+	}
+
+	/**
+	 * Add every stored file name to {@link #filenameFilter}. Names stored while
+	 * this runs are added by the stores themselves.
+	 */
+	private void loadFilenameFilter() {
+		long[] count = {0};
+		readOnlyTransaction.executeWithoutResult(status -> {
+			try (Stream<String> filenames = xmlDocRepo.streamAllFilenames()) {
+				filenames.forEach(filename -> {
+					filenameFilter.add(filename);
+					count[0]++;
+				});
+			}
+		});
+		filenameFilterReady = true;
+		log.info("Loaded {} file names into a filter of {} bits.", count[0], filenameFilter.getBitCount());
+	}
+
+	/**
+	 * Checks an upload and writes its bytes where the storage engine keeps them
+	 * until it is stored.
+	 */
+	@FunctionalInterface
+	interface Ingester {
+
+		/**
+		 * @param content  contents of the upload
+		 * @param filename file name
+		 * @param schema   schema to validate against, or null to choose by root
+		 *                 namespace
+		 * @return the checked, but not yet visible, file
+		 */
+		IngestedFile ingest(InputStreamSource content, String filename, SchemaKey schema);
+	}
+
+	/**
+	 * Makes the checked files of a batch visible where the storage engine keeps
+	 * them, and saves their metadata with {@link StoredFileCatalog#saveAll}.
+	 * Their names are reserved.
+	 */
+	@FunctionalInterface
+	interface BatchWriter {
+
+		/**
+		 * @param names     name of each file as uploaded
+		 * @param filenames cleaned name of each file
+		 * @param ingested  each checked file, or null for files that already have
+		 *                  a result
+		 * @param results   result for each file; filled in by this method
+		 * @param note      or description to save against every file
+		 */
+		void write(List<String> names, String[] filenames, IngestedFile[] ingested, XmlDocUploadResult[] results,
+				String note);
+	}
+}
@@ -0,0 +1,21 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+
+/**
+ * Opens the stored bytes of a file, wherever the storage engine keeps them.
+ */
+@FunctionalInterface
+interface StoredFileOpener {
+
+	/**
+	 * @param doc metadata of the file
+	 * @return the bytes as stored, which may be compressed
+	 * @throws java.nio.file.NoSuchFileException if the file is missing
+	 * @throws IOException                       if the file cannot be read
+	 */
+	InputStream open(XmlDocMetadata doc) throws IOException;
+}
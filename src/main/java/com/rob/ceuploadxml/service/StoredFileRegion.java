@@ -0,0 +1,20 @@
+package com.rob.ceuploadxml.service;
+
+import java.nio.file.Path;
+
+/**
+ * A stored file kept as one region of a larger file, which can be read there
+ * with a channel of its own.
+ */
+public interface StoredFileRegion {
+
+	/**
+	 * @return the file holding the stored bytes
+	 */
+	Path getRegionFile();
+
+	/**
+	 * @return where the stored bytes start in {@link #getRegionFile()}
+	 */
+	long getRegionOffset();
+}
@@ -0,0 +1,26 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+
+import org.springframework.core.io.Resource;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+
+/**
+ * Finds the stored bytes of a file, wherever the storage engine keeps them,
+ * without reading them.
+ */
+@FunctionalInterface
+interface StoredFileResolver {
+
+	/**
+	 * @param filename file name
+	 * @param doc      metadata of the file; null if there is none
+	 * @return the bytes as stored, which may be compressed; a file found to be
+	 *         missing only once it is read fails then, or does not exist
+	 * @throws java.nio.file.NoSuchFileException if the file is known to be
+	 *                                           missing
+	 * @throws IOException                       if the file cannot be found
+	 */
+	Resource resolve(String filename, XmlDocMetadata doc) throws IOException;
+}
@@ -0,0 +1,106 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream that copies every byte it reads to an output stream, so one
+ * pass over an upload can feed a parser and write the file at the same time.
+ * Closing this stream closes both the source and the copy.
+ */
+public final class TeeInputStream extends FilterInputStream {
+
+	/**
+	 * Where bytes read from the source are copied to.
+	 */
+	private final OutputStream copy;
+
+	/**
+	 * Number of bytes read (and copied) so far.
+	 */
+	private long count;
+
+	/**
+	 * @param source stream to read from
+	 * @param copy   stream every byte read is written to
+	 */
+	public TeeInputStream(final InputStream source, final OutputStream copy) {
+		super(source);
+		this.copy = copy;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			copy.write(b);
+			count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			copy.write(buffer, offset, read);
+			count += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Skipping would leave holes in the copy, so read the bytes instead.
+	 */
+	@Override
+	public long skip(final long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read whatever is left in the source so the copy is complete, even if the
+	 * consumer stopped reading early.
+	 *
+	 * @return total number of bytes read from the source
+	 * @throws IOException if the source cannot be read or the copy written
+	 */
+	public long drain() throws IOException {
+		byte[] buffer = new byte[8192];
+		while (read(buffer, 0, buffer.length) != -1) {
+			// Keep reading.
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of bytes read (and copied) so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			copy.close();
+		}
+	}
+}
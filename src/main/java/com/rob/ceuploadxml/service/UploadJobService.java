@@ -0,0 +1,371 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.rob.ceuploadxml.model.UploadJobStatus;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.validator.SchemaKey;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Stores uploads in the background, so a request only has to wait for the
+ * upload to be spooled to disk, not for it to be checked and saved.
+ * 
+ * <b>Implementation note</b>: the servlet container deletes an upload once its
+ * request is over, so each upload is first copied to the incoming folder of
+ * storage. A bounded pool of workers then stores it with
+ * {@link XmlStorageService#store(XmlUpload, String, SchemaKey)}, exactly as if
+ * it had been stored straight away. When every worker is busy and the queue is
+ * full, new uploads are turned away rather than queued without limit. Finished
+ * jobs are remembered for {@link StorageProperties#getAsyncJobRetention()}.
+ */
+@Service
+@Log4j2
+public final class UploadJobService {
+
+	/**
+	 * Stores the uploads.
+	 */
+	private final XmlStorageService storageService;
+
+	/**
+	 * Where uploads are spooled until a worker stores them.
+	 */
+	private final Path spoolLocation;
+
+	/**
+	 * Stores uploads, a few at a time.
+	 */
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * How long finished jobs are remembered for, in nanoseconds.
+	 */
+	private final long retentionNanos;
+
+	/**
+	 * Jobs by ID.
+	 */
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+	/**
+	 * When finished jobs were last forgotten, in nanoseconds.
+	 */
+	private final AtomicLong lastPurge = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param storageService stores the uploads
+	 * @param properties     where to spool uploads, and how many to store at once
+	 */
+	@Autowired
+	public UploadJobService(final XmlStorageService storageService, final StorageProperties properties) {
+		this.storageService = storageService;
+		this.spoolLocation = new StorageLayout(Paths.get(properties.getLocation())).getIncomingLocation();
+		int threads = Math.max(1, properties.getAsyncThreads());
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, properties.getAsyncQueueSize())),
+				new CustomizableThreadFactory("xml-async-"));
+		this.retentionNanos = properties.getAsyncJobRetention().toNanos();
+	}
+
+	/**
+	 * Stop taking uploads. Uploads already queued are still stored.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * Spool an upload and queue it to be stored.
+	 * 
+	 * @param file   file to store
+	 * @param note   or description to save against the file
+	 * @param schema schema to validate against, or null to use the schema
+	 *               registered for the root namespace, if any
+	 * @return where the upload has got to
+	 * @throws RejectedExecutionException if too many uploads are waiting already
+	 */
+	public UploadJobStatus submit(final MultipartFile file, final String note, final SchemaKey schema) {
+		purgeFinishedJobs();
+		if (workers.getQueue().remainingCapacity() == 0) {
+			throw new RejectedExecutionException("Too many uploads waiting to be stored.");
+		}
+		String filename = file.getOriginalFilename() == null ? "" : file.getOriginalFilename();
+		Path spooled = spool(file, filename);
+		Job job = new Job(UploadJobStatus.builder()//
+				.id(UUID.randomUUID().toString())//
+				.filename(filename)//
+				.state(UploadJobStatus.State.QUEUED)//
+				.size(file.getSize())//
+				.submittedAt(Instant.now())//
+				.build());
+		jobs.put(job.getId(), job);
+		try {
+			workers.execute(() -> run(job, spooled, note, schema));
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			deleteQuietly(spooled);
+			throw e;
+		}
+		log.debug("Queued upload of {} as job {}.", filename, job.getId());
+		return job.getStatus();
+	}
+
+	/**
+	 * @return a new empty file in the incoming folder, for a caller to spool an
+	 *         upload to before handing it to
+	 *         {@link #store(Path, String, String, SchemaKey)}
+	 * @throws IOException if the file cannot be created
+	 */
+	public Path createSpoolFile() throws IOException {
+		Files.createDirectories(spoolLocation);
+		return Files.createTempFile(spoolLocation, "spool-", ".part").toAbsolutePath();
+	}
+
+	/**
+	 * Store an upload the caller has spooled, on the same workers as queued
+	 * jobs, but without a job to follow: the caller waits on the result instead.
+	 * The spooled copy is deleted once it has been stored or rejected.
+	 * 
+	 * @param spooled  where the upload was spooled to
+	 * @param filename name to store the upload under
+	 * @param note     or description to save against the file
+	 * @param schema   schema to validate against, or null
+	 * @return the metadata saved, or the {@link StorageException} saying why the
+	 *         file was not stored
+	 * @throws RejectedExecutionException if too many uploads are waiting already;
+	 *                                    the spooled copy is deleted
+	 */
+	public CompletableFuture<XmlDocMetadata> store(final Path spooled, final String filename, final String note,
+			final SchemaKey schema) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return storageService.store(new XmlUpload(filename, Files.size(spooled),
+							() -> Files.newInputStream(spooled)), note, schema);
+				} catch (IOException e) {
+					throw new StorageException("Failed to store file: " + filename, e);
+				} finally {
+					deleteQuietly(spooled);
+				}
+			}, workers);
+		} catch (RejectedExecutionException e) {
+			deleteQuietly(spooled);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param id ID of the job
+	 * @return where the upload has got to, if the job is known
+	 */
+	public Optional<UploadJobStatus> getStatus(final String id) {
+		purgeFinishedJobs();
+		return Optional.ofNullable(jobs.get(id)).map(Job::getStatus);
+	}
+
+	/**
+	 * Copy an upload to disk, so it outlives its request.
+	 * 
+	 * @param file     file to copy
+	 * @param filename name of the file
+	 * @return where the upload was copied to
+	 */
+	private Path spool(final MultipartFile file, final String filename) {
+		Path spooled = null;
+		try {
+			Files.createDirectories(spoolLocation);
+			spooled = Files.createTempFile(spoolLocation, "spool-", ".part").toAbsolutePath();
+			file.transferTo(spooled);
+			return spooled;
+		} catch (IOException e) {
+			if (spooled != null) {
+				deleteQuietly(spooled);
+			}
+			log.error("Failed to spool file [{}]", filename, e);
+			throw new StorageException("Failed to store file: " + filename, e);
+		}
+	}
+
+	/**
+	 * Store a spooled upload, recording how it went.
+	 * 
+	 * @param job     job for the upload
+	 * @param spooled where the upload was spooled to
+	 * @param note    or description to save against the file
+	 * @param schema  schema to validate against, or null
+	 */
+	private void run(final Job job, final Path spooled, final String note, final SchemaKey schema) {
+		job.update(status -> status.toBuilder().state(UploadJobStatus.State.RUNNING).startedAt(Instant.now()));
+		try {
+			XmlUpload upload = new XmlUpload(job.getStatus().getFilename(), job.getStatus().getSize(),
+					() -> new CountingInputStream(Files.newInputStream(spooled), job.bytesRead));
+			UploadJobStatus stored = job.update(status -> status.toBuilder()//
+					.state(UploadJobStatus.State.STORED)//
+					.metadata(storageService.store(upload, note, schema)));
+			log.info("Stored {} for job {}.", stored.getFilename(), job.getId());
+		} catch (StorageException e) {
+			job.update(status -> status.toBuilder().state(UploadJobStatus.State.FAILED).error(e.getMessage()));
+		} catch (RuntimeException e) {
+			log.error("Failed to store file for job {}.", job.getId(), e);
+			job.update(status -> status.toBuilder()//
+					.state(UploadJobStatus.State.FAILED)//
+					.error("Failed to store file: " + job.getStatus().getFilename()));
+		} finally {
+			job.update(status -> status.toBuilder().finishedAt(Instant.now()));
+			deleteQuietly(spooled);
+		}
+	}
+
+	/**
+	 * Forget jobs that finished longer ago than they are remembered for. Done at
+	 * most ten times per retention period, so it costs little however busy we
+	 * are.
+	 */
+	private void purgeFinishedJobs() {
+		long now = System.nanoTime();
+		long last = lastPurge.get();
+		if (now - last < retentionNanos / 10 || !lastPurge.compareAndSet(last, now)) {
+			return;
+		}
+		Instant cutoff = Instant.now().minus(Duration.ofNanos(retentionNanos));
+		jobs.values().removeIf(job -> {
+			Instant finishedAt = job.getStatus().getFinishedAt();
+			return finishedAt != null && finishedAt.isBefore(cutoff);
+		});
+	}
+
+	/**
+	 * Delete a file, logging rather than failing if we cannot.
+	 * 
+	 * @param path file to delete
+	 */
+	private void deleteQuietly(final Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ioe) {
+			log.error("WARNING: unable to delete file {}", path.toAbsolutePath(), ioe);
+		}
+	}
+
+	/**
+	 * An upload being stored in the background.
+	 */
+	private static final class Job {
+
+		/**
+		 * Bytes of the upload read so far.
+		 */
+		private final AtomicLong bytesRead = new AtomicLong();
+
+		/**
+		 * Where the upload has got to, apart from {@link #bytesRead}. Only ever
+		 * replaced, never changed.
+		 */
+		private volatile UploadJobStatus status;
+
+		/**
+		 * @param status where the upload starts
+		 */
+		Job(final UploadJobStatus status) {
+			this.status = status;
+		}
+
+		/**
+		 * @return ID of the job
+		 */
+		String getId() {
+			return status.getId();
+		}
+
+		/**
+		 * @return where the upload has got to
+		 */
+		UploadJobStatus getStatus() {
+			return status.toBuilder().bytesRead(bytesRead.get()).build();
+		}
+
+		/**
+		 * Move the upload on. Only the worker storing the upload calls this.
+		 * 
+		 * @param change builds the new status from the current one
+		 * @return the new status
+		 */
+		UploadJobStatus update(final Function<UploadJobStatus, UploadJobStatus.UploadJobStatusBuilder> change) {
+			status = change.apply(status).build();
+			return getStatus();
+		}
+	}
+
+	/**
+	 * Input stream that counts the bytes read through it.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		/**
+		 * Bytes read so far.
+		 */
+		private final AtomicLong count;
+
+		/**
+		 * @param source stream to read from
+		 * @param count  bytes read so far; added to as bytes are read
+		 */
+		CountingInputStream(final InputStream source, final AtomicLong count) {
+			super(source);
+			this.count = count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				count.addAndGet(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = super.skip(n);
+			count.addAndGet(skipped);
+			return skipped;
+		}
+	}
+}
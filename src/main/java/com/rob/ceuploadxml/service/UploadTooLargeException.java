@@ -0,0 +1,23 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link SizeLimitedInputStream} when an upload goes over its limit.
+ * It is an <code>IOException</code> so it passes through parsers and copies of
+ * the stream unchanged.
+ */
+public final class UploadTooLargeException extends IOException {
+
+	/**
+	 * Serial version UID.
+	 */
+	private static final long serialVersionUID = 4187052281639903128L;
+
+	/**
+	 * @param limit most bytes that could be read
+	 */
+	public UploadTooLargeException(final long limit) {
+		super("Upload is larger than " + limit + " bytes.");
+	}
+}
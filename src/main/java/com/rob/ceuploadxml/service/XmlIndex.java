@@ -0,0 +1,237 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Inverted index of the paths, names and short values in each stored file,
+ * kept on disk next to the files and keyed by the ID of each file's metadata.
+ * 
+ * <b>Implementation note</b>: a Lucene index, with every term indexed whole
+ * rather than split into words. Searches see every file indexed before they
+ * started, as the reader is refreshed first, but the index is only committed
+ * to disk every so often, so files stored just before a crash may be missing
+ * from it. Entries for IDs with no metadata are dropped by the caller.
+ */
+@Log4j2
+final class XmlIndex implements Closeable {
+
+	/**
+	 * ID of the metadata, as a term, a point and a doc value.
+	 */
+	private static final String ID = "id";
+
+	/**
+	 * Paths of elements and attributes.
+	 */
+	private static final String PATH = "path";
+
+	/**
+	 * Names of elements and attributes.
+	 */
+	private static final String NAME = "name";
+
+	/**
+	 * Short values.
+	 */
+	private static final String VALUE = "value";
+
+	/**
+	 * Short values with the path they were found at.
+	 */
+	private static final String PATH_VALUE = "pathValue";
+
+	/**
+	 * Where the index is kept.
+	 */
+	private final Directory directory;
+
+	/**
+	 * Adds and removes files.
+	 */
+	private final IndexWriter writer;
+
+	/**
+	 * Hands out readers, refreshed to see recent changes.
+	 */
+	private final SearcherManager searchers;
+
+	/**
+	 * Most nanoseconds between commits to disk.
+	 */
+	private final long commitIntervalNanos;
+
+	/**
+	 * True if there was no index in the folder before it was opened.
+	 */
+	private final boolean created;
+
+	/**
+	 * When the index was last committed to disk.
+	 */
+	private volatile long lastCommit = System.nanoTime();
+
+	/**
+	 * @param location       folder the index is kept in; created if need be
+	 * @param commitInterval most nanoseconds between commits to disk
+	 * @throws IOException if the index cannot be opened
+	 */
+	XmlIndex(final Path location, final long commitInterval) throws IOException {
+		Files.createDirectories(location);
+		this.directory = FSDirectory.open(location);
+		this.created = !DirectoryReader.indexExists(directory);
+		this.writer = new IndexWriter(directory, new IndexWriterConfig());
+		this.searchers = new SearcherManager(writer, null);
+		this.commitIntervalNanos = commitInterval;
+	}
+
+	/**
+	 * @return true if there was no index in the folder before it was opened, so
+	 *         any file stored before then is not indexed
+	 */
+	boolean isCreated() {
+		return created;
+	}
+
+	/**
+	 * Index a file, replacing what was indexed for it before.
+	 * 
+	 * @param id    ID of the file's metadata
+	 * @param terms what to index the file by
+	 * @throws IOException if the index cannot be written
+	 */
+	void add(final int id, final XmlTerms terms) throws IOException {
+		Document doc = new Document();
+		doc.add(new StringField(ID, Integer.toString(id), Field.Store.NO));
+		doc.add(new IntPoint(ID, id));
+		doc.add(new NumericDocValuesField(ID, id));
+		doc.add(new StoredField(ID, id));
+		addAll(doc, PATH, terms.getPaths());
+		addAll(doc, NAME, terms.getNames());
+		addAll(doc, VALUE, terms.getValues());
+		addAll(doc, PATH_VALUE, terms.getPathValues());
+		writer.updateDocument(new Term(ID, Integer.toString(id)), doc);
+		maybeCommit();
+	}
+
+	/**
+	 * @param doc   document to add to
+	 * @param field field to add
+	 * @param terms each value of the field
+	 */
+	private static void addAll(final Document doc, final String field, final Set<String> terms) {
+		for (String term : terms) {
+			doc.add(new StringField(field, term, Field.Store.NO));
+		}
+	}
+
+	/**
+	 * Remove a file from the index.
+	 * 
+	 * @param id ID of the file's metadata
+	 * @throws IOException if the index cannot be written
+	 */
+	void delete(final int id) throws IOException {
+		writer.deleteDocuments(new Term(ID, Integer.toString(id)));
+		maybeCommit();
+	}
+
+	/**
+	 * Find files with everything asked for, in ID order. Leave out a criterion to
+	 * not filter by it; at least one must be given.
+	 * 
+	 * @param path  path of an element or attribute, such as
+	 *              <code>/books/book/@id</code>; with a value, the value must
+	 *              be at this path
+	 * @param name  local name of an element, or of an attribute with a leading
+	 *              <code>@</code>
+	 * @param value whole text of an element, or value of an attribute
+	 * @param after only find IDs after this
+	 * @param limit most IDs to find
+	 * @return IDs of the files found
+	 * @throws IOException if the index cannot be read
+	 */
+	List<Integer> search(final String path, final String name, final String value, final int after,
+			final int limit) throws IOException {
+		BooleanQuery.Builder query = new BooleanQuery.Builder();
+		query.add(IntPoint.newRangeQuery(ID, after + 1, Integer.MAX_VALUE), BooleanClause.Occur.FILTER);
+		if (path != null && value != null) {
+			query.add(new TermQuery(new Term(PATH_VALUE, path + "=" + value)), BooleanClause.Occur.FILTER);
+		} else if (path != null) {
+			query.add(new TermQuery(new Term(PATH, path)), BooleanClause.Occur.FILTER);
+		} else if (value != null) {
+			query.add(new TermQuery(new Term(VALUE, value)), BooleanClause.Occur.FILTER);
+		}
+		if (name != null) {
+			query.add(new TermQuery(new Term(NAME, name)), BooleanClause.Occur.FILTER);
+		}
+		searchers.maybeRefreshBlocking();
+		IndexSearcher searcher = searchers.acquire();
+		try {
+			TopDocs found = searcher.search(query.build(), limit, new Sort(new SortField(ID, SortField.Type.INT)));
+			List<Integer> ids = new ArrayList<>(found.scoreDocs.length);
+			for (ScoreDoc hit : found.scoreDocs) {
+				ids.add(searcher.doc(hit.doc).getField(ID).numericValue().intValue());
+			}
+			return ids;
+		} finally {
+			searchers.release(searcher);
+		}
+	}
+
+	/**
+	 * Commit to disk if it has been long enough since the last commit.
+	 * 
+	 * @throws IOException if the index cannot be written
+	 */
+	private void maybeCommit() throws IOException {
+		long now = System.nanoTime();
+		if (now - lastCommit >= commitIntervalNanos) {
+			lastCommit = now;
+			writer.commit();
+		}
+	}
+
+	/**
+	 * Commit everything to disk and close the index.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			searchers.close();
+			writer.close();
+		} finally {
+			directory.close();
+		}
+		log.info("Closed index of stored files.");
+	}
+}
@@ -0,0 +1,97 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFactoryConfigurationException;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * An XPath expression, compiled, that stored files can be queried with.
+ * 
+ * <b>Implementation note</b>: a compiled <code>XPathExpression</code> is not
+ * thread safe, so each evaluation borrows one from a pool and gives it back
+ * after, compiling another only when every one is in use. The pool never holds
+ * more than the most threads that ever evaluated at once.
+ */
+public final class XmlQuery {
+
+	/**
+	 * Compiles expressions, configured once. Guarded by itself.
+	 */
+	private static final XPathFactory FACTORY = newFactory();
+
+	/**
+	 * The expression.
+	 */
+	private final String xpath;
+
+	/**
+	 * Compiled copies of the expression not currently in use.
+	 */
+	private final Queue<XPathExpression> idle = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param xpath the expression
+	 * @throws XPathExpressionException if the expression does not compile
+	 */
+	XmlQuery(final String xpath) throws XPathExpressionException {
+		this.xpath = xpath;
+		idle.offer(compile());
+	}
+
+	/**
+	 * @return a factory with extension functions turned off
+	 */
+	private static XPathFactory newFactory() {
+		XPathFactory factory = XPathFactory.newInstance();
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (XPathFactoryConfigurationException e) {
+			throw new IllegalStateException("Unable to configure XPath factory.", e);
+		}
+		return factory;
+	}
+
+	/**
+	 * @return the expression
+	 */
+	public String getXpath() {
+		return xpath;
+	}
+
+	/**
+	 * @param node node to evaluate the expression against, usually a document
+	 * @return nodes the expression selects
+	 * @throws XPathExpressionException if the expression does not select nodes,
+	 *                                  or cannot be evaluated
+	 */
+	NodeList evaluate(final Node node) throws XPathExpressionException {
+		XPathExpression expression = idle.poll();
+		if (expression == null) {
+			expression = compile();
+		}
+		try {
+			return (NodeList) expression.evaluate(node, XPathConstants.NODESET);
+		} finally {
+			idle.offer(expression);
+		}
+	}
+
+	/**
+	 * @return a new compiled copy of the expression
+	 * @throws XPathExpressionException if the expression does not compile
+	 */
+	private XPathExpression compile() throws XPathExpressionException {
+		synchronized (FACTORY) {
+			return FACTORY.newXPath().compile(xpath);
+		}
+	}
+}
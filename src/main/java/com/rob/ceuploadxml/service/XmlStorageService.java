@@ -1,46 +1,264 @@
-package com.rob.ceuploadxml.service;
-
-import java.nio.file.Path;
-import java.util.List;
-
-import org.springframework.core.io.Resource;
-import org.springframework.web.multipart.MultipartFile;
-
-import com.rob.ceuploadxml.model.XmlDocMetadata;
-
-/**
- * Service for dealing with XML files from some file store.
- */
-public interface XmlStorageService {
-
-	void init();
-
-	/**
-	 * Save a file to storage.
-	 * 
-	 * @param file file to store
-	 * @param note or description to save against the file
-	 * @return data about file stored
-	 */
-	XmlDocMetadata store(MultipartFile file, String note);
-
-	/**
-	 * Load a file from storage.
-	 * 
-	 * @param filename name of file to load
-	 * @return path object for file
-	 */
-	Path load(String filename);
-
-	/**
-	 * @param filename name of file to load
-	 * @return resource object for file
-	 */
-	Resource loadAsResource(String filename);
-
-	/**
-	 * @return list of all XML files.
-	 */
-	List<XmlDocMetadata> listFiles();
-
-}
+package com.rob.ceuploadxml.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.springframework.core.io.Resource;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocPage;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
+import com.rob.ceuploadxml.model.XmlQueryMatch;
+import com.rob.ceuploadxml.validator.SchemaKey;
+
+/**
+ * Service for dealing with XML files from some file store.
+ */
+public interface XmlStorageService {
+
+	void init();
+
+	/**
+	 * Save a file to storage.
+	 * 
+	 * @param file file to store
+	 * @param note or description to save against the file
+	 * @return data about file stored
+	 */
+	default XmlDocMetadata store(MultipartFile file, String note) {
+		return store(file, note, null);
+	}
+
+	/**
+	 * Save a file to storage after validating it against a schema.
+	 * 
+	 * @param file   file to store
+	 * @param note   or description to save against the file
+	 * @param schema schema to validate against (version may be null for the
+	 *               latest), or null to use the schema registered for the root
+	 *               namespace, if any
+	 * @return data about file stored
+	 */
+	default XmlDocMetadata store(MultipartFile file, String note, SchemaKey schema) {
+		return store(XmlUpload.of(file), note, schema);
+	}
+
+	/**
+	 * Save a file read from any source to storage after validating it against a
+	 * schema.
+	 * 
+	 * @param upload file to store
+	 * @param note   or description to save against the file
+	 * @param schema schema to validate against (version may be null for the
+	 *               latest), or null to use the schema registered for the root
+	 *               namespace, if any
+	 * @return data about file stored
+	 */
+	XmlDocMetadata store(XmlUpload upload, String note, SchemaKey schema);
+
+	/**
+	 * Save many files to storage. A file that cannot be stored does not stop the
+	 * others being stored.
+	 * 
+	 * @param uploads files to store
+	 * @param note    or description to save against every file
+	 * @return result for each file, in the same order as <code>uploads</code>
+	 */
+	List<XmlDocUploadResult> storeAll(List<XmlUpload> uploads, String note);
+
+	/**
+	 * Store every entry of a ZIP or TAR archive, which may be gzipped, as
+	 * {@link #storeAll(List, String)} does. Entries are stored under their own
+	 * names, without the folders they are in; folders themselves are skipped. The
+	 * archive is read once, as a stream, and never held in memory.
+	 * 
+	 * @param archive the archive; read to the end, but not closed
+	 * @param note    or description to save against every file
+	 * @return result for each entry, in archive order
+	 * @throws StorageException if the stream is not a ZIP or TAR archive
+	 */
+	List<XmlDocUploadResult> storeArchive(InputStream archive, String note);
+
+	/**
+	 * Load a file from storage.
+	 * 
+	 * @param filename name of file to load
+	 * @return path object for file
+	 */
+	Path load(String filename);
+
+	/**
+	 * @param filename name of file to load
+	 * @return resource object for file
+	 */
+	Resource loadAsResource(String filename);
+
+	/**
+	 * @param filename name of file
+	 * @return data about the file, if it is stored
+	 */
+	Optional<XmlDocMetadata> findMetadata(String filename);
+
+	/**
+	 * Delete a file and its metadata.
+	 * 
+	 * @param filename name of file to delete
+	 */
+	void delete(String filename);
+
+	/**
+	 * Start moving files stored before the layout was sharded into the sharded
+	 * layout, in the background. Files can still be read while they are moved.
+	 * Does nothing if a migration is already running.
+	 * 
+	 * @return progress of the migration
+	 * @throws StorageException if the layout is not sharded
+	 */
+	ShardMigrationStatus startShardMigration();
+
+	/**
+	 * @return progress of the latest migration into the sharded layout
+	 * @throws StorageException if the layout is not sharded
+	 */
+	ShardMigrationStatus getShardMigrationStatus();
+
+	/**
+	 * Start checking every stored file again in the background, such as after a
+	 * schema has changed. Does nothing if a check is already running.
+	 * 
+	 * @param schema schema to check every file against (version may be null for
+	 *               the latest), or null to check each file against the latest
+	 *               schema for its root namespace
+	 * @return progress of the check
+	 */
+	RevalidationStatus startRevalidation(SchemaKey schema);
+
+	/**
+	 * @return progress of the latest check of stored files
+	 */
+	RevalidationStatus getRevalidationStatus();
+
+	/**
+	 * Stop a running check of stored files early.
+	 * 
+	 * @return progress of the check
+	 */
+	RevalidationStatus cancelRevalidation();
+
+	/**
+	 * Compile an XPath expression to query stored files with, reusing it if it
+	 * was compiled recently.
+	 * 
+	 * @param xpath XPath 1.0 expression that selects nodes
+	 * @return the compiled query
+	 * @throws StorageException if the expression does not compile
+	 */
+	XmlQuery compileQuery(String xpath);
+
+	/**
+	 * Query every stored file, handing back each matched node, and each file that
+	 * could not be queried, as soon as it is found. Returns once every file has
+	 * been queried or the most matches have been handed back.
+	 * 
+	 * @param query    query from {@link #compileQuery(String)}
+	 * @param consumer takes each match, on the calling thread; throw to stop the
+	 *                 query early
+	 */
+	void queryFiles(XmlQuery query, Consumer<XmlQueryMatch> consumer);
+
+	/**
+	 * Find files from the index built as they were stored, in ID order. Leave out
+	 * a criterion to not filter by it; at least one must be given.
+	 * 
+	 * @param path     path of an element or attribute, such as
+	 *                 <code>/books/book/@id</code>; with a value, the value must
+	 *                 be found at this path
+	 * @param name     local name of an element, or of an attribute with a leading
+	 *                 <code>@</code>
+	 * @param value    whole text of an element, or value of an attribute
+	 * @param afterId  find files with IDs after this; null to start at the
+	 *                 beginning
+	 * @param pageSize most files to find; null for the default page size
+	 * @return page of files found, with the cursor of the next page if there is
+	 *         one
+	 * @throws StorageException if no criterion is given
+	 */
+	XmlDocPage searchFiles(String path, String name, String value, Integer afterId, Integer pageSize);
+
+	/**
+	 * Look up the metadata of several files at once, such as to export them.
+	 * 
+	 * @param filenames names of the files; repeats are ignored
+	 * @return metadata of each file, in the order asked for
+	 * @throws StorageFileNotFoundException if any of the files is not stored
+	 */
+	List<XmlDocMetadata> findFiles(List<String> filenames);
+
+	/**
+	 * Write files into a ZIP archive as they are read, with nothing written to a
+	 * temporary file and no file held in memory. A file that has gone missing
+	 * from disk is left out.
+	 * 
+	 * @param files metadata of the files, such as from {@link #findFiles(List)}
+	 * @param out   where to write the archive; not closed
+	 * @throws IOException if a file cannot be read or the archive written
+	 */
+	void exportFiles(List<XmlDocMetadata> files, OutputStream out) throws IOException;
+
+	/**
+	 * Write every file found by {@link #searchFiles}, or every stored file if no
+	 * criterion is given, into a ZIP archive, as
+	 * {@link #exportFiles(List, OutputStream)} does.
+	 * 
+	 * @param path  path of an element or attribute; may be null
+	 * @param name  local name of an element or attribute; may be null
+	 * @param value whole text of an element, or value of an attribute; may be
+	 *              null
+	 * @param out   where to write the archive; not closed
+	 * @throws IOException if a file cannot be read or the archive written
+	 */
+	void exportMatchingFiles(String path, String name, String value, OutputStream out) throws IOException;
+
+	/**
+	 * @return how well each cache in front of the database is doing, by name
+	 */
+	Map<String, CacheStats> getCacheStats();
+
+	/**
+	 * Drop everything cached, such as after metadata was changed other than
+	 * through this service.
+	 */
+	void clearCaches();
+
+	/**
+	 * @return list of all XML files.
+	 */
+	List<XmlDocMetadata> listFiles();
+
+	/**
+	 * List one page of XML files, in ID order.
+	 * 
+	 * @param afterId  list files with IDs after this; null to start at the
+	 *                 beginning
+	 * @param pageSize most files to list; null for the default page size. Capped
+	 *                 at the maximum page size.
+	 * @return page of XML files
+	 */
+	XmlDocPage listFiles(Integer afterId, Integer pageSize);
+
+	/**
+	 * Pass every XML file, in ID order, to a consumer, without holding them all in
+	 * memory at once.
+	 * 
+	 * @param consumer receives each XML file
+	 */
+	void streamFiles(Consumer<XmlDocMetadata> consumer);
+
+}
@@ -0,0 +1,153 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Picks the terms a file is indexed by out of the events of a streaming parser,
+ * so they are found while the file is checked rather than by reading it again.
+ * 
+ * <b>Implementation note</b>: only values up to a set length are kept, as long
+ * text is rarely looked up whole, and a file stops adding terms once it has a
+ * set number, so one huge file cannot swamp the index.
+ */
+final class XmlTermCollector extends DefaultHandler {
+
+	/**
+	 * Longest value kept, in characters.
+	 */
+	private final int maxValueLength;
+
+	/**
+	 * Most terms kept for one file.
+	 */
+	private final int maxTerms;
+
+	/**
+	 * Paths of elements and attributes.
+	 */
+	private final Set<String> paths = new HashSet<>();
+
+	/**
+	 * Names of elements and attributes.
+	 */
+	private final Set<String> names = new HashSet<>();
+
+	/**
+	 * Short values.
+	 */
+	private final Set<String> values = new HashSet<>();
+
+	/**
+	 * Short values with the path they were found at.
+	 */
+	private final Set<String> pathValues = new HashSet<>();
+
+	/**
+	 * Path of the element being read.
+	 */
+	private final StringBuilder path = new StringBuilder();
+
+	/**
+	 * Length of {@link #path} before each open element was added.
+	 */
+	private final List<Integer> pathLengths = new ArrayList<>();
+
+	/**
+	 * Text of the element being read, until it is too long to keep.
+	 */
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * Is the text of the element being read too long to keep?
+	 */
+	private boolean textTooLong;
+
+	/**
+	 * Terms kept so far.
+	 */
+	private int terms;
+
+	/**
+	 * @param maxValueLength longest value kept, in characters
+	 * @param maxTerms       most terms kept for one file
+	 */
+	XmlTermCollector(final int maxValueLength, final int maxTerms) {
+		this.maxValueLength = maxValueLength;
+		this.maxTerms = maxTerms;
+	}
+
+	/**
+	 * @return terms found so far
+	 */
+	XmlTerms getTerms() {
+		return new XmlTerms(paths, names, values, pathValues);
+	}
+
+	@Override
+	public void startElement(final String uri, final String localName, final String qName,
+			final Attributes attributes) {
+		String name = localName.isEmpty() ? qName : localName;
+		pathLengths.add(path.length());
+		path.append('/').append(name);
+		String elementPath = path.toString();
+		add(paths, elementPath);
+		add(names, name);
+		for (int i = 0; i < attributes.getLength(); i++) {
+			String attribute = attributes.getLocalName(i).isEmpty() ? attributes.getQName(i)
+					: attributes.getLocalName(i);
+			String attributePath = elementPath + "/@" + attribute;
+			add(paths, attributePath);
+			add(names, "@" + attribute);
+			addValue(attributePath, attributes.getValue(i).trim());
+		}
+		// Text before a child element is mixed content, not a value.
+		text.setLength(0);
+		textTooLong = false;
+	}
+
+	@Override
+	public void characters(final char[] ch, final int start, final int length) {
+		if (!textTooLong) {
+			text.append(ch, start, length);
+			textTooLong = text.length() > maxValueLength * 2;
+		}
+	}
+
+	@Override
+	public void endElement(final String uri, final String localName, final String qName) {
+		if (!textTooLong) {
+			addValue(path.toString(), text.toString().trim());
+		}
+		path.setLength(pathLengths.remove(pathLengths.size() - 1));
+		// Text after a child element is mixed content, not a value.
+		text.setLength(0);
+		textTooLong = true;
+	}
+
+	/**
+	 * @param valuePath path the value was found at
+	 * @param value     value, trimmed
+	 */
+	private void addValue(final String valuePath, final String value) {
+		if (!value.isEmpty() && value.length() <= maxValueLength) {
+			add(values, value);
+			add(pathValues, valuePath + "=" + value);
+		}
+	}
+
+	/**
+	 * @param set  where to keep the term
+	 * @param term term to keep, unless the file already has the most terms
+	 */
+	private void add(final Set<String> set, final String term) {
+		if (terms < maxTerms && set.add(term)) {
+			terms++;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.rob.ceuploadxml.service;
+
+import java.util.Set;
+
+import lombok.Value;
+
+/**
+ * What a file is indexed by: the paths, names and short values found in it.
+ */
+@Value
+class XmlTerms {
+
+	/**
+	 * Paths of elements, such as <code>/books/book</code>, and of attributes,
+	 * such as <code>/books/book/@id</code>.
+	 */
+	private final Set<String> paths;
+
+	/**
+	 * Local names of elements, and of attributes with a leading <code>@</code>.
+	 */
+	private final Set<String> names;
+
+	/**
+	 * Text of elements that hold only text, and values of attributes.
+	 */
+	private final Set<String> values;
+
+	/**
+	 * Each value with the path it was found at, as <code>path=value</code>.
+	 */
+	private final Set<String> pathValues;
+
+}
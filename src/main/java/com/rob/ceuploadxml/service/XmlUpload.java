@@ -0,0 +1,46 @@
+package com.rob.ceuploadxml.service;
+
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.web.multipart.MultipartFile;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * One file to store as part of a batch.
+ */
+@Value
+public class XmlUpload {
+
+	/**
+	 * Size to give when the size of an upload is not known up front.
+	 */
+	public static final long UNKNOWN_SIZE = -1;
+
+	/**
+	 * Name to store the file under.
+	 */
+	@NonNull
+	private final String filename;
+
+	/**
+	 * Size of the file in bytes, or {@link #UNKNOWN_SIZE}.
+	 */
+	private final long size;
+
+	/**
+	 * Contents of the file.
+	 */
+	@NonNull
+	private final InputStreamSource content;
+
+	/**
+	 * @param file multipart file from request
+	 * @return upload of the multipart file
+	 */
+	public static XmlUpload of(final MultipartFile file) {
+		return new XmlUpload(file.getOriginalFilename() == null ? "" : file.getOriginalFilename(), file.getSize(),
+				file);
+	}
+
+}
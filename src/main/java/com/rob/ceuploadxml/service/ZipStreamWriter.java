@@ -0,0 +1,585 @@
+package com.rob.ceuploadxml.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive straight to a stream, one entry after another, without
+ * a temporary file and without holding any entry in memory.
+ * 
+ * <b>Implementation note</b>: <code>java.util.zip.ZipOutputStream</code> can
+ * only write data it compresses itself, so this writes the ZIP format by hand.
+ * A gzip file is a raw deflate stream between a header and a trailer, which is
+ * just what a deflated ZIP entry holds, so gzipped files are copied in as they
+ * are, with no inflating or deflating. Other files are deflated as they are
+ * read. Sizes and checksums follow each entry in a data descriptor, so nothing
+ * needs to be known before an entry is written. ZIP64 records are written for
+ * large entries, archives and entry counts.
+ */
+final class ZipStreamWriter {
+
+	/**
+	 * Signature of a local file header.
+	 */
+	private static final int LOCAL_HEADER = 0x04034b50;
+
+	/**
+	 * Signature of a data descriptor.
+	 */
+	private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+	/**
+	 * Signature of a central directory header.
+	 */
+	private static final int CENTRAL_HEADER = 0x02014b50;
+
+	/**
+	 * Signature of the ZIP64 end of central directory record.
+	 */
+	private static final int ZIP64_END = 0x06064b50;
+
+	/**
+	 * Signature of the ZIP64 end of central directory locator.
+	 */
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+
+	/**
+	 * Signature of the end of central directory record.
+	 */
+	private static final int END = 0x06054b50;
+
+	/**
+	 * Header ID of the ZIP64 extra field.
+	 */
+	private static final short ZIP64_EXTRA = 0x0001;
+
+	/**
+	 * Flags of every entry: sizes follow the data, and the name is UTF-8.
+	 */
+	private static final short FLAGS = (1 << 3) | (1 << 11);
+
+	/**
+	 * Compression method of every entry.
+	 */
+	private static final short DEFLATED = 8;
+
+	/**
+	 * Version needed to extract a deflated entry.
+	 */
+	private static final short VERSION = 20;
+
+	/**
+	 * Version needed to extract an entry with ZIP64 fields.
+	 */
+	private static final short VERSION_ZIP64 = 45;
+
+	/**
+	 * Stands for a 32 bit value that is in a ZIP64 field instead.
+	 */
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	/**
+	 * Stands for an entry count that is in the ZIP64 record instead.
+	 */
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	/**
+	 * Entries of this size or more get ZIP64 fields, leaving room for deflate to
+	 * make data slightly bigger.
+	 */
+	private static final long ZIP64_ENTRY_SIZE = 0xF0000000L;
+
+	/**
+	 * First two bytes of gzip data.
+	 */
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	/**
+	 * Gzip header flag: extra field present.
+	 */
+	private static final int GZIP_FEXTRA = 4;
+
+	/**
+	 * Gzip header flag: file name present.
+	 */
+	private static final int GZIP_FNAME = 8;
+
+	/**
+	 * Gzip header flag: comment present.
+	 */
+	private static final int GZIP_FCOMMENT = 16;
+
+	/**
+	 * Gzip header flag: header checksum present.
+	 */
+	private static final int GZIP_FHCRC = 2;
+
+	/**
+	 * Size of the fixed part of a gzip header.
+	 */
+	private static final int GZIP_HEADER_SIZE = 10;
+
+	/**
+	 * Size of a gzip trailer: checksum and size.
+	 */
+	private static final int GZIP_TRAILER_SIZE = 8;
+
+	/**
+	 * Buffer size for copying and deflating.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Where the archive is written.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Modification time and date of every entry, in MS-DOS format.
+	 */
+	private final int dosDateTime;
+
+	/**
+	 * Deflates files that are not gzipped; reset for each entry.
+	 */
+	private final Deflater deflater;
+
+	/**
+	 * For copying and deflating.
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * For deflated output.
+	 */
+	private final byte[] deflated = new byte[BUFFER_SIZE];
+
+	/**
+	 * For headers; big enough for any fixed part.
+	 */
+	private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Entries written so far, for the central directory.
+	 */
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * Bytes written so far.
+	 */
+	private long written;
+
+	/**
+	 * Has the central directory been written?
+	 */
+	private boolean finished;
+
+	/**
+	 * @param out   where the archive is written; not closed by this writer
+	 * @param time  modification time of every entry
+	 * @param level deflate level for files that are not gzipped
+	 */
+	ZipStreamWriter(final OutputStream out, final LocalDateTime time, final int level) {
+		this.out = out;
+		this.dosDateTime = dosDateTime(time);
+		this.deflater = new Deflater(level, true);
+	}
+
+	/**
+	 * @param time a time
+	 * @return the time in MS-DOS format: date in the high 16 bits, time in the
+	 *         low 16 bits, to the nearest two seconds
+	 */
+	private static int dosDateTime(final LocalDateTime time) {
+		int year = Math.max(1980, time.getYear());
+		int date = (year - 1980) << 9 | time.getMonthValue() << 5 | time.getDayOfMonth();
+		int clock = time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+		return date << 16 | clock;
+	}
+
+	/**
+	 * @return entries written so far
+	 */
+	int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Add an entry, deflating it as it is read.
+	 * 
+	 * @param name    name of the entry
+	 * @param size    bytes expected; only used to decide on ZIP64 fields
+	 * @param content what to write; read to the end, but not closed
+	 * @throws IOException if the content cannot be read or the archive written
+	 */
+	void addDeflated(final String name, final long size, final InputStream content) throws IOException {
+		Entry entry = startEntry(name, size);
+		CRC32 crc = new CRC32();
+		deflater.reset();
+		long read = 0;
+		long compressed = 0;
+		for (int n = content.read(buffer); n != -1; n = content.read(buffer)) {
+			crc.update(buffer, 0, n);
+			read += n;
+			deflater.setInput(buffer, 0, n);
+			while (!deflater.needsInput()) {
+				compressed += deflate();
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			compressed += deflate();
+		}
+		endEntry(entry, crc.getValue(), compressed, read);
+	}
+
+	/**
+	 * @return bytes deflated and written
+	 * @throws IOException if the archive cannot be written
+	 */
+	private int deflate() throws IOException {
+		int n = deflater.deflate(deflated);
+		write(deflated, 0, n);
+		return n;
+	}
+
+	/**
+	 * Add an entry from a gzip file, copying its deflate data in as it is. The
+	 * file must hold one gzip member, as everything this service writes does.
+	 * 
+	 * @param name       name of the entry
+	 * @param size       bytes the file holds when inflated
+	 * @param gzipLength bytes in the gzip file
+	 * @param gzip       the gzip file; read to the end, but not closed
+	 * @throws IOException if the file cannot be read, is not gzip, or does not
+	 *                     hold what is expected, or the archive cannot be written
+	 */
+	void addGzip(final String name, final long size, final long gzipLength, final InputStream gzip)
+			throws IOException {
+		long compressed = gzipLength - readGzipHeader(gzip) - GZIP_TRAILER_SIZE;
+		if (compressed < 0) {
+			throw new ZipException("Gzip data is too short for entry " + name);
+		}
+		Entry entry = startEntry(name, size);
+		for (long left = compressed; left > 0;) {
+			int n = gzip.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n == -1) {
+				throw new EOFException("Gzip data ended early for entry " + name);
+			}
+			write(buffer, 0, n);
+			left -= n;
+		}
+		ByteBuffer trailer = ByteBuffer.wrap(readFully(gzip, GZIP_TRAILER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		long crc = trailer.getInt() & ZIP64_MAGIC;
+		long sizeModulo = trailer.getInt() & ZIP64_MAGIC;
+		if (sizeModulo != (size & ZIP64_MAGIC)) {
+			throw new ZipException("Gzip data of entry " + name + " does not hold " + size + " bytes.");
+		}
+		endEntry(entry, crc, compressed, size);
+	}
+
+	/**
+	 * @param gzip gzip data, at its start
+	 * @return bytes in the header, which has been read
+	 * @throws IOException if the data cannot be read or is not gzip
+	 */
+	private int readGzipHeader(final InputStream gzip) throws IOException {
+		ByteBuffer fixed = ByteBuffer.wrap(readFully(gzip, GZIP_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		if ((fixed.getShort(0) & 0xFFFF) != GZIP_MAGIC || fixed.get(2) != DEFLATED) {
+			throw new ZipException("Not gzip data.");
+		}
+		int flags = fixed.get(3);
+		int length = GZIP_HEADER_SIZE;
+		if ((flags & GZIP_FEXTRA) != 0) {
+			ByteBuffer extraLength = ByteBuffer.wrap(readFully(gzip, 2)).order(ByteOrder.LITTLE_ENDIAN);
+			int extra = extraLength.getShort() & 0xFFFF;
+			readFully(gzip, extra);
+			length += 2 + extra;
+		}
+		if ((flags & GZIP_FNAME) != 0) {
+			length += skipZeroTerminated(gzip);
+		}
+		if ((flags & GZIP_FCOMMENT) != 0) {
+			length += skipZeroTerminated(gzip);
+		}
+		if ((flags & GZIP_FHCRC) != 0) {
+			readFully(gzip, 2);
+			length += 2;
+		}
+		return length;
+	}
+
+	/**
+	 * @param in stream to read
+	 * @return bytes read, up to and including a zero byte
+	 * @throws IOException if the stream cannot be read or ends first
+	 */
+	private static int skipZeroTerminated(final InputStream in) throws IOException {
+		int length = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b == -1) {
+				throw new EOFException("Gzip header ended early.");
+			}
+			length++;
+		} while (b != 0);
+		return length;
+	}
+
+	/**
+	 * @param in     stream to read
+	 * @param length bytes to read
+	 * @return the bytes
+	 * @throws IOException if the stream cannot be read or ends first
+	 */
+	private static byte[] readFully(final InputStream in, final int length) throws IOException {
+		byte[] bytes = in.readNBytes(length);
+		if (bytes.length < length) {
+			throw new EOFException("Gzip data ended early.");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Write the local header of an entry.
+	 * 
+	 * @param name name of the entry
+	 * @param size bytes expected, to decide on ZIP64 fields
+	 * @return the entry, to be ended once its data is written
+	 * @throws IOException if the archive cannot be written
+	 */
+	private Entry startEntry(final String name, final long size) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Archive is already finished.");
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		boolean zip64 = size >= ZIP64_ENTRY_SIZE;
+		Entry entry = new Entry(nameBytes, written, zip64);
+		header.clear();
+		header.putInt(LOCAL_HEADER)//
+				.putShort(zip64 ? VERSION_ZIP64 : VERSION)//
+				.putShort(FLAGS)//
+				.putShort(DEFLATED)//
+				.putInt(dosDateTime)//
+				.putInt(0)// checksum, in the data descriptor
+				.putInt(zip64 ? (int) ZIP64_MAGIC : 0)//
+				.putInt(zip64 ? (int) ZIP64_MAGIC : 0)//
+				.putShort((short) nameBytes.length)//
+				.putShort((short) (zip64 ? 20 : 0));
+		writeHeader();
+		write(nameBytes, 0, nameBytes.length);
+		if (zip64) {
+			// Sizes are in the data descriptor, which has 8 byte sizes as this is here.
+			header.clear();
+			header.putShort(ZIP64_EXTRA).putShort((short) 16).putLong(0).putLong(0);
+			writeHeader();
+		}
+		return entry;
+	}
+
+	/**
+	 * Write the data descriptor of an entry, and remember it for the central
+	 * directory.
+	 * 
+	 * @param entry      the entry
+	 * @param crc        CRC-32 of the data before compression
+	 * @param compressed bytes of compressed data written
+	 * @param size       bytes of data before compression
+	 * @throws IOException if the archive cannot be written
+	 */
+	private void endEntry(final Entry entry, final long crc, final long compressed, final long size)
+			throws IOException {
+		if (!entry.zip64 && (compressed >= ZIP64_MAGIC || size >= ZIP64_MAGIC)) {
+			throw new ZipException("Entry is larger than expected: " + new String(entry.name, StandardCharsets.UTF_8));
+		}
+		entry.crc = crc;
+		entry.compressedSize = compressed;
+		entry.size = size;
+		header.clear();
+		header.putInt(DATA_DESCRIPTOR).putInt((int) crc);
+		if (entry.zip64) {
+			header.putLong(compressed).putLong(size);
+		} else {
+			header.putInt((int) compressed).putInt((int) size);
+		}
+		writeHeader();
+		entries.add(entry);
+	}
+
+	/**
+	 * Write the central directory, ending the archive. The stream is flushed but
+	 * not closed.
+	 * 
+	 * @throws IOException if the archive cannot be written
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		deflater.end();
+		long directoryStart = written;
+		for (Entry entry : entries) {
+			writeCentralHeader(entry);
+		}
+		long directorySize = written - directoryStart;
+		boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || directorySize >= ZIP64_MAGIC
+				|| directoryStart >= ZIP64_MAGIC;
+		if (zip64) {
+			long zip64EndStart = written;
+			header.clear();
+			header.putInt(ZIP64_END)//
+					.putLong(44)// size of the rest of this record
+					.putShort(VERSION_ZIP64)//
+					.putShort(VERSION_ZIP64)//
+					.putInt(0)// this disk
+					.putInt(0)// disk the directory starts on
+					.putLong(entries.size())//
+					.putLong(entries.size())//
+					.putLong(directorySize)//
+					.putLong(directoryStart);
+			writeHeader();
+			header.clear();
+			header.putInt(ZIP64_LOCATOR)//
+					.putInt(0)// disk the ZIP64 record is on
+					.putLong(zip64EndStart)//
+					.putInt(1);// disks
+			writeHeader();
+		}
+		header.clear();
+		header.putInt(END)//
+				.putShort((short) 0)// this disk
+				.putShort((short) 0)// disk the directory starts on
+				.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT))//
+				.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT))//
+				.putInt((int) Math.min(directorySize, ZIP64_MAGIC))//
+				.putInt((int) Math.min(directoryStart, ZIP64_MAGIC))//
+				.putShort((short) 0);// comment length
+		writeHeader();
+		out.flush();
+	}
+
+	/**
+	 * @param entry entry to write the central directory header of
+	 * @throws IOException if the archive cannot be written
+	 */
+	private void writeCentralHeader(final Entry entry) throws IOException {
+		boolean bigSize = entry.size >= ZIP64_MAGIC;
+		boolean bigCompressed = entry.compressedSize >= ZIP64_MAGIC;
+		boolean bigOffset = entry.offset >= ZIP64_MAGIC;
+		int extraLength = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+		boolean zip64 = entry.zip64 || extraLength > 0;
+		header.clear();
+		header.putInt(CENTRAL_HEADER)//
+				.putShort(VERSION_ZIP64)// version made by
+				.putShort(zip64 ? VERSION_ZIP64 : VERSION)//
+				.putShort(FLAGS)//
+				.putShort(DEFLATED)//
+				.putInt(dosDateTime)//
+				.putInt((int) entry.crc)//
+				.putInt((int) (bigCompressed ? ZIP64_MAGIC : entry.compressedSize))//
+				.putInt((int) (bigSize ? ZIP64_MAGIC : entry.size))//
+				.putShort((short) entry.name.length)//
+				.putShort((short) (extraLength == 0 ? 0 : 4 + extraLength))//
+				.putShort((short) 0)// comment length
+				.putShort((short) 0)// disk the entry starts on
+				.putShort((short) 0)// internal attributes
+				.putInt(0)// external attributes
+				.putInt((int) (bigOffset ? ZIP64_MAGIC : entry.offset));
+		writeHeader();
+		write(entry.name, 0, entry.name.length);
+		if (extraLength > 0) {
+			header.clear();
+			header.putShort(ZIP64_EXTRA).putShort((short) extraLength);
+			if (bigSize) {
+				header.putLong(entry.size);
+			}
+			if (bigCompressed) {
+				header.putLong(entry.compressedSize);
+			}
+			if (bigOffset) {
+				header.putLong(entry.offset);
+			}
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Write what has been put in {@link #header}.
+	 * 
+	 * @throws IOException if the archive cannot be written
+	 */
+	private void writeHeader() throws IOException {
+		write(header.array(), 0, header.position());
+	}
+
+	/**
+	 * @param bytes  bytes to write
+	 * @param offset where in <code>bytes</code> to start
+	 * @param length bytes to write
+	 * @throws IOException if the archive cannot be written
+	 */
+	private void write(final byte[] bytes, final int offset, final int length) throws IOException {
+		out.write(bytes, offset, length);
+		written += length;
+	}
+
+	/**
+	 * What the central directory needs to know about an entry.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Name, as UTF-8.
+		 */
+		private final byte[] name;
+
+		/**
+		 * Where the local header starts.
+		 */
+		private final long offset;
+
+		/**
+		 * Does the local header have ZIP64 fields?
+		 */
+		private final boolean zip64;
+
+		/**
+		 * CRC-32 of the data before compression.
+		 */
+		private long crc;
+
+		/**
+		 * Bytes of compressed data.
+		 */
+		private long compressedSize;
+
+		/**
+		 * Bytes of data before compression.
+		 */
+		private long size;
+
+		/**
+		 * @param name   name, as UTF-8
+		 * @param offset where the local header starts
+		 * @param zip64  does the local header have ZIP64 fields?
+		 */
+		Entry(final byte[] name, final long offset, final boolean zip64) {
+			this.name = name;
+			this.offset = offset;
+			this.zip64 = zip64;
+		}
+	}
+}
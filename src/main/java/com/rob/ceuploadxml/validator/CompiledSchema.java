@@ -0,0 +1,130 @@
+package com.rob.ceuploadxml.validator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A compiled XSD and a pool of validators for it.
+ * 
+ * <b>Implementation note</b>: a <code>Schema</code> is thread safe, but each
+ * <code>ValidatorHandler</code> it creates is not. Validators are borrowed for
+ * one document at a time and only returned to the pool after a document that
+ * validated cleanly, so a validator left mid-document by an error is never
+ * reused.
+ */
+final class CompiledSchema {
+
+	/**
+	 * Treat every problem the schema validator finds as fatal.
+	 */
+	private static final ErrorHandler FAIL_ON_ERROR = new ErrorHandler() {
+
+		@Override
+		public void warning(final SAXParseException exception) {
+			// Warnings do not make a document invalid.
+		}
+
+		@Override
+		public void error(final SAXParseException exception) throws SAXParseException {
+			throw exception;
+		}
+
+		@Override
+		public void fatalError(final SAXParseException exception) throws SAXParseException {
+			throw exception;
+		}
+	};
+
+	/**
+	 * Which schema this is.
+	 */
+	private final SchemaKey key;
+
+	/**
+	 * Registration this was compiled from; a newer registration replaces it.
+	 */
+	private final long generation;
+
+	/**
+	 * The compiled schema.
+	 */
+	private final Schema schema;
+
+	/**
+	 * Validators not currently in use.
+	 */
+	private final Queue<ValidatorHandler> idle = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of validators in {@link #idle}.
+	 */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Most idle validators to keep.
+	 */
+	private final int maxIdle;
+
+	/**
+	 * @param key        which schema this is
+	 * @param generation registration this was compiled from
+	 * @param schema     the compiled schema
+	 * @param maxIdle    most idle validators to keep
+	 */
+	CompiledSchema(final SchemaKey key, final long generation, final Schema schema, final int maxIdle) {
+		this.key = key;
+		this.generation = generation;
+		this.schema = schema;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return an idle validator, or a new one if none are idle
+	 */
+	ValidatorHandler borrow() {
+		ValidatorHandler validator = idle.poll();
+		if (validator != null) {
+			idleCount.decrementAndGet();
+			return validator;
+		}
+		validator = schema.newValidatorHandler();
+		validator.setErrorHandler(FAIL_ON_ERROR);
+		return validator;
+	}
+
+	/**
+	 * Return a validator that finished a document cleanly to the pool, unless the
+	 * pool is full.
+	 * 
+	 * @param validator validator no longer in use
+	 */
+	void release(final ValidatorHandler validator) {
+		validator.setContentHandler(null);
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(validator);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return which schema this is
+	 */
+	SchemaKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return registration this was compiled from
+	 */
+	long getGeneration() {
+		return generation;
+	}
+}
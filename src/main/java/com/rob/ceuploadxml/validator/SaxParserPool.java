@@ -0,0 +1,142 @@
+package com.rob.ceuploadxml.validator;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Pool of SAX parsers that can be shared between threads.
+ * 
+ * <b>Implementation note</b>: a <code>SAXParser</code> is not thread safe, but
+ * can be reused once it has been reset. Each parse borrows a parser, so no two
+ * threads ever use the same parser at once, and the parser is reset before it
+ * goes back in the pool so nothing is carried over from a previous document.
+ * The factory is looked up once, because that lookup is expensive.
+ */
+@Log4j2
+public final class SaxParserPool {
+
+	/**
+	 * Default number of idle parsers to keep.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+	/**
+	 * Pool shared by everything that is not given its own.
+	 */
+	private static final SaxParserPool SHARED = new SaxParserPool(DEFAULT_MAX_IDLE);
+
+	/**
+	 * Creates parsers, configured once.
+	 */
+	private final SAXParserFactory factory;
+
+	/**
+	 * Parsers not currently in use.
+	 */
+	private final Queue<SAXParser> idle = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of parsers in {@link #idle}; tracked separately because
+	 * <code>ConcurrentLinkedQueue.size()</code> is not constant time.
+	 */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Most idle parsers to keep. Parsers returned beyond this are dropped.
+	 */
+	private final int maxIdle;
+
+	/**
+	 * @param maxIdle most idle parsers to keep
+	 */
+	public SaxParserPool(final int maxIdle) {
+		this.maxIdle = maxIdle;
+		this.factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			// Prevent XXE attacks.
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IllegalStateException("Unable to configure XML parser factory.", e);
+		}
+	}
+
+	/**
+	 * @return pool shared by everything that is not given its own
+	 */
+	public static SaxParserPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Parse a document with a pooled parser.
+	 * 
+	 * @param source  document to parse
+	 * @param handler receives parse events; its error methods decide what fails
+	 * @throws IOException  if we have problem reading the document
+	 * @throws SAXException if we cannot parse the XML
+	 */
+	public void parse(final InputSource source, final DefaultHandler handler) throws IOException, SAXException {
+		SAXParser parser = borrow();
+		try {
+			parser.parse(source, handler);
+		} finally {
+			release(parser);
+		}
+	}
+
+	/**
+	 * @return an idle parser, or a new one if none are idle
+	 */
+	private SAXParser borrow() {
+		SAXParser parser = idle.poll();
+		if (parser != null) {
+			idleCount.decrementAndGet();
+			return parser;
+		}
+		try {
+			return factory.newSAXParser();
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IllegalStateException("Unable to create XML parser.", e);
+		}
+	}
+
+	/**
+	 * Reset a parser and return it to the pool, unless the pool is full.
+	 * 
+	 * @param parser parser no longer in use
+	 */
+	private void release(final SAXParser parser) {
+		try {
+			parser.reset();
+		} catch (UnsupportedOperationException e) {
+			log.debug("Parser {} cannot be reset, so will not be reused.", parser.getClass(), e);
+			return;
+		}
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(parser);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of idle parsers in the pool
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+}
@@ -0,0 +1,22 @@
+package com.rob.ceuploadxml.validator;
+
+import lombok.Value;
+
+/**
+ * Identifies a registered XSD: the target namespace it describes and a version
+ * chosen when it was registered.
+ */
+@Value
+public class SchemaKey {
+
+	/**
+	 * Target namespace of the schema; empty for a schema without one.
+	 */
+	private final String namespace;
+
+	/**
+	 * Version of the schema. May be null when asking for the latest version.
+	 */
+	private final String version;
+
+}
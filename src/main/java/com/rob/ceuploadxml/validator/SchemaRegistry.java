@@ -0,0 +1,354 @@
+package com.rob.ceuploadxml.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * XSDs that uploads can be validated against, keyed by target namespace and
+ * version.
+ * 
+ * <b>Implementation note</b>: compiling an XSD is expensive, so compiled
+ * schemas are kept in a bounded, least recently used cache. Registering a
+ * schema again under the same key replaces its source and drops the old
+ * compiled copy, along with any validators pooled for it.
+ */
+@Component
+@Log4j2
+public final class SchemaRegistry {
+
+	/**
+	 * Extension for schema files written to {@link #schemaLocation}.
+	 */
+	private static final String XSD_EXTENSION = ".xsd";
+
+	/**
+	 * Separates namespace and version in the name of a stored schema file.
+	 */
+	private static final String KEY_SEPARATOR = "@";
+
+	/**
+	 * Where schemas are stored; null to keep them in memory only.
+	 */
+	private final Path schemaLocation;
+
+	/**
+	 * Most compiled schemas to keep.
+	 */
+	private final int cacheSize;
+
+	/**
+	 * Most idle validators to keep for each compiled schema.
+	 */
+	private final int validatorsPerSchema;
+
+	/**
+	 * Source of every registered schema.
+	 */
+	private final Map<SchemaKey, SchemaSource> sources = new ConcurrentHashMap<>();
+
+	/**
+	 * Compiled schemas, least recently used first. Guarded by itself.
+	 */
+	private final Map<SchemaKey, CompiledSchema> compiled;
+
+	/**
+	 * Incremented for every registration, so the latest version of a namespace
+	 * can be found and stale compiled schemas spotted.
+	 */
+	private final AtomicLong generations = new AtomicLong();
+
+	/**
+	 * Registry that keeps schemas in memory only.
+	 */
+	public SchemaRegistry() {
+		this(new ValidationProperties());
+	}
+
+	/**
+	 * @param properties where to store schemas and how many to keep compiled
+	 */
+	@Autowired
+	public SchemaRegistry(final ValidationProperties properties) {
+		this.schemaLocation = StringUtils.isEmpty(properties.getSchemaLocation()) ? null
+				: Paths.get(properties.getSchemaLocation());
+		this.cacheSize = properties.getSchemaCacheSize();
+		this.validatorsPerSchema = properties.getValidatorsPerSchema();
+		this.compiled = new LinkedHashMap<>(cacheSize, 0.75f, true) {
+
+			/**
+			 * Serial version UID.
+			 */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<SchemaKey, CompiledSchema> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Load schemas stored by a previous run, oldest first so the latest version of
+	 * each namespace is still the latest.
+	 */
+	@PostConstruct
+	public void init() {
+		if (schemaLocation == null) {
+			return;
+		}
+		try {
+			Files.createDirectories(schemaLocation);
+			List<Path> stored;
+			try (Stream<Path> files = Files.list(schemaLocation)) {
+				stored = files.filter(path -> path.getFileName().toString().endsWith(XSD_EXTENSION))
+						.sorted(Comparator.comparingLong(path -> path.toFile().lastModified()))
+						.collect(Collectors.toList());
+			}
+			for (Path path : stored) {
+				String name = path.getFileName().toString();
+				String version = name.substring(name.lastIndexOf(KEY_SEPARATOR) + 1,
+						name.length() - XSD_EXTENSION.length());
+				try {
+					addSource(URLDecoder.decode(version, StandardCharsets.UTF_8), Files.readAllBytes(path));
+				} catch (SAXException e) {
+					log.error("WARNING: ignoring stored schema that no longer compiles: {}", path, e);
+				}
+			}
+			log.info("Loaded {} schemas from {}.", sources.size(), schemaLocation.toAbsolutePath());
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load schemas from: " + schemaLocation, e);
+		}
+	}
+
+	/**
+	 * Register a schema, replacing any schema already registered for the same
+	 * namespace and version.
+	 * 
+	 * @param version version to register the schema as
+	 * @param xsd     the schema
+	 * @return key the schema was registered under
+	 * @throws SAXException if the schema cannot be compiled
+	 * @throws IOException  if the schema cannot be stored
+	 */
+	public SchemaKey register(final String version, final byte[] xsd) throws SAXException, IOException {
+		SchemaKey key = addSource(version, xsd);
+		if (schemaLocation != null) {
+			Files.createDirectories(schemaLocation);
+			Files.write(schemaLocation.resolve(URLEncoder.encode(key.getNamespace(), StandardCharsets.UTF_8)
+					+ KEY_SEPARATOR + URLEncoder.encode(version, StandardCharsets.UTF_8) + XSD_EXTENSION), xsd);
+		}
+		log.info("Registered schema {}.", key);
+		return key;
+	}
+
+	/**
+	 * Compile a schema, and if it compiles, make it the current source for its
+	 * key.
+	 * 
+	 * @param version version to register the schema as
+	 * @param xsd     the schema
+	 * @return key the schema was registered under
+	 * @throws SAXException if the schema cannot be compiled
+	 */
+	private SchemaKey addSource(final String version, final byte[] xsd) throws SAXException {
+		SchemaKey key = new SchemaKey(targetNamespace(xsd), version);
+		long generation = generations.incrementAndGet();
+		CompiledSchema schema = new CompiledSchema(key, generation, compile(xsd), validatorsPerSchema);
+		sources.put(key, new SchemaSource(xsd, generation));
+		synchronized (compiled) {
+			compiled.put(key, schema);
+		}
+		return key;
+	}
+
+	/**
+	 * Find a registered schema.
+	 * 
+	 * @param namespace target namespace of the schema
+	 * @param version   version of the schema, or null for the version registered
+	 *                  most recently
+	 * @return key of the schema, if one is registered
+	 */
+	public Optional<SchemaKey> resolve(final String namespace, final String version) {
+		String ns = namespace == null ? "" : namespace;
+		if (version != null) {
+			SchemaKey key = new SchemaKey(ns, version);
+			return sources.containsKey(key) ? Optional.of(key) : Optional.empty();
+		}
+		return sources.entrySet().stream()//
+				.filter(entry -> entry.getKey().getNamespace().equals(ns))//
+				.max(Comparator.comparingLong(entry -> entry.getValue().getGeneration()))//
+				.map(Map.Entry::getKey);
+	}
+
+	/**
+	 * @return every registered schema
+	 */
+	public List<SchemaKey> listSchemas() {
+		return new ArrayList<>(sources.keySet());
+	}
+
+	/**
+	 * @return number of schemas currently compiled
+	 */
+	public int getCompiledCount() {
+		synchronized (compiled) {
+			return compiled.size();
+		}
+	}
+
+	/**
+	 * Get the compiled form of a registered schema, compiling it if it is not
+	 * cached or the cached copy is from an older registration.
+	 * 
+	 * @param key schema to get
+	 * @return compiled schema
+	 * @throws SAXException if the schema is not registered or cannot be compiled
+	 */
+	CompiledSchema compiled(final SchemaKey key) throws SAXException {
+		SchemaSource source = sources.get(key);
+		if (source == null) {
+			throw new SAXException("Unknown schema: " + key);
+		}
+		synchronized (compiled) {
+			CompiledSchema schema = compiled.get(key);
+			if (schema != null && schema.getGeneration() == source.getGeneration()) {
+				return schema;
+			}
+		}
+		// Compile outside the lock; two threads may both compile, which is harmless.
+		CompiledSchema schema = new CompiledSchema(key, source.getGeneration(), compile(source.getXsd()),
+				validatorsPerSchema);
+		synchronized (compiled) {
+			CompiledSchema current = compiled.get(key);
+			if (current == null || current.getGeneration() < schema.getGeneration()) {
+				compiled.put(key, schema);
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * @param xsd schema to compile
+	 * @return compiled schema
+	 * @throws SAXException if the schema cannot be compiled
+	 */
+	private Schema compile(final byte[] xsd) throws SAXException {
+		// SchemaFactory is not thread safe, and compiling is rare, so use a new one.
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		// Prevent XXE attacks.
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		return factory.newSchema(new StreamSource(new ByteArrayInputStream(xsd)));
+	}
+
+	/**
+	 * @param xsd schema to read
+	 * @return value of the <code>targetNamespace</code> attribute on the root of
+	 *         the schema, or empty if it has none
+	 * @throws SAXException if the schema is not well formed XML
+	 */
+	private static String targetNamespace(final byte[] xsd) throws SAXException {
+		String[] namespace = {""};
+		try {
+			SaxParserPool.shared().parse(new InputSource(new ByteArrayInputStream(xsd)), new DefaultHandler() {
+
+				@Override
+				public void startElement(final String uri, final String localName, final String qName,
+						final Attributes attributes) throws SAXException {
+					String targetNamespace = attributes.getValue("targetNamespace");
+					if (targetNamespace != null) {
+						namespace[0] = targetNamespace;
+					}
+					throw new StopParsingException();
+				}
+			});
+		} catch (StopParsingException e) {
+			// Root element found.
+		} catch (IOException e) {
+			throw new SAXException("Unable to read schema.", e);
+		}
+		return namespace[0];
+	}
+
+	/**
+	 * Thrown to stop parsing once the root element has been read.
+	 */
+	private static final class StopParsingException extends SAXException {
+
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Source of a registered schema.
+	 */
+	private static final class SchemaSource {
+
+		/**
+		 * The schema.
+		 */
+		private final byte[] xsd;
+
+		/**
+		 * Registration this source came from.
+		 */
+		private final long generation;
+
+		/**
+		 * @param xsd        the schema
+		 * @param generation registration this source came from
+		 */
+		SchemaSource(final byte[] xsd, final long generation) {
+			this.xsd = xsd;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return the schema
+		 */
+		byte[] getXsd() {
+			return xsd;
+		}
+
+		/**
+		 * @return registration this source came from
+		 */
+		long getGeneration() {
+			return generation;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.rob.ceuploadxml.validator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Receives events from a streaming parser and passes them on to a schema
+ * validator, so a document is checked for well-formedness and against its
+ * schema in one pass.
+ * 
+ * <b>Implementation note</b>: the schema may depend on the namespace of the
+ * root element, which is not known until the root element is read. Prefix
+ * mappings seen before then are held back and replayed once a schema has been
+ * chosen. If no schema is asked for and none is registered for the root
+ * namespace, only well-formedness is checked. Elements and text can also be
+ * passed on to a listener, so a document can be read for other purposes in
+ * the same pass.
+ */
+final class SchemaValidatingHandler extends DefaultHandler {
+
+	/**
+	 * Where schemas come from.
+	 */
+	private final SchemaRegistry registry;
+
+	/**
+	 * Schema asked for by the caller; null to choose by root namespace.
+	 */
+	private final SchemaKey requested;
+
+	/**
+	 * Also told of elements and text, after the validator; may be null.
+	 */
+	private final ContentHandler listener;
+
+	/**
+	 * Prefix mappings started before the root element, as prefix/uri pairs.
+	 */
+	private final List<String[]> pendingPrefixes = new ArrayList<>();
+
+	/**
+	 * Parser's locator, so validation errors carry line numbers.
+	 */
+	private Locator locator;
+
+	/**
+	 * Has the root element been read yet?
+	 */
+	private boolean rootSeen;
+
+	/**
+	 * Schema being validated against, if any.
+	 */
+	private CompiledSchema schema;
+
+	/**
+	 * Validator borrowed from {@link #schema}, if any.
+	 */
+	private ValidatorHandler validator;
+
+	/**
+	 * Did the validator see the whole document without error?
+	 */
+	private boolean completed;
+
+	/**
+	 * @param registry  where schemas come from
+	 * @param requested schema asked for by the caller; null to choose by root
+	 *                  namespace
+	 */
+	SchemaValidatingHandler(final SchemaRegistry registry, final SchemaKey requested) {
+		this(registry, requested, null);
+	}
+
+	/**
+	 * @param registry  where schemas come from
+	 * @param requested schema asked for by the caller; null to choose by root
+	 *                  namespace
+	 * @param listener  also told of elements and text, after the validator; may
+	 *                  be null
+	 */
+	SchemaValidatingHandler(final SchemaRegistry registry, final SchemaKey requested,
+			final ContentHandler listener) {
+		this.registry = registry;
+		this.requested = requested;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return schema the document was validated against, if any
+	 */
+	Optional<SchemaKey> getSchema() {
+		return schema == null ? Optional.empty() : Optional.of(schema.getKey());
+	}
+
+	/**
+	 * Give the validator back. Must be called once parsing has finished, however
+	 * it finished.
+	 */
+	void finish() {
+		if (validator != null && completed) {
+			schema.release(validator);
+		}
+		validator = null;
+	}
+
+	/**
+	 * Choose the schema once the namespace of the root element is known.
+	 * 
+	 * @param rootNamespace namespace of the root element
+	 * @throws SAXException if a schema was asked for but is not registered
+	 */
+	private void chooseSchema(final String rootNamespace) throws SAXException {
+		Optional<SchemaKey> key = requested == null ? registry.resolve(rootNamespace, null)
+				: registry.resolve(requested.getNamespace(), requested.getVersion());
+		if (key.isEmpty()) {
+			if (requested != null) {
+				throw new SAXException("Unknown schema: " + requested);
+			}
+			return;
+		}
+		schema = registry.compiled(key.get());
+		validator = schema.borrow();
+		try {
+			if (locator != null) {
+				validator.setDocumentLocator(locator);
+			}
+			validator.startDocument();
+			for (String[] prefix : pendingPrefixes) {
+				validator.startPrefixMapping(prefix[0], prefix[1]);
+			}
+		} catch (SAXException e) {
+			throw violation(e);
+		}
+	}
+
+	/**
+	 * @param e error from the validator
+	 * @return error saying which schema the document broke
+	 */
+	private SAXException violation(final SAXException e) {
+		return new SchemaViolationException(schema.getKey(), e);
+	}
+
+	@Override
+	public void setDocumentLocator(final Locator documentLocator) {
+		this.locator = documentLocator;
+	}
+
+	@Override
+	public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+		if (!rootSeen) {
+			pendingPrefixes.add(new String[] {prefix, uri});
+		} else if (validator != null) {
+			try {
+				validator.startPrefixMapping(prefix, uri);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+	}
+
+	@Override
+	public void endPrefixMapping(final String prefix) throws SAXException {
+		if (validator != null) {
+			try {
+				validator.endPrefixMapping(prefix);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+	}
+
+	@Override
+	public void startElement(final String uri, final String localName, final String qName,
+			final Attributes attributes) throws SAXException {
+		if (!rootSeen) {
+			rootSeen = true;
+			chooseSchema(uri);
+		}
+		if (validator != null) {
+			try {
+				validator.startElement(uri, localName, qName, attributes);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+		if (listener != null) {
+			listener.startElement(uri, localName, qName, attributes);
+		}
+	}
+
+	@Override
+	public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+		if (validator != null) {
+			try {
+				validator.endElement(uri, localName, qName);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+		if (listener != null) {
+			listener.endElement(uri, localName, qName);
+		}
+	}
+
+	@Override
+	public void characters(final char[] ch, final int start, final int length) throws SAXException {
+		if (validator != null) {
+			try {
+				validator.characters(ch, start, length);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+		if (listener != null) {
+			listener.characters(ch, start, length);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+		if (validator != null) {
+			try {
+				validator.ignorableWhitespace(ch, start, length);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+	}
+
+	@Override
+	public void processingInstruction(final String target, final String data) throws SAXException {
+		if (validator != null) {
+			try {
+				validator.processingInstruction(target, data);
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+		}
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		if (validator != null) {
+			try {
+				validator.endDocument();
+			} catch (SAXException e) {
+				throw violation(e);
+			}
+			completed = true;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.rob.ceuploadxml.validator;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Details of a well formed document that is not valid against its schema.
+ */
+public final class SchemaViolationException extends SAXException {
+
+	/**
+	 * Serial version UID.
+	 */
+	private static final long serialVersionUID = -1390871573305614372L;
+
+	/**
+	 * Schema the document was validated against.
+	 */
+	private final transient SchemaKey schema;
+
+	/**
+	 * @param schema schema the document was validated against
+	 * @param cause  error reported by the schema validator
+	 */
+	public SchemaViolationException(final SchemaKey schema, final SAXException cause) {
+		super("Not valid against schema " + schema.getNamespace() + " version " + schema.getVersion() + ": "
+				+ cause.getMessage(), cause);
+		this.schema = schema;
+	}
+
+	/**
+	 * @return schema the document was validated against
+	 */
+	public SchemaKey getSchema() {
+		return schema;
+	}
+}
@@ -0,0 +1,37 @@
+package com.rob.ceuploadxml.validator;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+@ConfigurationProperties("validation")
+@Data
+@Builder(toBuilder = true)
+@EqualsAndHashCode
+@NoArgsConstructor(force = true)
+@AllArgsConstructor
+public class ValidationProperties {
+
+	/**
+	 * Folder for storing registered XSDs. Schemas are only kept in memory if this
+	 * is not set.
+	 */
+	private String schemaLocation;
+
+	/**
+	 * Most compiled schemas to keep in memory.
+	 */
+	@Builder.Default
+	private int schemaCacheSize = 16;
+
+	/**
+	 * Most idle validators to keep for each compiled schema.
+	 */
+	@Builder.Default
+	private int validatorsPerSchema = 16;
+
+}
@@ -1,59 +1,175 @@
-package com.rob.ceuploadxml.validator;
-
-import java.io.IOException;
-import java.nio.file.Path;
-
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-
-import lombok.extern.log4j.Log4j2;
-
-/**
- * Validate XML.
- */
-@Log4j2
-public final class XmlValidator {
-
-	/**
-	 * Is the XML well formed? <b>Does not check</b> if it is valid against an XSD.
-	 * 
-	 * @param xmlPath path to XML file.
-	 * @return true if the XML in <code>xmlPath</code> is well formed.
-	 */
-	public boolean xmlIsWellFormed(final Path xmlPath) {
-		try {
-			parseXml(xmlPath);
-			return true;
-		} catch (IOException | ParserConfigurationException | SAXException e) {
-			log.error("Invalid XML within file: {}", xmlPath.toAbsolutePath(), e);
-			return false;
-		}
-	}
-
-	/**
-	 * Parse the XML, throwing an exception on failure.
-	 * 
-	 * <b>Implementation note</b>: creating a new <code>DocumentBuilder</code> each
-	 * time to prevent possible caching of previous XML documents. This may need to
-	 * be revised.
-	 * 
-	 * @param xmlPath path to saved XML file
-	 * @return parsed XML
-	 * @throws IOException                  if we have problem reading the file
-	 * @throws ParserConfigurationException if we cannot add XXE security feature
-	 * @throws SAXException                 if we cannot parse the XML
-	 */
-	private Document parseXml(final Path xmlPath) throws IOException, ParserConfigurationException, SAXException {
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		// Prevent XXE attacks.
-		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-		DocumentBuilder db = factory.newDocumentBuilder();
-		return db.parse(xmlPath.toFile());
-	}
-
-}
+package com.rob.ceuploadxml.validator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Validate XML.
+ * 
+ * <b>Implementation note</b>: XML is checked with pooled SAX parsers, so no
+ * document tree is built and heap use stays flat however big the document is.
+ * One validator can be used from many threads at once.
+ */
+@Component
+@Log4j2
+public final class XmlValidator {
+
+	/**
+	 * Parsers used to check XML.
+	 */
+	private final SaxParserPool parserPool;
+
+	/**
+	 * Schemas that XML can be validated against.
+	 */
+	private final SchemaRegistry schemaRegistry;
+
+	/**
+	 * Validator that uses the shared parser pool and has no schemas.
+	 */
+	public XmlValidator() {
+		this(SaxParserPool.shared(), new SchemaRegistry());
+	}
+
+	/**
+	 * @param parserPool parsers used to check XML
+	 */
+	public XmlValidator(final SaxParserPool parserPool) {
+		this(parserPool, new SchemaRegistry());
+	}
+
+	/**
+	 * @param schemaRegistry schemas that XML can be validated against
+	 */
+	@Autowired
+	public XmlValidator(final SchemaRegistry schemaRegistry) {
+		this(SaxParserPool.shared(), schemaRegistry);
+	}
+
+	/**
+	 * @param parserPool     parsers used to check XML
+	 * @param schemaRegistry schemas that XML can be validated against
+	 */
+	public XmlValidator(final SaxParserPool parserPool, final SchemaRegistry schemaRegistry) {
+		this.parserPool = parserPool;
+		this.schemaRegistry = schemaRegistry;
+	}
+
+	/**
+	 * Is the XML well formed? <b>Does not check</b> if it is valid against an XSD.
+	 * 
+	 * @param xmlPath path to XML file.
+	 * @return true if the XML in <code>xmlPath</code> is well formed.
+	 */
+	public boolean xmlIsWellFormed(final Path xmlPath) {
+		try (InputStream xmlStream = Files.newInputStream(xmlPath)) {
+			checkWellFormed(xmlStream);
+			return true;
+		} catch (IOException | SAXException e) {
+			log.error("Invalid XML within file: {}", xmlPath.toAbsolutePath(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Is the XML read from a stream well formed? <b>Does not check</b> if it is
+	 * valid against an XSD.
+	 * 
+	 * @param xmlStream stream of XML
+	 * @return true if the XML in <code>xmlStream</code> is well formed.
+	 */
+	public boolean xmlIsWellFormed(final InputStream xmlStream) {
+		try {
+			checkWellFormed(xmlStream);
+			return true;
+		} catch (IOException | SAXException e) {
+			log.error("Invalid XML within stream.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Check that the XML read from a stream is well formed, throwing an exception
+	 * on failure.
+	 * 
+	 * @param xmlStream stream of XML
+	 * @throws IOException  if we have problem reading the stream
+	 * @throws SAXException if we cannot parse the XML
+	 */
+	public void checkWellFormed(final InputStream xmlStream) throws IOException, SAXException {
+		checkWellFormed(xmlStream, new DefaultHandler());
+	}
+
+	/**
+	 * Check that the XML read from a stream is well formed, as
+	 * {@link #checkWellFormed(InputStream)} does, telling a listener of each
+	 * element and each run of text as it is read.
+	 * 
+	 * @param xmlStream stream of XML
+	 * @param listener  told of elements and text
+	 * @throws IOException  if we have problem reading the stream
+	 * @throws SAXException if we cannot parse the XML
+	 */
+	public void checkWellFormed(final InputStream xmlStream, final DefaultHandler listener)
+			throws IOException, SAXException {
+		parserPool.parse(new InputSource(xmlStream), listener);
+	}
+
+	/**
+	 * Check that the XML read from a stream is well formed and valid against its
+	 * schema, throwing an exception on failure. The schema is the one asked for,
+	 * or if none is asked for, the latest one registered for the namespace of the
+	 * root element. If there is no such schema, only well-formedness is checked.
+	 * 
+	 * @param xmlStream stream of XML
+	 * @param schema    schema to validate against (version may be null for the
+	 *                  latest), or null to choose by root namespace
+	 * @return schema the XML was validated against, if any
+	 * @throws IOException              if we have problem reading the stream
+	 * @throws SchemaViolationException if the XML is not valid against its schema
+	 * @throws SAXException             if we cannot parse the XML
+	 */
+	public Optional<SchemaKey> checkValid(final InputStream xmlStream, final SchemaKey schema)
+			throws IOException, SAXException {
+		return checkValid(xmlStream, schema, null);
+	}
+
+	/**
+	 * Check that the XML read from a stream is well formed and valid against its
+	 * schema, as {@link #checkValid(InputStream, SchemaKey)} does, telling a
+	 * listener of each element and each run of text as it is checked.
+	 * 
+	 * @param xmlStream stream of XML
+	 * @param schema    schema to validate against (version may be null for the
+	 *                  latest), or null to choose by root namespace
+	 * @param listener  told of elements and text, only once the validator has
+	 *                  accepted them; may be null
+	 * @return schema the XML was validated against, if any
+	 * @throws IOException              if we have problem reading the stream
+	 * @throws SchemaViolationException if the XML is not valid against its schema
+	 * @throws SAXException             if we cannot parse the XML
+	 */
+	public Optional<SchemaKey> checkValid(final InputStream xmlStream, final SchemaKey schema,
+			final ContentHandler listener) throws IOException, SAXException {
+		SchemaValidatingHandler handler = new SchemaValidatingHandler(schemaRegistry, schema, listener);
+		try {
+			parserPool.parse(new InputSource(xmlStream), handler);
+		} finally {
+			handler.finish();
+		}
+		return handler.getSchema();
+	}
+
+}
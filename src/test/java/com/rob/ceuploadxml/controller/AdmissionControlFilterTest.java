@@ -0,0 +1,189 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.servlet.ServletInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Test {@link AdmissionControlFilter}.
+ */
+public final class AdmissionControlFilterTest {
+
+	/**
+	 * @return data for {@link #testClassify(String, String, AdmissionControlFilter.Operation)}
+	 */
+	private static Stream<Arguments> dataForTestClassify() {
+		return Stream.of(//
+				Arguments.of("POST", "/xmldoc/add", AdmissionControlFilter.Operation.UPLOAD), //
+				Arguments.of("POST", "/xmldoc/addBatch", AdmissionControlFilter.Operation.UPLOAD), //
+				Arguments.of("POST", "/xmldoc/addAsync", AdmissionControlFilter.Operation.UPLOAD), //
+				Arguments.of("PUT", "/xmldoc/addArchive", AdmissionControlFilter.Operation.UPLOAD), //
+				Arguments.of("GET", "/xmldoc/get/test01.xml", AdmissionControlFilter.Operation.DOWNLOAD), //
+				Arguments.of("HEAD", "/xmldoc/get/test01.xml", AdmissionControlFilter.Operation.DOWNLOAD), //
+				Arguments.of("GET", "/xmldoc/export", AdmissionControlFilter.Operation.DOWNLOAD), //
+				Arguments.of("GET", "/xmldoc/list", AdmissionControlFilter.Operation.LIST), //
+				Arguments.of("GET", "/xmldoc/list/stream", AdmissionControlFilter.Operation.LIST), //
+				Arguments.of("GET", "/xmldoc/query", AdmissionControlFilter.Operation.LIST), //
+				Arguments.of("GET", "/xmldoc/search", AdmissionControlFilter.Operation.LIST), //
+				Arguments.of("PUT", "/nio/xmldoc/add/test01.xml", AdmissionControlFilter.Operation.UPLOAD), //
+				Arguments.of("GET", "/nio/xmldoc/get/test01.xml", AdmissionControlFilter.Operation.DOWNLOAD), //
+				Arguments.of("GET", "/nio/xmldoc/list", AdmissionControlFilter.Operation.LIST), //
+				Arguments.of("GET", "/xmldoc/status/1", null), //
+				Arguments.of("DELETE", "/xmldoc/delete/test01.xml", null), //
+				Arguments.of("GET", "/admin/admission", null)//
+		);
+	}
+
+	/**
+	 * Requests are limited by what they do.
+	 * 
+	 * @param method    HTTP method
+	 * @param path      path asked for
+	 * @param operation kind of request it should be, or null if not limited
+	 */
+	@ParameterizedTest(name = "#{index} - [{0} {1}]")
+	@MethodSource("dataForTestClassify")
+	public void testClassify(final String method, final String path,
+			final AdmissionControlFilter.Operation operation) {
+		assertEquals(operation, AdmissionControlFilter.classify(new MockHttpServletRequest(method, path)));
+	}
+
+	/**
+	 * A download beyond the limit, with no room to wait, is turned away with 503
+	 * and Retry-After while other kinds of request still get in.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testRejectsWhenFull() throws Exception {
+		AdmissionControlFilter filter = new AdmissionControlFilter(AdmissionProperties.builder()//
+				.downloadLimit(1)//
+				.downloadQueueSize(0)//
+				.retryAfterSeconds(3)//
+				.queueTimeout(Duration.ZERO)//
+				.build());
+		CountDownLatch inChain = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		CompletableFuture<Void> running = CompletableFuture.runAsync(() -> {
+			try {
+				filter.doFilter(new MockHttpServletRequest("GET", "/xmldoc/get/a.xml"), new MockHttpServletResponse(),
+						(request, response) -> {
+							inChain.countDown();
+							try {
+								finish.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						});
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		inChain.await(10, TimeUnit.SECONDS);
+
+		MockHttpServletResponse rejected = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/xmldoc/get/b.xml"), rejected, (request, response) -> {
+		});
+		assertEquals(503, rejected.getStatus());
+		assertEquals("3", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+
+		MockHttpServletResponse listed = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/xmldoc/list"), listed, (request, response) -> {
+		});
+		assertEquals(200, listed.getStatus());
+
+		AdmissionStats downloads = filter.getStats().get("download");
+		assertEquals(1, downloads.getInFlight());
+		assertEquals(1, downloads.getRejected());
+		finish.countDown();
+		running.get(10, TimeUnit.SECONDS);
+		assertEquals(0, filter.getStats().get("download").getInFlight());
+	}
+
+	/**
+	 * @return filter whose upload limit starts at 4 and backs off for uploads
+	 *         slower than 50ms
+	 */
+	private static AdmissionControlFilter adaptiveFilter() {
+		return new AdmissionControlFilter(AdmissionProperties.builder()//
+				.uploadLimit(4)//
+				.uploadMinLimit(1)//
+				.uploadTargetLatency(Duration.ofMillis(50))//
+				.build());
+	}
+
+	/**
+	 * @return upload whose body arrives slowly, as from a slow client
+	 */
+	private static MockHttpServletRequest slowUpload() {
+		return new MockHttpServletRequest("PUT", "/xmldoc/addStream/a.xml") {
+
+			@Override
+			public ServletInputStream getInputStream() {
+				return new DelegatingServletInputStream(new ByteArrayInputStream("<a/>".getBytes())) {
+
+					@Override
+					public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+						try {
+							Thread.sleep(200);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return super.read(buffer, offset, length);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Time spent waiting for a slow client to send an upload does not lower the
+	 * upload limit.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testSlowClientDoesNotLowerLimit() throws Exception {
+		AdmissionControlFilter filter = adaptiveFilter();
+		filter.doFilter(slowUpload(), new MockHttpServletResponse(),
+				(request, response) -> StreamUtils.drain(request.getInputStream()));
+		assertEquals(4, filter.getStats().get("upload").getLimit());
+	}
+
+	/**
+	 * An upload the server is slow to handle lowers the upload limit.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testSlowServerLowersLimit() throws Exception {
+		AdmissionControlFilter filter = adaptiveFilter();
+		filter.doFilter(new MockHttpServletRequest("PUT", "/xmldoc/addStream/a.xml"), new MockHttpServletResponse(),
+				(request, response) -> {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+		assertEquals(3, filter.getStats().get("upload").getLimit());
+	}
+}
@@ -0,0 +1,90 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test {@link ConcurrencyLimiter}.
+ */
+public final class ConcurrencyLimiterTest {
+
+	/**
+	 * Target latency for adaptive limiters.
+	 */
+	private static final long TARGET = Duration.ofMillis(100).toNanos();
+
+	/**
+	 * Requests beyond the limit wait in the queue, and beyond the queue are
+	 * turned away.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testLimitAndQueue() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1);
+		assertTrue(limiter.tryAcquire(0));
+
+		CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return limiter.tryAcquire(TimeUnit.SECONDS.toNanos(10));
+			} catch (InterruptedException e) {
+				return false;
+			}
+		});
+		while (limiter.getStats().getQueued() == 0) {
+			Thread.sleep(5);
+		}
+		assertFalse(limiter.tryAcquire(TimeUnit.SECONDS.toNanos(10)), "Queue is full.");
+
+		limiter.release(0);
+		assertTrue(waiting.get(10, TimeUnit.SECONDS), "Waiting request gets the slot.");
+		assertFalse(limiter.tryAcquire(TimeUnit.MILLISECONDS.toNanos(10)), "Times out waiting.");
+
+		AdmissionStats stats = limiter.getStats();
+		assertEquals(1, stats.getInFlight());
+		assertEquals(0, stats.getQueued());
+		assertEquals(2, stats.getRejected());
+	}
+
+	/**
+	 * The limit grows while requests use it in full and are fast, and shrinks
+	 * when they are slow, within its bounds.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testAdaptsToLatency() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 2, 5, 0, TARGET);
+		for (int round = 0; round < 10; round++) {
+			int limit = limiter.getStats().getLimit();
+			for (int i = 0; i < limit; i++) {
+				assertTrue(limiter.tryAcquire(0));
+			}
+			for (int i = 0; i < limit; i++) {
+				limiter.release(TARGET / 2);
+			}
+		}
+		assertEquals(5, limiter.getStats().getLimit(), "Grows to its max.");
+
+		assertTrue(limiter.tryAcquire(0));
+		limiter.release(TARGET * 2);
+		assertEquals(4, limiter.getStats().getLimit(), "Shrinks when slow.");
+		assertTrue(limiter.tryAcquire(0));
+		limiter.release(TARGET * 2);
+		assertEquals(4, limiter.getStats().getLimit(), "Shrinks at most once per target latency.");
+
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TARGET) + 10);
+			assertTrue(limiter.tryAcquire(0));
+			limiter.release(TARGET * 2);
+		}
+		assertEquals(2, limiter.getStats().getLimit(), "Never below its min.");
+	}
+}
@@ -0,0 +1,400 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+/**
+ * Integration test of {@link NonBlockingXmlDocServlet} over real HTTP, with
+ * files stored compressed and far fewer container threads than clients.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"storage.compression=GZIP", "storage.location=" + NonBlockingXmlDocServletIT.STORAGE_LOCATION,
+		"server.tomcat.max-threads=" + NonBlockingXmlDocServletIT.SERVER_THREADS,
+		"storage.document-cache-size=1MB", "storage.document-cache-max-file-size=1KB",
+		"admission.upload-limit=" + NonBlockingXmlDocServletIT.SLOW_CLIENTS,
+		"admission.upload-target-latency=1s"})
+@ExtendWith(SpringExtension.class)
+@ComponentScan("com.rob.ceuploadxml")
+public final class NonBlockingXmlDocServletIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-nio";
+
+	/**
+	 * Threads the servlet container has to serve every request.
+	 */
+	static final int SERVER_THREADS = 4;
+
+	/**
+	 * Clients trickling uploads in at once, all let in by admission control.
+	 */
+	static final int SLOW_CLIENTS = SERVER_THREADS * 8;
+
+	/**
+	 * Port the app is listening on.
+	 */
+	@LocalServerPort
+	private int port;
+
+	/**
+	 * Repo to clear between tests.
+	 */
+	@Autowired
+	private XmlDocMetadataRepository repo;
+
+	/**
+	 * Reads metadata from responses.
+	 */
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Service whose document cache is checked.
+	 */
+	@Autowired
+	private XmlStorageService storageService;
+
+	/**
+	 * Limits how many uploads run at once.
+	 */
+	@Autowired
+	private AdmissionControlFilter admissionControl;
+
+	/**
+	 * Makes requests.
+	 */
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+	/**
+	 * @return label, file name, note and body of uploads that are turned away,
+	 *         with the status they should get
+	 */
+	private static Stream<Arguments> dataForTestUploadTurnedAway() {
+		return Stream.of(//
+				Arguments.of("Invalid XML.", "bad.xml", "Note.", "<books>".getBytes(), 400), //
+				Arguments.of("Not an XML file name.", "books.txt", "Note.", "<books/>".getBytes(), 400), //
+				Arguments.of("No note.", "books.xml", "", "<books/>".getBytes(), 400), //
+				Arguments.of("Too large.", "big.xml", "Note.", books(300 * 1024), 413) //
+		);
+	}
+
+	/**
+	 * @param label    what is wrong with the upload
+	 * @param filename name to store the upload under
+	 * @param note     note to save against the upload
+	 * @param body     the upload
+	 * @param status   status the upload should get
+	 * @throws Exception if an error is not handled
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("dataForTestUploadTurnedAway")
+	public void testUploadTurnedAway(final String label, final String filename, final String note,
+			final byte[] body, final int status) throws Exception {
+		repo.deleteAll();
+		assertEquals(status, client.send(put(filename, note, HttpRequest.BodyPublishers.ofByteArray(body)),
+				HttpResponse.BodyHandlers.discarding()).statusCode(), label);
+		assertTrue(repo.findByFilename(filename).isEmpty(), "Nothing saved: " + label);
+		String[] spooled = new File(STORAGE_LOCATION, ".incoming").list();
+		assertTrue(spooled == null || spooled.length == 0, "No spooled uploads should be left behind: " + label);
+	}
+
+	/**
+	 * An upload is stored as it would be through <code>/xmldoc/addStream</code>,
+	 * and served back as stored, decompressed, or in part, just as
+	 * <code>/xmldoc/get</code> would.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testUploadAndDownload() throws Exception {
+		repo.deleteAll();
+		byte[] original = books(200 * 1024);
+		HttpResponse<String> stored = client.send(put("books.xml", "Non-blocking.",
+				HttpRequest.BodyPublishers.ofByteArray(original)), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, stored.statusCode(), stored.body());
+		XmlDocMetadata metadata = objectMapper.readValue(stored.body(), XmlDocMetadata.class);
+		assertEquals("books.xml", metadata.getFilename());
+		assertEquals(original.length, metadata.getSize());
+		assertEquals("gzip", metadata.getEncoding());
+		assertEquals(400, client.send(put("books.xml", "Again.", HttpRequest.BodyPublishers.ofByteArray(original)),
+				HttpResponse.BodyHandlers.discarding()).statusCode(), "Name is taken.");
+
+		HttpResponse<byte[]> gzipped = client.send(get("/get/books.xml").header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, gzipped.statusCode());
+		assertEquals("gzip", gzipped.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null));
+		assertArrayEquals(Files.readAllBytes(new File(STORAGE_LOCATION, "books.xml.gz").toPath()), gzipped.body());
+		assertArrayEquals(original,
+				StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))));
+
+		HttpResponse<byte[]> plain = client.send(get("/get/books.xml").build(),
+				HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, plain.statusCode());
+		assertFalse(plain.headers().firstValue(HttpHeaders.CONTENT_ENCODING).isPresent());
+		assertArrayEquals(original, plain.body(), "Decompressed for client.");
+
+		HttpResponse<byte[]> part = client.send(get("/get/books.xml").header(HttpHeaders.RANGE, "bytes=100000-100099")
+				.build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(206, part.statusCode());
+		assertArrayEquals(Arrays.copyOfRange(original, 100000, 100100), part.body());
+
+		String etag = plain.headers().firstValue(HttpHeaders.ETAG).orElse(null);
+		assertEquals(304, client.send(get("/get/books.xml").header(HttpHeaders.IF_NONE_MATCH, etag).build(),
+				HttpResponse.BodyHandlers.discarding()).statusCode());
+		assertEquals(404, client.send(get("/get/none.xml").build(), HttpResponse.BodyHandlers.discarding())
+				.statusCode());
+	}
+
+	/**
+	 * A file small enough to cache is sent from memory, decompressed or not.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testDownloadFromDocumentCache() throws Exception {
+		repo.deleteAll();
+		byte[] original = books(2 * 1024);
+		assertEquals(200, client.send(put("small.xml", "Cached.", HttpRequest.BodyPublishers.ofByteArray(original)),
+				HttpResponse.BodyHandlers.discarding()).statusCode());
+		byte[] stored = Files.readAllBytes(new File(STORAGE_LOCATION, "small.xml.gz").toPath());
+
+		for (int i = 0; i < 2; i++) {
+			HttpResponse<byte[]> gzipped = client.send(get("/get/small.xml")
+					.header(HttpHeaders.ACCEPT_ENCODING, "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertArrayEquals(stored, gzipped.body());
+			HttpResponse<byte[]> plain = client.send(get("/get/small.xml").build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertArrayEquals(original, plain.body(), "Decompressed for client.");
+			HttpResponse<byte[]> part = client.send(get("/get/small.xml").header(HttpHeaders.RANGE, "bytes=1000-1099")
+					.build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(206, part.statusCode());
+			assertArrayEquals(Arrays.copyOfRange(original, 1000, 1100), part.body());
+		}
+		assertTrue(storageService.getCacheStats().get("document").getHits() >= 5, "Should be served from memory.");
+	}
+
+	/**
+	 * Every doc is listed as newline delimited JSON, across pages, starting
+	 * after the cursor given.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testList() throws Exception {
+		repo.deleteAll();
+		List<String> filenames = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			filenames.add("list" + i + ".xml");
+			assertEquals(200, client.send(put(filenames.get(i), "List.", HttpRequest.BodyPublishers.ofString("<a/>")),
+					HttpResponse.BodyHandlers.discarding()).statusCode());
+		}
+
+		List<XmlDocMetadata> all = list("");
+		assertEquals(filenames, all.stream().map(XmlDocMetadata::getFilename).collect(Collectors.toList()));
+		assertEquals(filenames.subList(1, 3), list("?after=" + all.get(0).getId()).stream()
+				.map(XmlDocMetadata::getFilename).collect(Collectors.toList()));
+		assertEquals(400, client.send(get("/list?after=first").build(), HttpResponse.BodyHandlers.discarding())
+				.statusCode());
+	}
+
+	/**
+	 * Many more clients than the container has threads can trickle uploads in
+	 * at once: none waits for a thread another is holding while it sends, and
+	 * the time they take to send does not count against the upload limit.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testSlowClientsHoldNoThreads() throws Exception {
+		repo.deleteAll();
+		int clients = SLOW_CLIENTS;
+		long chunkDelayMillis = 100;
+		int chunks = 10;
+		long start = System.nanoTime();
+		List<CompletableFuture<HttpResponse<String>>> uploads = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			uploads.add(client.sendAsync(put("slow" + i + ".xml", "Slow.",
+					HttpRequest.BodyPublishers.ofInputStream(() -> new SlowInputStream(chunks, chunkDelayMillis))),
+					HttpResponse.BodyHandlers.ofString()));
+		}
+		for (CompletableFuture<HttpResponse<String>> upload : uploads) {
+			HttpResponse<String> response = upload.get();
+			assertEquals(200, response.statusCode(), response.body());
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+		// Each upload takes a second to send; one thread each would take eight.
+		long oneThreadEach = clients / SERVER_THREADS * chunks * chunkDelayMillis;
+		assertTrue(elapsedMillis < oneThreadEach * 3 / 4,
+				"Uploads should overlap, took " + elapsedMillis + "ms against " + oneThreadEach + "ms.");
+		assertEquals(clients, repo.count());
+		assertTrue(admissionControl.getStats().get("upload").getLimit() >= clients,
+				"Time spent waiting for slow clients should not lower the upload limit.");
+	}
+
+	/**
+	 * @param filename name to store the upload under
+	 * @param note     note to save against the upload
+	 * @param body     the upload
+	 * @return request to upload a doc
+	 */
+	private HttpRequest put(final String filename, final String note, final HttpRequest.BodyPublisher body) {
+		return HttpRequest.newBuilder(uri("/add/" + filename + "?note=" + note.replace(' ', '+'))).PUT(body).build();
+	}
+
+	/**
+	 * @param path path under the servlet
+	 * @return request to get from the path
+	 */
+	private HttpRequest.Builder get(final String path) {
+		return HttpRequest.newBuilder(uri(path)).GET();
+	}
+
+	/**
+	 * @param path path under the servlet
+	 * @return full URI of the path
+	 */
+	private URI uri(final String path) {
+		return URI.create("http://localhost:" + port + NonBlockingXmlDocServlet.PATH + path);
+	}
+
+	/**
+	 * @param query query string of the list, or an empty string
+	 * @return docs listed
+	 * @throws Exception if an error is not handled
+	 */
+	private List<XmlDocMetadata> list(final String query) throws Exception {
+		HttpResponse<Stream<String>> response = client.send(get("/list" + query).build(),
+				HttpResponse.BodyHandlers.ofLines());
+		assertEquals(200, response.statusCode());
+		assertEquals(XmlFileController.APPLICATION_NDJSON_VALUE,
+				response.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElse(null));
+		List<XmlDocMetadata> docs = new ArrayList<>();
+		for (String line : response.body().collect(Collectors.toList())) {
+			docs.add(objectMapper.readValue(line, XmlDocMetadata.class));
+		}
+		return docs;
+	}
+
+	/**
+	 * @param approximateSize about how many bytes of XML to make
+	 * @return well formed XML of about that size
+	 */
+	private static byte[] books(final int approximateSize) {
+		StringBuilder xml = new StringBuilder("<books>");
+		for (int i = 0; xml.length() < approximateSize; i++) {
+			xml.append("<book><title>Title ").append(i).append("</title></book>");
+		}
+		return xml.append("</books>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Well formed XML that arrives a chunk at a time, with a pause before each.
+	 */
+	private static final class SlowInputStream extends InputStream {
+
+		/**
+		 * Chunks still to send.
+		 */
+		private int chunks;
+
+		/**
+		 * Pause before each chunk.
+		 */
+		private final long delayMillis;
+
+		/**
+		 * Rest of the current chunk.
+		 */
+		private InputStream current = new ByteArrayInputStream("<books>".getBytes(StandardCharsets.UTF_8));
+
+		/**
+		 * @param chunks      chunks to send
+		 * @param delayMillis pause before each chunk
+		 */
+		SlowInputStream(final int chunks, final long delayMillis) {
+			this.chunks = chunks;
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			int read = current.read(buffer, offset, length);
+			while (read == -1) {
+				if (chunks < 0) {
+					return -1;
+				}
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+				String next = chunks-- > 0 ? "<book><title>Slow</title></book>" : "</books>";
+				current = new ByteArrayInputStream(next.getBytes(StandardCharsets.UTF_8));
+				read = current.read(buffer, offset, length);
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * Remove any files written by storage service, except the index, which stays
+	 * open for as long as the service does.
+	 * 
+	 * @throws IOException if we cannot delete directory.
+	 */
+	@AfterEach
+	public void tearDown() throws IOException {
+		for (File stored : new File(STORAGE_LOCATION).listFiles((dir, name) -> !".index".equals(name))) {
+			FileUtils.forceDelete(stored);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.util.StreamUtils;
+
+import com.rob.ceuploadxml.service.PackFileXmlStorageService;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+/**
+ * Integration test of {@link NonBlockingXmlDocServlet} over real HTTP, with
+ * files packed into segments by {@link PackFileXmlStorageService} and read
+ * where they are in the segment.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {"storage.engine=PACK",
+		"storage.compression=GZIP", "storage.location=" + NonBlockingXmlDocServletPackIT.STORAGE_LOCATION})
+@ExtendWith(SpringExtension.class)
+@ComponentScan("com.rob.ceuploadxml")
+public final class NonBlockingXmlDocServletPackIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-nio-pack";
+
+	/**
+	 * Port the app is listening on.
+	 */
+	@LocalServerPort
+	private int port;
+
+	/**
+	 * Service files are stored with.
+	 */
+	@Autowired
+	private XmlStorageService storageService;
+
+	/**
+	 * Makes requests.
+	 */
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+	/**
+	 * Remove every file stored by an earlier test. Segments stay open for as long
+	 * as the service does, so files are removed through it rather than from disk.
+	 */
+	@BeforeEach
+	public void setUp() {
+		storageService.listFiles().forEach(doc -> storageService.delete(doc.getFilename()));
+	}
+
+	/**
+	 * A packed file, stored after another in the same segment, is served as
+	 * stored, decompressed, or in part.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testDownloadPacked() throws Exception {
+		assertEquals(200, client.send(put("first.xml", "<books/>".getBytes()), HttpResponse.BodyHandlers.discarding())
+				.statusCode());
+		byte[] original = books(200 * 1024);
+		assertEquals(200, client.send(put("books.xml", original), HttpResponse.BodyHandlers.discarding())
+				.statusCode());
+
+		HttpResponse<byte[]> gzipped = client.send(get("books.xml").header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, gzipped.statusCode());
+		assertEquals("gzip", gzipped.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null));
+		assertArrayEquals(original,
+				StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))));
+
+		HttpResponse<byte[]> plain = client.send(get("books.xml").build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, plain.statusCode());
+		assertArrayEquals(original, plain.body(), "Decompressed for client.");
+
+		HttpResponse<byte[]> part = client.send(get("books.xml").header(HttpHeaders.RANGE, "bytes=100000-100099")
+				.build(), HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(206, part.statusCode());
+		assertArrayEquals(Arrays.copyOfRange(original, 100000, 100100), part.body());
+		assertEquals(404, client.send(get("none.xml").build(), HttpResponse.BodyHandlers.discarding())
+				.statusCode());
+	}
+
+	/**
+	 * @param filename name to store the upload under
+	 * @param body     the upload
+	 * @return request to upload without blocking
+	 */
+	private HttpRequest put(final String filename, final byte[] body) {
+		return HttpRequest.newBuilder(uri("/add/" + filename + "?note=Packed."))
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+	}
+
+	/**
+	 * @param filename name of the doc
+	 * @return request to download a doc without blocking
+	 */
+	private HttpRequest.Builder get(final String filename) {
+		return HttpRequest.newBuilder(uri("/get/" + filename)).GET();
+	}
+
+	/**
+	 * @param path path under the servlet
+	 * @return full URI of the path
+	 */
+	private URI uri(final String path) {
+		return URI.create("http://localhost:" + port + NonBlockingXmlDocServlet.PATH + path);
+	}
+
+	/**
+	 * @param approximateSize about how many bytes of XML to make
+	 * @return well formed XML of about that size
+	 */
+	private static byte[] books(final int approximateSize) {
+		StringBuilder xml = new StringBuilder("<books>");
+		for (int i = 0; xml.length() < approximateSize; i++) {
+			xml.append("<book><title>Title ").append(i).append("</title></book>");
+		}
+		return xml.append("</books>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
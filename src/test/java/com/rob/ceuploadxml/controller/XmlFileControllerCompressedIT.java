@@ -0,0 +1,246 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.service.CacheStats;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+/**
+ * Integration test of {@link XmlFileController} with the storage service
+ * compressing files as it stores them.
+ */
+@SpringBootTest(properties = {"storage.compression=GZIP", "storage.document-cache-size=1MB",
+		"storage.location=" + XmlFileControllerCompressedIT.STORAGE_LOCATION})
+@ExtendWith(SpringExtension.class)
+@AutoConfigureMockMvc
+@ComponentScan("com.rob.ceuploadxml")
+public final class XmlFileControllerCompressedIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-gz";
+
+	/**
+	 * REST path to get a doc.
+	 */
+	private static final String PATH_GET = "/xmldoc/get/";
+
+	/**
+	 * Allows mocking of Rest calls via MVC interface.
+	 */
+	@Autowired
+	private MockMvc mockMvc;
+
+	/**
+	 * Repo to clear between tests.
+	 */
+	@Autowired
+	private XmlDocMetadataRepository repo;
+
+	/**
+	 * Object to convert JSON return from RESTfull calls into the object they should
+	 * map to.
+	 */
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Service whose document cache is checked.
+	 */
+	@Autowired
+	private XmlStorageService storageService;
+
+	/**
+	 * A file is stored gzipped with both sizes recorded, sent as stored to a
+	 * client that accepts gzip, and decompressed for one that does not.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testStoredAndServedCompressed() throws Exception {
+		repo.deleteAll();
+		StringBuilder xml = new StringBuilder("<books>");
+		for (int i = 0; i < 200; i++) {
+			xml.append("<book><title>Title ").append(i).append("</title></book>");
+		}
+		byte[] original = xml.append("</books>").toString().getBytes();
+
+		String json = mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", "books.xml", "text/plain", original))//
+				.param("note", "Compress me.")//
+				.accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		XmlDocMetadata metadata = objectMapper.readValue(json, XmlDocMetadata.class);
+
+		assertEquals(original.length, metadata.getSize());
+		assertEquals("gzip", metadata.getEncoding());
+		File stored = new File(STORAGE_LOCATION, "books.xml.gz");
+		assertEquals(stored.length(), metadata.getStoredSize().longValue());
+		assertTrue(metadata.getStoredSize() * 5 < original.length, "Should compress well: " + metadata);
+		assertFalse(new File(STORAGE_LOCATION, "books.xml").exists(), "Nothing stored uncompressed.");
+
+		MvcResult gzipped = mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "books.xml")//
+				.header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8"))//
+				.andExpect(status().isOk())//
+				.andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))//
+				.andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))//
+				.andReturn();
+		byte[] body = gzipped.getResponse().getContentAsByteArray();
+		assertArrayEquals(Files.readAllBytes(stored.toPath()), body, "Stored bytes sent as is.");
+		assertArrayEquals(original, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(body))));
+
+		MvcResult plain = mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "books.xml")//
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))//
+				.andExpect(status().isOk())//
+				.andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))//
+				.andReturn();
+		assertArrayEquals(original, plain.getResponse().getContentAsByteArray(), "Decompressed for client.");
+		assertNotEquals(gzipped.getResponse().getHeader(HttpHeaders.ETAG),
+				plain.getResponse().getHeader(HttpHeaders.ETAG),
+				"Each encoding has its own ETag.");
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "books.xml").header(HttpHeaders.RANGE, "bytes=0-6"))//
+				.andExpect(status().isPartialContent())//
+				.andExpect(content().string("<books>"));
+	}
+
+	/**
+	 * A downloaded file is then served from memory, decompressed or not, and is
+	 * no longer served once deleted.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testServedFromDocumentCache() throws Exception {
+		repo.deleteAll();
+		storageService.clearCaches();
+		byte[] original = "<books><book>Dune</book><book>Emma</book></books>".getBytes();
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", "cached.xml", "text/plain", original))//
+				.param("note", "Cache me."))//
+				.andExpect(status().isOk());
+
+		byte[] stored = Files.readAllBytes(new File(STORAGE_LOCATION, "cached.xml.gz").toPath());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml")//
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(stored));
+		CacheStats loaded = storageService.getCacheStats().get("document");
+		assertEquals(1, loaded.getSize());
+		assertEquals(stored.length, loaded.getBytes());
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml")//
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(original));
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml").header(HttpHeaders.RANGE, "bytes=7-16"))//
+				.andExpect(status().isPartialContent())//
+				.andExpect(content().string("<book>Dune"));
+		assertEquals(loaded.getHits() + 2, storageService.getCacheStats().get("document").getHits());
+
+		mockMvc.perform(MockMvcRequestBuilders.delete("/xmldoc/delete/cached.xml")).andExpect(status().isNoContent());
+		assertEquals(0, storageService.getCacheStats().get("document").getSize());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml")).andExpect(status().isNotFound());
+	}
+
+	/**
+	 * A gzipped file is copied into an export without being compressed again,
+	 * and reads back as uploaded.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testExportCopiesCompressed() throws Exception {
+		repo.deleteAll();
+		byte[] original = "<books><book>Dune</book><book>Dune</book><book>Dune</book></books>".getBytes();
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", "export.xml", "text/plain", original))//
+				.param("note", "Export me."))//
+				.andExpect(status().isOk());
+
+		MvcResult exporting = mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/export"))//
+				.andExpect(request().asyncStarted()).andReturn();
+		byte[] archive = mockMvc.perform(asyncDispatch(exporting)).andExpect(status().isOk()).andReturn()
+				.getResponse().getContentAsByteArray();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry = zip.getNextEntry();
+			assertEquals("export.xml", entry.getName());
+			assertArrayEquals(original, StreamUtils.copyToByteArray(zip));
+			assertNull(zip.getNextEntry());
+		}
+		byte[] stored = Files.readAllBytes(new File(STORAGE_LOCATION, "export.xml.gz").toPath());
+		// Stored deflate data sits after the 10 byte gzip header, and before the 8 byte trailer.
+		byte[] deflated = Arrays.copyOfRange(stored, 10, stored.length - 8);
+		assertTrue(indexOf(archive, deflated) > 0, "Stored deflate data should be copied in as is.");
+	}
+
+	/**
+	 * @param bytes  bytes to search
+	 * @param wanted bytes to look for
+	 * @return where <code>wanted</code> first starts in <code>bytes</code>, or -1
+	 */
+	private static int indexOf(final byte[] bytes, final byte[] wanted) {
+		for (int i = 0; i + wanted.length <= bytes.length; i++) {
+			if (Arrays.equals(bytes, i, i + wanted.length, wanted, 0, wanted.length)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove any files written by storage service, except the index, which stays
+	 * open for as long as the service does.
+	 * 
+	 * @throws IOException if we cannot delete directory.
+	 */
+	@AfterEach
+	public void tearDown() throws IOException {
+		for (File stored : new File(STORAGE_LOCATION).listFiles((dir, name) -> !".index".equals(name))) {
+			FileUtils.forceDelete(stored);
+		}
+	}
+}
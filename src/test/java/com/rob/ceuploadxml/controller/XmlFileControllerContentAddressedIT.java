@@ -0,0 +1,147 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+
+/**
+ * Integration test of {@link XmlFileController} with the storage service in
+ * content addressed mode.
+ */
+@SpringBootTest(properties = {"storage.content-addressed=true",
+		"storage.location=" + XmlFileControllerContentAddressedIT.STORAGE_LOCATION})
+@ExtendWith(SpringExtension.class)
+@AutoConfigureMockMvc
+@ComponentScan("com.rob.ceuploadxml")
+public final class XmlFileControllerContentAddressedIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-cas";
+
+	/**
+	 * Content of every file uploaded.
+	 */
+	private static final String CONTENT = "<same>content</same>";
+
+	/**
+	 * Allows mocking of Rest calls via MVC interface.
+	 */
+	@Autowired
+	private MockMvc mockMvc;
+
+	/**
+	 * Repo to test that saved files have metadata saved too.
+	 */
+	@Autowired
+	private XmlDocMetadataRepository repo;
+
+	/**
+	 * Object to convert JSON return from RESTfull calls into the object they should
+	 * map to.
+	 */
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Identical files uploaded under different names are stored once, can each be
+	 * downloaded, and the content goes when the last file using it is deleted.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testIdenticalFilesStoredOnce() throws Exception {
+		repo.deleteAll();
+		XmlDocMetadata first = upload("one.xml");
+		XmlDocMetadata second = upload("two.xml");
+
+		assertEquals(XmlFileControllerFullIT.sha256(CONTENT.getBytes()), first.getContentHash());
+		assertEquals(first.getContentHash(), second.getContentHash());
+		assertEquals(1, storedFiles().size(), "Content should be stored once.");
+		assertFalse(new File(STORAGE_LOCATION, "one.xml").exists(), "Nothing stored by name.");
+
+		for (String filename : new String[] {"one.xml", "two.xml"}) {
+			String downloaded = mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/get/" + filename))//
+					.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+			assertEquals(CONTENT, downloaded, filename);
+		}
+
+		mockMvc.perform(MockMvcRequestBuilders.delete("/xmldoc/delete/one.xml")).andExpect(status().isNoContent());
+		assertEquals(1, storedFiles().size(), "Content still used by two.xml.");
+		mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/get/two.xml")).andExpect(status().isOk());
+
+		mockMvc.perform(MockMvcRequestBuilders.delete("/xmldoc/delete/two.xml")).andExpect(status().isNoContent());
+		assertTrue(storedFiles().isEmpty(), "Content no longer used by any file.");
+	}
+
+	/**
+	 * @param filename name to upload {@link #CONTENT} as
+	 * @return metadata saved
+	 * @throws Exception if the upload fails
+	 */
+	private XmlDocMetadata upload(final String filename) throws Exception {
+		String json = mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", filename, "text/plain", CONTENT.getBytes()))//
+				.param("note", "Same content.")//
+				.accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		return objectMapper.readValue(json, XmlDocMetadata.class);
+	}
+
+	/**
+	 * @return every file stored, not counting uploads in progress
+	 * @throws IOException if we cannot list the storage location
+	 */
+	private static List<Path> storedFiles() throws IOException {
+		Path blobs = new File(STORAGE_LOCATION, ".blobs").toPath();
+		if (!Files.exists(blobs)) {
+			return Collections.emptyList();
+		}
+		try (Stream<Path> files = Files.walk(blobs)) {
+			return files.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Remove any files written by storage service, except the index, which stays
+	 * open for as long as the service does.
+	 * 
+	 * @throws IOException if we cannot delete directory.
+	 */
+	@AfterEach
+	public void tearDown() throws IOException {
+		for (File stored : new File(STORAGE_LOCATION).listFiles((dir, name) -> !".index".equals(name))) {
+			FileUtils.forceDelete(stored);
+		}
+	}
+}
@@ -1,16 +1,47 @@
 package com.rob.ceuploadxml.controller;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -22,21 +53,31 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.request.MockMultipartHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.util.FileCopyUtils;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.XmlDocUploadResult;
 import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+import com.rob.ceuploadxml.service.StorageException;
+import com.rob.ceuploadxml.service.StorageFileTooLargeException;
 import com.rob.ceuploadxml.service.XmlStorageService;
+import com.rob.ceuploadxml.service.XmlUpload;
 
 import lombok.extern.log4j.Log4j2;
 
@@ -86,6 +127,21 @@ public final class XmlFileControllerFullIT {
 	 */
 	private static final String PATH_ADD = "/xmldoc/add/";
 
+	/**
+	 * REST path to save many docs.
+	 */
+	private static final String PATH_ADD_BATCH = "/xmldoc/addBatch";
+
+	/**
+	 * REST path to delete a doc.
+	 */
+	private static final String PATH_DELETE = "/xmldoc/delete/";
+
+	/**
+	 * REST path to list docs.
+	 */
+	private static final String PATH_LIST = "/xmldoc/list";
+
 	/**
 	 * Allows mocking of Rest calls via MVC interface.
 	 */
@@ -98,6 +154,12 @@ public final class XmlFileControllerFullIT {
 	@Autowired
 	private XmlDocMetadataRepository repo;
 
+	/**
+	 * Service to store files with directly, from many threads at once.
+	 */
+	@Autowired
+	private XmlStorageService storageService;
+
 	/**
 	 * Object to convert JSON return from RESTfull calls into the object they should
 	 * map to.
@@ -152,6 +214,53 @@ public final class XmlFileControllerFullIT {
 		}
 	}
 
+	/**
+	 * Download with validators: a client with a current copy gets 304, and a
+	 * range gets just those bytes.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testConditionalAndRangeDownload() throws Exception {
+		repo.deleteAll();
+		byte[] content = "<range>0123456789</range>".getBytes();
+		storageService.store(new MockMultipartFile("file", "range.xml", "text/plain", content), "Ranges.");
+		String path = PATH_GET + "range.xml";
+
+		MvcResult full = mockMvc.perform(MockMvcRequestBuilders.get(path))//
+				.andExpect(STATUS_OK)//
+				.andExpect(header().string(HttpHeaders.ETAG, "\"" + sha256(content) + "\""))//
+				.andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))//
+				.andExpect(header().exists(HttpHeaders.LAST_MODIFIED))//
+				.andReturn();
+		String etag = full.getResponse().getHeader(HttpHeaders.ETAG);
+		String lastModified = full.getResponse().getHeader(HttpHeaders.LAST_MODIFIED);
+		assertEquals(new String(content), full.getResponse().getContentAsString());
+
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.IF_NONE_MATCH, etag))//
+				.andExpect(status().isNotModified())//
+				.andExpect(content().string(""));
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.IF_MODIFIED_SINCE, lastModified))//
+				.andExpect(status().isNotModified());
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.IF_NONE_MATCH, "\"x\""))//
+				.andExpect(STATUS_OK);
+
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.RANGE, "bytes=7-16"))//
+				.andExpect(status().isPartialContent())//
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 7-16/" + content.length))//
+				.andExpect(content().string("0123456789"));
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.RANGE, "bytes=-8"))//
+				.andExpect(status().isPartialContent())//
+				.andExpect(content().string("</range>"));
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.RANGE, "bytes=7-16")//
+				.header(HttpHeaders.IF_RANGE, "\"stale\""))//
+				.andExpect(STATUS_OK)//
+				.andExpect(content().string(new String(content)));
+		mockMvc.perform(MockMvcRequestBuilders.get(path).header(HttpHeaders.RANGE, "bytes=500-"))//
+				.andExpect(status().isRequestedRangeNotSatisfiable())//
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */" + content.length));
+	}
+
 	/**
 	 * @return data for
 	 *         {@link #testUploadFile(String, String, XmlDocMetadata, ResultMatcher)}
@@ -236,8 +345,9 @@ public final class XmlFileControllerFullIT {
 		String contentAsString = result.getResponse().getContentAsString();
 		assertNotNull(contentAsString);
 		XmlDocMetadata actual = objectMapper.readValue(contentAsString, XmlDocMetadata.class);
-		// Expected with ID should be ... expected.
-		XmlDocMetadata expectedWithId = expected.toBuilder().id(actual.getId()).build();
+		// Expected with ID and hash of what we sent should be ... expected.
+		XmlDocMetadata expectedWithId = expected.toBuilder().id(actual.getId())
+				.contentHash(sha256(fileToUpload.getBytes())).build();
 		assertEquals(expectedWithId, actual, label);
 		// Uploaded file must exist - checking from project root, not classpath
 		// resource.
@@ -248,6 +358,478 @@ public final class XmlFileControllerFullIT {
 		assertEquals(repo.findById(actual.getId()).get(), actual, "Metadata must exist in database.");
 	}
 
+	/**
+	 * @param content bytes to hash
+	 * @return hex SHA-256 hash of the bytes
+	 * @throws NoSuchAlgorithmException if SHA-256 is not supported
+	 */
+	static String sha256(final byte[] content) throws NoSuchAlgorithmException {
+		return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(content)));
+	}
+
+	/**
+	 * Delete a stored file, then fail to get or delete it again.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testDeleteFile() throws Exception {
+		repo.deleteAll();
+		storageService.store(new MockMultipartFile("file", "gone.xml", "text/plain", "<gone/>".getBytes()), "Bye.");
+		assertTrue(new File(TEST_FILES_OUTPUT_LOCATION + "gone.xml").exists());
+
+		mockMvc.perform(MockMvcRequestBuilders.delete(PATH_DELETE + "gone.xml")).andExpect(status().isNoContent());
+
+		assertFalse(new File(TEST_FILES_OUTPUT_LOCATION + "gone.xml").exists(), "File must be deleted.");
+		assertTrue(repo.findByFilename("gone.xml").isEmpty(), "Metadata must be deleted.");
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "gone.xml")).andExpect(status().is(STATUS_404));
+		mockMvc.perform(MockMvcRequestBuilders.delete(PATH_DELETE + "gone.xml")).andExpect(status().is(STATUS_404));
+	}
+
+	/**
+	 * A doc sent as the raw request body is stored even when it is bigger than
+	 * multipart uploads allow, and a doc over the storage limit is turned away
+	 * with 413, whether or not its size is known up front, leaving nothing
+	 * behind.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testStreamUpload() throws Exception {
+		repo.deleteAll();
+		byte[] big = books(200 * 1024);
+		mockMvc.perform(MockMvcRequestBuilders//
+				.put("/xmldoc/addStream/big.xml")//
+				.param("note", "Streamed.")//
+				.contentType(MediaType.APPLICATION_XML)//
+				.content(big))//
+				.andExpect(STATUS_OK)//
+				.andExpect(jsonPath("$.filename").value("big.xml"))//
+				.andExpect(jsonPath("$.size").value(big.length));
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "big.xml"))//
+				.andExpect(STATUS_OK)//
+				.andExpect(content().bytes(big));
+
+		byte[] tooBig = books(300 * 1024);
+		mockMvc.perform(MockMvcRequestBuilders//
+				.put("/xmldoc/addStream/tooBig.xml")//
+				.param("note", "Streamed.")//
+				.contentType(MediaType.APPLICATION_XML)//
+				.content(tooBig))//
+				.andExpect(status().isPayloadTooLarge());
+		assertThrows(StorageFileTooLargeException.class, () -> storageService.store(
+				new XmlUpload("tooBig.xml", XmlUpload.UNKNOWN_SIZE, new ByteArrayResource(tooBig)), "Streamed.", null));
+
+		assertFalse(new File(TEST_FILES_OUTPUT_LOCATION + "tooBig.xml").exists(), "Too big file must not be stored.");
+		assertTrue(repo.findByFilename("tooBig.xml").isEmpty(), "Too big file must not have metadata.");
+		try (Stream<Path> incoming = Files.list(new File(TEST_FILES_OUTPUT_LOCATION, ".incoming").toPath())) {
+			assertEquals(0, incoming.count(), "No partial uploads should be left behind.");
+		}
+	}
+
+	/**
+	 * Checking stored files again finds a file spoiled on disk since it was
+	 * stored, and reports progress until it is done.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testRevalidation() throws Exception {
+		repo.deleteAll();
+		storeXml("good.xml");
+		storeXml("spoiled.xml");
+		Files.write(new File(TEST_FILES_OUTPUT_LOCATION + "spoiled.xml").toPath(), "<a>".getBytes());
+
+		mockMvc.perform(MockMvcRequestBuilders.post("/admin/storage/revalidate"))//
+				.andExpect(status().isAccepted())//
+				.andExpect(jsonPath("$.startedAt").isNotEmpty());
+		JsonNode done = null;
+		for (int poll = 0; poll < 200; poll++) {
+			done = objectMapper.readTree(mockMvc.perform(MockMvcRequestBuilders.get("/admin/storage/revalidate"))//
+					.andExpect(STATUS_OK).andReturn().getResponse().getContentAsString());
+			if (!done.get("running").asBoolean()) {
+				break;
+			}
+			Thread.sleep(25);
+		}
+		assertFalse(done.get("running").asBoolean(), "Check should finish: " + done);
+		assertEquals(2, done.get("filesTotal").asLong());
+		assertEquals(2, done.get("filesChecked").asLong());
+		assertEquals(1, done.get("filesInvalid").asLong());
+		assertEquals(0, done.get("filesFailed").asLong());
+		assertEquals(8, done.get("bytesTotal").asLong());
+		assertEquals(7, done.get("bytesRead").asLong());
+		assertTrue(done.get("failures").get(0).asText().startsWith("spoiled.xml: "), "Should list: " + done);
+
+		mockMvc.perform(MockMvcRequestBuilders.post("/admin/storage/revalidate").param("schema", "urn:none"))//
+				.andExpect(status().is(STATUS_400));
+	}
+
+	/**
+	 * An XPath query streams back each matched node with the file it is in,
+	 * lists a file that cannot be parsed rather than failing, and a bad
+	 * expression is turned away before anything is streamed.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testQuery() throws Exception {
+		repo.deleteAll();
+		for (String filename : Arrays.asList("query1.xml", "query2.xml", "spoiled.xml")) {
+			byte[] xml = books(512);
+			storageService.store(new XmlUpload(filename, xml.length, new ByteArrayResource(xml)), "Query.", null);
+		}
+		Files.write(new File(TEST_FILES_OUTPUT_LOCATION + "spoiled.xml").toPath(), "<a>".getBytes());
+
+		MvcResult querying = mockMvc
+				.perform(MockMvcRequestBuilders.get("/xmldoc/query").param("xpath", "//book[@id='1']"))//
+				.andExpect(request().asyncStarted()).andReturn();
+		String ndjson = mockMvc.perform(asyncDispatch(querying)).andExpect(STATUS_OK).andReturn().getResponse()
+				.getContentAsString();
+		List<JsonNode> lines = new ArrayList<>();
+		for (String line : ndjson.split("\n")) {
+			lines.add(objectMapper.readTree(line));
+		}
+		assertEquals(3, lines.size(), "One line per match, and one for the spoiled file: " + ndjson);
+		List<String> matched = new ArrayList<>();
+		for (JsonNode line : lines) {
+			if (line.get("error").isNull()) {
+				assertEquals("<book id=\"1\">Title 1</book>", line.get("snippet").asText());
+				matched.add(line.get("filename").asText());
+			} else {
+				assertEquals("spoiled.xml", line.get("filename").asText());
+			}
+		}
+		matched.sort(null);
+		assertEquals(Arrays.asList("query1.xml", "query2.xml"), matched);
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/query").param("xpath", "//book[@id="))//
+				.andExpect(status().is(STATUS_400));
+	}
+
+	/**
+	 * Files are found by the paths, names and values indexed as they were
+	 * stored, a page at a time, and a deleted file is no longer found.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testSearch() throws Exception {
+		repo.deleteAll();
+		String[] xml = {"<library><book id=\"1\"><title>Dune</title></book></library>",
+				"<library><book id=\"2\"><title>Emma</title></book></library>",
+				"<shelf><title>Dune</title></shelf>"};
+		for (int i = 0; i < xml.length; i++) {
+			byte[] bytes = xml[i].getBytes();
+			storageService.store(new XmlUpload("search" + i + ".xml", bytes.length, new ByteArrayResource(bytes)),
+					"Search.", null);
+		}
+
+		assertEquals(Arrays.asList("search0.xml", "search1.xml"), search("path", "/library/book/@id"));
+		assertEquals(Arrays.asList("search0.xml", "search2.xml"), search("value", "Dune"));
+		assertEquals(Arrays.asList("search2.xml"), search("path", "/shelf/title", "value", "Dune"));
+		assertEquals(Arrays.asList("search1.xml"), search("name", "@id", "value", "2"));
+		assertEquals(Arrays.asList(), search("value", "Persuasion"));
+
+		MvcResult first = mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/search")//
+				.param("name", "title").param("size", "2"))//
+				.andExpect(STATUS_OK).andReturn();
+		String cursor = first.getResponse().getHeader(XmlFileController.NEXT_CURSOR_HEADER);
+		assertNotNull(cursor, "First page should have a cursor.");
+		assertEquals(Arrays.asList("search2.xml"), search("name", "title", "after", cursor));
+
+		storageService.delete("search0.xml");
+		assertEquals(Arrays.asList("search2.xml"), search("value", "Dune"));
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/search"))//
+				.andExpect(status().is(STATUS_400));
+	}
+
+	/**
+	 * Files named, found by search, or all of them, are exported as one ZIP
+	 * archive, and naming a file that is not stored is a 404 before anything is
+	 * streamed.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testExport() throws Exception {
+		repo.deleteAll();
+		Map<String, byte[]> stored = new LinkedHashMap<>();
+		stored.put("export0.xml", "<library><book>Dune</book></library>".getBytes());
+		stored.put("export1.xml", books(20 * 1024));
+		stored.put("export2.xml", "<shelf/>".getBytes());
+		for (Map.Entry<String, byte[]> file : stored.entrySet()) {
+			storageService.store(new XmlUpload(file.getKey(), file.getValue().length,
+					new ByteArrayResource(file.getValue())), "Export.", null);
+		}
+
+		Map<String, byte[]> named = export(MockMvcRequestBuilders.get("/xmldoc/export")//
+				.param("filename", "export2.xml", "export0.xml", "export2.xml"));
+		assertEquals(Arrays.asList("export2.xml", "export0.xml"), new ArrayList<>(named.keySet()));
+		assertArrayEquals(stored.get("export0.xml"), named.get("export0.xml"));
+
+		Map<String, byte[]> all = export(MockMvcRequestBuilders.get("/xmldoc/export"));
+		assertEquals(new ArrayList<>(stored.keySet()), new ArrayList<>(all.keySet()));
+		assertArrayEquals(stored.get("export1.xml"), all.get("export1.xml"));
+
+		Map<String, byte[]> found = export(MockMvcRequestBuilders.get("/xmldoc/export").param("name", "book"));
+		assertEquals(Arrays.asList("export0.xml", "export1.xml"), new ArrayList<>(found.keySet()));
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/export").param("filename", "export0.xml", "none.xml"))//
+				.andExpect(status().isNotFound());
+	}
+
+	/**
+	 * @param exportRequest request for an export
+	 * @return content of each file in the archive, by name, in archive order
+	 * @throws Exception if an error is not handled
+	 */
+	private Map<String, byte[]> export(final MockHttpServletRequestBuilder exportRequest) throws Exception {
+		MvcResult exporting = mockMvc.perform(exportRequest).andExpect(request().asyncStarted()).andReturn();
+		MvcResult done = mockMvc.perform(asyncDispatch(exporting)).andExpect(STATUS_OK)//
+				.andExpect(header().string(HttpHeaders.CONTENT_TYPE, XmlFileController.EXPORT_CONTENT_TYPE))//
+				.andReturn();
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		try (ZipInputStream zip = new ZipInputStream(
+				new ByteArrayInputStream(done.getResponse().getContentAsByteArray()))) {
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+				files.put(entry.getName(), zip.readAllBytes());
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Each entry of a ZIP or gzipped TAR upload is stored under its own name, or
+	 * reported with why not, in archive order; a bad entry does not stop the
+	 * rest, and a body that is not an archive is turned away.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testArchiveImport() throws Exception {
+		repo.deleteAll();
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(zipped)) {
+			zip.putNextEntry(new ZipEntry("docs/"));
+			zipEntry(zip, "docs/zip0.xml", "<library><book>Dune</book></library>");
+			zipEntry(zip, "zip1.xml", "<library>");
+			zipEntry(zip, "zip2.txt", "<library/>");
+			zipEntry(zip, "zip3.xml", "<shelf/>");
+			zipEntry(zip, "zip4.xml", "");
+			zip.putNextEntry(new ZipEntry("zip5.xml"));
+			zip.write(books(2 * 1024 * 1024));
+			zip.closeEntry();
+			zipEntry(zip, "zip6.xml", "<library/>");
+		}
+		List<XmlDocUploadResult> fromZip = importArchive(zipped.toByteArray());
+		assertEquals(Arrays.asList("zip0.xml", "zip1.xml", "zip2.txt", "zip3.xml", "zip4.xml", "zip5.xml", "zip6.xml"),
+				fromZip.stream().map(XmlDocUploadResult::getFilename).collect(Collectors.toList()));
+		assertEquals(Arrays.asList(true, false, false, true, false, false, true),
+				fromZip.stream().map(XmlDocUploadResult::isStored).collect(Collectors.toList()));
+		assertTrue(fromZip.get(5).getError().startsWith("File is larger than"), fromZip.get(5).getError());
+		assertArrayEquals("<shelf/>".getBytes(), FileCopyUtils.copyToByteArray(
+				new File(TEST_FILES_OUTPUT_LOCATION + "zip3.xml")));
+		assertEquals("Archive.", repo.findByFilename("zip0.xml").get(0).getNote());
+
+		ByteArrayOutputStream tarred = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(tarred))) {
+			byte[] content = "<library/>".getBytes();
+			TarArchiveEntry entry = new TarArchiveEntry("tar0.xml");
+			entry.setSize(content.length);
+			tar.putArchiveEntry(entry);
+			tar.write(content);
+			tar.closeArchiveEntry();
+			entry = new TarArchiveEntry("zip0.xml");
+			entry.setSize(content.length);
+			tar.putArchiveEntry(entry);
+			tar.write(content);
+			tar.closeArchiveEntry();
+		}
+		List<XmlDocUploadResult> fromTar = importArchive(tarred.toByteArray());
+		assertTrue(fromTar.get(0).isStored(), "Should store: " + fromTar.get(0));
+		assertFalse(fromTar.get(1).isStored(), "Should not store a name already stored: " + fromTar.get(1));
+
+		mockMvc.perform(MockMvcRequestBuilders.put("/xmldoc/addArchive")//
+				.param("note", "Archive.")//
+				.content("<library/>"))//
+				.andExpect(status().is(STATUS_400));
+		try (Stream<Path> incoming = Files.list(new File(TEST_FILES_OUTPUT_LOCATION, ".incoming").toPath())) {
+			assertEquals(0, incoming.count(), "No copies of entries should be left behind.");
+		}
+	}
+
+	/**
+	 * @param zip     archive to add to
+	 * @param name    name of the entry
+	 * @param content content of the entry
+	 * @throws IOException if the entry cannot be written
+	 */
+	private static void zipEntry(final ZipOutputStream zip, final String name, final String content)
+			throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(content.getBytes());
+		zip.closeEntry();
+	}
+
+	/**
+	 * @param archive content of a ZIP or TAR archive
+	 * @return result for each entry
+	 * @throws Exception if an error is not handled
+	 */
+	private List<XmlDocUploadResult> importArchive(final byte[] archive) throws Exception {
+		JsonNode results = objectMapper.readTree(mockMvc.perform(MockMvcRequestBuilders.put("/xmldoc/addArchive")//
+				.param("note", "Archive.")//
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)//
+				.content(archive))//
+				.andExpect(STATUS_OK).andReturn().getResponse().getContentAsString());
+		List<XmlDocUploadResult> parsed = new ArrayList<>();
+		for (JsonNode result : results) {
+			parsed.add(XmlDocUploadResult.failed(result.get("filename").asText(),
+					result.get("error").isNull() ? null : result.get("error").asText()));
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param params names and values of search parameters
+	 * @return names of the files found
+	 * @throws Exception if an error is not handled
+	 */
+	private List<String> search(final String... params) throws Exception {
+		MockHttpServletRequestBuilder request = MockMvcRequestBuilders.get("/xmldoc/search");
+		for (int i = 0; i < params.length; i += 2) {
+			request.param(params[i], params[i + 1]);
+		}
+		List<XmlDocMetadata> found = objectMapper.readValue(
+				mockMvc.perform(request).andExpect(STATUS_OK).andReturn().getResponse().getContentAsString(),
+				new TypeReference<List<XmlDocMetadata>>() {
+				});
+		return found.stream().map(XmlDocMetadata::getFilename).collect(Collectors.toList());
+	}
+
+	/**
+	 * @param size least size of the doc, in bytes
+	 * @return well formed doc of at least <code>size</code> bytes
+	 */
+	private static byte[] books(final int size) {
+		StringBuilder xml = new StringBuilder(size + 64).append("<books>");
+		for (int i = 0; xml.length() < size; i++) {
+			xml.append("<book id=\"").append(i).append("\">Title ").append(i).append("</book>");
+		}
+		return xml.append("</books>").toString().getBytes();
+	}
+
+	/**
+	 * An upload accepted for storing in the background answers 202 straight
+	 * away, and its status reports the metadata saved or why it failed.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testAsyncUpload() throws Exception {
+		repo.deleteAll();
+		MvcResult accepted = mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/addAsync")//
+				.file(new MockMultipartFile("file", "later.xml", "text/plain", "<later/>".getBytes()))//
+				.param("note", "In the background."))//
+				.andExpect(status().isAccepted())//
+				.andExpect(jsonPath("$.filename").value("later.xml"))//
+				.andReturn();
+		String location = accepted.getResponse().getHeader(HttpHeaders.LOCATION);
+		assertEquals("/xmldoc/status/" + objectMapper.readTree(accepted.getResponse().getContentAsString())
+				.get("id").asText(), location);
+		JsonNode done = awaitUploadJob(location);
+		assertEquals("STORED", done.get("state").asText(), "Should be stored: " + done);
+		assertEquals("In the background.", done.get("metadata").get("note").asText());
+		assertEquals(8, done.get("bytesRead").asLong());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "later.xml"))//
+				.andExpect(STATUS_OK)//
+				.andExpect(content().string("<later/>"));
+
+		String badLocation = mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/addAsync")//
+				.file(new MockMultipartFile("file", "bad.xml", "text/plain", "<bad>".getBytes()))//
+				.param("note", "Not well formed."))//
+				.andExpect(status().isAccepted())//
+				.andReturn().getResponse().getHeader(HttpHeaders.LOCATION);
+		JsonNode failed = awaitUploadJob(badLocation);
+		assertEquals("FAILED", failed.get("state").asText(), "Should fail: " + failed);
+		assertTrue(failed.get("metadata").isNull());
+		assertFalse(failed.get("error").asText().isEmpty());
+		assertTrue(repo.findByFilename("bad.xml").isEmpty(), "Invalid file must not have metadata.");
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/status/no-such-job"))//
+				.andExpect(status().is(STATUS_404));
+	}
+
+	/**
+	 * Each stage of storing a file is timed, bytes stored and served are counted,
+	 * and rejected files are counted by reason, at the metrics endpoint.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testStoreMetrics() throws Exception {
+		repo.deleteAll();
+		double served = metric("xmldoc.bytes.served", null);
+		double notWellFormed = metric("xmldoc.store.rejected", "reason:not_well_formed");
+		storeXml("timed.xml");
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart(PATH_ADD)//
+				.file(new MockMultipartFile("file", "untimed.xml", "text/plain", "<a>".getBytes()))//
+				.param("note", "Not well formed."))//
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "timed.xml")).andExpect(STATUS_OK);
+
+		for (String stage : new String[] {"reserve", "ingest", "publish", "save"}) {
+			assertTrue(metric("xmldoc.store.stage", "stage:" + stage) >= 1, "Stage should be timed: " + stage);
+		}
+		assertTrue(metric("xmldoc.bytes.written", null) >= 4, "Bytes stored should be counted.");
+		assertEquals(served + 4, metric("xmldoc.bytes.served", null), "Bytes served should be counted.");
+		assertEquals(notWellFormed + 1, metric("xmldoc.store.rejected", "reason:not_well_formed"));
+	}
+
+	/**
+	 * @param name name of a meter
+	 * @param tag  tag to narrow the meter by, as <code>key:value</code>, or null
+	 * @return count recorded by the meter, as published at the metrics endpoint
+	 * @throws Exception if an error is not handled
+	 */
+	private double metric(final String name, final String tag) throws Exception {
+		MockHttpServletRequestBuilder request = MockMvcRequestBuilders.get("/actuator/metrics/" + name);
+		if (tag != null) {
+			request.param("tag", tag);
+		}
+		JsonNode meter = objectMapper
+				.readTree(mockMvc.perform(request).andExpect(STATUS_OK).andReturn().getResponse().getContentAsString());
+		for (JsonNode measurement : meter.get("measurements")) {
+			if ("COUNT".equals(measurement.get("statistic").asText())) {
+				return measurement.get("value").asDouble();
+			}
+		}
+		throw new AssertionError("Meter has no count: " + meter);
+	}
+
+	/**
+	 * @param location where to ask after an upload job
+	 * @return status of the job once it is done
+	 * @throws Exception if an error is not handled
+	 */
+	private JsonNode awaitUploadJob(final String location) throws Exception {
+		JsonNode status = null;
+		for (int poll = 0; poll < 200; poll++) {
+			status = objectMapper.readTree(mockMvc.perform(MockMvcRequestBuilders.get(location))//
+					.andExpect(STATUS_OK).andReturn().getResponse().getContentAsString());
+			if (status.get("done").asBoolean()) {
+				return status;
+			}
+			Thread.sleep(25);
+		}
+		throw new AssertionError("Upload job did not finish: " + status);
+	}
+
 	/**
 	 * Prove that we cannot upload a file with the same name.
 	 * 
@@ -274,13 +856,218 @@ public final class XmlFileControllerFullIT {
 	}
 
 	/**
-	 * Remove any files written by storage service.
+	 * Prove that when many threads store the same name at once, exactly one
+	 * succeeds.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testConcurrentDuplicateFile() throws Exception {
+		repo.deleteAll();
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<XmlDocMetadata>> stores = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			MockMultipartFile file = new MockMultipartFile("file", "race.xml", "text/plain",
+					("<race thread=\"" + i + "\"/>").getBytes());
+			stores.add(executor.submit(() -> {
+				start.await();
+				return storageService.store(file, "Race.");
+			}));
+		}
+		start.countDown();
+		int stored = 0;
+		for (Future<XmlDocMetadata> store : stores) {
+			try {
+				store.get();
+				stored++;
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof StorageException, "Unexpected failure: " + e.getCause());
+			}
+		}
+		executor.shutdown();
+
+		assertEquals(1, stored, "Exactly one store of a name should succeed.");
+		assertEquals(1, repo.findByFilename("race.xml").size(), "Exactly one row for the name.");
+	}
+
+	/**
+	 * Prove that an invalid XML file is rejected without leaving anything behind
+	 * in the storage location.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testInvalidXmlLeavesNoFile() throws Exception {
+		String filename = "invalid01.xml";
+		Resource xmlDoc = new ClassPathResource(TEST_FILES_FOR_UPLOAD_LOCATION + filename);
+		MockMultipartFile fileToUpload = new MockMultipartFile("file", filename, "text/plain",
+				Files.readAllBytes(xmlDoc.getFile().toPath()));
+
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart(PATH_ADD)//
+				.file(fileToUpload)//
+				.param("note", "Not well formed.")//
+				.accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().is(STATUS_400));
+
+		assertFalse(new File(TEST_FILES_OUTPUT_LOCATION + filename).exists(), "Invalid file must not be stored.");
+		assertTrue(repo.findByFilename(filename).isEmpty(), "Invalid file must not have metadata.");
+		Path incomingLocation = new File(TEST_FILES_OUTPUT_LOCATION, ".incoming").toPath();
+		try (Stream<Path> incoming = Files.list(incomingLocation)) {
+			assertEquals(0, incoming.count(), "No partial uploads should be left behind.");
+		}
+	}
+
+	/**
+	 * Upload a batch where some files are good and some are not: each file gets
+	 * its own result, in order, and only the good files are stored.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testBatchUpload() throws Exception {
+		repo.deleteAll();
+		repo.save(XmlDocMetadata.builder().filename("existing.xml").note("Already here.").size(1).build());
+
+		MockMultipartHttpServletRequestBuilder request = MockMvcRequestBuilders.multipart(PATH_ADD_BATCH);
+		int goodFiles = 60;
+		for (int i = 0; i < goodFiles; i++) {
+			request.file(new MockMultipartFile("file", "batch" + i + ".xml", "text/plain",
+					("<doc id=\"" + i + "\"/>").getBytes()));
+		}
+		request.file(new MockMultipartFile("file", "bad.xml", "text/plain", "<doc>".getBytes()));
+		request.file(new MockMultipartFile("file", "batch0.xml", "text/plain", "<doc/>".getBytes()));
+		request.file(new MockMultipartFile("file", "existing.xml", "text/plain", "<doc/>".getBytes()));
+		request.file(new MockMultipartFile("file", "bad.txt", "text/plain", "<doc/>".getBytes()));
+
+		MvcResult result = mockMvc.perform(request.param("note", "Batch.").accept(MediaType.APPLICATION_JSON))//
+				.andExpect(STATUS_OK).andReturn();
+		List<Map<String, Object>> results = objectMapper.readValue(result.getResponse().getContentAsString(),
+				new TypeReference<List<Map<String, Object>>>() {
+				});
+
+		assertEquals(goodFiles + 4, results.size(), "One result per file.");
+		for (int i = 0; i < goodFiles; i++) {
+			assertEquals("batch" + i + ".xml", results.get(i).get("filename"));
+			assertEquals(true, results.get(i).get("stored"), "Good file should be stored: " + i);
+			assertTrue(new File(TEST_FILES_OUTPUT_LOCATION + "batch" + i + ".xml").exists());
+		}
+		for (int i = goodFiles; i < results.size(); i++) {
+			assertEquals(false, results.get(i).get("stored"), "Bad file should be rejected: " + results.get(i));
+			assertNotNull(results.get(i).get("error"));
+		}
+		assertTrue(results.get(goodFiles + 2).get("error").toString().startsWith("File already exists"));
+		assertFalse(new File(TEST_FILES_OUTPUT_LOCATION + "bad.xml").exists(), "Invalid file must not be stored.");
+		assertEquals(goodFiles + 1, repo.findAll().size(), "Metadata saved for good files only.");
+		assertEquals(goodFiles + 1, repo.findAll().stream().map(XmlDocMetadata::getId).distinct().count(),
+				"Every saved file has its own ID.");
+	}
+
+	/**
+	 * Page through the list of files with a cursor, and stream the whole list.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testListPagesAndStream() throws Exception {
+		repo.deleteAll();
+		for (int i = 0; i < 5; i++) {
+			repo.save(XmlDocMetadata.builder().filename("list" + i + ".xml").note("Note " + i).size(i).build());
+		}
+
+		MvcResult first = mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST).param("size", "3"))//
+				.andExpect(STATUS_OK).andReturn();
+		List<XmlDocMetadata> firstPage = objectMapper.readValue(first.getResponse().getContentAsString(),
+				new TypeReference<List<XmlDocMetadata>>() {
+				});
+		assertEquals(3, firstPage.size(), "First page should be full.");
+		String cursor = first.getResponse().getHeader(XmlFileController.NEXT_CURSOR_HEADER);
+		assertEquals(firstPage.get(2).getId().toString(), cursor, "Cursor should be last ID on the page.");
+
+		MvcResult second = mockMvc
+				.perform(MockMvcRequestBuilders.get(PATH_LIST).param("size", "3").param("after", cursor))//
+				.andExpect(STATUS_OK).andReturn();
+		List<XmlDocMetadata> secondPage = objectMapper.readValue(second.getResponse().getContentAsString(),
+				new TypeReference<List<XmlDocMetadata>>() {
+				});
+		assertEquals(Arrays.asList("list3.xml", "list4.xml"),
+				secondPage.stream().map(XmlDocMetadata::getFilename).collect(Collectors.toList()));
+		assertEquals(null, second.getResponse().getHeader(XmlFileController.NEXT_CURSOR_HEADER),
+				"Last page should have no cursor.");
+
+		MvcResult streaming = mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST + "/stream"))//
+				.andExpect(request().asyncStarted()).andReturn();
+		String ndjson = mockMvc.perform(asyncDispatch(streaming)).andExpect(STATUS_OK).andReturn().getResponse()
+				.getContentAsString();
+		String[] lines = ndjson.split("\n");
+		assertEquals(5, lines.length, "One line per file.");
+		for (int i = 0; i < lines.length; i++) {
+			assertEquals("list" + i + ".xml", objectMapper.readValue(lines[i], XmlDocMetadata.class).getFilename());
+		}
+	}
+
+	/**
+	 * Downloads and listing are answered from the cache once looked up, and
+	 * writes are seen straight away.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testMetadataCache() throws Exception {
+		repo.deleteAll();
+		storeXml("cached.xml");
+		long hits = storageService.getCacheStats().get("metadata").getHits();
+		for (int i = 0; i < 3; i++) {
+			mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml"))//
+					.andExpect(STATUS_OK);
+		}
+		assertTrue(storageService.getCacheStats().get("metadata").getHits() >= hits + 3, "Lookups should hit.");
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST)).andExpect(jsonPath("$.length()").value(1));
+		storeXml("cached2.xml");
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST)).andExpect(jsonPath("$.length()").value(2));
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST)).andExpect(jsonPath("$.length()").value(2));
+		assertTrue(storageService.getCacheStats().get("list").getHits() >= 1, "Unchanged list should hit.");
+
+		mockMvc.perform(MockMvcRequestBuilders.delete(PATH_DELETE + "cached.xml"))//
+				.andExpect(status().isNoContent());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml"))//
+				.andExpect(status().isNotFound());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_LIST)).andExpect(jsonPath("$.length()").value(1));
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/admin/storage/caches"))//
+				.andExpect(STATUS_OK)//
+				.andExpect(jsonPath("$.metadata.hits").isNumber())//
+				.andExpect(jsonPath("$.list.hitRate").isNumber());
+	}
+
+	/**
+	 * @param filename name to store a small XML file under
+	 * @throws Exception if an error is not handled
+	 */
+	private void storeXml(final String filename) throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart(PATH_ADD)//
+				.file(new MockMultipartFile("file", filename, "text/plain", "<a/>".getBytes()))//
+				.param("note", "Cache me."))//
+				.andExpect(STATUS_OK);
+	}
+
+	/**
+	 * Remove any files written by storage service, except the index, which stays
+	 * open for as long as the service does, and anything it cached, as tests
+	 * change the database directly.
 	 * 
 	 * @throws IOException if we cannot delete directory.
 	 */
 	@AfterEach
 	public void tearDown() throws IOException {
 		File storedFiles = new File(TEST_FILES_OUTPUT_LOCATION);
-		FileUtils.cleanDirectory(storedFiles);
+		for (File stored : storedFiles.listFiles((dir, name) -> !".index".equals(name))) {
+			FileUtils.forceDelete(stored);
+		}
+		storageService.clearCaches();
 	}
 }
@@ -0,0 +1,242 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMultipartHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.service.CacheStats;
+import com.rob.ceuploadxml.service.PackFileXmlStorageService;
+import com.rob.ceuploadxml.service.XmlStorageService;
+
+/**
+ * Integration test of {@link XmlFileController} with files packed into
+ * segments by {@link PackFileXmlStorageService}.
+ */
+@SpringBootTest(properties = {"storage.engine=PACK", "storage.compression=GZIP", "storage.document-cache-size=1MB",
+		"storage.location=" + XmlFileControllerPackIT.STORAGE_LOCATION})
+@ExtendWith(SpringExtension.class)
+@AutoConfigureMockMvc
+@ComponentScan("com.rob.ceuploadxml")
+public final class XmlFileControllerPackIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-pack";
+
+	/**
+	 * REST path to get a doc.
+	 */
+	private static final String PATH_GET = "/xmldoc/get/";
+
+	/**
+	 * Allows mocking of Rest calls via MVC interface.
+	 */
+	@Autowired
+	private MockMvc mockMvc;
+
+	/**
+	 * Object to convert JSON return from RESTfull calls into the object they should
+	 * map to.
+	 */
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Service under test.
+	 */
+	@Autowired
+	private XmlStorageService storageService;
+
+	/**
+	 * Remove every file stored by an earlier test. Segments stay open for as long
+	 * as the service does, so files are removed through it rather than from disk.
+	 */
+	@BeforeEach
+	public void setUp() {
+		storageService.listFiles().forEach(doc -> storageService.delete(doc.getFilename()));
+	}
+
+	/**
+	 * @param filename name to upload the file as
+	 * @param content  bytes of the file
+	 * @return metadata of the stored file
+	 * @throws Exception if an error is not handled
+	 */
+	private XmlDocMetadata upload(final String filename, final byte[] content) throws Exception {
+		String json = mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", filename, "text/plain", content))//
+				.param("note", "Pack me.")//
+				.accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		return objectMapper.readValue(json, XmlDocMetadata.class);
+	}
+
+	/**
+	 * A file is packed rather than stored in a file of its own, served as
+	 * stored or decompressed, in part, and is gone once deleted, after which the
+	 * name can be used again.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testStoreGetDelete() throws Exception {
+		byte[] original = "<books><book>Dune</book><book>Emma</book></books>".getBytes();
+		XmlDocMetadata metadata = upload("packed.xml", original);
+		assertEquals(original.length, metadata.getSize());
+		assertEquals("gzip", metadata.getEncoding());
+		assertFalse(new File(STORAGE_LOCATION, "packed.xml.gz").exists(), "Not stored in a file of its own.");
+		assertTrue(new File(STORAGE_LOCATION, ".pack").list().length > 0, "Segment written.");
+
+		MvcResult gzipped = mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "packed.xml")//
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip"))//
+				.andExpect(status().isOk())//
+				.andReturn();
+		byte[] body = gzipped.getResponse().getContentAsByteArray();
+		assertEquals(metadata.getStoredSize().longValue(), body.length);
+		assertArrayEquals(original, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(body))));
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "packed.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(original));
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "packed.xml").header(HttpHeaders.RANGE, "bytes=7-16"))//
+				.andExpect(status().isPartialContent())//
+				.andExpect(content().string("<book>Dune"));
+
+		mockMvc.perform(MockMvcRequestBuilders.delete("/xmldoc/delete/packed.xml")).andExpect(status().isNoContent());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "packed.xml")).andExpect(status().isNotFound());
+
+		byte[] again = "<books><book>Persuasion</book></books>".getBytes();
+		upload("packed.xml", again);
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "packed.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(again));
+	}
+
+	/**
+	 * A packed file downloaded again is served from the document cache, which
+	 * drops it once it is deleted, so a new file under the same name is served
+	 * as stored.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testServedFromDocumentCache() throws Exception {
+		storageService.clearCaches();
+		byte[] original = "<books><book>Dune</book><book>Emma</book></books>".getBytes();
+		XmlDocMetadata metadata = upload("cached.xml", original);
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(original));
+		CacheStats loaded = storageService.getCacheStats().get("document");
+		assertEquals(1, loaded.getSize());
+		assertEquals(metadata.getStoredSize().longValue(), loaded.getBytes());
+
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(original));
+		assertEquals(loaded.getHits() + 1, storageService.getCacheStats().get("document").getHits());
+
+		mockMvc.perform(MockMvcRequestBuilders.delete("/xmldoc/delete/cached.xml")).andExpect(status().isNoContent());
+		assertEquals(0, storageService.getCacheStats().get("document").getSize());
+		byte[] again = "<books><book>Persuasion</book></books>".getBytes();
+		upload("cached.xml", again);
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "cached.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().bytes(again));
+	}
+
+	/**
+	 * Every good file of a batch is stored, and bad or repeated ones rejected.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		upload("existing.xml", "<doc/>".getBytes());
+		MockMultipartHttpServletRequestBuilder request = MockMvcRequestBuilders.multipart("/xmldoc/addBatch");
+		int goodFiles = 30;
+		for (int i = 0; i < goodFiles; i++) {
+			request.file(new MockMultipartFile("file", "batch" + i + ".xml", "text/plain",
+					("<doc id=\"" + i + "\"/>").getBytes()));
+		}
+		request.file(new MockMultipartFile("file", "bad.xml", "text/plain", "<doc>".getBytes()));
+		request.file(new MockMultipartFile("file", "existing.xml", "text/plain", "<doc/>".getBytes()));
+
+		String json = mockMvc.perform(request.param("note", "Batch.").accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		List<Map<String, Object>> results = objectMapper.readValue(json,
+				new TypeReference<List<Map<String, Object>>>() {
+				});
+
+		assertEquals(goodFiles + 2, results.size(), "One result per file.");
+		for (int i = 0; i < goodFiles; i++) {
+			assertEquals(true, results.get(i).get("stored"), "Good file should be stored: " + i);
+		}
+		assertEquals(false, results.get(goodFiles).get("stored"));
+		assertTrue(results.get(goodFiles + 1).get("error").toString().startsWith("File already exists"));
+		assertEquals(goodFiles + 1, storageService.listFiles().size());
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "batch7.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().string("<doc id=\"7\"/>"));
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "bad.xml")).andExpect(status().isNotFound());
+	}
+
+	/**
+	 * Packed files are exported as uploaded.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testExport() throws Exception {
+		byte[] original = "<books><book>Dune</book><book>Dune</book><book>Dune</book></books>".getBytes();
+		upload("export.xml", original);
+
+		MvcResult exporting = mockMvc.perform(MockMvcRequestBuilders.get("/xmldoc/export"))//
+				.andExpect(request().asyncStarted()).andReturn();
+		byte[] archive = mockMvc.perform(asyncDispatch(exporting)).andExpect(status().isOk()).andReturn()
+				.getResponse().getContentAsByteArray();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry = zip.getNextEntry();
+			assertEquals("export.xml", entry.getName());
+			assertArrayEquals(original, StreamUtils.copyToByteArray(zip));
+			assertNull(zip.getNextEntry());
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.rob.ceuploadxml.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rob.ceuploadxml.model.XmlDocMetadata;
+import com.rob.ceuploadxml.model.repo.XmlDocMetadataRepository;
+
+/**
+ * Integration test of {@link XmlFileController} and
+ * {@link StorageAdminController} with files spread over sharded folders.
+ */
+@SpringBootTest(properties = {"storage.shard-depth=2",
+		"storage.location=" + XmlFileControllerShardedIT.STORAGE_LOCATION})
+@ExtendWith(SpringExtension.class)
+@AutoConfigureMockMvc
+@ComponentScan("com.rob.ceuploadxml")
+public final class XmlFileControllerShardedIT {
+
+	/**
+	 * Where files are stored for this test.
+	 */
+	static final String STORAGE_LOCATION = "target/test-classes/xml-files-sharded";
+
+	/**
+	 * REST path to get a doc.
+	 */
+	private static final String PATH_GET = "/xmldoc/get/";
+
+	/**
+	 * REST path to migrate files into the sharded layout.
+	 */
+	private static final String PATH_MIGRATE = "/admin/storage/migrate-shards";
+
+	/**
+	 * Number of files stored in the flat layout before migrating.
+	 */
+	private static final int FLAT_FILES = 30;
+
+	/**
+	 * Allows mocking of Rest calls via MVC interface.
+	 */
+	@Autowired
+	private MockMvc mockMvc;
+
+	/**
+	 * Repo to clear between tests.
+	 */
+	@Autowired
+	private XmlDocMetadataRepository repo;
+
+	/**
+	 * Object to convert JSON return from RESTfull calls into the object they should
+	 * map to.
+	 */
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * An upload is stored two folders down, and can be downloaded from there.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testStoredSharded() throws Exception {
+		repo.deleteAll();
+		mockMvc.perform(MockMvcRequestBuilders//
+				.multipart("/xmldoc/add")//
+				.file(new MockMultipartFile("file", "sharded.xml", "text/plain", "<a/>".getBytes()))//
+				.param("note", "Shard me.")//
+				.accept(MediaType.APPLICATION_JSON))//
+				.andExpect(status().isOk());
+
+		assertFalse(new File(STORAGE_LOCATION, "sharded.xml").exists(), "Not stored in the root.");
+		try (Stream<Path> files = Files.walk(new File(STORAGE_LOCATION).toPath())) {
+			Path stored = files.filter(path -> path.getFileName().toString().equals("sharded.xml")).findFirst()
+					.orElseThrow();
+			Path root = new File(STORAGE_LOCATION).toPath();
+			assertEquals(3, root.relativize(stored).getNameCount(), "Two folders down: " + stored);
+		}
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "sharded.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().string("<a/>"));
+	}
+
+	/**
+	 * Files stored before sharding are served from the flat layout, moved into
+	 * the sharded layout by a migration, and served from there afterwards.
+	 * 
+	 * @throws Exception if an error is not handled
+	 */
+	@Test
+	public void testMigrateFlatFiles() throws Exception {
+		repo.deleteAll();
+		File root = new File(STORAGE_LOCATION);
+		for (int i = 0; i < FLAT_FILES; i++) {
+			String filename = "flat" + i + ".xml";
+			Files.write(new File(root, filename).toPath(), ("<flat>" + i + "</flat>").getBytes(StandardCharsets.UTF_8));
+			repo.save(XmlDocMetadata.builder().filename(filename).note("Stored flat.").size(0).build());
+		}
+		mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "flat0.xml"))//
+				.andExpect(status().isOk())//
+				.andExpect(content().string("<flat>0</flat>"));
+
+		mockMvc.perform(MockMvcRequestBuilders.post(PATH_MIGRATE))//
+				.andExpect(status().isAccepted());
+		JsonNode migration = null;
+		for (int poll = 0; poll < 100; poll++) {
+			// Downloads keep working while files are moved.
+			mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "flat" + (poll % FLAT_FILES) + ".xml"))//
+					.andExpect(status().isOk());
+			String json = mockMvc.perform(MockMvcRequestBuilders.get(PATH_MIGRATE))//
+					.andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+			migration = objectMapper.readTree(json);
+			if (!migration.get("running").asBoolean()) {
+				break;
+			}
+			Thread.sleep(50);
+		}
+		assertFalse(migration.get("running").asBoolean(), "Migration should finish: " + migration);
+		assertEquals(FLAT_FILES, migration.get("filesMoved").asLong(), "All files moved: " + migration);
+		assertEquals(0, migration.get("filesFailed").asLong());
+		assertFalse(migration.get("finishedAt").isNull(), "Finish time recorded.");
+
+		for (int i = 0; i < FLAT_FILES; i++) {
+			assertFalse(new File(root, "flat" + i + ".xml").exists(), "Moved out of the root.");
+			mockMvc.perform(MockMvcRequestBuilders.get(PATH_GET + "flat" + i + ".xml"))//
+					.andExpect(status().isOk())//
+					.andExpect(content().string("<flat>" + i + "</flat>"));
+		}
+	}
+
+	/**
+	 * Remove any files written by storage service, except the index, which stays
+	 * open for as long as the service does.
+	 * 
+	 * @throws IOException if we cannot delete directory.
+	 */
+	@AfterEach
+	public void tearDown() throws IOException {
+		for (File stored : new File(STORAGE_LOCATION).listFiles((dir, name) -> !".index".equals(name))) {
+			FileUtils.forceDelete(stored);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test {@link BoundedCache}.
+ */
+public final class BoundedCacheTest {
+
+	/**
+	 * Current time seen by the cache under test, in nanoseconds.
+	 */
+	private final AtomicLong now = new AtomicLong();
+
+	/**
+	 * Number of values loaded.
+	 */
+	private final AtomicInteger loads = new AtomicInteger();
+
+	/**
+	 * @param key key to load
+	 * @return value for the key
+	 */
+	private String load(final String key) {
+		loads.incrementAndGet();
+		return key.toUpperCase();
+	}
+
+	/**
+	 * A cached value is loaded once, and the least recently used value makes room
+	 * for new ones.
+	 */
+	@Test
+	public void testHitsAndSizeEviction() {
+		BoundedCache<String, String> cache = new BoundedCache<>(2, Duration.ofMinutes(1), now::get);
+		assertEquals("A", cache.get("a", this::load));
+		assertEquals("A", cache.get("a", this::load));
+		cache.get("b", this::load);
+		cache.get("a", this::load);
+		cache.get("c", this::load);
+		cache.get("a", this::load);
+		cache.get("b", this::load);
+
+		assertEquals(4, loads.get(), "b was used least recently, so it made room for c.");
+		CacheStats stats = cache.getStats();
+		assertEquals(3, stats.getHits());
+		assertEquals(4, stats.getMisses());
+		assertEquals(2, stats.getEvictions());
+		assertEquals(2, stats.getSize());
+		assertEquals(3 / 7.0, stats.getHitRate(), 0.0001);
+	}
+
+	/**
+	 * A value older than the time to live is loaded again.
+	 */
+	@Test
+	public void testExpiry() {
+		BoundedCache<String, String> cache = new BoundedCache<>(10, Duration.ofSeconds(5), now::get);
+		cache.get("a", this::load);
+		now.addAndGet(Duration.ofSeconds(4).toNanos());
+		cache.get("a", this::load);
+		assertEquals(1, loads.get());
+		now.addAndGet(Duration.ofSeconds(2).toNanos());
+		cache.get("a", this::load);
+		assertEquals(2, loads.get());
+		assertEquals(1, cache.getStats().getEvictions());
+	}
+
+	/**
+	 * An invalidated value is loaded again, and a value whose load overlapped an
+	 * invalidation is not kept.
+	 */
+	@Test
+	public void testInvalidate() {
+		BoundedCache<String, String> cache = new BoundedCache<>(10, Duration.ofMinutes(1), now::get);
+		cache.get("a", this::load);
+		cache.invalidate("a");
+		cache.get("a", this::load);
+		assertEquals(2, loads.get());
+
+		cache.invalidateAll();
+		assertEquals("STALE", cache.get("a", key -> {
+			cache.invalidate(key);
+			return "STALE";
+		}));
+		assertEquals("A", cache.get("a", this::load));
+		assertEquals(3, loads.get());
+	}
+
+	/**
+	 * A cache with no room loads every time.
+	 */
+	@Test
+	public void testDisabled() {
+		BoundedCache<String, String> cache = new BoundedCache<>(0, Duration.ofMinutes(1), now::get);
+		cache.get("a", this::load);
+		cache.get("a", this::load);
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.getStats().getSize());
+	}
+}
@@ -0,0 +1,154 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Test {@link DocumentCache}.
+ */
+public final class DocumentCacheTest {
+
+	/**
+	 * Current time seen by the cache under test, in nanoseconds.
+	 */
+	private final AtomicLong now = new AtomicLong();
+
+	/**
+	 * Folder for files to cache.
+	 */
+	@TempDir
+	Path folder;
+
+	/**
+	 * @param name    name of the file
+	 * @param content bytes of the file
+	 * @return the file written
+	 * @throws IOException if the file cannot be written
+	 */
+	private FileSystemResource write(final String name, final byte[] content) throws IOException {
+		return new FileSystemResource(Files.write(folder.resolve(name), content));
+	}
+
+	/**
+	 * A loaded file is served from memory, by many readers at once, and its
+	 * length and modification time are those of the file.
+	 * 
+	 * @throws IOException if a file cannot be read or written
+	 */
+	@Test
+	public void testHit() throws IOException {
+		DocumentCache cache = new DocumentCache(100, 100, Duration.ofMinutes(1), now::get);
+		byte[] content = "<library><book>Dune</book></library>".getBytes();
+		FileSystemResource file = write("a.xml", content);
+		assertNull(cache.get("a.xml"));
+		DocumentCache.CachedDocument loaded = cache.load("a.xml", file);
+		Files.delete(file.getFile().toPath());
+
+		DocumentCache.CachedDocument hit = cache.get("a.xml");
+		assertSame(loaded, hit);
+		assertEquals(content.length, hit.contentLength());
+		assertFalse(hit.isFile(), "Served from memory, not from the file.");
+		try (InputStream first = hit.getInputStream(); InputStream second = hit.getInputStream()) {
+			assertEquals(9, first.skip(9));
+			assertArrayEquals(content, StreamUtils.copyToByteArray(second));
+			assertEquals("<book>Dune</book></library>", new String(StreamUtils.copyToByteArray(first)));
+		}
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(content.length, stats.getBytes());
+		assertEquals(100, stats.getMaxBytes());
+	}
+
+	/**
+	 * Files used least recently make room within the byte budget, and a file
+	 * bigger than the largest kept is served but not kept.
+	 * 
+	 * @throws IOException if a file cannot be read or written
+	 */
+	@Test
+	public void testByteBudget() throws IOException {
+		DocumentCache cache = new DocumentCache(100, 60, Duration.ofMinutes(1), now::get);
+		cache.load("a.xml", write("a.xml", new byte[40]));
+		cache.load("b.xml", write("b.xml", new byte[40]));
+		cache.get("a.xml");
+		cache.load("c.xml", write("c.xml", new byte[40]));
+
+		assertNotNull(cache.get("a.xml"));
+		assertNull(cache.get("b.xml"), "b was used least recently, so it made room for c.");
+		assertNotNull(cache.get("c.xml"));
+		assertNull(cache.load("big.xml", write("big.xml", new byte[61])));
+		CacheStats stats = cache.getStats();
+		assertEquals(2, stats.getSize());
+		assertEquals(80, stats.getBytes());
+		assertEquals(1, stats.getEvictions());
+	}
+
+	/**
+	 * An invalidated or expired file is not served from memory.
+	 * 
+	 * @throws IOException if a file cannot be read or written
+	 */
+	@Test
+	public void testInvalidateAndExpiry() throws IOException {
+		DocumentCache cache = new DocumentCache(100, 100, Duration.ofSeconds(5), now::get);
+		FileSystemResource file = write("a.xml", "<a/>".getBytes());
+		cache.load("a.xml", file);
+		cache.invalidate("a.xml");
+		assertNull(cache.get("a.xml"));
+		assertEquals(0, cache.getStats().getBytes());
+
+		cache.load("a.xml", file);
+		now.addAndGet(Duration.ofSeconds(6).toNanos());
+		assertNull(cache.get("a.xml"));
+		assertEquals(1, cache.getStats().getEvictions());
+
+		cache.load("a.xml", file);
+		cache.invalidateAll();
+		assertNull(cache.get("a.xml"));
+		assertEquals(0, cache.getStats().getSize());
+	}
+
+	/**
+	 * A cache with no budget is off.
+	 * 
+	 * @throws IOException if a file cannot be read or written
+	 */
+	@Test
+	public void testDisabled() throws IOException {
+		DocumentCache cache = new DocumentCache(0, 100, Duration.ofMinutes(1), now::get);
+		assertFalse(cache.isEnabled());
+		assertFalse(cache.canHold(0));
+		assertNull(cache.load("a.xml", write("a.xml", "<a/>".getBytes())));
+	}
+
+	/**
+	 * Only files no bigger than the largest kept, or of unknown size, could be
+	 * kept.
+	 */
+	@Test
+	public void testCanHold() {
+		DocumentCache cache = new DocumentCache(100, 10, Duration.ofMinutes(1), now::get);
+		assertTrue(cache.canHold(0), "Size not known.");
+		assertTrue(cache.canHold(10));
+		assertFalse(cache.canHold(11));
+		assertEquals(0, cache.getStats().getMisses());
+	}
+}
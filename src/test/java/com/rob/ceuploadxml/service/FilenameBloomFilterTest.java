@@ -0,0 +1,59 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test {@link FilenameBloomFilter}.
+ */
+public final class FilenameBloomFilterTest {
+
+	/**
+	 * Names the filter is sized for.
+	 */
+	private static final int NAMES = 10_000;
+
+	/**
+	 * Every name added is reported as maybe present, and few names that were not
+	 * added are.
+	 */
+	@Test
+	public void testNoFalseNegativesAndFewFalsePositives() {
+		FilenameBloomFilter filter = new FilenameBloomFilter(NAMES, 0.01);
+		for (int i = 0; i < NAMES; i++) {
+			filter.add("file" + i + ".xml");
+		}
+		for (int i = 0; i < NAMES; i++) {
+			assertTrue(filter.mightContain("file" + i + ".xml"), "Added name must be found: " + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < NAMES; i++) {
+			if (filter.mightContain("other" + i + ".xml")) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < NAMES * 0.03, "Too many false positives: " + falsePositives);
+	}
+
+	/**
+	 * An empty filter contains nothing.
+	 */
+	@Test
+	public void testEmptyFilter() {
+		FilenameBloomFilter filter = new FilenameBloomFilter(NAMES, 0.01);
+		assertFalse(filter.mightContain("test01.xml"));
+		assertFalse(filter.mightContain(""));
+	}
+
+	/**
+	 * A filter cannot be sized for no names or an impossible rate.
+	 */
+	@Test
+	public void testBadSize() {
+		assertThrows(IllegalArgumentException.class, () -> new FilenameBloomFilter(0, 0.01));
+		assertThrows(IllegalArgumentException.class, () -> new FilenameBloomFilter(NAMES, 1));
+	}
+}
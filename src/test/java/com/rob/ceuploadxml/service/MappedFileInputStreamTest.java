@@ -0,0 +1,128 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Test {@link MappedFileInputStream}.
+ */
+public final class MappedFileInputStreamTest {
+
+	/**
+	 * Folder for test files.
+	 */
+	@TempDir
+	Path folder;
+
+	/**
+	 * @return data for {@link #testReadsWholeFile(String, int, int, int)}
+	 */
+	private static Stream<Arguments> dataForTestReadsWholeFile() {
+		return Stream.of(//
+				Arguments.of("Empty file.", 0, 8, 16), //
+				Arguments.of("One region.", 100, 1024, 16), //
+				Arguments.of("Regions fit exactly.", 96, 32, 16), //
+				Arguments.of("Reads cross regions.", 1000, 7, 64), //
+				Arguments.of("Single bytes.", 50, 8, 1)//
+		);
+	}
+
+	/**
+	 * Every byte is read in order, whatever the region and read sizes.
+	 * 
+	 * @param label      for test
+	 * @param size       size of the file
+	 * @param regionSize most bytes mapped at once
+	 * @param readSize   bytes asked for by each read; 1 to read a byte at a time
+	 * @throws IOException if test code throws an unexpected exception
+	 */
+	@ParameterizedTest(name = "#{index} - [{0}]")
+	@MethodSource("dataForTestReadsWholeFile")
+	public void testReadsWholeFile(final String label, final int size, final int regionSize, final int readSize)
+			throws IOException {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		Path file = Files.write(folder.resolve("file.xml"), content);
+
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		try (MappedFileInputStream in = new MappedFileInputStream(file, regionSize)) {
+			if (readSize == 1) {
+				for (int b = in.read(); b != -1; b = in.read()) {
+					read.write(b);
+				}
+			} else {
+				byte[] buffer = new byte[readSize];
+				for (int n = in.read(buffer, 0, buffer.length); n != -1; n = in.read(buffer, 0, buffer.length)) {
+					read.write(buffer, 0, n);
+				}
+			}
+			assertEquals(size, in.getPosition(), label);
+			assertEquals(-1, in.read(), label);
+		}
+		assertArrayEquals(content, read.toByteArray(), label);
+	}
+
+	/**
+	 * Skipping moves through regions like reading does.
+	 * 
+	 * @throws IOException if test code throws an unexpected exception
+	 */
+	@Test
+	public void testSkip() throws IOException {
+		byte[] content = new byte[100];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		Path file = Files.write(folder.resolve("skip.xml"), content);
+		try (InputStream in = new MappedFileInputStream(file, 10)) {
+			long skipped = 0;
+			while (skipped < 95) {
+				skipped += in.skip(95 - skipped);
+			}
+			assertEquals(95, in.read());
+			assertEquals(4, in.skip(10));
+			assertEquals(-1, in.read());
+		}
+	}
+
+	/**
+	 * Only files big enough to be worth it are mapped, and either way every byte
+	 * is read.
+	 * 
+	 * @throws IOException if test code throws an unexpected exception
+	 */
+	@Test
+	public void testOpenMapsOnlyBigFiles() throws IOException {
+		byte[] small = new byte[100];
+		byte[] big = new byte[(int) MappedFileInputStream.MIN_MAPPED_SIZE];
+		Arrays.fill(big, (byte) 'x');
+		Path smallFile = Files.write(folder.resolve("small.xml"), small);
+		Path bigFile = Files.write(folder.resolve("big.xml"), big);
+		try (InputStream in = MappedFileInputStream.open(smallFile, 1024)) {
+			assertFalse(in instanceof MappedFileInputStream);
+			assertArrayEquals(small, in.readAllBytes());
+		}
+		try (InputStream in = MappedFileInputStream.open(bigFile, 1024)) {
+			assertTrue(in instanceof MappedFileInputStream);
+			assertArrayEquals(big, in.readAllBytes());
+		}
+	}
+}
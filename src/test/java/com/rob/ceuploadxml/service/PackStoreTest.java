@@ -0,0 +1,221 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Test {@link PackStore}.
+ */
+public final class PackStoreTest {
+
+	/**
+	 * Folder for the segments.
+	 */
+	@TempDir
+	Path folder;
+
+	/**
+	 * Store under test; closed after each test.
+	 */
+	private PackStore store;
+
+	/**
+	 * Close the store under test.
+	 * 
+	 * @throws IOException if a segment cannot be closed
+	 */
+	@AfterEach
+	public void tearDown() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	/**
+	 * @param segmentSize size a segment grows to before a new one is started
+	 * @return an opened store in {@link #folder}
+	 * @throws IOException if the store cannot be opened
+	 */
+	private PackStore open(final long segmentSize) throws IOException {
+		store = new PackStore(folder, segmentSize, true, 0.5);
+		store.open();
+		return store;
+	}
+
+	/**
+	 * @param name    file name
+	 * @param content text of the file
+	 * @return a record storing the file
+	 */
+	private static PackStore.Record put(final String name, final String content) {
+		return PackStore.Record.put(name, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param name file name
+	 * @return text of the stored file
+	 * @throws IOException if the file cannot be read
+	 */
+	private String read(final String name) throws IOException {
+		PackStore.Location location = store.locate(name);
+		assertNotNull(location, name);
+		try (InputStream in = store.open(name, location)) {
+			return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @return segment files in {@link #folder}
+	 * @throws IOException if the folder cannot be listed
+	 */
+	private List<Path> segmentFiles() throws IOException {
+		try (Stream<Path> files = Files.list(folder)) {
+			return files.filter(path -> path.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Records appended together are written as one group, and each can be found
+	 * and read back, as a stream or a resource.
+	 * 
+	 * @throws IOException if the store cannot be read or written
+	 */
+	@Test
+	public void testAppendAndRead() throws IOException {
+		open(1024 * 1024);
+		List<PackStore.Location> written = store
+				.append(Arrays.asList(put("a.xml", "<a>one</a>"), put("b.xml", "<b>two</b>")));
+		assertEquals(2, written.size());
+		assertEquals(1, store.getGroupCount());
+		assertEquals(written.get(0), store.locate("a.xml"));
+		assertEquals("<a>one</a>", read("a.xml"));
+		assertEquals("<b>two</b>", read("b.xml"));
+		assertNull(store.locate("c.xml"));
+
+		PackStore.PackedFile resource = store.asResource("b.xml", store.locate("b.xml"));
+		assertEquals(10, resource.contentLength());
+		assertFalse(resource.isFile());
+		try (InputStream in = resource.getInputStream()) {
+			assertEquals(3, in.skip(3));
+			assertEquals("two</b>", StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Removing a file writes a tombstone, which is as dead as the file it
+	 * removes; removing a file that is not stored writes nothing.
+	 * 
+	 * @throws IOException if the store cannot be read or written
+	 */
+	@Test
+	public void testDelete() throws IOException {
+		open(1024 * 1024);
+		PackStore.Location written = store.append(Collections.singletonList(put("a.xml", "<a>one</a>"))).get(0);
+		PackStore.Location tombstone = store.append(Collections.singletonList(PackStore.Record.delete("a.xml")))
+				.get(0);
+		assertNull(store.locate("a.xml"));
+		assertEquals(written.getRecordLength() + tombstone.getRecordLength(), store.getDeadBytes());
+		assertNull(store.append(Collections.singletonList(PackStore.Record.delete("b.xml"))).get(0));
+	}
+
+	/**
+	 * Where each file is, and which are removed, is read back from the segments
+	 * when the store is opened again; a record not written whole at the end is
+	 * cut off.
+	 * 
+	 * @throws IOException if the store cannot be read or written
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		open(1);
+		store.append(Collections.singletonList(put("a.xml", "<a>one</a>")));
+		store.append(Collections.singletonList(put("b.xml", "<b>two</b>")));
+		store.append(Collections.singletonList(PackStore.Record.delete("a.xml")));
+		store.close();
+		assertEquals(3, segmentFiles().size());
+
+		Path last = segmentFiles().get(2);
+		long length = Files.size(last);
+		Files.write(last, new byte[] {0, 0, 0, 1, 1, 0, 0}, StandardOpenOption.APPEND);
+
+		open(1);
+		assertNull(store.locate("a.xml"));
+		assertEquals("<b>two</b>", read("b.xml"));
+		assertEquals(length, Files.size(last));
+
+		// New records carry on after those already written.
+		store.append(Collections.singletonList(put("a.xml", "<a>three</a>")));
+		store.close();
+		open(1);
+		assertEquals("<a>three</a>", read("a.xml"));
+	}
+
+	/**
+	 * Compaction drops segments that are mostly removed files, keeps the files
+	 * still stored, and a file read while it is moved reads on where it was. Once
+	 * the removed file's segment is gone, its tombstone is dropped too.
+	 * 
+	 * @throws IOException if the store cannot be read or written
+	 */
+	@Test
+	public void testCompact() throws IOException {
+		open(1);
+		store.append(Arrays.asList(put("a.xml", "<a>one</a>"), put("b.xml", "<b>two</b>")));
+		store.append(Collections.singletonList(PackStore.Record.delete("a.xml")));
+		assertEquals(2, store.getSegmentCount());
+		long dead = store.getDeadBytes();
+
+		try (InputStream in = store.open("b.xml", store.locate("b.xml"))) {
+			byte[] start = new byte[3];
+			assertEquals(3, in.read(start));
+			assertEquals(2, store.compact());
+			assertEquals("two</b>", StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+		}
+		assertEquals(2, store.getCompactionCount());
+		assertEquals(1, store.getSegmentCount());
+		assertTrue(dead > 0);
+		assertEquals(0, store.getDeadBytes());
+		assertFalse(Files.exists(folder.resolve(String.format("%012d.seg", 1))));
+		assertNull(store.locate("a.xml"));
+		assertEquals("<b>two</b>", read("b.xml"));
+
+		// Nothing left worth compacting.
+		assertEquals(0, store.compact());
+		store.close();
+		open(1);
+		assertNull(store.locate("a.xml"));
+		assertEquals("<b>two</b>", read("b.xml"));
+	}
+
+	/**
+	 * Appending fails once the store is closed.
+	 * 
+	 * @throws IOException if the store cannot be opened
+	 */
+	@Test
+	public void testClosed() throws IOException {
+		open(1024 * 1024).close();
+		assertThrows(IOException.class, () -> store.append(Collections.singletonList(put("a.xml", "<a/>"))));
+	}
+}
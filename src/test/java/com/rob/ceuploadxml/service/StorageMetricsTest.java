@@ -0,0 +1,53 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test {@link StorageMetrics}.
+ */
+public final class StorageMetricsTest {
+
+	/**
+	 * Stages are timed, and bytes and rejections counted, each under its own tag.
+	 */
+	@Test
+	public void testRecords() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		StorageMetrics metrics = new StorageMetrics(registry);
+		metrics.record(StorageMetrics.Stage.INGEST, metrics.start());
+		metrics.record(StorageMetrics.Stage.INGEST, metrics.start());
+		metrics.record(StorageMetrics.Stage.SAVE, metrics.start());
+		metrics.rejected(StorageMetrics.Rejection.SCHEMA_VIOLATION);
+		metrics.written(100);
+		metrics.served(40);
+		metrics.served(2);
+
+		assertEquals(2, registry.get("xmldoc.store.stage").tag("stage", "ingest").timer().count());
+		assertEquals(1, registry.get("xmldoc.store.stage").tag("stage", "save").timer().count());
+		assertEquals(0, registry.get("xmldoc.store.stage").tag("stage", "lookup").timer().count());
+		assertEquals(1, registry.get("xmldoc.store.rejected").tag("reason", "schema_violation").counter().count());
+		assertEquals(0, registry.get("xmldoc.store.rejected").tag("reason", "duplicate").counter().count());
+		assertEquals(100, registry.get("xmldoc.bytes.written").counter().count());
+		assertEquals(42, registry.get("xmldoc.bytes.served").counter().count());
+	}
+
+	/**
+	 * Metrics that are off read no clock and record nothing.
+	 */
+	@Test
+	public void testDisabled() {
+		StorageMetrics metrics = StorageMetrics.NONE;
+		assertFalse(metrics.isEnabled());
+		assertEquals(0, metrics.start());
+		metrics.record(StorageMetrics.Stage.INGEST, TimeUnit.SECONDS.toNanos(1));
+		metrics.rejected(StorageMetrics.Rejection.EMPTY);
+		metrics.served(1);
+	}
+}
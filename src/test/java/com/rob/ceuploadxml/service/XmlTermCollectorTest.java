@@ -0,0 +1,102 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import com.rob.ceuploadxml.validator.XmlValidator;
+
+/**
+ * Test {@link XmlTermCollector}.
+ */
+public final class XmlTermCollectorTest {
+
+	/**
+	 * Doc with attributes, nested elements, mixed content and a namespace.
+	 */
+	private static final String XML = "<b:library xmlns:b=\"urn:books\" open=\"yes\">"
+			+ "<b:book id=\"7\"><title> Dune </title><blurb>Sand <em>worms</em> and spice</blurb></b:book>"
+			+ "</b:library>";
+
+	/**
+	 * @return label, which terms to look in, term, whether it should be found
+	 */
+	private static Stream<Arguments> dataForTestTerms() {
+		Function<XmlTerms, Set<String>> paths = XmlTerms::getPaths;
+		Function<XmlTerms, Set<String>> names = XmlTerms::getNames;
+		Function<XmlTerms, Set<String>> values = XmlTerms::getValues;
+		Function<XmlTerms, Set<String>> pathValues = XmlTerms::getPathValues;
+		return Stream.of(//
+				Arguments.of("Root path", paths, "/library", true), //
+				Arguments.of("Nested path", paths, "/library/book/title", true), //
+				Arguments.of("Attribute path", paths, "/library/book/@id", true), //
+				Arguments.of("Element name", names, "book", true), //
+				Arguments.of("Attribute name", names, "@open", true), //
+				Arguments.of("Prefixed name", names, "b:book", false), //
+				Arguments.of("Trimmed text", values, "Dune", true), //
+				Arguments.of("Attribute value", values, "7", true), //
+				Arguments.of("Leaf inside mixed content", values, "worms", true), //
+				Arguments.of("Mixed content", values, "Sand", false), //
+				Arguments.of("Value at path", pathValues, "/library/book/title=Dune", true), //
+				Arguments.of("Attribute value at path", pathValues, "/library/@open=yes", true)//
+		);
+	}
+
+	/**
+	 * Paths, names and whole values are picked out of a doc as it is checked.
+	 * 
+	 * @param label    describes the case
+	 * @param set      which terms to look in
+	 * @param term     term to look for
+	 * @param expected whether it should be found
+	 * @throws Exception if the doc cannot be read
+	 */
+	@ParameterizedTest(name = "#{index} - [{0}]")
+	@MethodSource("dataForTestTerms")
+	public void testTerms(final String label, final Function<XmlTerms, Set<String>> set, final String term,
+			final boolean expected) throws Exception {
+		XmlTerms terms = collect(XML, 100, 1000);
+		assertEquals(expected, set.apply(terms).contains(term), label + ": " + set.apply(terms));
+	}
+
+	/**
+	 * Values that are too long are left out, and a doc stops adding terms once
+	 * it has the most allowed.
+	 * 
+	 * @throws Exception if the doc cannot be read
+	 */
+	@Test
+	public void testLimits() throws Exception {
+		XmlTerms terms = collect("<a><b>short</b><c>much too long</c></a>", 5, 1000);
+		assertTrue(terms.getValues().contains("short"));
+		assertFalse(terms.getValues().contains("much too long"));
+
+		terms = collect(XML, 100, 3);
+		assertEquals(3, terms.getPaths().size() + terms.getNames().size() + terms.getValues().size()
+				+ terms.getPathValues().size());
+	}
+
+	/**
+	 * @param xml            doc to read
+	 * @param maxValueLength longest value kept
+	 * @param maxTerms       most terms kept
+	 * @return terms picked out of the doc
+	 * @throws Exception if the doc cannot be read
+	 */
+	private static XmlTerms collect(final String xml, final int maxValueLength, final int maxTerms)
+			throws Exception {
+		XmlTermCollector collector = new XmlTermCollector(maxValueLength, maxTerms);
+		new XmlValidator().checkValid(new ByteArrayInputStream(xml.getBytes()), null, collector);
+		return collector.getTerms();
+	}
+}
@@ -0,0 +1,151 @@
+package com.rob.ceuploadxml.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test {@link ZipStreamWriter}.
+ */
+public final class ZipStreamWriterTest {
+
+	/**
+	 * Time every entry is written with.
+	 */
+	private static final LocalDateTime TIME = LocalDateTime.of(2020, 2, 29, 13, 45, 30);
+
+	/**
+	 * Deflated and gzipped entries read back the same, both streamed and through
+	 * the central directory, including gzip with a file name in its header.
+	 * 
+	 * @param folder where to write the archive
+	 * @throws IOException if the archive cannot be written or read
+	 */
+	@Test
+	public void testEntriesReadBack(@TempDir final Path folder) throws IOException {
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		expected.put("plain.xml", "<a>plain</a>".getBytes());
+		expected.put("empty.xml", new byte[0]);
+		expected.put("gzipped.xml", "<a>gzipped gzipped gzipped</a>".getBytes());
+		expected.put("named-ünïcode.xml", "<a>named</a>".getBytes());
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		ZipStreamWriter zip = new ZipStreamWriter(archive, TIME, Deflater.DEFAULT_COMPRESSION);
+		zip.addDeflated("plain.xml", 12, new ByteArrayInputStream(expected.get("plain.xml")));
+		zip.addDeflated("empty.xml", 0, new ByteArrayInputStream(new byte[0]));
+		byte[] gzip = gzip(expected.get("gzipped.xml"));
+		zip.addGzip("gzipped.xml", expected.get("gzipped.xml").length, gzip.length, new ByteArrayInputStream(gzip));
+		byte[] named = withHeaderName(gzip(expected.get("named-ünïcode.xml")));
+		zip.addGzip("named-ünïcode.xml", expected.get("named-ünïcode.xml").length, named.length,
+				new ByteArrayInputStream(named));
+		zip.finish();
+		assertEquals(4, zip.getEntryCount());
+
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+			for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+				ZipEntry read = in.getNextEntry();
+				assertEquals(entry.getKey(), read.getName());
+				assertArrayEquals(entry.getValue(), in.readAllBytes(), entry.getKey());
+			}
+			assertNull(in.getNextEntry());
+		}
+
+		Path file = Files.write(folder.resolve("export.zip"), archive.toByteArray());
+		try (ZipFile zipFile = new ZipFile(file.toFile())) {
+			assertEquals(expected.size(), zipFile.size());
+			for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+				ZipEntry read = zipFile.getEntry(entry.getKey());
+				assertEquals(entry.getValue().length, read.getSize());
+				assertEquals(TIME, read.getTimeLocal());
+				assertArrayEquals(entry.getValue(), zipFile.getInputStream(read).readAllBytes(), entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * More entries than the plain end record can count get a ZIP64 end record.
+	 * 
+	 * @param folder where to write the archive
+	 * @throws IOException if the archive cannot be written or read
+	 */
+	@Test
+	public void testZip64EntryCount(@TempDir final Path folder) throws IOException {
+		Path file = folder.resolve("many.zip");
+		int count = 70_000;
+		try (OutputStream out = Files.newOutputStream(file)) {
+			ZipStreamWriter zip = new ZipStreamWriter(out, TIME, Deflater.BEST_SPEED);
+			for (int i = 0; i < count; i++) {
+				zip.addDeflated(i + ".xml", 0, new ByteArrayInputStream(new byte[0]));
+			}
+			zip.finish();
+		}
+		try (ZipFile zipFile = new ZipFile(file.toFile())) {
+			assertEquals(count, zipFile.size());
+			assertEquals(0, zipFile.getEntry((count - 1) + ".xml").getSize());
+		}
+	}
+
+	/**
+	 * Gzip data that does not hold what the metadata says, or is not gzip at all,
+	 * is refused.
+	 * 
+	 * @throws IOException if the test data cannot be compressed
+	 */
+	@Test
+	public void testGzipSizeMismatch() throws IOException {
+		byte[] gzip = gzip("<a/>".getBytes());
+		ZipStreamWriter zip = new ZipStreamWriter(new ByteArrayOutputStream(), TIME, Deflater.DEFAULT_COMPRESSION);
+		assertThrows(ZipException.class,
+				() -> zip.addGzip("wrong.xml", 5, gzip.length, new ByteArrayInputStream(gzip)));
+		byte[] plain = "<a>not gzip</a>".getBytes();
+		assertThrows(ZipException.class,
+				() -> zip.addGzip("notGzip.xml", plain.length, plain.length, new ByteArrayInputStream(plain)));
+	}
+
+	/**
+	 * @param data bytes to compress
+	 * @return data gzipped
+	 * @throws IOException if the data cannot be compressed
+	 */
+	private static byte[] gzip(final byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param gzip gzip data with no optional header fields
+	 * @return the same data with a file name in its header
+	 */
+	private static byte[] withHeaderName(final byte[] gzip) {
+		byte[] name = "named.xml\0".getBytes();
+		byte[] named = new byte[gzip.length + name.length];
+		System.arraycopy(gzip, 0, named, 0, 10);
+		named[3] |= 8;
+		System.arraycopy(name, 0, named, 10, name.length);
+		System.arraycopy(gzip, 10, named, 10 + name.length, gzip.length - 10);
+		return named;
+	}
+}
@@ -0,0 +1,61 @@
+package com.rob.ceuploadxml.validator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Test {@link SaxParserPool}.
+ */
+public final class SaxParserPoolTest {
+
+	/**
+	 * Well formed XML.
+	 */
+	private static final String VALID_XML = "<test name=\"test 01\"></test>";
+
+	/**
+	 * XML that is not well formed.
+	 */
+	private static final String INVALID_XML = "<test name=\"test 01\">";
+
+	/**
+	 * Parsers are returned to the pool after use, including after a parse error,
+	 * and can be used again.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testParsersAreReused() throws Exception {
+		SaxParserPool pool = new SaxParserPool(1);
+
+		pool.parse(new InputSource(new StringReader(VALID_XML)), new DefaultHandler());
+		assertEquals(1, pool.getIdleCount(), "Parser should be back in the pool.");
+
+		assertThrows(SAXException.class,
+				() -> pool.parse(new InputSource(new StringReader(INVALID_XML)), new DefaultHandler()));
+		assertEquals(1, pool.getIdleCount(), "Parser should be back in the pool after an error.");
+
+		pool.parse(new InputSource(new StringReader(VALID_XML)), new DefaultHandler());
+		assertEquals(1, pool.getIdleCount(), "Pool should not grow past its limit.");
+	}
+
+	/**
+	 * A document that refers to an external entity must not be able to read it.
+	 */
+	@Test
+	public void testExternalEntitiesAreNotResolved() {
+		String xxe = "<?xml version=\"1.0\"?><!DOCTYPE test [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+				+ "<test>&xxe;</test>";
+		SaxParserPool pool = new SaxParserPool(1);
+
+		assertThrows(SAXException.class,
+				() -> pool.parse(new InputSource(new StringReader(xxe)), new DefaultHandler()));
+	}
+}
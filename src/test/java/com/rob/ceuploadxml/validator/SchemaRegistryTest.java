@@ -0,0 +1,184 @@
+package com.rob.ceuploadxml.validator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Test {@link SchemaRegistry} and validating with {@link XmlValidator} against
+ * registered schemas.
+ */
+public final class SchemaRegistryTest {
+
+	/**
+	 * Namespace of the test schemas.
+	 */
+	private static final String BOOKS_NS = "urn:test:books";
+
+	/**
+	 * Schema where a book must have a title.
+	 */
+	private static final String BOOKS_XSD_TITLE = schema(BOOKS_NS, "title");
+
+	/**
+	 * Schema where a book must have an author.
+	 */
+	private static final String BOOKS_XSD_AUTHOR = schema(BOOKS_NS, "author");
+
+	/**
+	 * Book with a title.
+	 */
+	private static final String BOOK_WITH_TITLE = "<book xmlns=\"" + BOOKS_NS + "\"><title>XML</title></book>";
+
+	/**
+	 * Registry under test.
+	 */
+	private SchemaRegistry registry;
+
+	/**
+	 * Validator using the registry under test.
+	 */
+	private XmlValidator validator;
+
+	/**
+	 * Fresh registry that only keeps one compiled schema.
+	 */
+	@BeforeEach
+	public void setUp() {
+		registry = new SchemaRegistry(ValidationProperties.builder().schemaCacheSize(1).build());
+		validator = new XmlValidator(new SaxParserPool(1), registry);
+	}
+
+	/**
+	 * @param namespace target namespace
+	 * @param child     name of the one element a book must contain
+	 * @return schema for a book element
+	 */
+	private static String schema(final String namespace, final String child) {
+		return "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" + namespace
+				+ "\" elementFormDefault=\"qualified\">" //
+				+ "<xs:element name=\"book\"><xs:complexType><xs:sequence>" //
+				+ "<xs:element name=\"" + child + "\" type=\"xs:string\"/>" //
+				+ "</xs:sequence></xs:complexType></xs:element></xs:schema>";
+	}
+
+	/**
+	 * @param xml text to turn into a stream
+	 * @return stream of the text
+	 */
+	private static InputStream stream(final String xml) {
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * A document is validated against the schema registered for its root
+	 * namespace.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testValidatesByRootNamespace() throws Exception {
+		SchemaKey key = registry.register("1", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+		assertEquals(new SchemaKey(BOOKS_NS, "1"), key);
+
+		assertEquals(Optional.of(key), validator.checkValid(stream(BOOK_WITH_TITLE), null));
+		assertThrows(SchemaViolationException.class, () -> validator
+				.checkValid(stream("<b:book xmlns:b=\"" + BOOKS_NS + "\"><b:isbn>1</b:isbn></b:book>"), null));
+	}
+
+	/**
+	 * A document in a namespace with no schema is only checked for
+	 * well-formedness.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testNoSchemaForNamespace() throws Exception {
+		registry.register("1", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(Optional.empty(), validator.checkValid(stream("<book><isbn>1</isbn></book>"), null));
+		assertThrows(SAXException.class, () -> validator.checkValid(stream("<book>"), null));
+	}
+
+	/**
+	 * Registering a schema again replaces the compiled copy, and a schema asked
+	 * for by version is used even when a later version exists.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testReRegisterAndVersions() throws Exception {
+		registry.register("1", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+		validator.checkValid(stream(BOOK_WITH_TITLE), null);
+
+		registry.register("1", BOOKS_XSD_AUTHOR.getBytes(StandardCharsets.UTF_8));
+		assertThrows(SchemaViolationException.class, () -> validator.checkValid(stream(BOOK_WITH_TITLE), null));
+
+		registry.register("2", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+		assertEquals(Optional.of(new SchemaKey(BOOKS_NS, "2")), registry.resolve(BOOKS_NS, null));
+		validator.checkValid(stream(BOOK_WITH_TITLE), null);
+		assertThrows(SchemaViolationException.class,
+				() -> validator.checkValid(stream(BOOK_WITH_TITLE), new SchemaKey(BOOKS_NS, "1")));
+	}
+
+	/**
+	 * Only a bounded number of schemas stay compiled, and an evicted schema is
+	 * compiled again when it is next needed.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testCacheIsBounded() throws Exception {
+		registry.register("1", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+		registry.register("1", schema("urn:test:other", "title").getBytes(StandardCharsets.UTF_8));
+		assertEquals(1, registry.getCompiledCount());
+
+		validator.checkValid(stream(BOOK_WITH_TITLE), null);
+		assertEquals(1, registry.getCompiledCount());
+	}
+
+	/**
+	 * A schema that does not compile is not registered.
+	 */
+	@Test
+	public void testInvalidSchemaRejected() {
+		String xsd = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+				+ "<xs:element name=\"a\" type=\"xs:nope\"/></xs:schema>";
+		assertThrows(SAXException.class, () -> registry.register("1", xsd.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, registry.listSchemas().size());
+	}
+
+	/**
+	 * Ask for a schema that is not registered.
+	 */
+	@Test
+	public void testUnknownSchemaRequested() {
+		assertThrows(SAXException.class,
+				() -> validator.checkValid(stream(BOOK_WITH_TITLE), new SchemaKey(BOOKS_NS, "9")));
+	}
+
+	/**
+	 * Validators go back to their pool and are reused for later documents.
+	 * 
+	 * @throws IOException  if test code throws an unexpected exception
+	 * @throws SAXException if test code throws an unexpected exception
+	 */
+	@Test
+	public void testRepeatedValidation() throws IOException, SAXException {
+		registry.register("1", BOOKS_XSD_TITLE.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < 20; i++) {
+			validator.checkValid(stream(BOOK_WITH_TITLE), null);
+			assertThrows(SchemaViolationException.class,
+					() -> validator.checkValid(stream("<book xmlns=\"" + BOOKS_NS + "\"/>"), null));
+		}
+	}
+}
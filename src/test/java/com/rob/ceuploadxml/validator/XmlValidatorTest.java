@@ -1,52 +1,114 @@
-package com.rob.ceuploadxml.validator;
-
-import static org.junit.jupiter.api.Assertions.assertEquals;
-
-import java.io.IOException;
-import java.util.stream.Stream;
-
-import org.junit.jupiter.params.ParameterizedTest;
-import org.junit.jupiter.params.provider.Arguments;
-import org.junit.jupiter.params.provider.MethodSource;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.Resource;
-
-/**
- * Test {@link XmlValidator}.
- */
-public final class XmlValidatorTest {
-
-	/**
-	 * Where test files should be under project target/test-classes.
-	 */
-	private static final String TEST_FILES_LOCATION = "xml-files-to-upload/";
-
-	/**
-	 * @return data for {@link #testValidatingXml(String, String, boolean)}
-	 */
-	private static Stream<Arguments> dataForTestValidatingXml() {
-		return Stream.of(//
-				Arguments.of("File is valid.", "test01.xml", true), //
-				Arguments.of("File is not well formed XML.", "invalid01.xml", false)//
-		);
-	}
-
-	/**
-	 * Test downloading of a file.
-	 * 
-	 * @param label    for test
-	 * @param xmlPath  path to file we want to validate
-	 * @param expected true if the file should be valid; false otherwise
-	 * @throws IOException if test code throws an unexpected exception
-	 */
-	@ParameterizedTest(name = "#{index} - [{0}]")
-	@MethodSource("dataForTestValidatingXml")
-	public void testValidatingXml(final String label, final String xmlPath, final boolean expected) throws IOException {
-
-		XmlValidator validator = new XmlValidator();
-
-		Resource xmlDoc = new ClassPathResource(TEST_FILES_LOCATION + xmlPath);
-
-		assertEquals(expected, validator.xmlIsWellFormed(xmlDoc.getFile().toPath()), label);
-	}
-}
+package com.rob.ceuploadxml.validator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Test {@link XmlValidator}.
+ */
+public final class XmlValidatorTest {
+
+	/**
+	 * Where test files should be under project target/test-classes.
+	 */
+	private static final String TEST_FILES_LOCATION = "xml-files-to-upload/";
+
+	/**
+	 * @return data for {@link #testValidatingXml(String, String, boolean)}
+	 */
+	private static Stream<Arguments> dataForTestValidatingXml() {
+		return Stream.of(//
+				Arguments.of("File is valid.", "test01.xml", true), //
+				Arguments.of("File is not well formed XML.", "invalid01.xml", false)//
+		);
+	}
+
+	/**
+	 * Test downloading of a file.
+	 * 
+	 * @param label    for test
+	 * @param xmlPath  path to file we want to validate
+	 * @param expected true if the file should be valid; false otherwise
+	 * @throws IOException if test code throws an unexpected exception
+	 */
+	@ParameterizedTest(name = "#{index} - [{0}]")
+	@MethodSource("dataForTestValidatingXml")
+	public void testValidatingXml(final String label, final String xmlPath, final boolean expected) throws IOException {
+
+		XmlValidator validator = new XmlValidator();
+
+		Resource xmlDoc = new ClassPathResource(TEST_FILES_LOCATION + xmlPath);
+
+		assertEquals(expected, validator.xmlIsWellFormed(xmlDoc.getFile().toPath()), label);
+	}
+
+	/**
+	 * Test validating XML read from a stream.
+	 * 
+	 * @param label    for test
+	 * @param xmlPath  path to file we want to validate
+	 * @param expected true if the file should be valid; false otherwise
+	 * @throws IOException if test code throws an unexpected exception
+	 */
+	@ParameterizedTest(name = "#{index} - [{0}]")
+	@MethodSource("dataForTestValidatingXml")
+	public void testValidatingXmlStream(final String label, final String xmlPath, final boolean expected)
+			throws IOException {
+
+		XmlValidator validator = new XmlValidator();
+
+		Resource xmlDoc = new ClassPathResource(TEST_FILES_LOCATION + xmlPath);
+
+		try (InputStream xmlStream = xmlDoc.getInputStream()) {
+			assertEquals(expected, validator.xmlIsWellFormed(xmlStream), label);
+		}
+	}
+
+	/**
+	 * Prove that one validator gives the right answers when used from many threads
+	 * at once, with valid and invalid documents interleaved.
+	 * 
+	 * @throws Exception if test code throws an unexpected exception
+	 */
+	@Test
+	public void testValidatingXmlConcurrently() throws Exception {
+		XmlValidator validator = new XmlValidator(new SaxParserPool(2));
+		Resource validDoc = new ClassPathResource(TEST_FILES_LOCATION + "test01.xml");
+		Resource invalidDoc = new ClassPathResource(TEST_FILES_LOCATION + "invalid01.xml");
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<Boolean>> tasks = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				Resource xmlDoc = i % 2 == 0 ? validDoc : invalidDoc;
+				tasks.add(() -> {
+					try (InputStream xmlStream = xmlDoc.getInputStream()) {
+						return validator.xmlIsWellFormed(xmlStream);
+					}
+				});
+			}
+			List<Future<Boolean>> results = executor.invokeAll(tasks);
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(i % 2 == 0, results.get(i).get(), "Result for task " + i);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}